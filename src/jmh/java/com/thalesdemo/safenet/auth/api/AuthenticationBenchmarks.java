@@ -0,0 +1,176 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * JMH benchmarks of the per-request work of the `/authenticate` endpoint that does
+ * not depend on the SafeNet servers: the API key check, the response code lookup, the
+ * JSON serialization of the response under both views, and the client IP resolution.
+ *
+ * Run with `mvn -Pjmh verify`; see the `jmh` profile of the pom.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AuthenticationBenchmarks {
+
+    /**
+     * The API key accepted by the API key service.
+     */
+
+    private static final String API_KEY = "benchmark-api-key-0123456789";
+
+
+    /**
+     * The API key service, with the BCrypt strength used by the gateway.
+     */
+
+    private ApiKeyAuthService apiKeyAuthService;
+
+
+    /**
+     * Requests carrying the valid API key, a wrong API key and no API key.
+     */
+
+    private MockHttpServletRequest validKeyRequest;
+    private MockHttpServletRequest invalidKeyRequest;
+    private MockHttpServletRequest missingKeyRequest;
+
+
+    /**
+     * The JSON writers of the responses, configured like the message converter of Spring MVC.
+     */
+
+    private ObjectWriter standardWriter;
+    private ObjectWriter withCodeWriter;
+
+
+    /**
+     * A challenge response, the largest response of the endpoint.
+     */
+
+    private AuthenticationResponse challengeResponse;
+
+
+    /**
+     * The client IP resolver, and requests from a direct client and through a chain of trusted proxies.
+     */
+
+    private ClientIpResolver clientIpResolver;
+    private MockHttpServletRequest directRequest;
+    private MockHttpServletRequest proxiedRequest;
+
+
+    @Setup
+    public void setUp() {
+        BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+        this.apiKeyAuthService = new ApiKeyAuthService(passwordEncoder, passwordEncoder.encode(API_KEY), GatewayMetrics.NOOP);
+        this.validKeyRequest = new MockHttpServletRequest();
+        this.validKeyRequest.addHeader("X-API-Key", API_KEY);
+        this.invalidKeyRequest = new MockHttpServletRequest();
+        this.invalidKeyRequest.addHeader("X-API-Key", API_KEY + "-wrong");
+        this.missingKeyRequest = new MockHttpServletRequest();
+
+        Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json();
+        this.standardWriter = builder.build().writerWithView(ResponseCodeViews.Standard.class);
+        this.withCodeWriter = builder.build().writerWithView(ResponseCodeViews.WithCode.class);
+        this.challengeResponse = new AuthenticationResponse("alice", ResponseCode.AUTH_CHALLENGE,
+                new AuthenticationChallenge("GrIDsure", "1234567890123456789012345", "e2bd6f1d-7a2f-4bd5-9c4e-2f7f4c0b9d21"));
+
+        this.clientIpResolver = new ClientIpResolver(ClientIpResolver.DEFAULT_TRUSTED_PROXIES, "", 900);
+        this.directRequest = new MockHttpServletRequest();
+        this.directRequest.setRemoteAddr("203.0.113.7");
+        this.proxiedRequest = new MockHttpServletRequest();
+        this.proxiedRequest.setRemoteAddr("10.0.0.2");
+        this.proxiedRequest.addHeader("X-Forwarded-For", "198.51.100.1, 172.16.4.5, 10.1.2.3");
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean checkApiKeyValid() {
+        return this.apiKeyAuthService.checkApiKey(this.validKeyRequest);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean checkApiKeyInvalid() {
+        return this.apiKeyAuthService.checkApiKey(this.invalidKeyRequest);
+    }
+
+
+    @Benchmark
+    public boolean checkApiKeyMissing() {
+        return this.apiKeyAuthService.checkApiKey(this.missingKeyRequest);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void responseCodeFromCode(Blackhole blackhole) {
+        for (int code = 0; code <= 9; code++) {
+            blackhole.consume(ResponseCode.fromCode(code));
+        }
+    }
+
+
+    @Benchmark
+    public String serializeStandardView() throws JsonProcessingException {
+        return this.standardWriter.writeValueAsString(this.challengeResponse);
+    }
+
+
+    @Benchmark
+    public String serializeWithCodeView() throws JsonProcessingException {
+        return this.withCodeWriter.writeValueAsString(this.challengeResponse);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String resolveDirectClientIp() {
+        return this.clientIpResolver.resolve(this.directRequest);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String resolveProxiedClientIp() {
+        return this.clientIpResolver.resolve(this.proxiedRequest);
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * JMH benchmarks of the encoding of the GrIDsure images, comparing the dedicated
+ * {@link GridPngEncoder} with the default ImageIO PNG writer.
+ *
+ * Run with `mvn -Pjmh verify`; see the `jmh` profile of the pom.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import CRYPTOCard.API.CRYPTOCardAPI;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GridBenchmarks {
+
+    /**
+     * The GrIDsure grid rasterized by the CRYPTOCard API.
+     */
+
+    private BufferedImage grid;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        this.grid = CRYPTOCardAPI.getInstance().getGridSureGrid("1111122222333334444455555");
+    }
+
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        return GridPngEncoder.encode(this.grid);
+    }
+
+
+    @Benchmark
+    public byte[] encodePngWithImageIO() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        ImageIO.write(this.grid, "png", out);
+        return out.toByteArray();
+    }
+
+}
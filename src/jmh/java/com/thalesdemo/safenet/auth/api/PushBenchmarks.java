@@ -0,0 +1,99 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * JMH benchmarks of the CPU work of a push authentication that does not depend on the
+ * SafeNet servers: building the XML of the TokenValidator requests and parsing the
+ * status returned by the SPS parking server.
+ *
+ * Run with `mvn -Pjmh verify`; see the `jmh` profile of the pom.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestCredentialType;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestType;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO.TokenValidatorRequestBuilder;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PushBenchmarks {
+
+    /**
+     * A response of the SPS parking server once the user has approved the push notification.
+     */
+
+    private static final String PARKING_RESPONSE = "{\"status\":\"approved\",\"authId\":\"0d6c1b7e-51c4-4f8e-a6d4-3b1f0c9e2a77\"}";
+
+
+    /**
+     * The TokenValidator client. No request is sent: only the XML of the requests is built.
+     */
+
+    private CustomTokenValidatorWrapperImpl tokenValidator;
+
+
+    /**
+     * The request triggering a push challenge.
+     */
+
+    private TokenValidatorRequestDTO pushRequest;
+
+
+    @Setup
+    public void setUp() {
+        this.tokenValidator = new CustomTokenValidatorWrapperImpl("https://tv.example.com/TokenValidator/TokenValidator.asmx",
+                "https://tv-failover.example.com/TokenValidator/TokenValidator.asmx",
+                Base64.getEncoder().encodeToString(new byte[32]));
+        this.pushRequest = new TokenValidatorRequestBuilder()
+                .resourceName("safenet-auth-api")
+                .username("alice")
+                .userIpAddress("203.0.113.7")
+                .password("p")
+                .tvRequestType(TVRequestType.verifycredentials)
+                .tvRequestCredentialType(TVRequestCredentialType.TokenValidation)
+                .build();
+    }
+
+
+    @Benchmark
+    public String buildRequestXml() {
+        return this.tokenValidator.buildingRequestXmlFromDto(this.pushRequest);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String parseParkingStatus() throws JsonProcessingException {
+        return CustomAuthenticate.parseParkingStatus(PARKING_RESPONSE);
+    }
+
+}
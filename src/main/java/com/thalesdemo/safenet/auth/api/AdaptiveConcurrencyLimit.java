@@ -0,0 +1,351 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A limit on the number of calls in flight to a backend, adapted to the latency the
+ * backend is observed to answer with, so that the gateway sheds the excess calls at
+ * once when the backend degrades rather than queueing them until they all time out.
+ *
+ * The limit follows a gradient, updated once per window of as many completed calls as
+ * the limit, roughly once per round trip, so that it does not run ahead of the latency
+ * its changes cause: the window compares the average latency of its calls with a
+ * long-term average, the latency the backend answers with when it is not congested.
+ * While they agree, the limit grows by a small queue allowance; as the window latency
+ * rises above the long-term one, the limit shrinks in proportion, by half at most per
+ * window. A call that fails or times out shrinks it by a tenth, as AIMD does on a loss.
+ * The long-term average only follows the latency while the backend is not congested,
+ * or of the windows that ran with few calls in flight, so that the limit settles
+ * instead of creeping up with the queueing, and the limit only grows while the calls in
+ * flight use at least half of it.
+ *
+ * A call acquires a {@link Permit} before it starts, or is rejected with a
+ * {@link ConcurrencyLimitExceededException} once the limit is reached, and reports its
+ * outcome through the permit when it completes.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class AdaptiveConcurrencyLimit {
+
+    /**
+     * A limit that never rejects a call, used until the limit of the application is set.
+     */
+
+    public static final AdaptiveConcurrencyLimit NONE = new AdaptiveConcurrencyLimit("none", Integer.MAX_VALUE,
+            Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+
+    /**
+     * The fewest calls a window averages the latency of.
+     */
+
+    private static final int MIN_WINDOW = 10;
+
+
+    /**
+     * The weight of each window in the long-term average of the latency.
+     */
+
+    private static final double LONG_TERM_WEIGHT = 0.05;
+
+
+    /**
+     * How much higher than the long-term latency the latency of a window may be before the long-term one stops
+     * following it.
+     */
+
+    private static final double LEARNING_BAND = 1.1;
+
+
+    /**
+     * How much higher than the long-term latency the latency of a window may be before the limit shrinks.
+     */
+
+    private static final double TOLERANCE = 1.5;
+
+
+    /**
+     * The weight of the limit computed by each window in the limit, smoothing its changes.
+     */
+
+    private static final double SMOOTHING = 0.2;
+
+
+    /**
+     * The factor applied to the limit when a call fails.
+     */
+
+    private static final double BACKOFF = 0.9;
+
+
+    /**
+     * The name of the limit, e.g. the workload it protects.
+     */
+
+    private final String name;
+
+
+    /**
+     * The bounds of the limit.
+     */
+
+    private final int minLimit;
+    private final int maxLimit;
+
+
+    /**
+     * The number of calls in flight.
+     */
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+
+    /**
+     * The number of calls rejected so far.
+     */
+
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * The current limit, fractional so that it can change by less than a call at a time.
+     */
+
+    private volatile double limit;
+
+
+    /**
+     * The long-term average of the latency, in nanoseconds, or 0 before the first window, guarded by this limit.
+     */
+
+    private double longTermNanos;
+
+
+    /**
+     * The number of calls of the current window, the sum of their latencies in nanoseconds and the most calls in
+     * flight they ran among, guarded by this limit.
+     */
+
+    private int windowCalls;
+    private double windowNanos;
+    private int windowInFlight;
+
+
+    /**
+     * Constructs a new AdaptiveConcurrencyLimit.
+     *
+     * @param name the name of the limit, e.g. the workload it protects
+     * @param initialLimit the limit before the first call
+     * @param minLimit the lowest the limit shrinks to
+     * @param maxLimit the highest the limit grows to
+     */
+
+    public AdaptiveConcurrencyLimit(String name, int initialLimit, int minLimit, int maxLimit) {
+        this.name = name;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+
+    /**
+     * Returns the name of the limit.
+     *
+     * @return the name
+     */
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the number of calls allowed in flight
+     */
+
+    public int getLimit() {
+        return (int) this.limit;
+    }
+
+
+    /**
+     * Returns the number of calls in flight.
+     *
+     * @return the number of calls in flight
+     */
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+
+    /**
+     * Returns the number of calls rejected so far.
+     *
+     * @return the number of rejected calls
+     */
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+
+    /**
+     * Acquires a permit for a call, unless the limit is reached.
+     *
+     * @return the permit, to be completed once the call completes
+     * @throws ConcurrencyLimitExceededException if the limit is reached
+     */
+
+    public Permit acquire() {
+        if (this.inFlight.incrementAndGet() > (int) this.limit) {
+            this.inFlight.decrementAndGet();
+            this.rejected.incrementAndGet();
+            throw new ConcurrencyLimitExceededException(this.name);
+        }
+        return new Permit();
+    }
+
+
+    /**
+     * Adapts the limit to the latency of a call that succeeded, with the number of calls in flight it ran among.
+     */
+
+    private synchronized void onSuccess(long latencyNanos, int callsInFlight) {
+        double current = this.limit;
+        this.windowCalls++;
+        this.windowNanos += latencyNanos;
+        this.windowInFlight = Math.max(this.windowInFlight, callsInFlight);
+        if (this.windowCalls < Math.max(MIN_WINDOW, (int) current)) {
+            return;
+        }
+        double windowNanos = this.windowNanos / this.windowCalls;
+        int windowInFlight = this.windowInFlight;
+        this.windowCalls = 0;
+        this.windowNanos = 0;
+        this.windowInFlight = 0;
+
+        if (this.longTermNanos == 0) {
+            this.longTermNanos = windowNanos;
+        } else {
+            // Learn the latency of the backend while it is not congested only, or the queueing it is congested
+            // with would become the norm and the limit creep up. Calls that ran with few others in flight saw
+            // little of their queueing: their latency is the one of the backend, e.g. after it has slowed down for
+            // good, taken as is so that the limit recovers.
+            if (windowInFlight < 2 * this.minLimit) {
+                this.longTermNanos = windowNanos;
+            } else if (windowNanos <= LEARNING_BAND * this.longTermNanos) {
+                this.longTermNanos += (windowNanos - this.longTermNanos) * LONG_TERM_WEIGHT;
+            }
+            // Once the latency has dropped for good, e.g. after an incident, catch up rather than keep the limit high
+            if (this.longTermNanos > 2 * windowNanos) {
+                this.longTermNanos = windowNanos;
+            }
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longTermNanos / windowNanos));
+        double next = current * gradient + Math.sqrt(current);
+        // A limit cannot be validated by calls that do not use it: it only grows while they use at least half of it
+        if (next > current && windowInFlight < current / 2) {
+            return;
+        }
+        this.limit = bound(current * (1 - SMOOTHING) + next * SMOOTHING);
+    }
+
+
+    /**
+     * Shrinks the limit after a call failed or timed out.
+     */
+
+    private synchronized void onDropped() {
+        this.limit = bound(this.limit * BACKOFF);
+    }
+
+
+    private double bound(double value) {
+        return Math.min(Math.max(value, this.minLimit), this.maxLimit);
+    }
+
+
+    /**
+     * The permit of a call in flight, released by the first of its completion methods to be called.
+     */
+
+    public final class Permit {
+
+        private final long startNanos = System.nanoTime();
+        private final int callsInFlight = AdaptiveConcurrencyLimit.this.inFlight.get();
+        private boolean released;
+
+        private Permit() {
+        }
+
+        /**
+         * Releases the permit of a call that succeeded, its latency measured since the permit was acquired.
+         */
+
+        public void success() {
+            success(System.nanoTime() - this.startNanos);
+        }
+
+        /**
+         * Releases the permit of a call that succeeded, with the latency of the backend during the call, e.g. without
+         * the time spent waiting for the user.
+         *
+         * @param latencyNanos the latency, in nanoseconds
+         */
+
+        public void success(long latencyNanos) {
+            if (release()) {
+                onSuccess(latencyNanos, this.callsInFlight);
+            }
+        }
+
+        /**
+         * Releases the permit of a call that failed or timed out, shrinking the limit.
+         */
+
+        public void dropped() {
+            if (release()) {
+                onDropped();
+            }
+        }
+
+        /**
+         * Releases the permit of a call whose outcome says nothing of the backend, e.g. abandoned by its client.
+         */
+
+        public void ignore() {
+            release();
+        }
+
+        private boolean release() {
+            if (this.released) {
+                return false;
+            }
+            this.released = true;
+            AdaptiveConcurrencyLimit.this.inFlight.decrementAndGet();
+            return true;
+        }
+    }
+
+}
@@ -51,17 +51,26 @@ class ApiKeyAuthService {
 	
 	private final String apiKeyHash;
 
+
+	/**
+	 * The metrics recording the latency of the API key checks, dominated by the BCrypt comparison.
+	 */
+
+	private final GatewayMetrics metrics;
+
 	
     /**
      * Constructor for the ApiKeyAuthService class.
      * 
      * @param passwordEncoder Encoder for encoding the API key hash
      * @param apiKeyHash Hash of the API key that is stored in the environment variable
+     * @param metrics Metrics recording the latency of the API key checks
      */
     
-    public ApiKeyAuthService(BCryptPasswordEncoder passwordEncoder, String apiKeyHash) {
+    public ApiKeyAuthService(BCryptPasswordEncoder passwordEncoder, String apiKeyHash, GatewayMetrics metrics) {
         this.passwordEncoder = passwordEncoder;
         this.apiKeyHash = apiKeyHash; 
+        this.metrics = metrics;
     }
 
     
@@ -73,6 +82,23 @@ class ApiKeyAuthService {
      */
     
     public boolean checkApiKey(HttpServletRequest request) {
+    	GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.API_KEY_CHECK);
+    	String outcome = GatewayMetrics.ERROR;
+    	try {
+    		boolean valid = verifyApiKey(request);
+    		outcome = request.getHeader("X-API-Key") == null ? "missing" : (valid ? "valid" : "invalid");
+    		return valid;
+    	} finally {
+    		this.metrics.stop(stage, outcome);
+    	}
+    }
+
+
+    /**
+     * Verifies the API key of the "X-API-Key" header against the API key hash stored in the environment variable.
+     */
+
+    private boolean verifyApiKey(HttpServletRequest request) {
     	
     	// Retrieve the value of the "X-API-Key" header from the incoming HTTP request
     	String headerValue = request.getHeader("X-API-Key");
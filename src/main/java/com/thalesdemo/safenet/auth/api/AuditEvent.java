@@ -0,0 +1,192 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An immutable audit record of an authentication request, written as one JSON line by
+ * the {@link AuditLog}.
+ *
+ * The event only holds identifiers and outcomes: passcodes, challenge data and push
+ * state never enter it, so nothing has to be scrubbed when it is written.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.time.Instant;
+
+
+public final class AuditEvent {
+
+    /**
+     * The time of the event, in milliseconds since the epoch.
+     */
+
+    private final long timestamp;
+
+
+    /**
+     * The type of the event, e.g. `authenticate`.
+     */
+
+    private final String event;
+
+
+    /**
+     * The username and the client IP address of the request.
+     */
+
+    private final String username;
+    private final String clientIp;
+
+
+    /**
+     * The authentication method (`otp` or `push`), the response code name and the outcome.
+     */
+
+    private final String method;
+    private final String responseCode;
+    private final String outcome;
+
+
+    /**
+     * The duration of the request, in microseconds.
+     */
+
+    private final long durationMicros;
+
+
+    /**
+     * The trace id of the request, or null if it was not traced.
+     */
+
+    private final String traceId;
+
+
+    /**
+     * Constructs a new AuditEvent.
+     *
+     * @param timestamp the time of the event, in milliseconds since the epoch
+     * @param event the type of the event
+     * @param username the username of the request
+     * @param clientIp the client IP address of the request
+     * @param method the authentication method
+     * @param responseCode the response code name
+     * @param outcome the outcome, as reported by {@link GatewayMetrics#outcome(AuthenticationResponse)}
+     * @param durationMicros the duration of the request, in microseconds
+     * @param traceId the trace id of the request, or null
+     */
+
+    public AuditEvent(long timestamp, String event, String username, String clientIp, String method,
+            String responseCode, String outcome, long durationMicros, String traceId) {
+        this.timestamp = timestamp;
+        this.event = event;
+        this.username = username;
+        this.clientIp = clientIp;
+        this.method = method;
+        this.responseCode = responseCode;
+        this.outcome = outcome;
+        this.durationMicros = durationMicros;
+        this.traceId = traceId;
+    }
+
+
+    /**
+     * Returns the username of the request.
+     *
+     * @return the username
+     */
+
+    public String getUsername() {
+        return this.username;
+    }
+
+
+    /**
+     * Returns the outcome of the request.
+     *
+     * @return the outcome
+     */
+
+    public String getOutcome() {
+        return this.outcome;
+    }
+
+
+    /**
+     * Appends the event as a single-line JSON object, without the trailing newline.
+     *
+     * @param json the builder to append to
+     * @return the builder
+     */
+
+    public StringBuilder appendJson(StringBuilder json) {
+        json.append("{\"ts\":\"").append(Instant.ofEpochMilli(this.timestamp)).append('"');
+        appendField(json, "event", this.event);
+        appendField(json, "username", this.username);
+        appendField(json, "client_ip", this.clientIp);
+        appendField(json, "method", this.method);
+        appendField(json, "response_code", this.responseCode);
+        appendField(json, "outcome", this.outcome);
+        json.append(",\"duration_us\":").append(this.durationMicros);
+        appendField(json, "trace_id", this.traceId);
+        return json.append('}');
+    }
+
+
+    /**
+     * Appends a string field, unless its value is null.
+     */
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        json.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+
+    @Override
+    public String toString() {
+        return appendJson(new StringBuilder(192)).toString();
+    }
+
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Records the {@link AuditEvent}s of the authentication requests without blocking the
+ * request threads on I/O.
+ *
+ * Events are put in a bounded ring buffer, a single array-backed queue, and drained in
+ * batches by a background thread that writes them as JSON lines to `audit.jsonl` in the
+ * AUDIT_LOG_DIR directory. The file is rotated once it exceeds AUDIT_MAX_FILE_BYTES:
+ * `audit.jsonl` becomes `audit.1.jsonl`, and so on, up to AUDIT_MAX_FILES files.
+ *
+ * When the buffer is full, the AUDIT_OVERFLOW_POLICY decides whether the event is
+ * dropped (`drop`, the default) or whether the request thread waits for up to
+ * AUDIT_BLOCK_TIMEOUT_MS for some room (`block`), dropping the event after that. The
+ * dropped and delayed events are counted and exposed as metrics. Setting AUDIT_LOG_DIR
+ * to an empty value disables the audit log.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+@Component
+public class AuditLog {
+
+    /**
+     * The logger for the AuditLog class.
+     */
+
+    private static final Logger Log = Logger.getLogger(AuditLog.class.getName());
+
+
+    /**
+     * The name of the current audit file.
+     */
+
+    static final String FILE_NAME = "audit.jsonl";
+
+
+    /**
+     * The maximum number of events written between two flushes.
+     */
+
+    private static final int BATCH_SIZE = 512;
+
+
+    /**
+     * How often an idle writer thread checks whether the log is stopping, in milliseconds.
+     */
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+
+    /**
+     * The value substituted for secrets in the logs.
+     */
+
+    private static final String REDACTED = "[REDACTED]";
+
+
+    /**
+     * The directory of the audit files, or null if the audit log is disabled.
+     */
+
+    private final Path directory;
+
+
+    /**
+     * The ring buffer of the events waiting to be written.
+     */
+
+    private final ArrayBlockingQueue<AuditEvent> buffer;
+
+
+    /**
+     * Whether the request threads wait for room in a full buffer, and for how long, in milliseconds.
+     */
+
+    private final boolean blockOnOverflow;
+    private final long blockTimeoutMillis;
+
+
+    /**
+     * The size above which the audit file is rotated, and the number of files kept.
+     */
+
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+
+    /**
+     * The number of events dropped because the buffer was full or the file could not be written, and the number of
+     * events whose request thread had to wait for room in the buffer.
+     */
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+
+
+    /**
+     * The number of events written to the audit files.
+     */
+
+    private final AtomicLong written = new AtomicLong();
+
+
+    /**
+     * The writer thread, or null if it has not been started.
+     */
+
+    private Thread writerThread;
+
+
+    /**
+     * Whether the writer thread must exit once the buffer is drained.
+     */
+
+    private volatile boolean stopping;
+
+
+    /**
+     * Constructs a new AuditLog and registers its metrics.
+     *
+     * @param directory the directory of the audit files, or an empty string to disable the audit log
+     * @param capacity the capacity of the buffer, in events
+     * @param overflowPolicy `drop` or `block`
+     * @param blockTimeoutMillis how long a request thread waits for room in a full buffer with the `block` policy
+     * @param maxFileBytes the size above which the audit file is rotated
+     * @param maxFiles the number of audit files kept, including the current one
+     * @param registry the registry the metrics are registered with
+     */
+
+    @Autowired
+    public AuditLog(@Value("${AUDIT_LOG_DIR:/var/log/microservice}") String directory,
+                    @Value("${AUDIT_BUFFER_SIZE:8192}") int capacity,
+                    @Value("${AUDIT_OVERFLOW_POLICY:drop}") String overflowPolicy,
+                    @Value("${AUDIT_BLOCK_TIMEOUT_MS:5}") long blockTimeoutMillis,
+                    @Value("${AUDIT_MAX_FILE_BYTES:10485760}") long maxFileBytes,
+                    @Value("${AUDIT_MAX_FILES:5}") int maxFiles,
+                    MeterRegistry registry) {
+        this(directory == null || directory.trim().isEmpty() ? null : Paths.get(directory.trim()), capacity,
+                "block".equalsIgnoreCase(overflowPolicy.trim()), blockTimeoutMillis, maxFileBytes, maxFiles);
+
+        FunctionCounter.builder("safenet.audit.dropped", this.dropped, AtomicLong::get)
+                .description("Audit events dropped because the buffer was full or the file could not be written")
+                .register(registry);
+        FunctionCounter.builder("safenet.audit.delayed", this.delayed, AtomicLong::get)
+                .description("Audit events whose request waited for room in the buffer")
+                .register(registry);
+        FunctionCounter.builder("safenet.audit.written", this.written, AtomicLong::get).register(registry);
+        Gauge.builder("safenet.audit.buffered", this.buffer, ArrayBlockingQueue::size).register(registry);
+    }
+
+
+    /**
+     * Constructs a new AuditLog without metrics.
+     */
+
+    AuditLog(Path directory, int capacity, boolean blockOnOverflow, long blockTimeoutMillis, long maxFileBytes,
+            int maxFiles) {
+        this.directory = directory;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        this.blockOnOverflow = blockOnOverflow;
+        this.blockTimeoutMillis = Math.max(blockTimeoutMillis, 0);
+        this.maxFileBytes = Math.max(maxFileBytes, 1024);
+        this.maxFiles = Math.max(maxFiles, 1);
+    }
+
+
+    /**
+     * Records the specified event. This never performs I/O: the event is only put in the buffer.
+     *
+     * @param event the event to record
+     * @return true if the event was buffered, false if it was dropped
+     */
+
+    public boolean record(AuditEvent event) {
+        if (this.directory == null) {
+            return false;
+        }
+        if (this.buffer.offer(event)) {
+            return true;
+        }
+        if (this.blockOnOverflow) {
+            this.delayed.incrementAndGet();
+            try {
+                if (this.buffer.offer(event, this.blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.dropped.incrementAndGet();
+        return false;
+    }
+
+
+    /**
+     * Returns the value to log in place of the specified secret, e.g. a passcode.
+     *
+     * @param secret the secret
+     * @return a placeholder telling only whether the secret is empty
+     */
+
+    public static String redact(String secret) {
+        return secret == null || secret.isEmpty() ? "<empty>" : REDACTED;
+    }
+
+
+    /**
+     * Returns the number of events dropped so far.
+     *
+     * @return the number of dropped events
+     */
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+
+    /**
+     * Returns the number of events whose request thread had to wait for room in the buffer.
+     *
+     * @return the number of delayed events
+     */
+
+    public long getDelayed() {
+        return this.delayed.get();
+    }
+
+
+    /**
+     * Starts the writer thread once the application is ready.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (this.directory == null || this.writerThread != null) {
+            return;
+        }
+        this.stopping = false;
+        this.writerThread = new Thread(this::drain, "audit-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Log.info("Writing audit events to " + this.directory.resolve(FILE_NAME));
+    }
+
+
+    /**
+     * Stops the writer thread after the buffered events have been written. The thread is not interrupted, since an
+     * interrupt closes the channel of the audit file and the events still buffered would be lost.
+     */
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (this.writerThread == null) {
+            return;
+        }
+        this.stopping = true;
+        try {
+            this.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.writerThread = null;
+    }
+
+
+    /**
+     * Writes the buffered events in batches until the log is stopped and the buffer is empty.
+     */
+
+    private void drain() {
+        List<AuditEvent> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        Writer writer = null;
+        long fileBytes = 0;
+
+        while (!this.stopping || !this.buffer.isEmpty()) {
+            try {
+                if (this.buffer.isEmpty() && !this.stopping) {
+                    AuditEvent event = this.buffer.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (event != null) {
+                        batch.add(event);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Not restored: the interrupt would close the audit file. The thread exits once stopped and drained
+            }
+            this.buffer.drainTo(batch, BATCH_SIZE - batch.size());
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            int pending = batch.size();
+            try {
+                for (AuditEvent event : batch) {
+                    if (writer != null && fileBytes >= this.maxFileBytes) {
+                        writer.close();
+                        writer = null;
+                        rotate();
+                    }
+                    if (writer == null) {
+                        Files.createDirectories(this.directory);
+                        Path file = this.directory.resolve(FILE_NAME);
+                        fileBytes = Files.exists(file) ? Files.size(file) : 0;
+                        writer = open(file);
+                    }
+                    line.setLength(0);
+                    event.appendJson(line).append('\n');
+                    writer.append(line);
+                    // The events are ASCII but for the usernames, so the length is a close estimate of the size
+                    fileBytes += line.length();
+                    pending--;
+                }
+                writer.flush();
+                this.written.addAndGet(batch.size());
+            } catch (IOException | RuntimeException e) {
+                this.dropped.addAndGet(pending);
+                this.written.addAndGet(batch.size() - pending);
+                Log.log(Level.WARNING, "Could not write " + pending + " audit events", e);
+                writer = closeQuietly(writer);
+            }
+            batch.clear();
+        }
+        closeQuietly(writer);
+    }
+
+
+    /**
+     * Opens the specified audit file for appending.
+     */
+
+    private static Writer open(Path file) throws IOException {
+        return new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), 64 * 1024);
+    }
+
+
+    /**
+     * Shifts the audit files by one, deleting the oldest one.
+     */
+
+    void rotate() throws IOException {
+        Files.deleteIfExists(rotatedFile(this.maxFiles - 1));
+        for (int i = this.maxFiles - 2; i >= 1; i--) {
+            Path source = rotatedFile(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Path current = this.directory.resolve(FILE_NAME);
+        if (this.maxFiles > 1) {
+            Files.move(current, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(current);
+        }
+    }
+
+
+    /**
+     * Returns the path of the rotated audit file with the specified index, e.g. `audit.1.jsonl`.
+     */
+
+    private Path rotatedFile(int index) {
+        return this.directory.resolve("audit." + index + ".jsonl");
+    }
+
+
+    /**
+     * Closes the specified writer, ignoring errors.
+     */
+
+    private static Writer closeQuietly(Writer writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.fine("Error while closing the audit file: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  *
  * Authenticate class provides methods for authentication using SafeNet/CRYPTOCard API.
+ * It is the {@link Authenticator} used in production.
  *
  * @author Cina Shaykhian
  * @contact hello@onewelco.me
@@ -28,8 +29,11 @@ import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
 
-public class Authenticate{
+
+public class Authenticate implements Authenticator {
 	
 	/**
 	 * The logger for the Authenticate class.
@@ -78,6 +82,28 @@ public class Authenticate{
 	private String organization;
 
 	
+	/**
+	 * Indicates whether the JNI library of the CRYPTOCard API was loaded successfully by the constructor.
+	 * Used by the readiness probe to decide if this instance can serve authentication requests.
+	 */
+	
+	private volatile boolean libraryLoaded;
+
+	
+	/**
+	 * The metrics recording the latency of the JNI calls.
+	 */
+	
+	private GatewayMetrics metrics = GatewayMetrics.NOOP;
+
+
+	/**
+	 * The tracing creating the span of each validation, parent of the span of the JNI call.
+	 */
+	
+	private GatewayTracing tracing = GatewayTracing.NOOP;
+
+	
 	/**
 	 * Creates a new instance of the Authenticate class with the specified organization and INI file path.
 	 *
@@ -97,6 +123,7 @@ public class Authenticate{
 	    // Load the required JNI library for the CRYPTOCard API
 	    try {
 	        this.api.LoadJNILibrary();
+	        this.libraryLoaded = true;
 	        // Log a message to indicate that initialization is complete
 	        Log.info("Constructor initialization complete.");
 	    } catch (UnsatisfiedLinkError ex) {
@@ -109,6 +136,44 @@ public class Authenticate{
 	}
 
 	
+	/**
+	 * Returns whether the JNI library of the CRYPTOCard API was loaded successfully at construction time.
+	 *
+	 * @return true if the JNI library is loaded, false otherwise
+	 */
+	
+	@Override
+	public boolean isLibraryLoaded() {
+	    return this.libraryLoaded;
+	}
+
+	
+	/**
+	 * Sets the metrics recording the latency of the JNI calls.
+	 *
+	 * @param metrics the metrics of the application
+	 * @return this Authenticate object
+	 */
+	
+	public Authenticate setMetrics(GatewayMetrics metrics) {
+	    this.metrics = metrics;
+	    return this;
+	}
+
+	
+	/**
+	 * Sets the tracing creating the span of each validation.
+	 *
+	 * @param tracing the tracing of the application
+	 * @return this Authenticate object
+	 */
+	
+	public Authenticate setTracing(GatewayTracing tracing) {
+	    this.tracing = tracing;
+	    return this;
+	}
+
+	
 	/**
 	 * Sends an authentication request to the CRYPTOCard API server with the specified username, passcode, and state.
 	 *
@@ -129,7 +194,7 @@ public class Authenticate{
 
 		// Log information about the received username, passcode, and organization
 		Log.fine("Received username: " + username);
-		Log.fine("Received passcode: " + passcode);
+		Log.fine("Received passcode: " + AuditLog.redact(passcode));
 		Log.fine("Received org name: " + organization);
 
 		// If the passcode is empty or null, log a warning and trigger a challenge-response
@@ -170,9 +235,15 @@ public class Authenticate{
 		arrData[8] = "";                   // authentication servers health error - 0 for up, 1 for down (output)
 		arrData[9] = "";                   // Log message (output)
 
+		// Time the JNI call; the response is only recorded once it has been parsed successfully
+		GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.JNI_AUTHENTICATE);
+		AuthenticationResponse recorded = null;
 		try {
-		    // Call the Authenticate method of the CRYPTOCard API with the request data
-		    this.api.Authenticate(arrData);
+		    // Call the Authenticate method of the CRYPTOCard API with the request data, until the deadline of the request at most
+		    RequestDeadline.call(GatewayMetrics.JNI_AUTHENTICATE, () -> {
+		        this.api.Authenticate(arrData);
+		        return null;
+		    });
 
 		    // Extract the response data from the arrData array
 		    String rawMsg = arrData[9];
@@ -196,6 +267,7 @@ public class Authenticate{
 		                    .setChallengeData(challengeData)
 		                    .setState(challengeState)
 		            );
+		    recorded = response;
 
 		    // Handle the response status using a switch statement
 		    switch(status) {
@@ -223,9 +295,18 @@ public class Authenticate{
 		            Log.warning("Unresolved server response (" + status + ") for user: " + username);
 		    }
 
+		} catch(DeadlineExceededException e) {
+		    // The caller has given up: answer it rather than waiting for the JNI call
+		    Log.warning("Abandoned the authentication of user " + username + " past the deadline of the request");
+		    throw e;
+		} catch(ConcurrencyLimitExceededException e) {
+		    // Too many JNI calls are still running: shed the request rather than start another one
+		    throw e;
 		} catch(Exception e) {
 		    // If an exception occurs, log an error and print the stack trace
 			Log.log(Level.SEVERE, "An error occurred at Authenticate.sendToServerAuthenticate(): ", e);
+		} finally {
+		    this.metrics.stop(stage, recorded);
 		}
 
 		// Return the AuthenticationResponse object
@@ -264,6 +345,7 @@ public class Authenticate{
 	 * @return the GrIDsure challenge data
 	 */
 	
+	@Override
 	public String getGridChallengeData(String username, String state, Optional<String> organization) {
 			
 		// Call sendToServerAuthenticate to send an authentication request to the CRYPTOCard API server
@@ -306,6 +388,7 @@ public class Authenticate{
 	 * @return a BufferedImage object representing the GridSure challenge, or an empty image if an error occurs
 	 */
 	
+	@Override
 	public BufferedImage convertGridDataToImage(String challenge) {
 	    try {
 	        return this.api.getGridSureGrid(challenge);
@@ -338,13 +421,20 @@ public class Authenticate{
 	 * @return an AuthenticationResponse object representing the server's response
 	 */
 
+	@Override
 	public AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest) {
-		// Call the sendToServerAuthenticate method with the username, passcode, state, and organization fields from the authentication request
-  	  	return this.sendToServerAuthenticate(authenticationRequest.getUsername(), 
-  	  										 authenticationRequest.getCode(), 
-  	  										 authenticationRequest.getState(), 
-  	  										 Optional.ofNullable(authenticationRequest.getOrganization())
-  	  										);
+		// Trace the validation; the JNI call is traced as a child span
+		Span span = this.tracing.startSpan("safenet.validate");
+		try (Scope scope = span.makeCurrent()) {
+			// Call the sendToServerAuthenticate method with the username, passcode, state, and organization fields from the authentication request
+			return this.sendToServerAuthenticate(authenticationRequest.getUsername(), 
+												 authenticationRequest.getCode(), 
+												 authenticationRequest.getState(), 
+												 Optional.ofNullable(authenticationRequest.getOrganization())
+												);
+		} finally {
+			span.end();
+		}
 	}
 	
 	
@@ -364,6 +454,7 @@ public class Authenticate{
 	 * @return A boolean value indicating whether the server is up or down.
 	 */
 	
+	@Override
 	public boolean getServerStatus() {
 	    String[] arrData = new String[11];
 	    try {
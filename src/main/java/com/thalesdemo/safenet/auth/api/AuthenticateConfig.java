@@ -14,25 +14,31 @@
  * limitations under the License.
  *
  * This class provides the configuration for the Authenticate class.
- * It registers the configuration in the @Bean Authenticate authenticate() and sets the INI path and
+ * It registers the configuration in the @Bean Authenticator authenticate() and sets the INI path and
  * organization from environment variables. If the environment variables are not set, the default values are used.
+ * The bean is a {@link SimulatedAuthenticator} instead when AUTHENTICATOR is set to `simulator`, and is wrapped
+ * by a {@link TokenValidatorAuthenticator} when TOKEN_VALIDATOR_OTP_ORGANIZATIONS is set, and by a
+ * {@link ConcurrencyLimitedAuthenticator} adapting the validations in flight to the latency of the backend.
+ *
+ * The content of the INI file is parsed once into a {@link GatewaySettings} snapshot, held by the
+ * {@link GatewaySettingsWatcher}.
  *
  * @author Cina Shaykhian
  * @contact hello@onewelco.me
  */
 package com.thalesdemo.safenet.auth.api;
 
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Properties;
 import java.util.Optional;
 import java.util.logging.Logger;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 
 @Configuration 
 public class AuthenticateConfig {
@@ -44,14 +50,38 @@ public class AuthenticateConfig {
 	private static final Logger Log = Logger.getLogger(AuthenticateConfig.class.getName());
 
     
+    /**
+     * The path to the INI file, resolved once from the environment.
+     */
+
+    private static volatile String jCryptoIniPath;
+
+    
     /**
      * The path to the INI file. If the JCRYPTO_INI_PATH environment variable is not set,
      * return the default value '/app/config/config.ini' which is used by the Docker container.
+     * The path is resolved on the first call and reused afterwards.
      * 
      * @return the path to the INI file
      */
 
     public static String getJcryptoIniPath() {
+        String path = AuthenticateConfig.jCryptoIniPath;
+        if (path == null) {
+            path = resolveJcryptoIniPath();
+            AuthenticateConfig.jCryptoIniPath = path;
+        }
+        return path;
+    }
+
+
+    /**
+     * Resolves the path to the INI file from the environment.
+     * 
+     * @return the path to the INI file
+     */
+
+    private static String resolveJcryptoIniPath() {
     	// Check if the JCRYPTO_INI_PATH environment variable is set
         String jCryptoIniPath = Optional.ofNullable(System.getenv("JCRYPTO_INI_PATH"))
                   .orElse(System.getProperty("JCRYPTO_INI_PATH"));
@@ -65,61 +95,6 @@ public class AuthenticateConfig {
     }
 
     
-    /**
-     * Get the authentication URL from the INI file based on the configuration keys.
-     * @param keyNameHttpProtocol key name for the HTTP protocol
-     * @param keyNameServerHost key name for the server host
-     * @param keyNameServerPort key name for the server port
-     * @param keyNameRelativeUrlPath key name for the relative URL path
-     * @return the authentication URL
-     */
-
-    public static String getAuthUrlFromJcryptoIni(String keyNameHttpProtocol, String keyNameServerHost, String keyNameServerPort, String keyNameRelativeUrlPath) {
-        String jCryptoIniPath = getJcryptoIniPath();
-
-        // read the file and extract the auth url
-        Properties props = new Properties();
-        try (FileInputStream in = new FileInputStream(jCryptoIniPath)) {
-            props.load(in);
-        } catch (IOException ex) {
-            Log.severe("Could not read the INI file." + jCryptoIniPath);
-            return null;
-            // handle the exception, e.g. log an error message or throw a custom exception
-        }
-        
-        // Retrieve the values of the properties
-        String protocol = props.getProperty(keyNameHttpProtocol);
-        String server = props.getProperty(keyNameServerHost);
-        String port = props.getProperty(keyNameServerPort);
-        String path = props.getProperty(keyNameRelativeUrlPath);
-        
-        // Form and return the absolute URL
-        return String.format("%s://%s:%s%s", protocol, server, port, path);
-    }
-
-
-    /**
-     * Get the agent key path from the INI file.
-     * @return the agent key path
-     */
-
-    public static String getAgentKeyPathFromJcryptoIni() {
-        String jCryptoIniPath = getJcryptoIniPath();
-        
-        // read the file and extract the agent key path
-        Properties props = new Properties();
-        try (FileInputStream in = new FileInputStream(jCryptoIniPath)) {
-            props.load(in);
-        } catch (IOException ex) {
-            Log.severe("Could not read the INI file." + jCryptoIniPath);
-            return "/app/secret/agent.key"; // default value
-        }
-        
-        // Retrieve the value of the property
-        return props.getProperty("EncryptionKeyFile");
-    }
-
-
     /**
      * Checks if the URL is valid.
      * @param url the URL to check
@@ -140,53 +115,87 @@ public class AuthenticateConfig {
     
 
     /**
-     * Get the primary authentication URL from the INI file.
-     * @return the primary authentication URL
-     */
-
-    public static String getPrimaryAuthUrlFromJcryptoIni() {
-        return getAuthUrlFromJcryptoIni("PrimaryProtocol", "PrimaryServer", "PrimaryServerPort", "PrimaryWebServiceRelativePath");
-    }
-
-
-    /**
-     * Get the secondary authentication URL from the INI file.
-     * @return the secondary authentication URL if it is defined in the INI file, otherwise the primary authentication URL
-     */
-
-    public static String getSecondaryAuthUrlFromJcryptoIni() {
-
-        String secondaryUrl = getAuthUrlFromJcryptoIni("SecondaryProtocol", "SecondaryServer", "SecondaryServerPort", "SecondaryWebServiceRelativePath");
-
-        if (secondaryUrl == null || secondaryUrl.trim().isEmpty() || !isValidUrl(secondaryUrl)) {
-            Log.info("Secondary URL is not defined in the INI file. Mirroring the primary URL instead.");
-            secondaryUrl = getPrimaryAuthUrlFromJcryptoIni();
-        }
-        return secondaryUrl;
-    }
-
-
-    /**
-     * Creates a new instance of the Authenticate object and registers it as a bean
-     * so that it can be used by other components.
+     * Creates the authentication backend and registers it as a bean so that it can be used by other components.
+     * 
+     * The backend is the CRYPTOCard JNI library, unless the AUTHENTICATOR environment variable is set to
+     * `simulator`, in which case a {@link SimulatedAuthenticator} configured by the SIMULATOR_* environment
+     * variables is used instead, e.g. for load tests.
      * 
-     * @return an instance of the Authenticate object
-     * @throws Exception if an error occurs while creating the Authenticate object
+     * The OTP passcodes of the organizations listed in TOKEN_VALIDATOR_OTP_ORGANIZATIONS are validated over
+     * the TokenValidator protocol instead, by a {@link TokenValidatorAuthenticator} wrapping the backend.
+     * 
+     * The validations in flight are limited by a {@link ConcurrencyLimitedAuthenticator}, whatever their backend.
+     * The stateful calls of a same user are then run one at a time by a {@link UserOrderedAuthenticator}, over
+     * USER_STRIPES stripes, unless it is set to 0, so that a user waiting for its turn does not hold a place in the
+     * limit.
+     * 
+     * @param metrics the metrics recording the latency of the JNI calls
+     * @param tracing the tracing creating the span of each validation
+     * @param customAuthenticate the TokenValidator client of the gateway
+     * @param backend `jni` or `simulator`
+     * @param tokenValidatorOrganizations the comma-separated organizations validated over the TokenValidator
+     *        protocol, `*` for all of them, or an empty string for none
+     * @param latency the latency distribution of the simulated calls
+     * @param resultMix the weights of the simulated outcomes
+     * @param errorRate the share of the simulated calls failing
+     * @param stallRate the share of the simulated calls stalling
+     * @param stallMillis how long a stalled simulated call waits, in milliseconds
+     * @param downRate the share of the simulated server status checks reporting the servers down
+     * @param userStripes the number of stripes ordering the calls of each user, or 0 not to order them
+     * @param userStripeTimeoutMillis how long a call waits for the previous calls of the user, in milliseconds
+     * @param registry the registry of the metrics of the stripes
+     * @param concurrencyLimits the limits of the calls in flight
+     * @return the authentication backend
+     * @throws Exception if an error occurs while creating the backend
      */
 	
     @Bean
-    Authenticate authenticate() throws Exception {
-       Log.info("Registering configuration in @Bean Authenticate authenticate()...");
-        
-        String jCryptoIniPath = getJcryptoIniPath();
-        
+    Authenticator authenticate(GatewayMetrics metrics, GatewayTracing tracing, CustomAuthenticate customAuthenticate,
+                               @Value("${AUTHENTICATOR:jni}") String backend,
+                               @Value("${TOKEN_VALIDATOR_OTP_ORGANIZATIONS:}") String tokenValidatorOrganizations,
+                               @Value("${SIMULATOR_LATENCY:0}") String latency,
+                               @Value("${SIMULATOR_RESULT_MIX:success=80,challenge=10,grid=5,failure=5}") String resultMix,
+                               @Value("${SIMULATOR_ERROR_RATE:0}") double errorRate,
+                               @Value("${SIMULATOR_STALL_RATE:0}") double stallRate,
+                               @Value("${SIMULATOR_STALL_MS:30000}") long stallMillis,
+                               @Value("${SIMULATOR_DOWN_RATE:0}") double downRate,
+                               @Value("${USER_STRIPES:256}") int userStripes,
+                               @Value("${USER_STRIPE_TIMEOUT_MS:10000}") long userStripeTimeoutMillis,
+                               MeterRegistry registry,
+                               ConcurrencyLimits concurrencyLimits) throws Exception {
         // This environment variable could be omitted or overridden.
         // If so, the requests must contain JSON `"organization: "your_org_name"` in the body request
         final String JCRYPTO_DEFAULT_ORGANIZATION = Optional.ofNullable(System.getenv("JCRYPTO_DEFAULT_ORGANIZATION"))
         													.orElse(System.getProperty("JCRYPTO_DEFAULT_ORGANIZATION")); 
-        
-        // Return a new instance of Authenticate class with the default organization and the path to the INI file
-        return new Authenticate(JCRYPTO_DEFAULT_ORGANIZATION, jCryptoIniPath);
+
+        Authenticator authenticator;
+        if ("simulator".equalsIgnoreCase(backend.trim())) {
+            Log.warning("AUTHENTICATOR is set to simulator: authentication requests are NOT checked against SafeNet.");
+            authenticator = new SimulatedAuthenticator(latency, resultMix, errorRate, stallRate, stallMillis, downRate)
+                    .setMetrics(metrics).setTracing(tracing);
+        } else {
+            Log.info("Registering configuration in @Bean Authenticate authenticate()...");
+            
+            String jCryptoIniPath = getJcryptoIniPath();
+            
+            // A new instance of Authenticate class with the default organization and the path to the INI file
+            authenticator = new Authenticate(JCRYPTO_DEFAULT_ORGANIZATION, jCryptoIniPath).setMetrics(metrics).setTracing(tracing);
+        }
+
+        if (tokenValidatorOrganizations != null && !tokenValidatorOrganizations.trim().isEmpty()) {
+            Log.info("Validating the OTP passcodes of the organizations " + tokenValidatorOrganizations
+                    + " over the TokenValidator protocol");
+            authenticator = new TokenValidatorAuthenticator(authenticator, customAuthenticate,
+                    tokenValidatorOrganizations, JCRYPTO_DEFAULT_ORGANIZATION).setTracing(tracing);
+        }
+
+        authenticator = new ConcurrencyLimitedAuthenticator(authenticator, concurrencyLimits.getOtp());
+
+        if (userStripes <= 0) {
+            return authenticator;
+        }
+        return new UserOrderedAuthenticator(authenticator,
+                new UserStripes(userStripes, userStripeTimeoutMillis, registry));
     }
     
 }
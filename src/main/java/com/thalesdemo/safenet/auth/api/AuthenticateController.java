@@ -21,14 +21,13 @@
  */
 package com.thalesdemo.safenet.auth.api;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import javax.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.client.RestTemplate;
 import java.util.Objects;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -36,9 +35,13 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.util.StringUtils;
 
 import com.fasterxml.jackson.annotation.JsonView;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -61,10 +64,10 @@ public class AuthenticateController {
 
 	
 	/**
-	 * An instance of the Authenticate class for use in this controller.
+	 * The authentication backend for use in this controller.
 	 */
 	
-	private final Authenticate api;
+	private final Authenticator api;
 
 
 	/**
@@ -82,11 +85,51 @@ public class AuthenticateController {
     @Autowired
     private HttpServletRequest request;
 
+
+	/**
+	 * The resolver of the client IP address, aware of the trusted proxies.
+	 */
+
+    @Autowired
+    private ClientIpResolver clientIpResolver;
+
+
+	/**
+	 * The metrics recording the latency of the authentication requests.
+	 */
+
+    @Autowired
+    private GatewayMetrics metrics;
+
+
+	/**
+	 * The audit log recording the outcome of each authentication request off the request thread.
+	 */
+
+    @Autowired
+    private AuditLog auditLog;
+
+
+	/**
+	 * The shadow runner comparing a sample of the OTP authentications with a secondary backend.
+	 */
+
+    @Autowired
+    private ShadowRunner shadowRunner;
+
+
+	/**
+	 * The workload classes bounding the threads the OTP validations and the push authentications may hold.
+	 */
+
+    @Autowired
+    private WorkloadClasses workloads;
+
 	
 	/**
-	 * Constructs a new AuthenticateController instance with the specified Authenticate dependency injected.
+	 * Constructs a new AuthenticateController instance with the specified Authenticator dependency injected.
 	 * 
-	 * @param api An instance of the Authenticate class to be used for user authentication.
+	 * @param api The authentication backend to be used for user authentication.
 	 *            This argument is non-null and is assigned to a final field called "api".
 	 *            
 	 * @throws NullPointerException if the api argument is null.
@@ -96,8 +139,8 @@ public class AuthenticateController {
 	 *           when the AuthenticateController is constructed.
 	 */
 	
-	public AuthenticateController(Authenticate api) {
-	    Objects.requireNonNull(api, "Authenticate dependency cannot be null.");
+	public AuthenticateController(Authenticator api) {
+	    Objects.requireNonNull(api, "Authenticator dependency cannot be null.");
 	    this.api = api;
 	}
 
@@ -159,6 +202,9 @@ public class AuthenticateController {
 	@ApiResponse(responseCode = "400",
 			   content = @Content,
 			   description = "The request was invalid or incomplete, possibly due to malformed JSON data.")
+	@ApiResponse(responseCode = "503",
+			   content = @Content,
+			   description = "The authentication server, or the gateway, is saturated; retry after the number of seconds in the Retry-After header.")
 	@JsonView(ResponseCodeViews.Standard.class)
 
 	public ResponseEntity<AuthenticationResponse> authenticate(
@@ -169,7 +215,7 @@ public class AuthenticateController {
 								  + "<ul><li>when set to `one-step` or `quicklog` or when parameter `unset`— the push authentication request will be handled in a single step (a.k.a. quicklog)<br/>"
 								  +"→ the `state` parameter is not applicable with this push mode</li><br/>"
 					              +"<li>when set to `challenge-response`— the push authentication request will be handled in two steps, offering richer feedback in the user interface, by signaling if and when the push challenge was generated and pending user push approval<br/>"
-					              +"→ by setting this option to `challenge-response`, the client application must also set the `state` parameter in the request body of the second request</li></ul><br/>"
+					              +"→ by setting this option to `challenge-response`, the client application must also set the `state` parameter in the request body of the second request, exactly as returned by the first one: the state is signed and expires after a few minutes</li></ul><br/>"
 								  +"**Specifications**<ul>" 
 								  +"<li>push authentication takes precedence over any OTP authentication method specified in the request body when the query parameter `push_mode` is set</li><br/>"
 								  +"<li>in the `challenge-response` mode, it is recommended to make second `/authenticate` request immediately after completing the first request</li><br/>"
@@ -187,43 +233,18 @@ public class AuthenticateController {
 	{
 
 		// Log that a POST request is incoming for the specified username.
-		Log.info("Incoming POST /api/v1/authenticate/" + username);
+		Log.fine("Incoming POST /api/v1/authenticate/" + username);
+		long startNanos = System.nanoTime();
 
-		// Check headers for the client IP address.
-		String ipAddress = request.getHeader("X-Forwarded-For");
-		if (ipAddress == null || ipAddress.isEmpty() || "unknown".equalsIgnoreCase(ipAddress)) {
-			ipAddress = request.getHeader("Proxy-Client-IP");
-		}
-		if (ipAddress == null || ipAddress.isEmpty() || "unknown".equalsIgnoreCase(ipAddress)) {
-			ipAddress = request.getHeader("WL-Proxy-Client-IP");
-		}
-		if (ipAddress == null || ipAddress.isEmpty() || "unknown".equalsIgnoreCase(ipAddress)) {
-			ipAddress = request.getHeader("HTTP_CLIENT_IP");
-		}
-		if (ipAddress == null || ipAddress.isEmpty() || "unknown".equalsIgnoreCase(ipAddress)) {
-			ipAddress = request.getHeader("HTTP_X_FORWARDED_FOR");
-		}
-		if (ipAddress == null || ipAddress.isEmpty() || "unknown".equalsIgnoreCase(ipAddress)) {
-			ipAddress = request.getRemoteAddr();
-		}
-		
-		// If the IP address is a loopback address, get the real IP address from ifconfig.me.
-		if (ipAddress.equals("0:0:0:0:0:0:0:1") || ipAddress.equals("::1")) {
-			RestTemplate restTemplate = new RestTemplate();
-			ipAddress = restTemplate.getForObject("https://ifconfig.me/ip", String.class);
-			try {
-				ipAddress = InetAddress.getByName(ipAddress).getHostAddress();
-			} catch (UnknownHostException e) {
-				ipAddress = "127.0.0.1";
-			}
-		}
+		// Time the request, tagged with the authentication method and the outcome once known.
+		GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.AUTHENTICATE);
+
+		// Resolve the client IP address, honoring the forwarding headers of trusted proxies only.
+		// Loopback clients are reported with the public IP address of the gateway, discovered in the background.
+		long resolveStart = System.nanoTime();
+		String ipAddress = clientIpResolver.resolve(request);
+		ServerTiming.record("ip.resolve", System.nanoTime() - resolveStart);
 
-		// Convert IPv6 address to IPv4 if necessary
-		if (ipAddress.contains(":")) {
-			int index = ipAddress.lastIndexOf(":");
-			ipAddress = ipAddress.substring(index + 1);
-		}
-		
 		// Log the client IP address in debug mode.
 		Log.fine("Client IP Address: " + ipAddress);
 
@@ -238,17 +259,53 @@ public class AuthenticateController {
 		// If the request is a push authentication request, handle it differently. Push is not supported by the official SafeNet Java API.
 		// Push is triggered by sending the code "p" (or "P") in the request body or by setting the push_mode query parameter.
 		AuthenticationResponse serverResponse = null;
-		if (pushMode != null || "p".equalsIgnoreCase(authenticationRequest.getCode())) {
-			Log.info("Push OTP authentication request detected for user: " + authenticationRequest.getUsername());
-			serverResponse = this.customApi.pushOTP(authenticationRequest.getUsername(), ipAddress, authenticationRequest.getState(), pushMode);
-		}
-		else {
-			// Validate the authentication code with the official Java API and get the server's response.
-			serverResponse = this.api.validateCode(authenticationRequest);
+		boolean push = pushMode != null || "p".equalsIgnoreCase(authenticationRequest.getCode());
+
+		// Describe the shape of the request, without its secrets, for the traffic capture.
+		request.setAttribute(TrafficRecord.SHAPE_ATTRIBUTE, TrafficRecord.shape(push, StringUtils.hasLength(authenticationRequest.getCode()),
+				StringUtils.hasLength(authenticationRequest.getState()), StringUtils.hasLength(authenticationRequest.getOrganization()), pushMode != null));
+		// Run the request within its workload class, so that parked pushes and OTP validations cannot starve each other.
+		WorkloadClass workload = push ? this.workloads.getPush() : this.workloads.getOtp();
+		try {
+			workload.acquire();
+			try {
+				if (push) {
+					Log.fine("Push OTP authentication request detected for user: " + authenticationRequest.getUsername());
+					serverResponse = this.customApi.pushOTP(authenticationRequest.getUsername(), authenticationRequest.getOrganization(), ipAddress, authenticationRequest.getState(), pushMode);
+				}
+				else {
+					// Validate the authentication code with the official Java API and get the server's response.
+					long validateStart = System.nanoTime();
+					serverResponse = this.api.validateCode(authenticationRequest);
+
+					// Compare a sample of the requests with the secondary backend, off the request thread.
+					this.shadowRunner.shadow(authenticationRequest, serverResponse, System.nanoTime() - validateStart);
+				}
+			} finally {
+				// Held until an abandoned backend call returns
+				RequestDeadline.release(workload::release);
+			}
+		} catch (ConcurrencyLimitExceededException e) {
+			// Shed at once while the backend or the workload class is saturated, rather than queue the request until it times out.
+			Log.fine("Rejecting authentication request for user: `" + authenticationRequest.getUsername() + "`: " + e.getMessage());
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.RETRY_AFTER, "1");
+			return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+		} finally {
+			this.metrics.stop(stage, serverResponse, "method", push ? "push" : "otp");
+
+			// Record the outcome in the audit log; the response itself is only serialized when debugging.
+			SpanContext spanContext = Span.current().getSpanContext();
+			this.auditLog.record(new AuditEvent(System.currentTimeMillis(), "authenticate", authenticationRequest.getUsername(), ipAddress,
+					push ? "push" : "otp", serverResponse == null ? null : serverResponse.getResponse().getName(),
+					GatewayMetrics.outcome(serverResponse), (System.nanoTime() - startNanos) / 1000,
+					spanContext.isValid() ? spanContext.getTraceId() : null));
 		}
 
 		// Log the response from the server for debugging purposes.
-		Log.info("Responding to authentication request for user: `" + authenticationRequest.getUsername() + "` with: " + serverResponse);
+		if (Log.isLoggable(Level.FINE)) {
+			Log.fine("Responding to authentication request for user: `" + authenticationRequest.getUsername() + "` with: " + serverResponse);
+		}
 
 		/*
 		 * If the authentication was denied or challenged, return a FORBIDDEN response.
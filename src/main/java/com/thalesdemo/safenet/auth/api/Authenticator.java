@@ -0,0 +1,85 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The authentication backend the controllers depend on: validation of the OTP and
+ * GrIDsure passcodes, issue and rendering of GrIDsure challenges, and the status of
+ * the authentication servers.
+ *
+ * {@link Authenticate} implements it on top of the CRYPTOCard JNI library, and
+ * {@link SimulatedAuthenticator} without any backend, to measure the overhead of the
+ * gateway on its own. The AUTHENTICATOR environment variable selects the
+ * implementation, see {@link AuthenticateConfig}.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+
+
+public interface Authenticator {
+
+    /**
+     * Validates the authentication request, or issues a challenge if it has no passcode.
+     *
+     * @param authenticationRequest the authentication request to be validated
+     * @return an AuthenticationResponse object representing the server's response
+     */
+
+    AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest);
+
+
+    /**
+     * Retrieves the GrIDsure challenge data for the specified username and state.
+     *
+     * @param username the username to retrieve the challenge data for
+     * @param state the state of the authentication request
+     * @param organization (optional) the name of the virtual server
+     * @return the GrIDsure challenge data, or fake challenge data if the user has no GrIDsure token
+     */
+
+    String getGridChallengeData(String username, String state, Optional<String> organization);
+
+
+    /**
+     * Converts a GrIDsure challenge string to an image.
+     *
+     * @param challenge the GrIDsure challenge string to convert
+     * @return the image of the grid, or an empty image if an error occurs
+     */
+
+    BufferedImage convertGridDataToImage(String challenge);
+
+
+    /**
+     * Returns whether the authentication servers are up.
+     *
+     * @return true if the servers are up, false otherwise
+     */
+
+    boolean getServerStatus();
+
+
+    /**
+     * Returns whether the backend was loaded successfully and can serve authentication requests.
+     *
+     * @return true if the backend is loaded
+     */
+
+    boolean isLibraryLoaded();
+
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A set of IPv4 and IPv6 address ranges in CIDR notation, compiled into binary
+ * prefix tries for lookups in at most 32 (IPv4) or 128 (IPv6) steps, whatever
+ * the number of ranges.
+ *
+ * Addresses are parsed as literals only: a string that is not a valid IPv4 or IPv6
+ * address is rejected without ever being resolved through DNS, so header values
+ * supplied by clients cannot trigger name lookups. IPv4-mapped IPv6 addresses are
+ * matched against the IPv4 ranges.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+
+public final class CidrTrie {
+
+    /**
+     * The root of the trie holding the IPv4 ranges.
+     */
+
+    private final Node ipv4 = new Node();
+
+
+    /**
+     * The root of the trie holding the IPv6 ranges.
+     */
+
+    private final Node ipv6 = new Node();
+
+
+    /**
+     * Compiles the specified comma-separated list of ranges in CIDR notation, e.g. `10.0.0.0/8, ::1/128`.
+     * An address without prefix length stands for that single address.
+     *
+     * @param cidrs the comma-separated list of ranges, possibly empty
+     * @return the compiled ranges
+     * @throws IllegalArgumentException if a range is invalid
+     */
+
+    public static CidrTrie compile(String cidrs) {
+        CidrTrie trie = new CidrTrie();
+        if (cidrs == null) {
+            return trie;
+        }
+        for (String cidr : cidrs.split(",")) {
+            cidr = cidr.trim();
+            if (!cidr.isEmpty()) {
+                trie.add(cidr);
+            }
+        }
+        return trie;
+    }
+
+
+    /**
+     * Adds the specified range in CIDR notation.
+     *
+     * @param cidr the range, e.g. `192.168.0.0/16`
+     * @throws IllegalArgumentException if the range is invalid
+     */
+
+    public void add(String cidr) {
+        int slash = cidr.indexOf('/');
+        byte[] address = parseAddress(slash < 0 ? cidr : cidr.substring(0, slash));
+        if (address == null) {
+            throw new IllegalArgumentException("Invalid address range: " + cidr);
+        }
+
+        int bits = address.length * 8;
+        int prefixLength = bits;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix length: " + cidr, e);
+            }
+            if (prefixLength < 0 || prefixLength > bits) {
+                throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+            }
+        }
+
+        Node node = address.length == 4 ? this.ipv4 : this.ipv6;
+        for (int i = 0; i < prefixLength && !node.terminal; i++) {
+            int bit = bit(address, i);
+            if (node.children[bit] == null) {
+                node.children[bit] = new Node();
+            }
+            node = node.children[bit];
+        }
+        // A shorter range already covering this one makes the longer one redundant
+        if (!node.terminal) {
+            node.terminal = true;
+            node.children[0] = null;
+            node.children[1] = null;
+        }
+    }
+
+
+    /**
+     * Returns whether the specified address belongs to one of the ranges.
+     *
+     * @param address the address in raw form, 4 or 16 bytes long
+     * @return true if the address belongs to one of the ranges
+     */
+
+    public boolean contains(byte[] address) {
+        Node node = address.length == 4 ? this.ipv4 : this.ipv6;
+        int bits = address.length * 8;
+        for (int i = 0; node != null; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == bits) {
+                return false;
+            }
+            node = node.children[bit(address, i)];
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns whether the specified address literal belongs to one of the ranges.
+     *
+     * @param address the address literal
+     * @return true if the address is valid and belongs to one of the ranges
+     */
+
+    public boolean contains(String address) {
+        byte[] raw = parseAddress(address);
+        return raw != null && contains(raw);
+    }
+
+
+    /**
+     * Parses the specified IPv4 or IPv6 address literal, without any DNS lookup. IPv4-mapped IPv6
+     * addresses are returned as IPv4 addresses.
+     *
+     * @param address the address literal, e.g. `203.0.113.7` or `2001:db8::1`
+     * @return the address in raw form, 4 or 16 bytes long, or null if the literal is invalid
+     */
+
+    public static byte[] parseAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        address = address.trim();
+        if (address.isEmpty()) {
+            return null;
+        }
+        if (address.indexOf(':') < 0) {
+            return parseIPv4(address);
+        }
+
+        // Only hexadecimal digits, colons, dots (embedded IPv4) and a zone index are allowed,
+        // which guarantees that InetAddress treats the string as a literal rather than a host name
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            boolean valid = Character.digit(c, 16) >= 0 || c == ':' || c == '.' || c == '%';
+            if (!valid) {
+                return null;
+            }
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException | SecurityException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Parses the specified dotted-quad IPv4 address literal.
+     */
+
+    private static byte[] parseIPv4(String address) {
+        byte[] raw = new byte[4];
+        int octet = 0;
+        int value = -1;
+        for (int i = 0; i <= address.length(); i++) {
+            char c = i < address.length() ? address.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || octet == 4) {
+                    return null;
+                }
+                raw[octet++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return octet == 4 ? raw : null;
+    }
+
+
+    /**
+     * Returns the bit of the specified address at the specified index, the most significant bit first.
+     */
+
+    private static int bit(byte[] address, int index) {
+        return (address[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+
+    /**
+     * A node of the trie. A terminal node marks the end of a range: every address below it belongs to the set.
+     */
+
+    private static final class Node {
+        final Node[] children = new Node[2];
+        boolean terminal;
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The connection of the client of the request being processed by the current thread,
+ * watched while the request waits on a long backend call, so that the call is given up
+ * as soon as the client disconnects rather than once it completes.
+ *
+ * The connection is bound to the request thread by the {@link ClientConnectionValve},
+ * with a probe telling whether the client has closed it. A servlet request does not
+ * learn of a disconnect until it writes its response, so a call run through
+ * {@link #watch(String, Supplier)} has the connection probed on a watchdog thread while
+ * it runs. Once the client is gone, the action registered with {@link #onClose(Runnable)},
+ * e.g. closing the HTTP connection of the call, is run to unblock the request thread,
+ * which throws a {@link ClientDisconnectedException}.
+ *
+ * Without a bound connection, e.g. outside of the embedded Tomcat, the calls run
+ * unwatched and the client is never seen as gone.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+public final class ClientConnection {
+
+    /**
+     * The logger for the ClientConnection class.
+     */
+
+    private static final Logger Log = Logger.getLogger(ClientConnection.class.getName());
+
+
+    /**
+     * The connection of the client of the request being processed by the current thread, if any.
+     */
+
+    private static final ThreadLocal<ClientConnection> CURRENT = new ThreadLocal<>();
+
+
+    /**
+     * The thread probing the connections of the watched calls.
+     */
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "client-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * The probe telling whether the client has closed the connection.
+     */
+
+    private final BooleanSupplier probe;
+
+
+    /**
+     * The time between two probes of a watched call, in milliseconds.
+     */
+
+    private final long intervalMillis;
+
+
+    /**
+     * Whether the client has been seen closing the connection.
+     */
+
+    private volatile boolean closed;
+
+
+    /**
+     * Whether a call is being watched, the action unblocking it and the scheduled probe, guarded by this connection.
+     */
+
+    private boolean watching;
+    private Runnable abort;
+    private ScheduledFuture<?> probing;
+
+
+    private ClientConnection(BooleanSupplier probe, long intervalMillis) {
+        this.probe = probe;
+        this.intervalMillis = intervalMillis;
+    }
+
+
+    /**
+     * Binds the connection of the current request to the current thread.
+     *
+     * @param probe the probe telling whether the client has closed the connection, only ever run while the request
+     *        thread waits on a watched call or by the request thread itself
+     * @param intervalMillis the time between two probes of a watched call, in milliseconds
+     */
+
+    static void begin(BooleanSupplier probe, long intervalMillis) {
+        CURRENT.set(new ClientConnection(probe, Math.max(intervalMillis, 1)));
+    }
+
+
+    /**
+     * Unbinds the connection from the current thread.
+     */
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+
+    /**
+     * Returns whether the client of the current request has closed the connection, probing it if it has not been seen
+     * closing it yet.
+     *
+     * @return true if the client is gone, false if it is not or if no connection is bound
+     */
+
+    public static boolean isClosed() {
+        ClientConnection connection = CURRENT.get();
+        if (connection == null) {
+            return false;
+        }
+        synchronized (connection) {
+            return connection.probe();
+        }
+    }
+
+
+    /**
+     * Rejects the specified stage if the client of the current request has closed the connection.
+     *
+     * @param stage the stage about to start, e.g. a {@link GatewayMetrics} timer name
+     * @throws ClientDisconnectedException if the client is gone
+     */
+
+    public static void check(String stage) {
+        if (isClosed()) {
+            throw new ClientDisconnectedException(stage);
+        }
+    }
+
+
+    /**
+     * Registers the action unblocking the call being watched once the client disconnects, in place of the previous
+     * one, e.g. when the call follows a redirect. The action is run right away if the client is already gone.
+     *
+     * @param abort the action, run on the watchdog thread
+     */
+
+    public static void onClose(Runnable abort) {
+        ClientConnection connection = CURRENT.get();
+        if (connection == null) {
+            return;
+        }
+        synchronized (connection) {
+            if (!connection.watching) {
+                return;
+            }
+            connection.abort = abort;
+            if (connection.closed) {
+                abort.run();
+            }
+        }
+    }
+
+
+    /**
+     * Runs the specified call, probing the connection of the client while it runs.
+     *
+     * @param <T> the type of the result
+     * @param stage the stage of the call, e.g. a {@link GatewayMetrics} timer name
+     * @param call the call, unblocked by the action it registers with {@link #onClose(Runnable)}
+     * @return the result of the call
+     * @throws ClientDisconnectedException if the client disconnected before or during the call, whether or not the
+     *         call completed
+     */
+
+    public static <T> T watch(String stage, Supplier<T> call) {
+        ClientConnection connection = CURRENT.get();
+        if (connection == null) {
+            return call.get();
+        }
+        connection.start(stage);
+
+        T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            if (connection.stop()) {
+                throw new ClientDisconnectedException(stage);
+            }
+            throw e;
+        }
+        if (connection.stop()) {
+            throw new ClientDisconnectedException(stage);
+        }
+        return result;
+    }
+
+
+    /**
+     * Starts probing the connection on the watchdog thread.
+     */
+
+    private synchronized void start(String stage) {
+        if (probe()) {
+            throw new ClientDisconnectedException(stage);
+        }
+        this.watching = true;
+        this.probing = WATCHDOG.scheduleWithFixedDelay(() -> {
+            synchronized (this) {
+                if (this.watching && probe()) {
+                    this.probing.cancel(false);
+                    abort();
+                }
+            }
+        }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stops probing the connection, waiting for a probe in progress, so that the request thread has the connection to
+     * itself again.
+     *
+     * @return whether the client has been seen closing the connection
+     */
+
+    private synchronized boolean stop() {
+        this.watching = false;
+        this.abort = null;
+        this.probing.cancel(false);
+        return this.closed;
+    }
+
+
+    /**
+     * Probes the connection unless the client has been seen closing it already.
+     */
+
+    private boolean probe() {
+        if (!this.closed && this.probe.getAsBoolean()) {
+            this.closed = true;
+        }
+        return this.closed;
+    }
+
+
+    /**
+     * Runs the action unblocking the watched call, if any.
+     */
+
+    private void abort() {
+        if (this.abort == null) {
+            return;
+        }
+        try {
+            this.abort.run();
+        } catch (RuntimeException e) {
+            Log.log(Level.FINE, "Could not abort the call of a disconnected client", e);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Binds the {@link ClientConnection} of each request to its thread, with a probe asking
+ * the Tomcat connector whether the client has closed the connection.
+ *
+ * The servlet API offers no such probe: Tomcat only reads from the connection of a
+ * request when the request reads its body, and does not report a disconnect to the
+ * async listeners either. Once the body has been read, the probe has the connector read
+ * from the connection without blocking. A closed connection fails the read, which the
+ * connector reports as a single byte available, so that the next read throws; the data
+ * of a pipelined request is reported in full, and left for the connector to process once
+ * the request completes.
+ *
+ * The watched calls are probed every CLIENT_PROBE_INTERVAL_MS milliseconds, 1000 by
+ * default; 0 disables the probe.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+
+public class ClientConnectionValve extends ValveBase {
+
+    /**
+     * The time between two probes of a watched call, in milliseconds.
+     */
+
+    private final long intervalMillis;
+
+
+    /**
+     * Constructs a new ClientConnectionValve.
+     *
+     * @param intervalMillis the time between two probes of a watched call, in milliseconds
+     */
+
+    public ClientConnectionValve(long intervalMillis) {
+        super(true);
+        this.intervalMillis = intervalMillis;
+    }
+
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+        ClientConnection.begin(() -> isClosed(coyoteRequest), this.intervalMillis);
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            ClientConnection.end();
+        }
+    }
+
+
+    /**
+     * Returns whether the client of the specified request has closed the connection, reading from the connection
+     * without blocking.
+     */
+
+    static boolean isClosed(org.apache.coyote.Request request) {
+        if (!request.isFinished()) {
+            // The body is still to be read by the request, which would then see the end of stream itself
+            return false;
+        }
+        request.action(ActionCode.AVAILABLE, Boolean.TRUE);
+        return request.getAvailable() == 1;
+    }
+
+
+    /**
+     * Adds the valve to the context of the embedded Tomcat.
+     */
+
+    @Configuration
+    static class Registration {
+
+        /**
+         * Returns the customizer adding the valve, unless the probe is disabled.
+         *
+         * @param intervalMillis the time between two probes of a watched call, in milliseconds, or 0 to disable the probe
+         * @return the customizer
+         */
+
+        @Bean
+        WebServerFactoryCustomizer<TomcatServletWebServerFactory> clientConnectionValve(
+                @Value("${CLIENT_PROBE_INTERVAL_MS:1000}") long intervalMillis) {
+            return factory -> {
+                if (intervalMillis > 0) {
+                    factory.addContextValves(new ClientConnectionValve(intervalMillis));
+                }
+            };
+        }
+    }
+
+}
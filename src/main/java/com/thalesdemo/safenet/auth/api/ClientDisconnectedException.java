@@ -0,0 +1,42 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Thrown when the client of a request has closed its connection, before a stage of the
+ * request starts or while it waits for a backend. A client that is gone has given up on
+ * the response as surely as one whose deadline has passed, so the request is ended as if
+ * its deadline had passed early, by the {@link RequestDeadlineFilter}.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+
+public class ClientDisconnectedException extends DeadlineExceededException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Constructs a new ClientDisconnectedException.
+     *
+     * @param stage the stage that was rejected or abandoned, e.g. a {@link GatewayMetrics} timer name
+     */
+
+    public ClientDisconnectedException(String stage) {
+        super(stage, "The client of the request disconnected at stage " + stage);
+    }
+
+}
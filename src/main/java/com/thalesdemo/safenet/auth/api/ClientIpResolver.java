@@ -0,0 +1,343 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Resolves the IP address of the client of a request, as reported to the SafeNet
+ * authentication server.
+ *
+ * The forwarding headers are only honored when the request comes from a trusted
+ * proxy, as configured by the TRUSTED_PROXIES environment variable (a comma-separated
+ * list of CIDR ranges, defaulting to the loopback and private networks). The
+ * X-Forwarded-For chain is then walked from right to left, skipping the trusted
+ * proxies, and the first untrusted address is the client. A client cannot spoof its
+ * address by sending its own X-Forwarded-For header, since the entries it adds end
+ * up to the left of the ones appended by the proxies.
+ *
+ * When the resolved client is the local host, e.g. during development, the public IP
+ * address of the gateway is reported instead. It is discovered in the background from
+ * the PUBLIC_IP_DISCOVERY_URL service and cached, so requests never wait for it.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+
+@Component
+public class ClientIpResolver {
+
+    /**
+     * The logger for the ClientIpResolver class.
+     */
+
+    private static final Logger Log = Logger.getLogger(ClientIpResolver.class.getName());
+
+
+    /**
+     * The default trusted proxies: the loopback, private and unique local networks.
+     */
+
+    public static final String DEFAULT_TRUSTED_PROXIES =
+            "127.0.0.0/8, 10.0.0.0/8, 172.16.0.0/12, 192.168.0.0/16, 169.254.0.0/16, ::1/128, fc00::/7, fe80::/10";
+
+
+    /**
+     * The address reported until the public IP address of the gateway has been discovered.
+     */
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+
+    /**
+     * The single-valued forwarding headers set by some proxies, honored in the absence of X-Forwarded-For.
+     */
+
+    private static final String[] LEGACY_HEADERS = { "Proxy-Client-IP", "WL-Proxy-Client-IP" };
+
+
+    /**
+     * The compiled trusted proxy ranges.
+     */
+
+    private final CidrTrie trustedProxies;
+
+
+    /**
+     * The URL returning the public IP address of the gateway as plain text, or an empty string to disable the discovery.
+     */
+
+    private final String discoveryUrl;
+
+
+    /**
+     * The interval between two discoveries of the public IP address, in seconds.
+     */
+
+    private final long refreshSeconds;
+
+
+    /**
+     * The last public IP address discovered, or null if none has been discovered yet.
+     */
+
+    private volatile String publicIpAddress;
+
+
+    /**
+     * The scheduler of the public IP address discovery, or null if it has not been started.
+     */
+
+    private ScheduledExecutorService scheduler;
+
+
+    /**
+     * Constructs a new ClientIpResolver.
+     *
+     * @param trustedProxies the comma-separated list of trusted proxy ranges in CIDR notation
+     * @param discoveryUrl the URL returning the public IP address of the gateway, or an empty string to disable the discovery
+     * @param refreshSeconds the interval between two discoveries of the public IP address, in seconds
+     * @throws IllegalArgumentException if a trusted proxy range is invalid
+     */
+
+    public ClientIpResolver(@Value("${TRUSTED_PROXIES:" + DEFAULT_TRUSTED_PROXIES + "}") String trustedProxies,
+                            @Value("${PUBLIC_IP_DISCOVERY_URL:https://ifconfig.me/ip}") String discoveryUrl,
+                            @Value("${PUBLIC_IP_REFRESH_SECONDS:900}") long refreshSeconds) {
+        this.trustedProxies = CidrTrie.compile(trustedProxies);
+        this.discoveryUrl = discoveryUrl == null ? "" : discoveryUrl.trim();
+        this.refreshSeconds = Math.max(refreshSeconds, 1);
+    }
+
+
+    /**
+     * Resolves the IP address of the client of the specified request.
+     *
+     * @param request the HTTP request
+     * @return the IP address of the client
+     */
+
+    public String resolve(HttpServletRequest request) {
+        String remoteAddress = request.getRemoteAddr();
+        String client = remoteAddress;
+
+        if (this.trustedProxies.contains(remoteAddress)) {
+            List<String> chain = forwardedFor(request);
+            if (!chain.isEmpty()) {
+                client = walk(chain, remoteAddress);
+            } else {
+                for (String header : LEGACY_HEADERS) {
+                    String value = request.getHeader(header);
+                    if (CidrTrie.parseAddress(value) != null) {
+                        client = value.trim();
+                        break;
+                    }
+                }
+            }
+        }
+
+        client = unwrapMapped(client);
+        if (isLoopback(client)) {
+            return this.publicIpAddress != null ? this.publicIpAddress : LOCALHOST;
+        }
+        return client;
+    }
+
+
+    /**
+     * Returns the IPv4 address embedded in an IPv4-mapped IPv6 address such as `::ffff:203.0.113.7`, as sent by
+     * dual-stack listeners, or the specified address unchanged.
+     */
+
+    static String unwrapMapped(String address) {
+        if (address == null || address.indexOf(':') < 0) {
+            return address;
+        }
+        byte[] raw = CidrTrie.parseAddress(address);
+        if (raw == null || raw.length != 4) {
+            return address;
+        }
+        return (raw[0] & 0xff) + "." + (raw[1] & 0xff) + "." + (raw[2] & 0xff) + "." + (raw[3] & 0xff);
+    }
+
+
+    /**
+     * Walks the X-Forwarded-For chain from right to left and returns the first address that is not a trusted proxy.
+     * If every address is trusted, the leftmost one is returned. The walk stops at the first invalid entry, since
+     * nothing to its left can be trusted, and the last valid address is returned.
+     */
+
+    private String walk(List<String> chain, String remoteAddress) {
+        String client = remoteAddress;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            String hop = stripPort(chain.get(i));
+            byte[] address = CidrTrie.parseAddress(hop);
+            if (address == null) {
+                break;
+            }
+            client = hop;
+            if (!this.trustedProxies.contains(address)) {
+                break;
+            }
+        }
+        return client;
+    }
+
+
+    /**
+     * Returns the entries of every X-Forwarded-For header of the specified request, in order.
+     */
+
+    private static List<String> forwardedFor(HttpServletRequest request) {
+        Enumeration<String> headers = request.getHeaders("X-Forwarded-For");
+        if (headers == null || !headers.hasMoreElements()) {
+            return Collections.emptyList();
+        }
+        List<String> chain = new ArrayList<>(4);
+        while (headers.hasMoreElements()) {
+            for (String entry : headers.nextElement().split(",")) {
+                entry = entry.trim();
+                if (!entry.isEmpty()) {
+                    chain.add(entry);
+                }
+            }
+        }
+        return chain;
+    }
+
+
+    /**
+     * Removes the port, and the brackets around IPv6 addresses, from an X-Forwarded-For entry such as `[2001:db8::1]:443`
+     * or `203.0.113.7:51000`.
+     */
+
+    private static String stripPort(String entry) {
+        if (entry.startsWith("[")) {
+            int end = entry.indexOf(']');
+            return end > 0 ? entry.substring(1, end) : entry;
+        }
+        int colon = entry.indexOf(':');
+        if (colon > 0 && colon == entry.lastIndexOf(':')) {
+            return entry.substring(0, colon);
+        }
+        return entry;
+    }
+
+
+    /**
+     * Returns whether the specified address literal is a loopback address.
+     */
+
+    private static boolean isLoopback(String address) {
+        byte[] raw = CidrTrie.parseAddress(address);
+        if (raw == null) {
+            return false;
+        }
+        try {
+            return InetAddress.getByAddress(raw).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the last public IP address discovered.
+     *
+     * @return the public IP address of the gateway, or null if none has been discovered yet
+     */
+
+    public String getPublicIpAddress() {
+        return this.publicIpAddress;
+    }
+
+
+    /**
+     * Starts the periodic discovery of the public IP address in the background once the application is ready.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void startDiscovery() {
+        if (this.discoveryUrl.isEmpty() || this.scheduler != null) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "public-ip-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::discover, 0, this.refreshSeconds, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Stops the discovery of the public IP address.
+     */
+
+    @PreDestroy
+    public synchronized void stopDiscovery() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+
+    /**
+     * Discovers the public IP address of the gateway, keeping the previous one if the discovery fails.
+     */
+
+    void discover() {
+        try {
+            SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+            requestFactory.setConnectTimeout(5000);
+            requestFactory.setReadTimeout(5000);
+            String body = new RestTemplate(requestFactory).getForObject(this.discoveryUrl, String.class);
+
+            byte[] address = CidrTrie.parseAddress(body);
+            if (address == null) {
+                Log.warning("Public IP discovery returned an invalid address: " + body);
+                return;
+            }
+            String discovered = InetAddress.getByAddress(address).getHostAddress();
+            if (!discovered.equals(this.publicIpAddress)) {
+                Log.info("Public IP address discovered: " + discovered);
+            }
+            this.publicIpAddress = discovered;
+        } catch (Exception e) {
+            Log.log(Level.WARNING, "Public IP discovery failed: " + e.getMessage());
+        }
+    }
+
+}
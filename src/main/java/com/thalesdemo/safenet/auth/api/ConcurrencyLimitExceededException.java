@@ -0,0 +1,63 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Thrown when a call is rejected by an {@link AdaptiveConcurrencyLimit} because the
+ * backend it calls already has as many calls in flight as it can take, or by a
+ * {@link WorkloadClass} already running and queueing as many requests as allowed. The
+ * controllers answer the request with a 503 Service Unavailable right away, for the
+ * client to retry later.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+
+public class ConcurrencyLimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * The name of the limit or the workload class that rejected the call.
+     */
+
+    private final String limit;
+
+
+    /**
+     * Constructs a new ConcurrencyLimitExceededException.
+     *
+     * @param limit the name of the limit or the workload class that rejected the call
+     */
+
+    public ConcurrencyLimitExceededException(String limit) {
+        // Without a stack trace: the calls are rejected in bulk when the backend degrades, and must be cheap to reject
+        super("The concurrency limit " + limit + " is reached", null, false, false);
+        this.limit = limit;
+    }
+
+
+    /**
+     * Returns the name of the limit or the workload class that rejected the call.
+     *
+     * @return the name of the limit
+     */
+
+    public String getLimit() {
+        return this.limit;
+    }
+
+}
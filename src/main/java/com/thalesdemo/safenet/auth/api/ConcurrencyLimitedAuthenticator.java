@@ -0,0 +1,107 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An {@link Authenticator} limiting the OTP validations in flight with an
+ * {@link AdaptiveConcurrencyLimit}, so that a degraded backend is not handed more
+ * validations than it answers in time. The validations beyond the limit are rejected at
+ * once with a {@link ConcurrencyLimitExceededException}. A validation abandoned at the
+ * deadline of its request keeps its permit until the backend returns, and counts as
+ * dropped, so that the limit shrinks while the backend is slow.
+ *
+ * The grid challenges, the grid rendering and the server status are not limited.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+
+
+public class ConcurrencyLimitedAuthenticator implements Authenticator {
+
+    /**
+     * The wrapped backend.
+     */
+
+    private final Authenticator backend;
+
+
+    /**
+     * The limit of the validations in flight.
+     */
+
+    private final AdaptiveConcurrencyLimit limit;
+
+
+    /**
+     * Constructs a new ConcurrencyLimitedAuthenticator.
+     *
+     * @param backend the wrapped backend
+     * @param limit the limit of the validations in flight
+     */
+
+    public ConcurrencyLimitedAuthenticator(Authenticator backend, AdaptiveConcurrencyLimit limit) {
+        this.backend = backend;
+        this.limit = limit;
+    }
+
+
+    @Override
+    public AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest) {
+        AdaptiveConcurrencyLimit.Permit permit = this.limit.acquire();
+        Runnable release = permit::ignore;
+        try {
+            AuthenticationResponse response = this.backend.validateCode(authenticationRequest);
+            release = permit::success;
+            return response;
+        } catch (ClientDisconnectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Including a passed deadline: the backend did not answer in time
+            release = permit::dropped;
+            throw e;
+        } finally {
+            // Held until an abandoned call returns, so that the limit sees the slow call
+            RequestDeadline.release(release);
+        }
+    }
+
+
+    @Override
+    public String getGridChallengeData(String username, String state, Optional<String> organization) {
+        return this.backend.getGridChallengeData(username, state, organization);
+    }
+
+
+    @Override
+    public BufferedImage convertGridDataToImage(String challenge) {
+        return this.backend.convertGridDataToImage(challenge);
+    }
+
+
+    @Override
+    public boolean getServerStatus() {
+        return this.backend.getServerStatus();
+    }
+
+
+    @Override
+    public boolean isLibraryLoaded() {
+        return this.backend.isLibraryLoaded();
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The {@link AdaptiveConcurrencyLimit}s of the gateway: one in front of the OTP
+ * validations, whatever their backend, and one in front of the push authentications.
+ * The two are kept apart because a push stays in flight for as long as the user takes
+ * to answer it, so their counts in flight have nothing in common.
+ *
+ * The limits start at ADAPTIVE_LIMIT_INITIAL calls in flight (20 by default) and adapt
+ * between ADAPTIVE_LIMIT_MIN (4) and ADAPTIVE_LIMIT_MAX (200, the default size of the
+ * Tomcat thread pool). ADAPTIVE_LIMIT_ENABLED=false turns them off. Each limit is
+ * exposed as the `safenet.limit` and `safenet.limit.inflight` gauges and the
+ * `safenet.limit.rejected` counter, tagged with its name.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+@Component
+public class ConcurrencyLimits {
+
+    /**
+     * The logger for the ConcurrencyLimits class.
+     */
+
+    private static final Logger Log = Logger.getLogger(ConcurrencyLimits.class.getName());
+
+
+    /**
+     * The limits of the OTP validations and of the push authentications.
+     */
+
+    private final AdaptiveConcurrencyLimit otp;
+    private final AdaptiveConcurrencyLimit push;
+
+
+    /**
+     * Constructs the limits and registers their metrics.
+     *
+     * @param enabled whether the calls are limited at all
+     * @param initialLimit the limit before the first call
+     * @param minLimit the lowest a limit shrinks to
+     * @param maxLimit the highest a limit grows to
+     * @param registry the registry the metrics are registered with
+     */
+
+    @Autowired
+    public ConcurrencyLimits(@Value("${ADAPTIVE_LIMIT_ENABLED:true}") boolean enabled,
+                             @Value("${ADAPTIVE_LIMIT_INITIAL:20}") int initialLimit,
+                             @Value("${ADAPTIVE_LIMIT_MIN:4}") int minLimit,
+                             @Value("${ADAPTIVE_LIMIT_MAX:200}") int maxLimit,
+                             MeterRegistry registry) {
+        if (!enabled) {
+            Log.warning("ADAPTIVE_LIMIT_ENABLED is false: the calls to SafeNet are not limited when it degrades");
+            this.otp = AdaptiveConcurrencyLimit.NONE;
+            this.push = AdaptiveConcurrencyLimit.NONE;
+            return;
+        }
+        this.otp = register(new AdaptiveConcurrencyLimit("otp", initialLimit, minLimit, maxLimit), registry);
+        this.push = register(new AdaptiveConcurrencyLimit("push", initialLimit, minLimit, maxLimit), registry);
+    }
+
+
+    /**
+     * Returns the limit of the OTP validations.
+     *
+     * @return the limit
+     */
+
+    public AdaptiveConcurrencyLimit getOtp() {
+        return this.otp;
+    }
+
+
+    /**
+     * Returns the limit of the push authentications.
+     *
+     * @return the limit
+     */
+
+    public AdaptiveConcurrencyLimit getPush() {
+        return this.push;
+    }
+
+
+    /**
+     * Registers the metrics of the specified limit.
+     */
+
+    private static AdaptiveConcurrencyLimit register(AdaptiveConcurrencyLimit limit, MeterRegistry registry) {
+        Gauge.builder("safenet.limit", limit, AdaptiveConcurrencyLimit::getLimit)
+                .description("Calls allowed in flight")
+                .tag("name", limit.getName())
+                .register(registry);
+        Gauge.builder("safenet.limit.inflight", limit, AdaptiveConcurrencyLimit::getInFlight)
+                .tag("name", limit.getName())
+                .register(registry);
+        FunctionCounter.builder("safenet.limit.rejected", limit, AdaptiveConcurrencyLimit::getRejected)
+                .description("Calls rejected because the limit was reached")
+                .tag("name", limit.getName())
+                .register(registry);
+        return limit;
+    }
+
+}
@@ -23,27 +23,31 @@
  * process. The response is sent back to the TokenValidator API for validation 
  * and a response is returned indicating whether the authentication was successful
  * or not.
- * This class utilizes the TokenValidatorRequestDTO and TokenValidatorResponseDTO 
- * classes to construct and send requests to the TokenValidator API, as well as 
- * to parse and handle responses. It also utilizes the* AuthenticationChallenge 
+ * This class utilizes a {@link TokenValidatorClient} to send requests to the
+ * TokenValidator API, as well as to parse and handle responses. It also utilizes the* AuthenticationChallenge 
  * and AuthenticationResponse classes to handle challenges and responses during 
  * the authentication process.
+ * It also validates OTP passcodes over the TokenValidator API, for the
+ * organizations routed to it by the {@link TokenValidatorAuthenticator}.
  * In addition, this class contains methods for handling redirects, timeouts, 
  * and error responses during the authentication process.
  *
- * @see TokenValidatorRequestBuilder
- * @see TokenValidatorRequestDTO
- * @see TokenValidatorResponseDTO
+ * @see TokenValidatorClient
+ * @see SafeNetTokenValidatorClient
  *
  * @author Cina Shaykhian
  * @contact hello@onewelco.me
  */
 package com.thalesdemo.safenet.auth.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,6 +59,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.client.DefaultResponseErrorHandler;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.ResourceAccessException;
@@ -65,12 +70,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestCredentialType;
-import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestType;
-import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO;
-import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorResponseDTO;
 import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorReturn;
-import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO.TokenValidatorRequestBuilder;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
 
 
 
@@ -99,6 +102,13 @@ public class CustomAuthenticate {
     private static final Logger Log = Logger.getLogger(CustomAuthenticate.class.getName());
 
 
+    /**
+     * The mapper parsing the responses of the SPS parking server, shared since it is thread-safe once configured.
+     */
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+
     /**
      * The resource name for the TokenValidator API.
      */
@@ -122,25 +132,112 @@ public class CustomAuthenticate {
 
 
     /**
-     * The CustomTokenValidatorWrapperImpl used to make the TokenValidator calls.
+     * The client used to make the TokenValidator calls. It is replaced as a whole when the configuration is
+     * reloaded, so each call uses a consistent set of URLs and agent key.
+     */
+
+    private volatile TokenValidatorClient tokenValidator;
+
+
+    /**
+     * The metrics recording the latency of the TokenValidator and SPS parking calls.
+     */
+
+    private GatewayMetrics metrics = GatewayMetrics.NOOP;
+
+
+    /**
+     * The tracing creating the span of each push authentication and of the SPS parking HTTP calls.
+     */
+
+    private GatewayTracing tracing = GatewayTracing.NOOP;
+
+
+    /**
+     * The limit of the push TokenValidator calls in flight, which the time parked on the SPS does not count toward.
+     */
+
+    private AdaptiveConcurrencyLimit concurrencyLimit = AdaptiveConcurrencyLimit.NONE;
+
+
+    /**
+     * The key signing the challenge-response push states, drawn at random if not set, and the time they stay valid.
+     */
+
+    private byte[] pushStateKey;
+    private long pushStateTtlSeconds = PushState.DEFAULT_TTL_SECONDS;
+
+
+    /**
+     * The allowlisted SPS parking servers, or an empty list to derive them from the TokenValidator URLs.
+     */
+
+    private List<String> spsOrigins = Collections.emptyList();
+
+
+    /**
+     * The codec of the challenge-response push states, which also holds the SPS parking servers the pushes may be
+     * parked on. It is replaced along with the TokenValidator client.
      */
 
-    private CustomTokenValidatorWrapperImpl tokenValidator;
+    private volatile PushState pushState;
 
 
     /**
-     * The builder for the CustomAuthenticate class.
+     * The builder for the CustomAuthenticate class. Unless a client was set with
+     * {@link #setTokenValidatorClient(TokenValidatorClient)}, the TokenValidator of the SafeNet Cloud is used.
      * 
      * @return the custom authenticate object
      */
 
     public CustomAuthenticate build() {
-        this.tokenValidator = new CustomTokenValidatorWrapperImpl(this.primaryAuthUrl, this.failoverAuthUrl,
-                this.agentKey);
+        if (this.tokenValidator == null) {
+            this.tokenValidator = new SafeNetTokenValidatorClient(this.primaryAuthUrl, this.failoverAuthUrl,
+                    this.agentKey, this.resourceName);
+        }
+        if (this.pushStateKey == null) {
+            this.pushStateKey = PushState.randomKey();
+        }
+        this.pushState = newPushState(this.tokenValidator);
         return this;
     }
 
 
+    /**
+     * Creates the codec of the push states, allowlisting the configured SPS parking servers, or those derived from the
+     * URLs of the specified TokenValidator client.
+     *
+     * @param client the TokenValidator client
+     * @return the codec
+     */
+
+    private PushState newPushState(TokenValidatorClient client) {
+        List<String> origins = this.spsOrigins.isEmpty() ? PushState.deriveOrigins(client.getUrls()) : this.spsOrigins;
+        return new PushState(this.pushStateKey, origins, this.pushStateTtlSeconds);
+    }
+
+
+    /**
+     * Rebuilds the token validator wrapper with new URLs and agent key, and swaps it in atomically.
+     * The calls in flight complete with the previous wrapper.
+     *
+     * @param primaryAuthUrl the new primary authentication URL
+     * @param failoverAuthUrl the new failover authentication URL
+     * @param agentKey the new agent key
+     */
+
+    public synchronized void reconfigure(String primaryAuthUrl, String failoverAuthUrl, String agentKey) {
+        TokenValidatorClient replacement = new SafeNetTokenValidatorClient(primaryAuthUrl, failoverAuthUrl,
+                agentKey, this.resourceName);
+        this.primaryAuthUrl = primaryAuthUrl;
+        this.failoverAuthUrl = failoverAuthUrl;
+        this.agentKey = agentKey;
+        this.tokenValidator = replacement;
+        this.pushState = newPushState(replacement);
+        Log.info("Token validator reconfigured with primary URL " + primaryAuthUrl + " and failover URL " + failoverAuthUrl);
+    }
+
+
     /**
      * Sets the primary authentication URL for the TokenValidator API.
      * @param primaryAuthUrl the primary authentication URL
@@ -189,55 +286,201 @@ public class CustomAuthenticate {
     }
 
 
+    /**
+     * Sets the client used to make the TokenValidator calls, e.g. a {@link StandInTokenValidatorClient}.
+     * @param tokenValidator the TokenValidator client
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setTokenValidatorClient(TokenValidatorClient tokenValidator) {
+        this.tokenValidator = tokenValidator;
+        return this;
+    }
+
+
+    /**
+     * Sets the metrics recording the latency of the TokenValidator and SPS parking calls.
+     * @param metrics the gateway metrics
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setMetrics(GatewayMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+
+    /**
+     * Sets the tracing creating the span of each push authentication and of the SPS parking HTTP calls.
+     * @param tracing the gateway tracing
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setTracing(GatewayTracing tracing) {
+        this.tracing = tracing;
+        return this;
+    }
+
+
+    /**
+     * Sets the limit of the push TokenValidator calls in flight, adapted to their latency.
+     * @param concurrencyLimit the limit
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        return this;
+    }
+
+
+    /**
+     * Sets the key signing the challenge-response push states, shared by the gateway instances behind the same
+     * load balancer.
+     * @param pushStateKey the key
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setPushStateKey(byte[] pushStateKey) {
+        this.pushStateKey = pushStateKey.clone();
+        return this;
+    }
+
+
+    /**
+     * Sets the time a challenge-response push state stays valid.
+     * @param pushStateTtlSeconds the time, in seconds
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setPushStateTtlSeconds(long pushStateTtlSeconds) {
+        this.pushStateTtlSeconds = pushStateTtlSeconds;
+        return this;
+    }
+
+
+    /**
+     * Sets the SPS parking servers the pushes may be parked on, instead of those derived from the TokenValidator URLs.
+     * @param spsOrigins the origins of the servers, e.g. from {@link PushState#parseOrigins(String)}, or an empty list
+     * @return the custom authenticate object
+     */
+
+    public CustomAuthenticate setSpsOrigins(List<String> spsOrigins) {
+        this.spsOrigins = spsOrigins;
+        return this;
+    }
+
+
+    /**
+     * Returns the codec of the challenge-response push states, holding the allowlisted SPS parking servers.
+     * @return the push state codec
+     */
+
+    public PushState getPushState() {
+        return this.pushState;
+    }
+
+
     /**
      * Authenticates the user with the TokenValidator API using push notification.
      *
      * @param username the username to authenticate.
+     * @param organization the organization of the user, or null, which the challenge-response state is bound to.
      * @param userIp the IP address of the user requesting authentication.
-     * @param authIdUrl the authentication ID URL obtained from the previous push challenge, or null to generate a new challenge.
+     * @param state the state returned by the previous push challenge, or null to generate a new challenge.
      * @param mode the push mode: "one-step" (quicklog) or "challenge-response".
      * @return an AuthenticationResponse object containing the authentication result and any associated challenge data.
      *
-     * <p>If authIdUrl is null or empty, a new push challenge is generated by calling {@link #pushChallengeRequest(String, String)} with the username and userIp. 
-     * If mode is "challenge-response", the authentication response includes the base64-encoded authIdUrl in the challenge state, which the client will need to decode later.
-     * If authIdUrl is not null, it is assumed to be the result of a previous push challenge and is decoded from base64, if necessary.
+     * <p>If state is null or empty, a new push challenge is generated by calling {@link #pushChallengeRequest(String, String)} with the username and userIp. 
+     * The authIdUrl it returns must be on an allowlisted SPS parking server, otherwise the push fails.
+     * If mode is "challenge-response", the authentication response includes the authIdUrl encoded as a compact, signed and expiring {@link PushState}, which the client sends back as is.
+     * If state is not null, it is assumed to be the state of a previous push challenge, and is verified and decoded; a state that cannot be trusted, or that was issued to another user, fails the push.
      * The pushParkingService is then polled repeatedly to get the authStatus until either a valid response is obtained, or a timeout occurs.
      * If authStatus is not null, it is passed along with the authId and other parameters to {@link #pushChallengeResponse(String, String, String, String)}.
+     * If the client disconnects while the push is parked, the parking request is closed, the push is not answered, and a
+     * {@link ClientDisconnectedException} is thrown.
+     * If the limit of the push TokenValidator calls in flight is reached, the push is rejected at once with a
+     * {@link ConcurrencyLimitExceededException}. The time the push is parked on the SPS does not count toward that limit.
      * If the authentication is successful, the AuthenticationResponse object contains a success response code, otherwise it contains an authentication failure response code.
      * </p>
      */
 
-    public AuthenticationResponse pushOTP(String username, String userIp, String authIdUrl, String mode) {
+    public AuthenticationResponse pushOTP(String username, String organization, String userIp, String state, String mode) {
+        // Trace the whole push flow; each TokenValidator and SPS call is traced as a child span
+        Span span = this.tracing.startSpan("safenet.push");
+        span.setAttribute("push.mode", mode == null ? "one-step" : mode);
+        span.setAttribute("push.step", state == null || state.isEmpty() ? "challenge" : "response");
+        try (Scope scope = span.makeCurrent()) {
+            return runPushOTP(username, organization, userIp, state, mode);
+        } catch (ClientDisconnectedException e) {
+            // Nobody is waiting for the outcome any more: the parking request and the response to the push were dropped
+            Log.fine("Push abandoned at " + e.getStage() + ": the client of " + username + " disconnected");
+            span.setAttribute("push.abandoned", e.getStage());
+            this.metrics.abandoned(e.getStage());
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
 
+    /**
+     * Runs the push authentication flow described in {@link #pushOTP(String, String, String, String, String)}.
+     */
+
+    private AuthenticationResponse runPushOTP(String username, String organization, String userIp, String state,
+            String mode) {
         AuthenticationResponse response = new AuthenticationResponse(username, ResponseCode.AUTH_FAILURE);
+        PushState pushState = this.pushState;
+        String user = PushState.user(username, organization);
+        String authIdUrl;
 
-        if (authIdUrl == null || authIdUrl.isEmpty()) {
+        if (state == null || state.isEmpty()) {
             // Generate push challenge to get the authIdUrl
             authIdUrl = pushChallengeRequest(username, userIp);
 
-            // If the mode is challenge-response, return the authIdUrl in base64
+            // Only ever park on the allowlisted SPS parking servers
+            if (authIdUrl != null && !authIdUrl.isEmpty() && !pushState.isAllowed(authIdUrl)) {
+                Log.warning("Push of " + username + " refused: " + PushState.originOf(authIdUrl)
+                        + " is not an allowlisted SPS parking server");
+                this.metrics.pushStateRejected("host");
+                return response;
+            }
+
+            // If the mode is challenge-response, return the authIdUrl as a signed state
             if ("challenge-response".equalsIgnoreCase(mode)) {
-                String base64EncodedAuthIdUrl = Base64.getEncoder().encodeToString(authIdUrl.getBytes());
                 AuthenticationChallenge challengeData = new AuthenticationChallenge().setChallengeName("push_otp")
-                        .setState(base64EncodedAuthIdUrl);
+                        .setState(pushState.encode(authIdUrl, user));
                 return new AuthenticationResponse(username, ResponseCode.AUTH_CHALLENGE).setChallenge(challengeData); 
             }
         } else {
-            // Decode the authIdUrl from base64
-            authIdUrl = new String(Base64.getDecoder().decode(authIdUrl));
+            // Verify the state and decode the authIdUrl, on an allowlisted SPS parking server by construction
+            try {
+                authIdUrl = pushState.decode(state, user);
+            } catch (InvalidPushStateException e) {
+                Log.fine("Push of " + username + " refused: " + e.getMessage());
+                this.metrics.pushStateRejected(e.getReason());
+                return response;
+            }
         }
 
         // Check if the authId is null or empty
         if (authIdUrl == null || authIdUrl.isEmpty()) {
+            // No push was created, e.g. for a user without a push token
             return response;
         }
 
         // Extract the authentication Id from the authIdUrl
         String authId = authIdUrl.substring(authIdUrl.lastIndexOf("/") + 1);
 
-        // Poll the pushParkingService to get the authStatus
+        // Poll the pushParkingService to get the authStatus, bounded by the push workload class rather than the limit
         String authStatus = pushParkingService(authIdUrl);
 
+        // Do not answer the push for a client that has left while it was parked
+        if (authStatus != null) {
+            ClientConnection.check(GatewayMetrics.PUSH_CHALLENGE_RESPONSE);
+        }
+
         // Send the authStatus to the TokenValidator if it is not null
         if (authStatus != null && this.pushChallengeResponse(username, authId, authStatus, userIp)) {
             response.setResponse(ResponseCode.AUTH_SUCCESS);
@@ -263,6 +506,13 @@ public class CustomAuthenticate {
         ClientHttpResponse response = execution.execute(request, body);
         if (response.getStatusCode() == HttpStatus.TEMPORARY_REDIRECT) {
             URI location = response.getHeaders().getLocation();
+            if (location.isAbsolute() && !this.pushState.isAllowed(location.toString())) {
+                // Leave the redirect unfollowed: the push fails rather than being parked on an unknown host
+                Log.warning("Redirect to " + PushState.originOf(location.toString())
+                        + " not followed: not an allowlisted SPS parking server");
+                this.metrics.pushStateRejected("redirect");
+                return response;
+            }
             if (!location.isAbsolute()) {
                 try {
                     URI requestUri = request.getURI();
@@ -275,12 +525,60 @@ public class CustomAuthenticate {
             }
             Log.fine("Following Redirect URL: " + location);
             return restTemplateWithRedirect().execute(location, HttpMethod.POST,
-                    req -> req.getHeaders().putAll(request.getHeaders()), clientHttpResponse -> clientHttpResponse);
+                    req -> req.getHeaders().putAll(request.getHeaders()), CustomAuthenticate::buffer);
         }
         return response;
     }
 
 
+    /**
+     * Reads the body of the specified response into memory, since the RestTemplate following a redirect closes the
+     * response before it is handed back to the RestTemplate of the original request.
+     *
+     * @param response The response of the redirected request.
+     * @return A copy of the response, whose body can be read once the response is closed.
+     * @throws IOException If the body cannot be read.
+     */
+
+    private static ClientHttpResponse buffer(ClientHttpResponse response) throws IOException {
+        byte[] body = StreamUtils.copyToByteArray(response.getBody());
+        int rawStatusCode = response.getRawStatusCode();
+        String statusText = response.getStatusText();
+        HttpHeaders headers = HttpHeaders.readOnlyHttpHeaders(response.getHeaders());
+        return new ClientHttpResponse() {
+            @Override
+            public HttpStatus getStatusCode() {
+                return HttpStatus.valueOf(rawStatusCode);
+            }
+
+            @Override
+            public int getRawStatusCode() {
+                return rawStatusCode;
+            }
+
+            @Override
+            public String getStatusText() {
+                return statusText;
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release: the original response is already closed
+            }
+        };
+    }
+
+
     /**
      * Returns a custom response error handler that ignores temporary redirect responses (status code 307). 
      * All other responses will be handled by the default response error handler.
@@ -310,16 +608,57 @@ public class CustomAuthenticate {
      */
 
     public RestTemplate restTemplateWithRedirect() {
-        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
-        requestFactory.setConnectTimeout(CONNECT_TIMEOUT); // set connection timeout to 10 seconds
-        requestFactory.setReadTimeout(READ_TIMEOUT); // set read timeout to 60 seconds
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory() {
+            @Override
+            protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+                super.prepareConnection(connection, httpMethod);
+                // Closed from the watchdog if the client disconnects while the request is parked
+                ClientConnection.onClose(connection::disconnect);
+            }
+        };
+        // Shortened to the deadline of the request, so that the parking server sees the connection closed once the caller has given up
+        requestFactory.setConnectTimeout(RequestDeadline.boundTimeout(CONNECT_TIMEOUT)); // set connection timeout to 10 seconds
+        requestFactory.setReadTimeout(RequestDeadline.boundTimeout(READ_TIMEOUT)); // set read timeout to 60 seconds
         RestTemplate restTemplate = new RestTemplate(requestFactory);
+        restTemplate.getInterceptors().add(this.tracing.clientInterceptor());
         restTemplate.getInterceptors().add((request, body, execution) -> handleRedirect(request, body, execution));
+        restTemplate.getInterceptors().add((request, body, execution) -> recordParkingAttempt(request, body, execution));
         restTemplate.setErrorHandler(noRedirectErrorHandler());
         return restTemplate;
     }
 
 
+    /**
+     * Executes a request to the SafeNet Cloud parking service, recording it as a {@link ParkingAttemptEvent} with the
+     * HTTP status of the response and whether it is a redirect. Registered last, so that each followed redirect is
+     * recorded as its own attempt.
+     *
+     * @param request The HTTP request.
+     * @param body The body of the HTTP request.
+     * @param execution The execution of the HTTP request.
+     * @return The HTTP response.
+     * @throws IOException If an I/O error occurs, e.g. a read timeout while the request is parked.
+     */
+
+    private static ClientHttpResponse recordParkingAttempt(org.springframework.http.HttpRequest request, byte[] body,
+            ClientHttpRequestExecution execution) throws IOException {
+        ParkingAttemptEvent event = new ParkingAttemptEvent();
+        event.begin();
+        try {
+            ClientHttpResponse response = execution.execute(request, body);
+            event.status = response.getRawStatusCode();
+            event.redirect = event.status == HttpStatus.TEMPORARY_REDIRECT.value();
+            return response;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = request.getURI().getHost();
+                event.commit();
+            }
+        }
+    }
+
+
     /**
      * Sends a POST request to the specified authentication ID URL using a custom `RestTemplate` object, which includes
      * a request factory with specified timeouts and redirect handling, and returns the HTTP response as a 
@@ -340,6 +679,10 @@ public class CustomAuthenticate {
 
     public ResponseEntity<String> postParkingService(String authIdUrl) {
 
+        // Do not park a push whose caller has given up
+        RequestDeadline.check(GatewayMetrics.PUSH_PARKING);
+        ClientConnection.check(GatewayMetrics.PUSH_PARKING);
+
         // create the RestTemplate with the request factory
         RestTemplate restTemplate = restTemplateWithRedirect();
 
@@ -349,19 +692,35 @@ public class CustomAuthenticate {
         Log.fine("Push OTP Auth ID URL: " + authIdUrl);
 
         ResponseEntity<String> response = null;
+        GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.PUSH_PARKING);
+        String outcome = GatewayMetrics.ERROR;
 
         try {
-            // Send a POST request to the authentication ID URL
-            response = restTemplate.postForEntity(authIdUrl, null, String.class);
+            // Send a POST request to the authentication ID URL, given up as soon as the client disconnects
+            response = ClientConnection.watch(GatewayMetrics.PUSH_PARKING,
+                    () -> restTemplate.postForEntity(authIdUrl, null, String.class));
+            outcome = "ok";
+        } catch (ClientDisconnectedException e) {
+            outcome = "disconnected";
+            throw e;
         } catch (HttpClientErrorException ex) {
             // If the response status code is HttpStatus.NOT_FOUND, return null
             if (ex.getStatusCode() == HttpStatus.NOT_FOUND) {
+                outcome = "not_found";
                 Log.log(Level.FINE, ex.getMessage());
                 return null;
             } else {
+                outcome = "client_error";
                 return new ResponseEntity<>(ex.getStatusCode());
             }
         } catch (ResourceAccessException e) {
+            if (RequestDeadline.isExpired()) {
+                // The read timed out at the deadline of the request rather than at the end of the long poll
+                outcome = "deadline";
+                throw new DeadlineExceededException(GatewayMetrics.PUSH_PARKING);
+            }
+            outcome = "retry";
+
             // Logs a message with Level FINE indicating that an exception occurred in pushParkingService method.
             // Possible causes are push timeout or response available on SPS parking server.
             // The error message is also logged.
@@ -371,6 +730,8 @@ public class CustomAuthenticate {
 
             // Return a 206 status code to indicate partial content to attempt a second call in case of response availability
             return new ResponseEntity<>(HttpStatus.PARTIAL_CONTENT); 
+        } finally {
+            this.metrics.stop(stage, outcome);
         }
 
         return response;
@@ -392,28 +753,15 @@ public class CustomAuthenticate {
 
     public String pushChallengeRequest(String username, String userIp) {
         // Build Token Validator request with the provided parameters
-        TokenValidatorRequestBuilder builder = new TokenValidatorRequestBuilder();
-        builder.resourceName(this.resourceName);
-        builder.username(username);
-        builder.userIpAddress(userIp);
-        builder.password(PUSH_TRIGGER_CHAR);
-        builder.tvRequestType(TVRequestType.verifycredentials);
-        builder.tvRequestCredentialType(TVRequestCredentialType.TokenValidation);
-        TokenValidatorRequestDTO requestDTO = builder.build();
-
-        // Log details of the request
-        String logDetailsRequest = requestDTO != null ? requestDTO.toString() : "null";
-        Log.fine("pushChallengeRequest - requestDTO:");
-        Log.fine(logDetailsRequest);
+        TokenValidatorClient.Request request = new TokenValidatorClient.Request(username, userIp, PUSH_TRIGGER_CHAR,
+                null, null);
 
         // Send the Token Validator request and log details of the response
-        TokenValidatorResponseDTO responseDTO = this.tokenValidator.authenticate(requestDTO);
-        String logDetailsResponse = responseDTO != null ? responseDTO.toString() : "null";
-        Log.fine("pushChallengeRequest - responseDTO:");
-        Log.fine(logDetailsResponse);
+        TokenValidatorClient.Result result = limitedVerifyCredentials(request, GatewayMetrics.PUSH_CHALLENGE_REQUEST);
+        Log.fine("pushChallengeRequest - result: " + result);
 
         // Return the push OTP authentication ID URL if the response is successful
-        return responseDTO != null ? responseDTO.getPushOtpAuthId() : "";
+        return result != null ? result.getPushOtpAuthId() : "";
     }
 
 
@@ -447,29 +795,8 @@ public class CustomAuthenticate {
         String responseBody = response.getBody();
         Log.fine(response.getStatusCode() + " " + response.getStatusCodeValue() + " " + response.getBody());
 
-        ObjectMapper mapper = new ObjectMapper();
         try {
-
-            // Check if the responseBody is null
-            JsonNode json = null;
-            if (responseBody == null) {
-                // Create a JSON object with a status key-value pair
-                json = mapper.createObjectNode();
-            } else {
-                json = mapper.readTree(responseBody);
-            }
-
-            /*
-             * Check if the status field is not empty. If it is not empty, return the value of the status field. If it is
-             * empty, return null.
-             */
-            if (!json.get("status").asText().isEmpty()) {
-                Log.fine("Received STATUS in parking server response:\n" + json);
-                return json.get("status").asText();
-            } else {
-                Log.fine("Have received NO STATUS in parking server response");
-            }
-
+            return parseParkingStatus(responseBody);
         } catch (JsonMappingException e) {
             Log.log(Level.SEVERE, "JsonMappingException in pushParkingService", e);
         } catch (JsonProcessingException e) {
@@ -480,6 +807,39 @@ public class CustomAuthenticate {
     }
 
 
+    /**
+     * Parses the body of a response of the SafeNet Parking Service (SPS) and returns the value of its status field.
+     *
+     * @param responseBody The response body, or null if the response has none.
+     * @return The value of the status field if it is not empty, or null if it is empty.
+     * @throws JsonProcessingException If the response body is not valid JSON.
+     */
+
+    static String parseParkingStatus(String responseBody) throws JsonProcessingException {
+        // Check if the responseBody is null
+        JsonNode json = null;
+        if (responseBody == null) {
+            // Create a JSON object with a status key-value pair
+            json = JSON_MAPPER.createObjectNode();
+        } else {
+            json = JSON_MAPPER.readTree(responseBody);
+        }
+
+        /*
+         * Check if the status field is not empty. If it is not empty, return the value of the status field. If it is
+         * empty or missing, e.g. in the empty body of a second 206 response, return null.
+         */
+        if (!json.path("status").asText().isEmpty()) {
+            Log.fine("Received STATUS in parking server response:\n" + json);
+            return json.path("status").asText();
+        } else {
+            Log.fine("Have received NO STATUS in parking server response");
+        }
+
+        return null;
+    }
+
+
     /**
     * Builds a Token Validator request to respond to a push challenge with the given authentication ID,
     * authentication status, and user details.
@@ -496,31 +856,16 @@ public class CustomAuthenticate {
 
     public boolean pushChallengeResponse(String username, String authId, String authStatus, String userIp) {
         // Build Token Validator request with the provided parameters
-        TokenValidatorRequestBuilder builder = new TokenValidatorRequestBuilder();
-        builder.username(username);
-        builder.password(PUSH_TRIGGER_CHAR);
-        builder.pushOtpAuthId(authId);
-        builder.pushOtpSpsStatus(authStatus);
-        builder.tvRequestType(TVRequestType.verifycredentials);
-        builder.tvRequestCredentialType(TVRequestCredentialType.TokenValidation);
-        TokenValidatorRequestDTO requestDTO = builder.build();
-
-        // Log details of the request
-        String logDetailsRequest = requestDTO != null ? requestDTO.toString() : "null";
-        Log.fine("pushChallengeResponse - requestDTO:");
-        Log.fine(logDetailsRequest);
+        TokenValidatorClient.Request request = new TokenValidatorClient.Request(username, null, PUSH_TRIGGER_CHAR,
+                authId, authStatus);
 
         // Send request to the Token Validator service and get the response
-        TokenValidatorResponseDTO responseDTO = this.tokenValidator.authenticate(requestDTO);
-
-        // Log details of the response
-        String logDetailsResponse = responseDTO != null ? responseDTO.toString() : "null";
-        Log.fine("pushChallengeResponse - responseDTO:");
-        Log.fine(logDetailsResponse);
+        TokenValidatorClient.Result result = limitedVerifyCredentials(request, GatewayMetrics.PUSH_CHALLENGE_RESPONSE);
+        Log.fine("pushChallengeResponse - result: " + result);
 
         // Check if the authentication was successful based on the response
-        boolean authSuccess = responseDTO != null && Integer.toString(TokenValidatorReturn.AUTH_SUCCESS.getValue())
-                .equals(responseDTO.getReturnValue());
+        boolean authSuccess = result != null && Integer.toString(TokenValidatorReturn.AUTH_SUCCESS.getValue())
+                .equals(result.getReturnValue());
 
         // Log the authentication result
         Log.fine("-> Push authentication successful? " + authSuccess);
@@ -528,4 +873,115 @@ public class CustomAuthenticate {
         return authSuccess;
     }
 
+
+
+    /**
+     * Validates an OTP or GrIDsure passcode with the TokenValidator API, without the JNI library.
+     * An empty passcode triggers a challenge. The state of the challenge is the authentication id returned by the
+     * TokenValidator, which must be sent back with the passcode answering the challenge. The TokenValidator protocol
+     * returns neither the name nor the data of the challenge, so they are empty: the GrIDsure challenges, whose grid
+     * is in the data, are only served by the CRYPTOCard library.
+     * A failed call is logged and denied, as on the JNI path.
+     *
+     * @param username The username to authenticate.
+     * @param passcode The passcode, or an empty string to trigger a challenge.
+     * @param state The state of the challenge being answered, or null.
+     * @param userIp The IP address of the user requesting authentication, or null.
+     * @return An AuthenticationResponse object containing the authentication result and any challenge state.
+     */
+
+    public AuthenticationResponse verifyOTP(String username, String passcode, String state, String userIp) {
+        AuthenticationResponse response = new AuthenticationResponse(username);
+        TokenValidatorClient.Request request = new TokenValidatorClient.Request(username, userIp,
+                passcode == null ? "" : passcode, state == null || state.isEmpty() ? null : state, null);
+        try {
+            TokenValidatorClient.Result result = timedVerifyCredentials(request, GatewayMetrics.TOKEN_VALIDATOR_OTP);
+            Log.fine("verifyOTP - result: " + result);
+            if (result == null || result.getReturnValue() == null) {
+                Log.warning("No response from the TokenValidator for user: " + username);
+                return response;
+            }
+
+            response.setStatus(ResponseCode.fromCode(Integer.parseInt(result.getReturnValue().trim())));
+            if (response.isChallenged()) {
+                response.setChallenge(new AuthenticationChallenge()
+                        .setChallengeName("")
+                        .setChallengeData("")
+                        .setState(result.getPushOtpAuthId()));
+            }
+        } catch (DeadlineExceededException | ConcurrencyLimitExceededException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            // Also thrown for return values that are not numbers
+            Log.warning("Unresolved TokenValidator response for user " + username + ": " + e.getMessage());
+            response.setStatus(ResponseCode.AUTH_FAILURE);
+        } catch (RuntimeException e) {
+            Log.log(Level.SEVERE, "An error occurred at CustomAuthenticate.verifyOTP(): ", e);
+        }
+        return response;
+    }
+
+
+    /**
+     * Sends a push request to the Token Validator service within the limit of the push calls in flight, which adapts
+     * to the latency of the call. Only the TokenValidator calls count toward the limit, not the time parked on the SPS.
+     *
+     * @param request The Token Validator request.
+     * @param timerName The name of the timer.
+     * @return The Token Validator result.
+     * @throws ConcurrencyLimitExceededException if the limit is reached
+     */
+
+    private TokenValidatorClient.Result limitedVerifyCredentials(TokenValidatorClient.Request request, String timerName) {
+        AdaptiveConcurrencyLimit.Permit permit = this.concurrencyLimit.acquire();
+        Runnable release = permit::ignore;
+        try {
+            TokenValidatorClient.Result result = timedVerifyCredentials(request, timerName);
+            release = permit::success;
+            return result;
+        } catch (ClientDisconnectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Including a passed deadline: the TokenValidator did not answer in time
+            release = permit::dropped;
+            throw e;
+        } finally {
+            // Held until an abandoned call returns, so that the limit sees the slow call
+            RequestDeadline.release(release);
+        }
+    }
+
+
+    /**
+     * Sends the request to the Token Validator service, recording the latency of the call under the specified timer
+     * name, tagged with the return value of the response.
+     *
+     * @param request The Token Validator request.
+     * @param timerName The name of the timer.
+     * @return The Token Validator result.
+     */
+
+    private TokenValidatorClient.Result timedVerifyCredentials(TokenValidatorClient.Request request, String timerName) {
+        GatewayMetrics.Stage stage = this.metrics.start(timerName);
+        String outcome = GatewayMetrics.ERROR;
+        String returnValue = GatewayMetrics.NONE;
+        try {
+            // The TokenValidator adapter takes no timeout: the call is waited for until the deadline of the request at most
+            TokenValidatorClient tokenValidator = this.tokenValidator;
+            TokenValidatorClient.Result result = RequestDeadline.call(timerName, () -> tokenValidator.verifyCredentials(request));
+            if (result != null) {
+                outcome = "ok";
+                if (result.getReturnValue() != null) {
+                    returnValue = result.getReturnValue();
+                }
+            }
+            return result;
+        } catch (DeadlineExceededException e) {
+            outcome = "deadline";
+            throw e;
+        } finally {
+            this.metrics.stop(stage, outcome, "return_value", returnValue);
+        }
+    }
+
 }
@@ -25,9 +25,7 @@
  */
 package com.thalesdemo.safenet.auth.api;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Value;
@@ -44,48 +42,105 @@ public class CustomAuthenticateConfig {
 
     private static final Logger Log = Logger.getLogger(CustomAuthenticateConfig.class.getName());
 
-    	
-	/**
-	 * This field stores the resource name as a string. The value of this field is retrieved from an environment variable
-	 * called "RESOURCE_NAME" using the Spring @Value annotation.
-     * 
-     * This is the name of the resource that is being protected by the authentication service and which will be used in
-     * the push authentication request message. 
+
+    /**
+     * The holder of the configuration snapshot, which also notifies configuration changes.
      * 
-     * For the resource name to be used in the push authentication request message, the TokenValidator URL MUST contain 
-     * the orgCode query parameter. For example:
+     * The resource name of the snapshot is taken from the environment variable RESOURCE_NAME. It is the name of the
+     * resource that is being protected by the authentication service and which will be used in the push authentication
+     * request message. For the resource name to be used in the push authentication request message, the TokenValidator
+     * URL MUST contain the orgCode query parameter. For example:
      *      http://cloud.us.safenetid.com/TokenValidator/TokenValidator.asmx?orgCode=123456
      * 
      * If the orgCode query parameter is not present in the TokenValidator URL, the resource name will be taken from
      * the authentication node configuration in the SafeNet Authentication Service console.
-     * 
-     * If the orgCode query parameter is present in the TokenValidator URL, and the resource name is not specified in the
-     * environment variable RESOURCE_NAME, then the push authentication request message will not contain the resource 
-     * name and show blank. For example:
-     * 
-     *     Push authentication request message without resource name:
-     *          Login request from [missing resource name]
-     * 
-	 */
-	
-	@Value("${RESOURCE_NAME:}")
-	private String RESOURCE_NAME;
+     */
+
+    private final GatewaySettingsWatcher settingsWatcher;
 
 
     /**
-     * This method returns the content of the agent key file as a string. The agent key file is specified in the
-     * jcrypto.ini file. The path to the jcrypto.ini file is specified in the environment variable JCRYPTO_INI_PATH.
-     * Retrieving the path is handled by the {@link AuthenticateConfig} class using the getAgentKeyPathFromJcryptoIni() method.
-     * @return The content of the agent key file as a string.
+     * The metrics recording the latency of the TokenValidator and SPS parking calls.
      */
 
-    public String readHostAgentKeyPath() {
-        try {
-            String content = Files.readString(Paths.get(AuthenticateConfig.getAgentKeyPathFromJcryptoIni()));
-            return content;
-        } catch (IOException ex) {
-            return null;
-        }
+    private final GatewayMetrics metrics;
+
+
+    /**
+     * The tracing creating the span of each push authentication.
+     */
+
+    private final GatewayTracing tracing;
+
+
+    /**
+     * The limit of the push authentications in flight.
+     */
+
+    private final AdaptiveConcurrencyLimit pushLimit;
+
+
+    /**
+     * The URL of a stand-in TokenValidator used instead of the SafeNet Cloud, e.g. for load tests, or an empty
+     * string to use the TokenValidator URLs of the INI file. Taken from the environment variable
+     * TOKEN_VALIDATOR_STANDIN_URL.
+     */
+
+    private final String standInUrl;
+
+
+    /**
+     * The key signing the challenge-response push states, taken from the environment variable PUSH_STATE_KEY. It
+     * must be the same on every gateway instance behind the load balancer, and at least 32 bytes long; when it is
+     * empty, each instance draws its own and only accepts the states it issued.
+     */
+
+    private final String pushStateKey;
+
+
+    /**
+     * The time a challenge-response push state stays valid, in seconds, taken from the environment variable
+     * PUSH_STATE_TTL_SECONDS.
+     */
+
+    private final long pushStateTtlSeconds;
+
+
+    /**
+     * The comma-separated SPS parking servers the pushes may be parked on, taken from the environment variable
+     * SPS_PARKING_HOST, or an empty string to derive them from the TokenValidator URLs.
+     */
+
+    private final String spsParkingHosts;
+
+
+    /**
+     * Constructs a new CustomAuthenticateConfig.
+     * 
+     * @param settingsWatcher the holder of the configuration snapshot
+     * @param metrics the gateway metrics
+     * @param tracing the gateway tracing
+     * @param concurrencyLimits the limits of the calls in flight
+     * @param standInUrl the URL of a stand-in TokenValidator, or an empty string
+     * @param pushStateKey the key signing the push states, or an empty string
+     * @param pushStateTtlSeconds the time a push state stays valid, in seconds
+     * @param spsParkingHosts the allowlisted SPS parking servers, or an empty string
+     */
+
+    public CustomAuthenticateConfig(GatewaySettingsWatcher settingsWatcher, GatewayMetrics metrics,
+            GatewayTracing tracing, ConcurrencyLimits concurrencyLimits,
+            @Value("${TOKEN_VALIDATOR_STANDIN_URL:}") String standInUrl,
+            @Value("${PUSH_STATE_KEY:}") String pushStateKey,
+            @Value("${PUSH_STATE_TTL_SECONDS:300}") long pushStateTtlSeconds,
+            @Value("${SPS_PARKING_HOST:}") String spsParkingHosts) {
+        this.settingsWatcher = settingsWatcher;
+        this.metrics = metrics;
+        this.tracing = tracing;
+        this.pushLimit = concurrencyLimits.getPush();
+        this.standInUrl = standInUrl == null ? "" : standInUrl.trim();
+        this.pushStateKey = pushStateKey == null ? "" : pushStateKey;
+        this.pushStateTtlSeconds = pushStateTtlSeconds;
+        this.spsParkingHosts = spsParkingHosts;
     }
 
 
@@ -97,7 +152,7 @@ public class CustomAuthenticateConfig {
      * @return The URL with a question mark at the end.
      */
     
-    public String addQueryStringIfMissing(String url) {
+    public static String addQueryStringIfMissing(String url) {
 
         if(url == null) return null;
 
@@ -114,23 +169,61 @@ public class CustomAuthenticateConfig {
      * {@link Authenticate} class that using the the official SafeNet Authentication SDK, to enable use of modern
      * authentication methods such as Push OTP.
      * 
+     * The instance is reconfigured in place whenever the configuration files change.
+     * 
      * @return An instance of the {@link CustomAuthenticate} class.
      */
 
     @Bean
     CustomAuthenticate customAuthenticateCfgBean() {
 
-        String primaryUrl = addQueryStringIfMissing(AuthenticateConfig.getPrimaryAuthUrlFromJcryptoIni());
-        String secondaryUrl = addQueryStringIfMissing(AuthenticateConfig.getSecondaryAuthUrlFromJcryptoIni());
+        GatewaySettings settings = this.settingsWatcher.current();
+        String primaryUrl = addQueryStringIfMissing(settings.getPrimaryAuthUrl());
+        String secondaryUrl = addQueryStringIfMissing(settings.getSecondaryAuthUrl());
         Log.info("Primary Auth URL: " + primaryUrl);
         Log.info("Secondary Auth URL: " + secondaryUrl);
 
-        return new CustomAuthenticate()
+        CustomAuthenticate customAuthenticate = new CustomAuthenticate()
                 .setPrimaryAuthUrl(primaryUrl)
                 .setFailoverAuthUrl(secondaryUrl)
-                .setAgentKey(readHostAgentKeyPath())
-                .setResourceName(RESOURCE_NAME)
-                .build(); // This is the line that needs to be added at the end to load the token validator wrapper
+                .setAgentKey(settings.getAgentKey())
+                .setResourceName(settings.getResourceName())
+                .setMetrics(this.metrics)
+                .setTracing(this.tracing)
+                .setConcurrencyLimit(this.pushLimit)
+                .setPushStateTtlSeconds(this.pushStateTtlSeconds)
+                .setSpsOrigins(PushState.parseOrigins(this.spsParkingHosts));
+
+        if (this.pushStateKey.isEmpty()) {
+            Log.warning("PUSH_STATE_KEY is not set: the challenge-response push states are only accepted by the gateway"
+                    + " instance that issued them");
+        } else {
+            byte[] key = this.pushStateKey.getBytes(StandardCharsets.UTF_8);
+            if (key.length < PushState.MIN_KEY_LENGTH) {
+                throw new IllegalArgumentException("PUSH_STATE_KEY must be at least " + PushState.MIN_KEY_LENGTH
+                        + " bytes long");
+            }
+            customAuthenticate.setPushStateKey(key);
+        }
+
+        if (!this.standInUrl.isEmpty()) {
+            // The stand-in replaces the SafeNet Cloud until the next restart, whatever the configuration files say
+            Log.warning("Push authentications are sent to the stand-in TokenValidator " + this.standInUrl
+                    + " instead of the SafeNet Cloud");
+            return customAuthenticate
+                    .setTokenValidatorClient(new StandInTokenValidatorClient(this.standInUrl, this.tracing))
+                    .build();
+        }
+        customAuthenticate.build(); // This is the line that needs to be added at the end to load the token validator wrapper
+        Log.info("Pushes parked on the SPS parking servers " + customAuthenticate.getPushState().getOrigins());
+
+        // Rebuild the token validator wrapper when the URLs or the agent key change
+        this.settingsWatcher.addListener(next -> customAuthenticate.reconfigure(
+                addQueryStringIfMissing(next.getPrimaryAuthUrl()),
+                addQueryStringIfMissing(next.getSecondaryAuthUrl()),
+                next.getAgentKey()));
+
+        return customAuthenticate;
     }
 
 }
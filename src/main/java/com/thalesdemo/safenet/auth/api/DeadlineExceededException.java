@@ -0,0 +1,72 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Thrown when the deadline of a request has passed, before a stage of the request
+ * starts or while it waits for a backend. The {@link RequestDeadlineFilter} answers the
+ * request with a 504 Gateway Timeout.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+
+public class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * The stage that was rejected or abandoned.
+     */
+
+    private final String stage;
+
+
+    /**
+     * Constructs a new DeadlineExceededException.
+     *
+     * @param stage the stage that was rejected or abandoned, e.g. a {@link GatewayMetrics} timer name
+     */
+
+    public DeadlineExceededException(String stage) {
+        this(stage, "The deadline of the request passed at stage " + stage);
+    }
+
+
+    /**
+     * Constructs a new DeadlineExceededException with the specified message.
+     *
+     * @param stage the stage that was rejected or abandoned
+     * @param message the detail message
+     */
+
+    protected DeadlineExceededException(String stage, String message) {
+        super(message);
+        this.stage = stage;
+    }
+
+
+    /**
+     * Returns the stage that was rejected or abandoned.
+     *
+     * @return the stage
+     */
+
+    public String getStage() {
+        return this.stage;
+    }
+
+}
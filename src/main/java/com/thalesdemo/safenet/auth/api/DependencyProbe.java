@@ -0,0 +1,311 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Probes the external dependencies of the gateway and reports, for each of them,
+ * whether it is reachable and how long it took to answer.
+ *
+ * The following dependencies are probed:
+ *  - the JNI backend (CRYPTOCard API), through its server status check;
+ *  - the primary and secondary TokenValidator URLs from the current configuration snapshot;
+ *  - the SPS parking servers allowlisted for push authentication, so that the warm-up
+ *    resolves and reaches each of them before the first push is parked there.
+ *
+ * The network dependencies are probed with a plain TCP connect bounded by a short
+ * timeout, which is enough to measure reachability without generating SOAP traffic
+ * or authentication events on the SafeNet servers.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+@Component
+public class DependencyProbe {
+
+    /**
+     * The logger for the DependencyProbe class.
+     */
+
+    private static final Logger Log = Logger.getLogger(DependencyProbe.class.getName());
+
+
+    /**
+     * The Authenticator bean used to probe the JNI backend.
+     */
+
+    private final Authenticator api;
+
+
+    /**
+     * The holder of the configuration snapshot providing the TokenValidator URLs to probe.
+     */
+
+    private final GatewaySettingsWatcher settings;
+
+
+    /**
+     * The push authentication, whose allowlisted SPS parking servers are probed.
+     */
+
+    private final CustomAuthenticate customApi;
+
+
+    /**
+     * The timeout, in milliseconds, applied to each network probe.
+     */
+
+    private final int timeout;
+
+
+    /**
+     * The executor used to run the probes in parallel, so that the detail endpoint answers
+     * within a single probe timeout even when several dependencies are down.
+     */
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8, runnable -> {
+        Thread thread = new Thread(runnable, "dependency-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * The JNI probe in progress, shared by the callers until it completes, so that a hung server status check
+     * holds a single probe thread.
+     */
+
+    private CompletableFuture<DependencyStatus> jniProbe;
+
+
+    /**
+     * Constructs a new DependencyProbe.
+     *
+     * @param api the Authenticator bean used to probe the JNI backend
+     * @param settings the holder of the configuration snapshot providing the TokenValidator URLs
+     * @param customApi the push authentication, whose allowlisted SPS parking servers are probed
+     * @param timeout the timeout in milliseconds applied to each network probe
+     */
+
+    public DependencyProbe(Authenticator api, GatewaySettingsWatcher settings, CustomAuthenticate customApi,
+            @Value("${HEALTH_PROBE_TIMEOUT_MS:2000}") int timeout) {
+        this.api = api;
+        this.timeout = timeout;
+        this.settings = settings;
+        this.customApi = customApi;
+    }
+
+
+    /**
+     * Probes all the dependencies in parallel and returns their status.
+     *
+     * @return the status of each dependency, in a stable order
+     */
+
+    public List<DependencyStatus> probeAll() {
+        GatewaySettings current = this.settings.current();
+        List<String> spsOrigins = this.customApi.getPushState().getOrigins();
+
+        List<CompletableFuture<DependencyStatus>> futures = new ArrayList<>();
+        futures.add(withTimeout("jni_backend", "CRYPTOCardAPI", jniProbe().copy()));
+        futures.add(probeAsync("token_validator_primary", current.getPrimaryAuthUrl(),
+                () -> probeUrl("token_validator_primary", current.getPrimaryAuthUrl())));
+        futures.add(probeAsync("token_validator_secondary", current.getSecondaryAuthUrl(),
+                () -> probeUrl("token_validator_secondary", current.getSecondaryAuthUrl())));
+        if (spsOrigins.isEmpty()) {
+            futures.add(CompletableFuture.completedFuture(probeHost("sps_parking", null, -1)));
+        }
+        for (String origin : spsOrigins) {
+            futures.add(probeAsync("sps_parking", origin, () -> probeUrl("sps_parking", origin)));
+        }
+
+        List<DependencyStatus> results = new ArrayList<>();
+        for (CompletableFuture<DependencyStatus> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+
+    /**
+     * Runs the specified probe on the executor.
+     */
+
+    private CompletableFuture<DependencyStatus> probeAsync(String name, String target, Supplier<DependencyStatus> probe) {
+        return withTimeout(name, target, CompletableFuture.supplyAsync(probe, this.executor));
+    }
+
+
+    /**
+     * Reports the dependency as unreachable if the specified probe has not completed within the timeout: neither
+     * the JNI server status check nor the name resolution are bounded.
+     */
+
+    private CompletableFuture<DependencyStatus> withTimeout(String name, String target,
+            CompletableFuture<DependencyStatus> probe) {
+        return probe.completeOnTimeout(new DependencyStatus(name, target, false, this.timeout, "timeout"), this.timeout,
+                TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Returns the JNI probe in progress, or starts a new one.
+     */
+
+    private synchronized CompletableFuture<DependencyStatus> jniProbe() {
+        if (this.jniProbe == null || this.jniProbe.isDone()) {
+            this.jniProbe = CompletableFuture.supplyAsync(this::probeJniBackend, this.executor);
+        }
+        return this.jniProbe;
+    }
+
+
+    /**
+     * Stops the probe threads.
+     */
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+
+    /**
+     * Probes the JNI backend by calling its server status check.
+     *
+     * @return the status of the JNI backend
+     */
+
+    public DependencyStatus probeJniBackend() {
+        if (!this.api.isLibraryLoaded()) {
+            return new DependencyStatus("jni_backend", "CRYPTOCardAPI", false, -1, "JNI library not loaded");
+        }
+        long start = System.nanoTime();
+        boolean up = this.api.getServerStatus();
+        long latency = (System.nanoTime() - start) / 1_000_000;
+        return new DependencyStatus("jni_backend", "CRYPTOCardAPI", up, latency, up ? null : "Server status check failed");
+    }
+
+
+    /**
+     * Probes the host and port of the specified URL.
+     *
+     * @param name the name of the dependency
+     * @param url the URL to probe
+     * @return the status of the dependency
+     */
+
+    private DependencyStatus probeUrl(String name, String url) {
+        try {
+            URI uri = new URI(url);
+            int port = uri.getPort() != -1 ? uri.getPort() : ("https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80);
+            return probeHost(name, uri.getHost(), port);
+        } catch (URISyntaxException | NullPointerException e) {
+            return new DependencyStatus(name, url, false, -1, "Invalid URL");
+        }
+    }
+
+
+    /**
+     * Probes the specified host and port with a TCP connect.
+     *
+     * @param name the name of the dependency
+     * @param host the host to probe
+     * @param port the port to probe
+     * @return the status of the dependency
+     */
+
+    private DependencyStatus probeHost(String name, String host, int port) {
+        if (host == null || host.isEmpty()) {
+            return new DependencyStatus(name, null, false, -1, "Host not configured");
+        }
+        String target = host + ":" + port;
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), this.timeout);
+            long latency = (System.nanoTime() - start) / 1_000_000;
+            return new DependencyStatus(name, target, true, latency, null);
+        } catch (IOException e) {
+            long latency = (System.nanoTime() - start) / 1_000_000;
+            Log.fine("Dependency probe failed for " + name + " (" + target + "): " + e.getMessage());
+            return new DependencyStatus(name, target, false, latency, e.getClass().getSimpleName());
+        }
+    }
+
+
+    /**
+     * Represents the outcome of a single dependency probe.
+     */
+
+    public static class DependencyStatus {
+
+        @JsonProperty("name")
+        private final String name;
+
+        @JsonProperty("target")
+        private final String target;
+
+        @JsonProperty("reachable")
+        private final boolean reachable;
+
+        @JsonProperty("latency_ms")
+        private final long latencyMs;
+
+        @JsonProperty("error")
+        private final String error;
+
+        public DependencyStatus(String name, String target, boolean reachable, long latencyMs, String error) {
+            this.name = name;
+            this.target = target;
+            this.reachable = reachable;
+            this.latencyMs = latencyMs;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isReachable() {
+            return reachable;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+    }
+
+}
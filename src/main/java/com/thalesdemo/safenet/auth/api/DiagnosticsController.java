@@ -0,0 +1,124 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Controller class exposing the diagnostics of the gateway, to correlate the latency
+ * of the authentication stages with GC, lock and I/O stalls.
+ *
+ * The endpoint requires authentication using the `X-API-Key` header, like every
+ * endpoint under `/api`, since a flight recording reveals the internals of the process.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+
+
+@RestController
+@RequestMapping("/api/v1")
+@Tag(name = "Diagnostics")
+public class DiagnosticsController {
+
+    /**
+     * The logger for the DiagnosticsController class.
+     */
+
+    private static final Logger Log = Logger.getLogger(DiagnosticsController.class.getName());
+
+
+    /**
+     * The timestamp format of the names of the dumped recordings.
+     */
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+
+    /**
+     * The continuous flight recording of the gateway.
+     */
+
+    private final FlightRecording flightRecording;
+
+
+    /**
+     * Constructs a new DiagnosticsController.
+     *
+     * @param flightRecording the continuous flight recording of the gateway
+     */
+
+    public DiagnosticsController(FlightRecording flightRecording) {
+        this.flightRecording = flightRecording;
+    }
+
+
+    /**
+     * Dumps the continuous flight recording, to be opened with JDK Mission Control or `jfr print`.
+     *
+     * @return the recording, or 503 Service Unavailable if no recording is running
+     */
+
+    @GetMapping(value = "/diagnostics/flight-recording", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @Operation(summary = "Download the flight recording of this gateway",
+               description = "Dumps the JDK Flight Recorder data kept by this gateway instance, including the events of each authentication stage (`com.thalesdemo.safenet.Stage`) and SPS parking attempt (`com.thalesdemo.safenet.ParkingAttempt`). The recording keeps running after the dump.")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "The recording is returned as a `.jfr` file.", content = @Content(mediaType = MediaType.APPLICATION_OCTET_STREAM_VALUE)),
+        @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content),
+        @ApiResponse(responseCode = "503", description = "No flight recording is running, e.g. because JFR_ENABLED is false.", content = @Content)
+    })
+    public ResponseEntity<Resource> flightRecording() {
+        if (!this.flightRecording.isRunning()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        try {
+            Path file = this.flightRecording.dump();
+            String fileName = FlightRecording.NAME + "-" + TIMESTAMP.format(Instant.now()) + ".jfr";
+            return ResponseEntity.ok()
+                    .contentLength(Files.size(file))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(fileName).build().toString())
+                    // The temporary file is deleted once the response has been written
+                    .body(new InputStreamResource(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE)));
+        } catch (IOException | IllegalStateException e) {
+            Log.log(Level.WARNING, "Could not dump the flight recording", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+}
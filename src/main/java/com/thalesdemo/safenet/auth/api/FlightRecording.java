@@ -0,0 +1,197 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Keeps a continuous JDK Flight Recorder recording of the gateway, so that a recent
+ * window of GC, lock, I/O and {@link StageEvent} events can be dumped on demand when a
+ * latency spike is investigated.
+ *
+ * The recording uses the low overhead `default` settings of the JDK, or the settings
+ * named by JFR_SETTINGS (e.g. `profile`), and keeps the last JFR_MAX_AGE_MINUTES minutes
+ * (30 by default) within JFR_MAX_SIZE_MB megabytes (100 by default). It is named
+ * `safenet-auth-api`, so it can also be dumped with
+ * `jcmd <pid> JFR.dump name=safenet-auth-api filename=<file>`. Set JFR_ENABLED to false
+ * to disable it.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+
+@Component
+public class FlightRecording {
+
+    /**
+     * The logger for the FlightRecording class.
+     */
+
+    private static final Logger Log = Logger.getLogger(FlightRecording.class.getName());
+
+
+    /**
+     * The name of the recording, as listed by `jcmd <pid> JFR.check`.
+     */
+
+    public static final String NAME = "safenet-auth-api";
+
+
+    /**
+     * Whether the recording is started with the application.
+     */
+
+    private final boolean enabled;
+
+
+    /**
+     * The name of the JDK settings used by the recording.
+     */
+
+    private final String settings;
+
+
+    /**
+     * How long and how much of the recorded data is kept.
+     */
+
+    private final Duration maxAge;
+    private final long maxSizeBytes;
+
+
+    /**
+     * The running recording, or null if it has not been started.
+     */
+
+    private volatile Recording recording;
+
+
+    /**
+     * Constructs a new FlightRecording.
+     *
+     * @param enabled whether the recording is started with the application
+     * @param settings the name of the JDK settings used by the recording, e.g. `default` or `profile`
+     * @param maxAgeMinutes how long the recorded data is kept, in minutes
+     * @param maxSizeMegabytes how much recorded data is kept, in megabytes
+     */
+
+    public FlightRecording(@Value("${JFR_ENABLED:true}") boolean enabled,
+                           @Value("${JFR_SETTINGS:default}") String settings,
+                           @Value("${JFR_MAX_AGE_MINUTES:30}") long maxAgeMinutes,
+                           @Value("${JFR_MAX_SIZE_MB:100}") long maxSizeMegabytes) {
+        this.enabled = enabled;
+        this.settings = settings.trim();
+        this.maxAge = Duration.ofMinutes(Math.max(maxAgeMinutes, 1));
+        this.maxSizeBytes = Math.max(maxSizeMegabytes, 1) * 1024 * 1024;
+    }
+
+
+    /**
+     * Starts the recording once the application is ready, if enabled and supported by the JVM.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (!this.enabled || this.recording != null) {
+            return;
+        }
+        if (!FlightRecorder.isAvailable()) {
+            Log.warning("The JDK Flight Recorder is not available in this JVM; no flight recording is kept");
+            return;
+        }
+        try {
+            Recording started = new Recording(Configuration.getConfiguration(this.settings));
+            started.setName(NAME);
+            started.setToDisk(true);
+            started.setMaxAge(this.maxAge);
+            started.setMaxSize(this.maxSizeBytes);
+            started.enable(StageEvent.class);
+            started.enable(ParkingAttemptEvent.class);
+            started.start();
+            this.recording = started;
+            Log.info("Started the flight recording with the " + this.settings + " settings, keeping " + this.maxAge.toMinutes() + " minutes");
+        } catch (IOException | ParseException | RuntimeException e) {
+            Log.log(Level.WARNING, "Could not start the flight recording with the " + this.settings + " settings", e);
+        }
+    }
+
+
+    /**
+     * Returns whether the recording is running.
+     *
+     * @return true if the recording is running
+     */
+
+    public boolean isRunning() {
+        Recording current = this.recording;
+        return current != null && current.getState() == RecordingState.RUNNING;
+    }
+
+
+    /**
+     * Dumps the data kept by the recording to a new temporary file, leaving the recording running.
+     *
+     * @return the temporary file, to be deleted by the caller
+     * @throws IllegalStateException if the recording is not running
+     * @throws IOException if the file cannot be written
+     */
+
+    public Path dump() throws IOException {
+        Recording current = this.recording;
+        if (current == null || current.getState() != RecordingState.RUNNING) {
+            throw new IllegalStateException("The flight recording is not running");
+        }
+        Path file = Files.createTempFile(NAME + "-", ".jfr");
+        try {
+            current.dump(file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+
+    /**
+     * Stops and discards the recording.
+     */
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (this.recording != null) {
+            this.recording.close();
+            this.recording = null;
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Drains the authentication and grid image requests in flight when the gateway shuts
+ * down, so that a rolling deploy does not fail the users in the middle of a push or a
+ * challenge and send their clients retrying against the other instances at once.
+ *
+ * The filter counts the requests in flight. Once the application context starts
+ * closing, before the web server is stopped, the gateway is marked as draining:
+ *
+ * - the readiness probe of the {@link GatewayReadiness} fails, for the orchestrator to
+ *   take the instance out of rotation;
+ * - new requests are answered with a 503 Service Unavailable, a Retry-After header
+ *   and a closed connection, for the clients to move to another instance;
+ * - the requests in flight, JNI calls and pushes parked on the SPS included, are waited
+ *   for, for DRAIN_TIMEOUT_MS at most, before the shutdown goes on.
+ *
+ * The progress of the drain is logged every second with the requests left in each
+ * {@link WorkloadClass}, and exposed as the `safenet.requests.inflight` gauge. The
+ * requests turned away while draining are counted in `safenet.drain.rejected`, and the
+ * ones still in flight when the drain timeout elapsed in `safenet.drain.abandoned`.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+public class GatewayDrainFilter extends OncePerRequestFilter {
+
+    /**
+     * The logger for the GatewayDrainFilter class.
+     */
+
+    private static final Logger Log = Logger.getLogger(GatewayDrainFilter.class.getName());
+
+
+    /**
+     * How often the drain checks the requests in flight, and logs its progress, in milliseconds.
+     */
+
+    private static final long POLL_MILLIS = 50;
+    private static final long PROGRESS_MILLIS = 1_000;
+
+
+    /**
+     * The readiness state, marked as draining once the drain starts.
+     */
+
+    private final GatewayReadiness readiness;
+
+
+    /**
+     * The workload classes, whose requests in flight are reported while draining.
+     */
+
+    private final WorkloadClasses workloads;
+
+
+    /**
+     * How long the requests in flight are waited for, in milliseconds.
+     */
+
+    private final long timeoutMillis;
+
+
+    /**
+     * The number of requests in flight.
+     */
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+
+    /**
+     * The requests turned away while draining, and the ones still in flight when the drain timed out.
+     */
+
+    private final Counter rejected;
+    private final Counter abandoned;
+
+
+    /**
+     * Constructs a new GatewayDrainFilter and registers its metrics.
+     *
+     * @param readiness the readiness state, marked as draining once the drain starts
+     * @param workloads the workload classes, whose requests in flight are reported while draining
+     * @param timeoutMillis how long the requests in flight are waited for, in milliseconds
+     * @param registry the registry of the metrics
+     */
+
+    public GatewayDrainFilter(GatewayReadiness readiness, WorkloadClasses workloads, long timeoutMillis,
+            MeterRegistry registry) {
+        this.readiness = readiness;
+        this.workloads = workloads;
+        this.timeoutMillis = Math.max(timeoutMillis, 0);
+        this.rejected = Counter.builder("safenet.drain.rejected")
+                .description("Requests turned away because the gateway was draining")
+                .register(registry);
+        this.abandoned = Counter.builder("safenet.drain.abandoned")
+                .description("Requests still in flight when the drain timed out")
+                .register(registry);
+        Gauge.builder("safenet.requests.inflight", this.inFlight, AtomicInteger::get)
+                .description("Authentication and grid image requests in flight")
+                .register(registry);
+    }
+
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        this.inFlight.incrementAndGet();
+        try {
+            // Checked once counted, so that a request either runs to completion or is turned away
+            if (this.readiness.isDraining()) {
+                this.rejected.increment();
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                response.setHeader(HttpHeaders.CONNECTION, "close");
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            chain.doFilter(request, response);
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Returns the number of requests in flight.
+     *
+     * @return the number of requests in flight
+     */
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+
+    /**
+     * Marks the gateway as draining, then waits for the requests in flight to complete, for the drain timeout at most.
+     *
+     * @return true if the requests in flight completed, false if the drain timed out
+     */
+
+    public boolean drain() {
+        this.readiness.startDraining();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+        long nextProgress = start + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+        Log.info("Draining " + this.inFlight.get() + " requests in flight, for " + this.timeoutMillis + " ms at most");
+
+        int left;
+        while ((left = this.inFlight.get()) > 0 && System.nanoTime() < deadline) {
+            if (System.nanoTime() >= nextProgress) {
+                Log.info("Draining: " + left + " requests in flight (" + progress() + "), "
+                        + TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + " ms left");
+                nextProgress += TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (left > 0) {
+            this.abandoned.increment(left);
+            Log.warning("Drain timed out after " + elapsedMillis + " ms with " + left + " requests in flight ("
+                    + progress() + "): they fail with the shutdown");
+            return false;
+        }
+        Log.info("Drained the requests in flight in " + elapsedMillis + " ms");
+        return true;
+    }
+
+
+    /**
+     * Describes the requests running in each workload class.
+     */
+
+    private String progress() {
+        StringBuilder progress = new StringBuilder();
+        for (WorkloadClass workload : new WorkloadClass[] { this.workloads.getOtp(), this.workloads.getPush(),
+                this.workloads.getGrid(), this.workloads.getHealth() }) {
+            progress.append(progress.length() == 0 ? "" : ", ").append(workload.getName()).append(' ')
+                    .append(workload.getRunning() + workload.getQueued());
+        }
+        return progress.toString();
+    }
+
+
+    /**
+     * Drains the requests in flight once the application context starts closing, before the web server is stopped.
+     */
+
+    @EventListener(ContextClosedEvent.class)
+    public void onClose() {
+        drain();
+    }
+
+
+    /**
+     * Registers the filter ahead of the tracing and the Spring Security filter chain, so that the requests turned away
+     * while draining cost nothing.
+     */
+
+    @Configuration
+    static class Registration {
+
+        /**
+         * Returns the filter, a bean so that it hears the closing of the application context.
+         *
+         * @param readiness the readiness state, marked as draining once the drain starts
+         * @param workloads the workload classes, whose requests in flight are reported while draining
+         * @param timeoutMillis how long the requests in flight are waited for, in milliseconds
+         * @param registry the registry of the metrics
+         * @return the filter
+         */
+
+        @Bean
+        GatewayDrainFilter gatewayDrainFilter(GatewayReadiness readiness, WorkloadClasses workloads,
+                @Value("${DRAIN_TIMEOUT_MS:25000}") long timeoutMillis, MeterRegistry registry) {
+            return new GatewayDrainFilter(readiness, workloads, timeoutMillis, registry);
+        }
+
+
+        /**
+         * Returns the registration of the filter.
+         *
+         * @param filter the filter
+         * @return the filter registration
+         */
+
+        @Bean
+        FilterRegistrationBean<GatewayDrainFilter> gatewayDrainFilterRegistration(GatewayDrainFilter filter) {
+            FilterRegistrationBean<GatewayDrainFilter> registration = new FilterRegistrationBean<>(filter);
+            registration.addUrlPatterns(ServerTimingFilter.URL_PATTERNS);
+            registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 3);
+            return registration;
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Records the latency of each stage of the authentication and grid image paths as
+ * Micrometer timers, exposed in the Prometheus format on the `/metrics` endpoint.
+ *
+ * Every timer publishes a percentile histogram, so that latency percentiles can be
+ * aggregated across gateway instances on the Prometheus side, and is tagged with the
+ * `outcome` of the call and, where applicable, the name of the {@link ResponseCode}
+ * returned by the SafeNet server.
+ *
+ * The components created outside of the Spring context, such as {@link Authenticate}
+ * and {@link CustomAuthenticate}, default to the {@link #NOOP} instance until they are
+ * given the instance of the application.
+ *
+ * Each stage is also traced as an OpenTelemetry span, child of the current span and
+ * current itself until the stage stops, and its duration is reported in the
+ * {@link ServerTiming} stopwatch of the current request, if any. It is also recorded as a
+ * {@link StageEvent} by the JDK Flight Recorder when a recording is running.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Scope;
+
+
+@Component
+public class GatewayMetrics {
+
+    /**
+     * The timer names of the instrumented stages.
+     */
+
+    public static final String AUTHENTICATE = "safenet.authenticate";
+    public static final String JNI_AUTHENTICATE = "safenet.jni.authenticate";
+    public static final String PUSH_CHALLENGE_REQUEST = "safenet.push.challenge.request";
+    public static final String PUSH_PARKING = "safenet.push.parking";
+    public static final String PUSH_CHALLENGE_RESPONSE = "safenet.push.challenge.response";
+    public static final String TOKEN_VALIDATOR_OTP = "safenet.tokenvalidator.otp";
+    public static final String API_KEY_CHECK = "safenet.apikey.check";
+    public static final String GRID_RENDER = "safenet.grid.render";
+    public static final String GRID_ENCODE = "safenet.grid.encode";
+
+
+    /**
+     * The name of the counter of the pushes abandoned because their client disconnected.
+     */
+
+    public static final String PUSH_ABANDONED = "safenet.push.abandoned";
+
+
+    /**
+     * The name of the counter of the pushes refused because of their state or of their SPS parking server.
+     */
+
+    public static final String PUSH_STATE_REJECTED = "safenet.push.state.rejected";
+
+
+    /**
+     * The tag value used when a call has no response code or no format.
+     */
+
+    public static final String NONE = "none";
+
+
+    /**
+     * The outcome tag value of calls that failed with an exception.
+     */
+
+    public static final String ERROR = "error";
+
+
+    /**
+     * An instance that records nothing, used until the instance of the application is set.
+     */
+
+    public static final GatewayMetrics NOOP = new GatewayMetrics(new CompositeMeterRegistry(), GatewayTracing.NOOP);
+
+
+    /**
+     * The registry the timers are registered with.
+     */
+
+    private final MeterRegistry registry;
+
+
+    /**
+     * The tracing creating the span of each stage.
+     */
+
+    private final GatewayTracing tracing;
+
+
+    /**
+     * Constructs a new GatewayMetrics without tracing.
+     *
+     * @param registry the registry the timers are registered with
+     */
+
+    public GatewayMetrics(MeterRegistry registry) {
+        this(registry, GatewayTracing.NOOP);
+    }
+
+
+    /**
+     * Constructs a new GatewayMetrics.
+     *
+     * @param registry the registry the timers are registered with
+     * @param tracing the tracing creating the span of each stage
+     */
+
+    @Autowired
+    public GatewayMetrics(MeterRegistry registry, GatewayTracing tracing) {
+        this.registry = registry;
+        this.tracing = tracing;
+    }
+
+
+    /**
+     * Starts timing and tracing a stage. The stage must be stopped on the same thread, by one of the stop methods.
+     *
+     * @param name the timer name, also used as the span name
+     * @return the started stage
+     */
+
+    public Stage start(String name) {
+        StageEvent event = new StageEvent();
+        event.begin();
+        Span span = this.tracing.startSpan(name);
+        return new Stage(name, Timer.start(this.registry), span, span.makeCurrent(), event);
+    }
+
+
+    /**
+     * Stops a stage and records it with the specified outcome and additional tags.
+     *
+     * @param stage the stage returned by {@link #start(String)}
+     * @param outcome the outcome of the call
+     * @param tags additional tags, as alternating keys and values, e.g. "format", "png"
+     */
+
+    public void stop(Stage stage, String outcome, String... tags) {
+        stop(stage, Tags.of("outcome", outcome).and(tags), ERROR.equals(outcome));
+    }
+
+
+    /**
+     * Stops an authentication stage and records it with the outcome and the response code of the response.
+     *
+     * @param stage the stage returned by {@link #start(String)}
+     * @param response the authentication response, or null if the call failed
+     * @param tags additional tags, as alternating keys and values, e.g. "method", "push"
+     */
+
+    public void stop(Stage stage, AuthenticationResponse response, String... tags) {
+        String responseCode = response != null && response.getResponse() != null ? response.getResponse().getName() : NONE;
+        stop(stage, Tags.of("outcome", outcome(response), "response_code", responseCode).and(tags), response == null);
+    }
+
+
+    /**
+     * Records the timer of the stage, ends its span with the same tags as attributes, and reports its duration and
+     * its flight recorder event.
+     */
+
+    private void stop(Stage stage, Tags tags, boolean failed) {
+        long nanos = stage.sample.stop(timer(stage.name, tags));
+
+        stage.event.end();
+        if (stage.event.shouldCommit()) {
+            stage.event.stage = stage.name;
+            StringBuilder others = new StringBuilder();
+            for (Tag tag : tags) {
+                switch (tag.getKey()) {
+                    case "outcome":
+                        stage.event.outcome = tag.getValue();
+                        break;
+                    case "response_code":
+                    case "return_value":
+                        stage.event.code = tag.getValue();
+                        break;
+                    default:
+                        others.append(others.length() == 0 ? "" : ", ").append(tag.getKey()).append('=').append(tag.getValue());
+                }
+            }
+            stage.event.tags = others.toString();
+            stage.event.commit();
+        }
+
+        stage.scope.close();
+        if (stage.span.isRecording()) {
+            tags.forEach(tag -> stage.span.setAttribute(tag.getKey(), tag.getValue()));
+            if (failed) {
+                stage.span.setStatus(StatusCode.ERROR);
+            }
+        }
+        stage.span.end();
+
+        ServerTiming.record(stage.name, nanos);
+    }
+
+
+    /**
+     * Counts a push abandoned because its client disconnected.
+     *
+     * @param stage the stage the push was abandoned at, e.g. {@link #PUSH_PARKING}
+     */
+
+    public void abandoned(String stage) {
+        Counter.builder(PUSH_ABANDONED)
+                .description("Pushes abandoned because the client disconnected")
+                .tag("stage", stage)
+                .register(this.registry)
+                .increment();
+    }
+
+
+    /**
+     * Counts a push refused because its state could not be trusted or its SPS parking server is not allowlisted.
+     *
+     * @param reason the reason, e.g. an {@link InvalidPushStateException} reason, or host for a server not allowlisted
+     */
+
+    public void pushStateRejected(String reason) {
+        Counter.builder(PUSH_STATE_REJECTED)
+                .description("Pushes refused because of their state or of their SPS parking server")
+                .tag("reason", reason)
+                .register(this.registry)
+                .increment();
+    }
+
+
+    /**
+     * Returns the outcome tag value of the specified authentication response.
+     *
+     * @param response the authentication response, or null if the call failed
+     * @return success, denied, challenged, error or other
+     */
+
+    public static String outcome(AuthenticationResponse response) {
+        if (response == null) {
+            return ERROR;
+        }
+        if (response.isAuthenticated()) {
+            return "success";
+        }
+        if (response.isDenied()) {
+            return "denied";
+        }
+        if (response.isChallenged()) {
+            return "challenged";
+        }
+        return "other";
+    }
+
+
+    /**
+     * Returns the timer with the specified name and tags, registering it with a percentile histogram on first use.
+     */
+
+    private Timer timer(String name, Tags tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(this.registry);
+    }
+
+
+
+    /**
+     * A stage being timed and traced.
+     */
+
+    public static final class Stage {
+
+        private final String name;
+        private final Timer.Sample sample;
+        private final Span span;
+        private final Scope scope;
+        private final StageEvent event;
+
+        private Stage(String name, Timer.Sample sample, Span span, Scope scope, StageEvent event) {
+            this.name = name;
+            this.sample = sample;
+            this.span = span;
+            this.scope = scope;
+            this.event = event;
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Tracks whether this gateway instance is ready to receive traffic.
+ *
+ * The gateway is ready once the JNI library of the CRYPTOCard API has been loaded
+ * by the {@link Authenticate} constructor and the connection warm-up has completed.
+ * The warm-up runs once in the background when the application is started: it calls
+ * the JNI server status check and opens a connection to the primary TokenValidator,
+ * so that the first user requests do not pay for the cold start.
+ *
+ * The readiness deliberately does not depend on the SafeNet Cloud being up: an outage
+ * of the remote service is reported by the dependency detail endpoint, but must not
+ * cause the orchestrator to take every gateway instance out of rotation.
+ *
+ * Once the gateway starts shutting down, it is draining: it is no longer ready, so that
+ * the orchestrator takes it out of rotation while the {@link GatewayDrainFilter} lets
+ * the requests in flight complete.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.logging.Logger;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class GatewayReadiness {
+
+    /**
+     * The logger for the GatewayReadiness class.
+     */
+
+    private static final Logger Log = Logger.getLogger(GatewayReadiness.class.getName());
+
+
+    /**
+     * The Authenticator bean whose JNI library state is reported.
+     */
+
+    private final Authenticator api;
+
+
+    /**
+     * The probe used to warm up the connections to the dependencies.
+     */
+
+    private final DependencyProbe probe;
+
+
+    /**
+     * Indicates whether the connection warm-up has completed.
+     */
+
+    private volatile boolean warmedUp;
+
+
+    /**
+     * Indicates whether the gateway is draining its requests in flight before it shuts down.
+     */
+
+    private volatile boolean draining;
+
+
+    /**
+     * Constructs a new GatewayReadiness.
+     *
+     * @param api the Authenticator bean whose JNI library state is reported
+     * @param probe the probe used to warm up the connections to the dependencies
+     */
+
+    public GatewayReadiness(Authenticator api, DependencyProbe probe) {
+        this.api = api;
+        this.probe = probe;
+    }
+
+
+    /**
+     * Starts the connection warm-up in the background once the application is ready.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        Thread thread = new Thread(() -> {
+            Log.info("Starting connection warm-up...");
+            try {
+                for (DependencyProbe.DependencyStatus status : this.probe.probeAll()) {
+                    Log.info("Warm-up probe " + status.getName() + ": reachable=" + status.isReachable()
+                            + ", latency=" + status.getLatencyMs() + "ms");
+                }
+            } finally {
+                // A failed warm-up must not keep the gateway out of the load balancer forever
+                this.warmedUp = true;
+                Log.info("Connection warm-up complete.");
+            }
+        }, "readiness-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Returns whether the JNI library was loaded successfully.
+     *
+     * @return true if the JNI library is loaded
+     */
+
+    public boolean isLibraryLoaded() {
+        return this.api.isLibraryLoaded();
+    }
+
+
+    /**
+     * Returns whether the connection warm-up has completed.
+     *
+     * @return true if the warm-up has completed
+     */
+
+    public boolean isWarmedUp() {
+        return this.warmedUp;
+    }
+
+
+    /**
+     * Marks the gateway as draining, no longer ready to receive traffic.
+     */
+
+    public void startDraining() {
+        this.draining = true;
+    }
+
+
+    /**
+     * Returns whether the gateway is draining its requests in flight before it shuts down.
+     *
+     * @return true if draining
+     */
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+
+    /**
+     * Returns whether this gateway instance is ready to receive traffic.
+     *
+     * @return true if ready
+     */
+
+    public boolean isReady() {
+        return isLibraryLoaded() && isWarmedUp() && !isDraining();
+    }
+
+}
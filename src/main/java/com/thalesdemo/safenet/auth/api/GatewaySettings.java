@@ -0,0 +1,266 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An immutable snapshot of the gateway configuration: the TokenValidator URLs read from
+ * the JCryptoWrapper INI file, the agent key it points to, and the resource name.
+ *
+ * The INI file and the agent key are read exactly once per snapshot. A new snapshot is
+ * loaded by the {@link GatewaySettingsWatcher} whenever one of these files changes.
+ *
+ * @see AuthenticateConfig
+ * @see GatewaySettingsWatcher
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+
+public final class GatewaySettings {
+
+    /**
+     * The logger for the GatewaySettings class.
+     */
+
+    private static final Logger Log = Logger.getLogger(GatewaySettings.class.getName());
+
+
+    /**
+     * The agent key path used when the INI file cannot be read.
+     */
+
+    private static final String DEFAULT_AGENT_KEY_PATH = "/app/secret/agent.key";
+
+
+    /**
+     * The path of the INI file this snapshot was read from.
+     */
+
+    private final String iniPath;
+
+
+    /**
+     * The primary and secondary TokenValidator URLs. The secondary URL mirrors the primary one when it is not defined.
+     */
+
+    private final String primaryAuthUrl;
+    private final String secondaryAuthUrl;
+
+
+    /**
+     * The path of the agent key file, and its content.
+     */
+
+    private final String agentKeyPath;
+    private final String agentKey;
+
+
+    /**
+     * The resource name sent in the push authentication requests.
+     */
+
+    private final String resourceName;
+
+
+    private GatewaySettings(String iniPath, String primaryAuthUrl, String secondaryAuthUrl, String agentKeyPath,
+            String agentKey, String resourceName) {
+        this.iniPath = iniPath;
+        this.primaryAuthUrl = primaryAuthUrl;
+        this.secondaryAuthUrl = secondaryAuthUrl;
+        this.agentKeyPath = agentKeyPath;
+        this.agentKey = agentKey;
+        this.resourceName = resourceName;
+    }
+
+
+    /**
+     * Loads a snapshot of the configuration, reading the INI file and the agent key file once.
+     *
+     * @param iniPath the path to the INI file
+     * @param resourceName the resource name
+     * @return the configuration snapshot
+     */
+
+    public static GatewaySettings load(String iniPath, String resourceName) {
+        Properties props = new Properties();
+        boolean iniLoaded = true;
+        try (FileInputStream in = new FileInputStream(iniPath)) {
+            props.load(in);
+        } catch (IOException ex) {
+            Log.severe("Could not read the INI file." + iniPath);
+            iniLoaded = false;
+        }
+
+        String primaryUrl = iniLoaded
+                ? authUrl(props, "PrimaryProtocol", "PrimaryServer", "PrimaryServerPort", "PrimaryWebServiceRelativePath")
+                : null;
+        String secondaryUrl = iniLoaded
+                ? authUrl(props, "SecondaryProtocol", "SecondaryServer", "SecondaryServerPort", "SecondaryWebServiceRelativePath")
+                : null;
+        if (secondaryUrl == null || secondaryUrl.trim().isEmpty() || !AuthenticateConfig.isValidUrl(secondaryUrl)) {
+            Log.info("Secondary URL is not defined in the INI file. Mirroring the primary URL instead.");
+            secondaryUrl = primaryUrl;
+        }
+
+        String agentKeyPath = iniLoaded ? props.getProperty("EncryptionKeyFile") : DEFAULT_AGENT_KEY_PATH;
+        String agentKey = null;
+        if (agentKeyPath != null) {
+            try {
+                agentKey = Files.readString(Paths.get(agentKeyPath));
+            } catch (IOException | RuntimeException ex) {
+                Log.warning("Could not read the agent key file: " + agentKeyPath);
+            }
+        }
+
+        return new GatewaySettings(iniPath, primaryUrl, secondaryUrl, agentKeyPath, agentKey, resourceName);
+    }
+
+
+    /**
+     * Forms the absolute authentication URL from the INI properties with the specified key names.
+     */
+
+    private static String authUrl(Properties props, String keyNameHttpProtocol, String keyNameServerHost,
+            String keyNameServerPort, String keyNameRelativeUrlPath) {
+        String protocol = props.getProperty(keyNameHttpProtocol);
+        String server = props.getProperty(keyNameServerHost);
+        String port = props.getProperty(keyNameServerPort);
+        String path = props.getProperty(keyNameRelativeUrlPath);
+        return String.format("%s://%s:%s%s", protocol, server, port, path);
+    }
+
+
+    /**
+     * Returns whether the TokenValidator can be reached with this configuration, i.e. the primary URL is valid.
+     *
+     * @return true if the primary URL is valid
+     */
+
+    public boolean isUsable() {
+        return this.primaryAuthUrl != null && AuthenticateConfig.isValidUrl(this.primaryAuthUrl);
+    }
+
+
+    /**
+     * Returns the path of the INI file this snapshot was read from.
+     *
+     * @return the INI path
+     */
+
+    public String getIniPath() {
+        return this.iniPath;
+    }
+
+
+    /**
+     * Returns the primary TokenValidator URL.
+     *
+     * @return the primary URL, or null if the INI file could not be read
+     */
+
+    public String getPrimaryAuthUrl() {
+        return this.primaryAuthUrl;
+    }
+
+
+    /**
+     * Returns the secondary TokenValidator URL, or the primary one if no secondary URL is defined.
+     *
+     * @return the secondary URL, or null if the INI file could not be read
+     */
+
+    public String getSecondaryAuthUrl() {
+        return this.secondaryAuthUrl;
+    }
+
+
+    /**
+     * Returns the path of the agent key file.
+     *
+     * @return the agent key path
+     */
+
+    public String getAgentKeyPath() {
+        return this.agentKeyPath;
+    }
+
+
+    /**
+     * Returns the content of the agent key file.
+     *
+     * @return the agent key, or null if it could not be read
+     */
+
+    public String getAgentKey() {
+        return this.agentKey;
+    }
+
+
+    /**
+     * Returns the resource name sent in the push authentication requests.
+     *
+     * @return the resource name
+     */
+
+    public String getResourceName() {
+        return this.resourceName;
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof GatewaySettings)) {
+            return false;
+        }
+        GatewaySettings that = (GatewaySettings) other;
+        return Objects.equals(this.iniPath, that.iniPath)
+                && Objects.equals(this.primaryAuthUrl, that.primaryAuthUrl)
+                && Objects.equals(this.secondaryAuthUrl, that.secondaryAuthUrl)
+                && Objects.equals(this.agentKeyPath, that.agentKeyPath)
+                && Objects.equals(this.agentKey, that.agentKey)
+                && Objects.equals(this.resourceName, that.resourceName);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.iniPath, this.primaryAuthUrl, this.secondaryAuthUrl, this.agentKeyPath, this.agentKey,
+                this.resourceName);
+    }
+
+
+    /**
+     * Returns a description of the snapshot, without the agent key.
+     */
+
+    @Override
+    public String toString() {
+        return "GatewaySettings [iniPath=" + this.iniPath + ", primaryAuthUrl=" + this.primaryAuthUrl
+                + ", secondaryAuthUrl=" + this.secondaryAuthUrl + ", agentKeyPath=" + this.agentKeyPath
+                + ", resourceName=" + this.resourceName + "]";
+    }
+
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Holds the current {@link GatewaySettings} snapshot and reloads it when the INI file
+ * or the agent key file changes on disk.
+ *
+ * The directories holding both files are watched with a {@link WatchService} from a
+ * background thread. Changes are debounced, then a new snapshot is loaded and, if it
+ * differs from the current one and its primary URL is valid, it is swapped in and the
+ * registered listeners are notified, e.g. to rebuild the TokenValidator wrapper. This
+ * allows rotating the TokenValidator URLs and the agent key without a restart: the
+ * requests in flight complete with the previous configuration.
+ *
+ * The directories are watched rather than the files themselves so that atomic
+ * replacements, such as the symbolic link swap of a Kubernetes ConfigMap or Secret,
+ * are detected as well. The watch can be disabled with CONFIG_WATCH_ENABLED=false.
+ *
+ * The JNI library of the CRYPTOCard API reads the INI file itself when it is loaded,
+ * so the {@link Authenticate} backend is not affected by a reload.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class GatewaySettingsWatcher {
+
+    /**
+     * The logger for the GatewaySettingsWatcher class.
+     */
+
+    private static final Logger Log = Logger.getLogger(GatewaySettingsWatcher.class.getName());
+
+
+    /**
+     * The delay during which further file events are absorbed before reloading, in milliseconds.
+     * Editors and deployment tools often write a file in several steps.
+     */
+
+    private static final long DEBOUNCE_MILLIS = 500;
+
+
+    /**
+     * The current configuration snapshot.
+     */
+
+    private final AtomicReference<GatewaySettings> current = new AtomicReference<>();
+
+
+    /**
+     * The listeners notified with the new snapshot after each reload.
+     */
+
+    private final List<Consumer<GatewaySettings>> listeners = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Indicates whether the files are watched for changes.
+     */
+
+    private final boolean watchEnabled;
+
+
+    /**
+     * The watch service, or null if the watch has not been started.
+     */
+
+    private WatchService watchService;
+
+
+    /**
+     * Constructs a new GatewaySettingsWatcher and loads the initial snapshot.
+     *
+     * @param resourceName the resource name sent in the push authentication requests
+     * @param watchEnabled whether the files are watched for changes
+     */
+
+    @Autowired
+    public GatewaySettingsWatcher(@Value("${RESOURCE_NAME:}") String resourceName,
+            @Value("${CONFIG_WATCH_ENABLED:true}") boolean watchEnabled) {
+        this(GatewaySettings.load(AuthenticateConfig.getJcryptoIniPath(), resourceName), watchEnabled);
+    }
+
+
+    /**
+     * Constructs a new GatewaySettingsWatcher with the specified initial snapshot.
+     *
+     * @param initial the initial snapshot
+     * @param watchEnabled whether the files are watched for changes
+     */
+
+    GatewaySettingsWatcher(GatewaySettings initial, boolean watchEnabled) {
+        this.watchEnabled = watchEnabled;
+        this.current.set(initial);
+        Log.info("Loaded configuration: " + initial);
+    }
+
+
+    /**
+     * Returns the current configuration snapshot.
+     *
+     * @return the current snapshot
+     */
+
+    public GatewaySettings current() {
+        return this.current.get();
+    }
+
+
+    /**
+     * Registers a listener notified with the new snapshot after each reload.
+     *
+     * @param listener the listener
+     */
+
+    public void addListener(Consumer<GatewaySettings> listener) {
+        this.listeners.add(listener);
+    }
+
+
+    /**
+     * Reloads the configuration from disk, swapping in the new snapshot and notifying the listeners
+     * if it differs from the current one and is usable.
+     *
+     * @return true if a new snapshot was swapped in
+     */
+
+    public synchronized boolean reload() {
+        GatewaySettings previous = this.current.get();
+        GatewaySettings next = GatewaySettings.load(previous.getIniPath(), previous.getResourceName());
+        if (next.equals(previous)) {
+            return false;
+        }
+        if (!next.isUsable()) {
+            Log.warning("Ignoring configuration change: the primary TokenValidator URL is invalid in " + next);
+            return false;
+        }
+
+        // Notify the listeners first, so that the snapshot is only published once the dependent components are ready
+        for (Consumer<GatewaySettings> listener : this.listeners) {
+            listener.accept(next);
+        }
+        this.current.set(next);
+        Log.info("Reloaded configuration: " + next);
+        return true;
+    }
+
+
+    /**
+     * Starts watching the INI file and the agent key file once the application is ready.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void startWatching() {
+        if (!this.watchEnabled || this.watchService != null) {
+            return;
+        }
+
+        Set<Path> directories = new LinkedHashSet<>();
+        GatewaySettings settings = this.current.get();
+        addParent(directories, settings.getIniPath());
+        addParent(directories, settings.getAgentKeyPath());
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            for (Path directory : directories) {
+                if (directory.toFile().isDirectory()) {
+                    directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    Log.info("Watching configuration directory: " + directory);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.log(Level.WARNING, "Could not watch the configuration files; changes require a restart", e);
+            return;
+        }
+
+        WatchService service = this.watchService;
+        Thread thread = new Thread(() -> watch(service), "config-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stops watching the configuration files.
+     */
+
+    @PreDestroy
+    public synchronized void stopWatching() {
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (IOException e) {
+                Log.fine("Error while closing the configuration watch service: " + e.getMessage());
+            }
+            this.watchService = null;
+        }
+    }
+
+
+    /**
+     * Waits for file events and reloads the configuration after each burst of events.
+     */
+
+    private void watch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                drain(key);
+
+                // Absorb the rest of the burst
+                WatchKey next;
+                while ((next = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    drain(next);
+                }
+
+                try {
+                    reload();
+                } catch (RuntimeException e) {
+                    Log.log(Level.WARNING, "Configuration reload failed; keeping the current configuration", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // The application is shutting down
+        }
+    }
+
+
+    /**
+     * Discards the events of the specified key and resets it.
+     */
+
+    private static void drain(WatchKey key) {
+        key.pollEvents();
+        key.reset();
+    }
+
+
+    /**
+     * Adds the absolute parent directory of the specified file path to the set, if any.
+     */
+
+    private static void addParent(Set<Path> directories, String file) {
+        if (file == null || file.trim().isEmpty()) {
+            return;
+        }
+        try {
+            Path parent = Paths.get(file).toAbsolutePath().getParent();
+            if (parent != null) {
+                directories.add(parent);
+            }
+        } catch (RuntimeException e) {
+            Log.fine("Ignoring invalid configuration path: " + file);
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Creates the OpenTelemetry spans of the authentication lifecycle and propagates the
+ * W3C trace context of the incoming requests to the outbound HTTP calls.
+ *
+ * The spans of the instrumented stages are started by {@link GatewayMetrics}, so that
+ * every timed stage is also a span. The server span of each API request is started by
+ * the {@link TracingFilter}, and the HTTP calls made with a RestTemplate get a client
+ * span and the `traceparent` header through {@link #clientInterceptor()}.
+ *
+ * The components created outside of the Spring context, such as {@link Authenticate}
+ * and {@link CustomAuthenticate}, default to the {@link #NOOP} instance until they are
+ * given the instance of the application.
+ *
+ * @see TracingConfig
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.context.propagation.TextMapSetter;
+
+
+@Component
+public class GatewayTracing {
+
+    /**
+     * The name of the instrumentation scope of the spans.
+     */
+
+    public static final String INSTRUMENTATION_NAME = "com.thalesdemo.safenet.auth.api";
+
+
+    /**
+     * An instance that creates non-recording spans, used until the instance of the application is set.
+     */
+
+    public static final GatewayTracing NOOP = new GatewayTracing(OpenTelemetry.noop());
+
+
+    /**
+     * Reads the trace context from the headers of an incoming request.
+     */
+
+    private static final TextMapGetter<HttpServletRequest> REQUEST_GETTER = new TextMapGetter<HttpServletRequest>() {
+        @Override
+        public Iterable<String> keys(HttpServletRequest request) {
+            return Collections.list(request.getHeaderNames());
+        }
+
+        @Override
+        public String get(HttpServletRequest request, String key) {
+            return request == null ? null : request.getHeader(key);
+        }
+    };
+
+
+    /**
+     * Writes the trace context to the headers of an outbound request, replacing any previous value.
+     */
+
+    private static final TextMapSetter<HttpHeaders> HEADERS_SETTER = (headers, key, value) -> {
+        if (headers != null) {
+            headers.set(key, value);
+        }
+    };
+
+
+    /**
+     * The tracer creating the spans.
+     */
+
+    private final Tracer tracer;
+
+
+    /**
+     * The propagator reading and writing the trace context headers.
+     */
+
+    private final TextMapPropagator propagator;
+
+
+    /**
+     * Constructs a new GatewayTracing.
+     *
+     * @param openTelemetry the OpenTelemetry instance providing the tracer and the propagators
+     */
+
+    public GatewayTracing(OpenTelemetry openTelemetry) {
+        this.tracer = openTelemetry.getTracer(INSTRUMENTATION_NAME);
+        this.propagator = openTelemetry.getPropagators().getTextMapPropagator();
+    }
+
+
+    /**
+     * Starts an internal span, child of the current span if any. The caller must end it.
+     *
+     * @param name the span name
+     * @return the started span
+     */
+
+    public Span startSpan(String name) {
+        return startSpan(name, SpanKind.INTERNAL, Context.current());
+    }
+
+
+    /**
+     * Starts a span of the specified kind with the specified parent context. The caller must end it.
+     *
+     * @param name the span name
+     * @param kind the span kind
+     * @param parent the parent context
+     * @return the started span
+     */
+
+    public Span startSpan(String name, SpanKind kind, Context parent) {
+        return this.tracer.spanBuilder(name).setSpanKind(kind).setParent(parent).startSpan();
+    }
+
+
+    /**
+     * Extracts the trace context sent by the client of the specified request, e.g. the W3C `traceparent` header.
+     *
+     * @param request the incoming request
+     * @return the context of the client, or the root context if the request carries none
+     */
+
+    public Context extract(HttpServletRequest request) {
+        return this.propagator.extract(Context.root(), request, REQUEST_GETTER);
+    }
+
+
+    /**
+     * Writes the current trace context to the specified outbound headers.
+     *
+     * @param headers the headers of the outbound request
+     */
+
+    public void inject(HttpHeaders headers) {
+        this.propagator.inject(Context.current(), headers, HEADERS_SETTER);
+    }
+
+
+    /**
+     * Returns an interceptor creating a client span for each request sent by a RestTemplate, and propagating
+     * the trace context to the server. Redirects followed by another interceptor get their own child span.
+     *
+     * @return the tracing interceptor, to be registered first
+     */
+
+    public ClientHttpRequestInterceptor clientInterceptor() {
+        return (request, body, execution) -> {
+            Span span = startSpan("HTTP " + request.getMethodValue(), SpanKind.CLIENT, Context.current());
+            span.setAttribute("http.method", request.getMethodValue());
+            span.setAttribute("server.address", String.valueOf(request.getURI().getHost()));
+            try (Scope scope = span.makeCurrent()) {
+                inject(request.getHeaders());
+                ClientHttpResponse response = execution.execute(request, body);
+                int status = response.getRawStatusCode();
+                span.setAttribute("http.status_code", status);
+                if (status >= 500) {
+                    span.setStatus(StatusCode.ERROR);
+                }
+                return response;
+            } catch (IOException | RuntimeException e) {
+                span.recordException(e);
+                span.setStatus(StatusCode.ERROR);
+                throw e;
+            } finally {
+                span.end();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Content-addressed cache of encoded GrIDsure grid images.
+ *
+ * A grid image only depends on the challenge string it was rendered from, so the
+ * encoded bytes are cached under a SHA-256 digest of that string, suffixed with the
+ * output format. The same digest is used as a strong ETag by the {@link GridImageController},
+ * which allows conditional requests to be answered without rendering anything.
+ *
+ * The cache is a least-recently-used map bounded by the total number of bytes held,
+ * configured with the GRID_CACHE_MAX_BYTES environment variable (8 MiB by default).
+ * Hit and miss counters, evictions and memory use are exposed through {@link #getStats()}.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+@Component
+public class GridImageCache {
+
+    /**
+     * The logger for the GridImageCache class.
+     */
+
+    private static final Logger Log = Logger.getLogger(GridImageCache.class.getName());
+
+
+    /**
+     * The hexadecimal digits used to render the digests.
+     */
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    /**
+     * The maximum number of bytes held by the cache.
+     */
+
+    private final long maxBytes;
+
+
+    /**
+     * The cached images in access order, the eldest entry being the least recently used.
+     * Guarded by the monitor of this map.
+     */
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+
+    /**
+     * The number of bytes currently held by the cache. Guarded by the monitor of the entries map.
+     */
+
+    private long sizeBytes;
+
+
+    /**
+     * The cache hit, miss and eviction counters.
+     */
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+
+    /**
+     * Renders and encodes a grid image on a cache miss.
+     */
+
+    @FunctionalInterface
+    public interface Renderer {
+        byte[] render() throws IOException;
+    }
+
+
+    /**
+     * Constructs a new GridImageCache.
+     *
+     * @param maxBytes the maximum number of bytes held by the cache; 0 disables the cache
+     */
+
+    public GridImageCache(@Value("${GRID_CACHE_MAX_BYTES:8388608}") long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        Log.info("Grid image cache budget: " + this.maxBytes + " bytes");
+    }
+
+
+    /**
+     * Returns the strong ETag of the grid image rendered from the specified challenge in the specified format.
+     * The ETag is a SHA-256 digest of the challenge string suffixed with the format, in double quotes.
+     *
+     * @param challenge the grid challenge string
+     * @param format the output format, e.g. "png"
+     * @return the strong ETag, which is also the cache key
+     */
+
+    public static String etag(String challenge, String format) {
+        return "\"" + digest(challenge) + "-" + format + "\"";
+    }
+
+
+    /**
+     * Returns the hexadecimal SHA-256 digest of the specified challenge string.
+     *
+     * @param challenge the grid challenge string
+     * @return the hexadecimal digest
+     */
+
+    static String digest(String challenge) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(challenge.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+                hex[i * 2 + 1] = HEX[hash[i] & 0x0F];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Java platform
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+
+    /**
+     * Returns the cached image for the specified key, rendering and caching it on a miss.
+     * The renderer is called outside of the cache lock, so concurrent misses on distinct
+     * keys render in parallel; concurrent misses on the same key may render twice, which
+     * is harmless since the output is identical.
+     *
+     * @param key the cache key, as returned by {@link #etag(String, String)}
+     * @param renderer the renderer called on a cache miss
+     * @return the encoded image
+     * @throws IOException if the renderer fails
+     */
+
+    public byte[] computeIfAbsent(String key, Renderer renderer) throws IOException {
+        byte[] cached;
+        synchronized (this.entries) {
+            cached = this.entries.get(key);
+        }
+        if (cached != null) {
+            this.hits.increment();
+            return cached;
+        }
+
+        this.misses.increment();
+        byte[] rendered = renderer.render();
+        put(key, rendered);
+        return rendered;
+    }
+
+
+    /**
+     * Adds the specified image to the cache, evicting the least recently used entries until
+     * the cache fits within its byte budget. Images larger than the whole budget are not cached.
+     *
+     * @param key the cache key
+     * @param data the encoded image
+     */
+
+    private void put(String key, byte[] data) {
+        if (data == null || data.length > this.maxBytes) {
+            return;
+        }
+        synchronized (this.entries) {
+            byte[] previous = this.entries.put(key, data);
+            this.sizeBytes += data.length - (previous != null ? previous.length : 0);
+
+            Iterator<Map.Entry<String, byte[]>> iterator = this.entries.entrySet().iterator();
+            while (this.sizeBytes > this.maxBytes && iterator.hasNext()) {
+                Map.Entry<String, byte[]> eldest = iterator.next();
+                this.sizeBytes -= eldest.getValue().length;
+                iterator.remove();
+                this.evictions.increment();
+            }
+        }
+    }
+
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     *
+     * @return the cache statistics
+     */
+
+    public Stats getStats() {
+        synchronized (this.entries) {
+            return new Stats(this.hits.sum(), this.misses.sum(), this.evictions.sum(),
+                    this.entries.size(), this.sizeBytes, this.maxBytes);
+        }
+    }
+
+
+    /**
+     * A snapshot of the cache statistics.
+     */
+
+    public static class Stats {
+
+        @JsonProperty("hits")
+        private final long hits;
+
+        @JsonProperty("misses")
+        private final long misses;
+
+        @JsonProperty("evictions")
+        private final long evictions;
+
+        @JsonProperty("entries")
+        private final int entries;
+
+        @JsonProperty("size_bytes")
+        private final long sizeBytes;
+
+        @JsonProperty("max_bytes")
+        private final long maxBytes;
+
+        public Stats(long hits, long misses, long evictions, int entries, long sizeBytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.sizeBytes = sizeBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        @JsonProperty("hit_rate")
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+    }
+
+}
@@ -21,25 +21,47 @@
  * i.e., the challenge-request is made automatically while retrieving the 
  * image, thus logging a challenge event in the SafeNet authentication servers.
  *
+ * Every endpoint also supports an SVG output, selected through content negotiation
+ * with the `Accept: image/svg+xml` request header, and a base64 text output of the
+ * PNG image, selected with the `Accept: text/plain` request header. The images are
+ * written straight to the servlet output stream, base64-encoded on the fly when
+ * requested, rather than returned as byte arrays for Spring to copy.
+ *
+ * The grid challenges and the rendering of the images missing from the cache run in
+ * the `grid` {@link WorkloadClass}, so that a surge of CPU-bound rendering cannot hold
+ * the threads the authentications need. The requests it has no room for are answered
+ * with a 503 Service Unavailable.
+ *
  * @author Cina Shaykhian
  * @contact hello@onewelco.me
  */
 package com.thalesdemo.safenet.auth.api;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import io.swagger.v3.oas.annotations.Operation;
@@ -64,19 +86,51 @@ public class GridImageController {
 	private static final Logger Log = Logger.getLogger(GridImageController.class.getName());
 
 	/**
-	 * This is an instance of the Authenticate class that is injected into the GridImageController constructor.
-	 * The Authenticate instance is used to perform user authentication operations.
+	 * This is the authentication backend that is injected into the GridImageController constructor.
+	 * The Authenticator instance is used to perform user authentication operations.
 	 * This instance is non-null and is assigned to a final field called "api".
 	 */
 	
-	private final Authenticate api;
+	private final Authenticator api;
+
+	
+	/**
+	 * The content-addressed cache of encoded grid images, keyed by the strong ETag of the challenge string.
+	 */
+	
+	private final GridImageCache cache;
+
+
+	/**
+	 * The metrics recording the latency of the grid rasterization and encoding.
+	 */
+	
+	private final GatewayMetrics metrics;
+
+
+	/**
+	 * The workload classes, bounding the threads the grid requests may hold.
+	 */
+	
+	private final WorkloadClasses workloads;
+	
+	
+	/**
+	 * How long clients may cache a rendered grid image. The image only depends on the challenge string,
+	 * so it never changes for a given URL.
+	 */
+	
+	private static final CacheControl RENDER_CACHE_CONTROL = CacheControl.maxAge(1, TimeUnit.DAYS).cachePrivate();
 
 	
     /**
-     * Constructs a new instance of the GridImageController class with the specified Authenticate implementation.
+     * Constructs a new instance of the GridImageController class with the specified Authenticator implementation.
      * 
-     * @param api An instance of the Authenticate class to be used for authentication operations.
+     * @param api The authentication backend to be used for authentication operations.
      *            This argument is non-null and is assigned to a final field called "api".
+     * @param cache The content-addressed cache of encoded grid images.
+     * @param metrics The metrics recording the latency of the grid rasterization and encoding.
+     * @param workloads The workload classes, bounding the threads the grid requests may hold.
      * 
      * @throws NullPointerException if the api argument is null.
      * 
@@ -85,40 +139,56 @@ public class GridImageController {
      *           when the GridImageController is constructed.
      */
 	
-    public GridImageController(Authenticate api) {
+    public GridImageController(Authenticator api, GridImageCache cache, GatewayMetrics metrics, WorkloadClasses workloads) {
         this.api = api;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.workloads = workloads;
     }
 	
     
 	/**
 	 * Generates a GrIDsure Base64-encoded PNG image based on the specified username.
 	 * 
-	 * @param username The username to generate a challenge for.
+	 * The image is returned as an SVG document instead when the Accept header of the request prefers
+	 * `image/svg+xml`, or as base64 text when it prefers `text/plain`. The SVG document is written directly
+	 * from the challenge string, without rasterization, while the PNG image is encoded straight to the
+	 * response stream, through a streaming base64 encoder for the text output.
+	 * 
+	 * If the request is successful, the response code is 200 and the image data is returned in Base64-encoded PNG format.
+	 * If the request fails due to authentication, the response code is 401.
+	 * If an unexpected error occurs, the response code is 500.
 	 * 
-	 * @return A byte array containing the PNG image data, or an empty array if the image data could not be retrieved.
-	 *         If the request is successful, the response code is 200 and the image data is returned in Base64-encoded PNG format.
-	 *         If the request fails due to authentication, the response code is 401.
-	 *         If an unexpected error occurs, the response code is 500.
+	 * @param username The username to generate a challenge for.
+	 * @param accept The Accept header of the request, used to select the output format.
+	 * @param response The HTTP response the image data is written to.
 	 * 
 	 * @throws RuntimeException if an unexpected error occurs while generating the image data.
 	 */
     
-	@GetMapping(value = "/api/v1/authenticate/challenge/grid/{username}", produces = MediaType.IMAGE_PNG_VALUE)
+	@GetMapping(value = "/api/v1/authenticate/challenge/grid/{username}", produces = { MediaType.IMAGE_PNG_VALUE, GridSvgWriter.IMAGE_SVG_VALUE, MediaType.TEXT_PLAIN_VALUE })
 	@Operation(summary = "Generate a GrIDsure Base64-encoded PNG image based on the specified username", 
 	           description = "This endpoint generates a GrIDsure Base64-encoded PNG image that can be used to authenticate a user. " +
 	                         "The image is generated based on the specified username, and can be used to verify that " +
 	                         "the user is authorized to access a protected resource. " +
-	                         "If the request is successful, the image data is returned as a PNG byte array that is Base64-encoded.")
+	                         "If the request is successful, the image data is returned as a PNG byte array that is Base64-encoded. " +
+	                         "Send `Accept: image/svg+xml` to receive the grid as an SVG document, or `Accept: text/plain` to receive the PNG image as base64 text.")
 	@ApiResponses(value = {
-	    @ApiResponse(responseCode = "200", description = "The request is successful and the image data is returned in Base64-encoded PNG format.", 
-	                 content = @Content(mediaType = MediaType.IMAGE_PNG_VALUE, schema = @Schema(type = "string", format = "binary"), 
-	                                    examples = @ExampleObject(name = "Grid image", 
-	                                                               value = ResponseExamples.Authentication.GridImage))),
+	    @ApiResponse(responseCode = "200", description = "The request is successful and the image data is returned in Base64-encoded PNG format, or as an SVG document.", 
+	                 content = {
+	                		 @Content(mediaType = MediaType.IMAGE_PNG_VALUE, schema = @Schema(type = "string", format = "binary"), 
+	                                  examples = @ExampleObject(name = "Grid image", 
+	                                                            value = ResponseExamples.Authentication.GridImage)),
+	                		 @Content(mediaType = GridSvgWriter.IMAGE_SVG_VALUE, schema = @Schema(type = "string")),
+	                		 @Content(mediaType = MediaType.TEXT_PLAIN_VALUE, schema = @Schema(type = "string", format = "byte"))
+	                 }),
 	    @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content),
 	    @ApiResponse(responseCode = "500", description = "An unexpected error occurred while generating the image data.", content = @Content)
 	})
-	public byte[] getImage(@Parameter(description="The unique identifier of the user") @PathVariable("username") String username, 
-			@RequestBody(required = false) Map<String, String> requestBody
+	public void getImage(@Parameter(description="The unique identifier of the user") @PathVariable("username") String username, 
+			@RequestBody(required = false) Map<String, String> requestBody,
+			@Parameter(hidden = true) @RequestHeader(value = "Accept", required = false) String accept,
+			HttpServletResponse response
     		) throws Exception 
     {
 	    // Log the incoming request URL
@@ -133,47 +203,93 @@ public class GridImageController {
 	    // Get the organization parameter, if present
 	    Optional<String> organization = Optional.ofNullable(requestBody.get("organization"));
 
-	    // Generate the grid image for the specified username and organization (if specified)
-	    BufferedImage image = this.api.getGridImage(username, organization);
+	    // Select the output format from the Accept header
+	    GridImageFormat format = GridImageFormat.negotiate(accept);
+
+	    // Wait for room in the grid workload class, which bounds the CPU-bound requests
+	    WorkloadClass workload = this.workloads.getGrid();
+	    workload.acquire();
+	    try {
+	        // A new challenge is issued on every call, so the response must not be cached
+	        response.setContentType(format.getMediaType().toString());
+	        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+	        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+
+	        // Get the challenge string for the specified username and organization (if specified)
+	        String gridData = this.api.getGridChallengeData(username, "", organization);
 
-	    // Write the image data to a byte array as PNG
-	    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	    ImageIO.write(image, "png", baos);
-	    byte[] imageData = baos.toByteArray();
+	        if (format == GridImageFormat.SVG) {
+	            // Write the grid directly from the challenge string
+	            byte[] imageData = this.encode(format, () -> GridSvgWriter.writeBytes(gridData));
+	            response.setContentLength(imageData.length);
+	            response.getOutputStream().write(imageData);
+	        } else {
+	            // Generate the grid image from the challenge string
+	            BufferedImage image = this.rasterize(gridData);
 
-	    // Return the image data
-	    return imageData;
+	            // Encode the image as an indexed-color PNG straight to the response stream. Closing the stream completes
+	            // the response, which lets the container send a Content-Length when the image fits in its buffer.
+	            OutputStream out = response.getOutputStream();
+	            GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.GRID_ENCODE);
+	            String outcome = GatewayMetrics.ERROR;
+	            try (OutputStream stream = format.isBase64() ? Base64.getEncoder().wrap(out) : out) {
+	                GridPngEncoder.encode(image, stream);
+	                outcome = "ok";
+	            } finally {
+	                this.metrics.stop(stage, outcome, "format", format.getSuffix());
+	            }
+	        }
+	    } finally {
+	        // Held until an abandoned grid challenge call returns
+	        RequestDeadline.release(workload::release);
+	    }
     }
     
 	
 	/**
 	 * Renders a GrIDsure base64-encoded PNG image based on the challenge string supplied in the request body.
 	 *
+	 * The encoded image is served from the content-addressed cache when the same challenge string has been
+	 * rendered before, and the response carries a strong ETag that can be reused with the GET variant of this
+	 * endpoint to issue conditional requests.
+	 *
+	 * The image is returned as an SVG document instead when the Accept header of the request prefers `image/svg+xml`,
+	 * or as base64 text when it prefers `text/plain`.
+	 *
+	 * If the request is successful, the response code is 200.
+	 * If the request fails due to authentication, the response code is 401.
+	 * If the request fails due to a malformed request body, the response code is 400.
+	 * If an unexpected error occurs, the response code is 500.
+	 *
 	 * @param renderGridRequest An object containing the challenge string to be rendered as a base64-encoded PNG image.
-	 * 
-	 * @return A byte array containing the base64-encoded PNG image data, or an empty array if the image data could not be retrieved.
-	 *         If the request is successful, the response code is 200.
-	 *         If the request fails due to authentication, the response code is 401.
-	 *         If the request fails due to a malformed request body, the response code is 400.
-	 *         If an unexpected error occurs, the response code is 500.
+	 * @param accept The Accept header of the request, used to select the output format.
+	 * @param response The HTTP response the image data is written to.
 	 * 
 	 * @throws Exception if an unexpected error occurs while rendering the image data.
 	 */
 
-	@PostMapping(value = "/api/v1/authenticate/render/grid", produces = MediaType.IMAGE_PNG_VALUE)
+	@PostMapping(value = "/api/v1/authenticate/render/grid", produces = { MediaType.IMAGE_PNG_VALUE, GridSvgWriter.IMAGE_SVG_VALUE, MediaType.TEXT_PLAIN_VALUE })
 	@Operation(summary = "Render a GrIDsure base64-encoded PNG image based on the challenge string",
-	           description = "This endpoint converts the challenge data supplied in the `string` field into a GrIDsure base64-encoded PNG image.")
+	           description = "This endpoint converts the challenge data supplied in the `string` field into a GrIDsure base64-encoded PNG image. "
+	           		       + "The response carries a strong `ETag` derived from the challenge string. "
+	           		       + "Send `Accept: image/svg+xml` to receive the grid as an SVG document, or `Accept: text/plain` to receive the PNG image as base64 text.")
 	@ApiResponses(value = {
-		    @ApiResponse(responseCode = "200", description = "The request is successful and the GrIDsure base64-encoded PNG image is returned.", 
-		                 content = @Content(mediaType = MediaType.IMAGE_PNG_VALUE, schema = @Schema(type = "string", format = "binary"), 
-		                                    examples = @ExampleObject(name = "Grid image", 
-		                                                               value = ResponseExamples.Authentication.GridImage))),
+		    @ApiResponse(responseCode = "200", description = "The request is successful and the GrIDsure base64-encoded PNG image, or SVG document, is returned.", 
+		                 content = {
+		                		 @Content(mediaType = MediaType.IMAGE_PNG_VALUE, schema = @Schema(type = "string", format = "binary"), 
+		                                  examples = @ExampleObject(name = "Grid image", 
+		                                                            value = ResponseExamples.Authentication.GridImage)),
+		                		 @Content(mediaType = GridSvgWriter.IMAGE_SVG_VALUE, schema = @Schema(type = "string")),
+		                		 @Content(mediaType = MediaType.TEXT_PLAIN_VALUE, schema = @Schema(type = "string", format = "byte"))
+		                 }),
 		    @ApiResponse(responseCode = "400", description = "The request is malformed and could not be processed correctly, or the challenge string supplied is invalid.", content = @Content),
 		    @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content),
 		    @ApiResponse(responseCode = "500", description = "An unexpected error occurred while rendering the image data.", content = @Content)
 	})
-    public byte[] getImage(
-			@RequestBody GridRenderRequest renderGridRequest
+    public void getImage(
+			@RequestBody GridRenderRequest renderGridRequest,
+			@Parameter(hidden = true) @RequestHeader(value = "Accept", required = false) String accept,
+			HttpServletResponse response
     		) throws Exception 
     {
 		
@@ -187,20 +303,200 @@ public class GridImageController {
     	// Extract the challenge string from the request body.
 		String gridChallenge = renderGridRequest.getString();
 		
-		// Create the GrIDsure base64-encoded PNG image from ASCII challenge string
-        BufferedImage image = this.api.convertGridDataToImage(gridChallenge); 
-    	
-        // Create a new ByteArrayOutputStream to hold the image data
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		// Reject requests without a challenge string
+		if (gridChallenge == null || gridChallenge.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
+		// Serve the GrIDsure image from the cache, rendering it from the ASCII challenge string on a miss
+		GridImageFormat format = GridImageFormat.negotiate(accept);
+		String etag = GridImageCache.etag(gridChallenge, format.getSuffix());
+		byte[] imageData = this.render(format, gridChallenge);
+
+        // Write the image data along with its strong ETag
+        response.setHeader(HttpHeaders.ETAG, etag);
+        write(response, format, imageData);
+    }
+	
+	
+	/**
+	 * Renders a GrIDsure PNG image based on the challenge string supplied in the URL path.
+	 *
+	 * This is the cacheable variant of the POST render endpoint: the URL fully identifies the image, the response
+	 * carries a strong ETag and `If-None-Match` requests matching that ETag are answered with a 304 Not Modified
+	 * response before anything is rendered.
+	 *
+	 * The image is returned as an SVG document instead when the Accept header of the request prefers `image/svg+xml`,
+	 * or as base64 text when it prefers `text/plain`.
+	 *
+	 * @param gridChallenge The challenge string to be rendered as a PNG image.
+	 * @param accept The Accept header of the request, used to select the output format.
+	 * @param webRequest The current request, used to evaluate the conditional request headers.
+	 * @param response The HTTP response the image data is written to, left without a body if the client copy is still valid.
+	 * 
+	 * @throws Exception if an unexpected error occurs while rendering the image data.
+	 */
+	
+	@GetMapping(value = "/api/v1/authenticate/render/grid/{string}", produces = { MediaType.IMAGE_PNG_VALUE, GridSvgWriter.IMAGE_SVG_VALUE, MediaType.TEXT_PLAIN_VALUE })
+	@Operation(summary = "Render a GrIDsure PNG image based on the challenge string in the URL",
+	           description = "This endpoint converts the challenge data supplied in the URL path into a GrIDsure PNG image. "
+	           		       + "The response carries a strong `ETag` derived from the challenge string, and requests sending a matching `If-None-Match` header are answered with `304 Not Modified`. "
+	           		       + "Send `Accept: image/svg+xml` to receive the grid as an SVG document, or `Accept: text/plain` to receive the PNG image as base64 text.")
+	@ApiResponses(value = {
+		    @ApiResponse(responseCode = "200", description = "The request is successful and the GrIDsure PNG image, or SVG document, is returned.", 
+		                 content = {
+		                		 @Content(mediaType = MediaType.IMAGE_PNG_VALUE, schema = @Schema(type = "string", format = "binary")),
+		                		 @Content(mediaType = GridSvgWriter.IMAGE_SVG_VALUE, schema = @Schema(type = "string")),
+		                		 @Content(mediaType = MediaType.TEXT_PLAIN_VALUE, schema = @Schema(type = "string", format = "byte"))
+		                 }),
+		    @ApiResponse(responseCode = "304", description = "The image identified by the `If-None-Match` header has not changed.", content = @Content),
+		    @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content),
+		    @ApiResponse(responseCode = "500", description = "An unexpected error occurred while rendering the image data.", content = @Content)
+	})
+    public void getImage(
+    		@Parameter(description="Grid challenge data string", example="1111122222333334444455555") @PathVariable("string") String gridChallenge,
+    		@Parameter(hidden = true) @RequestHeader(value = "Accept", required = false) String accept,
+    		ServletWebRequest webRequest,
+    		HttpServletResponse response
+    		) throws Exception 
+    {
+		// Answer conditional requests from the ETag alone, without rendering the image
+		GridImageFormat format = GridImageFormat.negotiate(accept);
+		String etag = GridImageCache.etag(gridChallenge, format.getSuffix());
+		response.setHeader(HttpHeaders.CACHE_CONTROL, RENDER_CACHE_CONTROL.getHeaderValue());
+		// The format depends on the Accept header, so the caches must not serve one format for another, 304s included
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+		if (webRequest.checkNotModified(etag)) {
+			return;
+		}
+		
+		byte[] imageData = this.render(format, gridChallenge);
+		response.setHeader(HttpHeaders.ETAG, etag);
+		write(response, format, imageData);
+    }
+	
+	
+	/**
+	 * Returns the binary image of the specified challenge string in the specified format, from the cache or freshly
+	 * rendered on a miss. SVG documents are written from the challenge string without any rasterization.
+	 *
+	 * The cache only holds binary images: the base64 formats share the entry of the image they encode, which is
+	 * base64-encoded while it is written to the response.
+	 *
+	 * @param format The output format.
+	 * @param gridChallenge The challenge string to render.
+	 * @return the encoded image
+	 * @throws IOException if the image could not be encoded
+	 */
+	
+	private byte[] render(GridImageFormat format, String gridChallenge) throws IOException {
+		GridImageFormat imageFormat = format.getImageFormat();
+		String key = GridImageCache.etag(gridChallenge, imageFormat.getSuffix());
+		return this.cache.computeIfAbsent(key, () -> {
+			// Only the misses render, within the grid workload class: the hits are served without waiting
+			WorkloadClass workload = this.workloads.getGrid();
+			workload.acquire();
+			try {
+				if (imageFormat == GridImageFormat.SVG) {
+					return this.encode(imageFormat, () -> GridSvgWriter.writeBytes(gridChallenge));
+				}
+				
+				// Create the GrIDsure PNG image from ASCII challenge string
+				BufferedImage image = this.rasterize(gridChallenge);
+				
+				// Encode the image as an indexed-color PNG
+				return this.encode(imageFormat, () -> GridPngEncoder.encode(image));
+			} finally {
+				workload.release();
+			}
+		});
+	}
+	
+	
+	/**
+	 * Rasterizes the specified challenge string into a GrIDsure image, recording the latency of the rasterization.
+	 *
+	 * @param gridChallenge The challenge string to rasterize.
+	 * @return the grid image
+	 */
+	
+	private BufferedImage rasterize(String gridChallenge) {
+		GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.GRID_RENDER);
+		String outcome = GatewayMetrics.ERROR;
+		try {
+			BufferedImage image = this.api.convertGridDataToImage(gridChallenge);
+			outcome = image != null ? "ok" : "failure";
+			return image;
+		} finally {
+			this.metrics.stop(stage, outcome);
+		}
+	}
+	
+	
+	/**
+	 * Runs the specified encoder, recording the latency of the encoding tagged with the output format.
+	 *
+	 * @param format The output format.
+	 * @param encoder The encoder producing the binary image.
+	 * @return the encoded image
+	 * @throws IOException if the image could not be encoded
+	 */
+	
+	private byte[] encode(GridImageFormat format, GridImageCache.Renderer encoder) throws IOException {
+		GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.GRID_ENCODE);
+		String outcome = GatewayMetrics.ERROR;
+		try {
+			byte[] imageData = encoder.render();
+			outcome = "ok";
+			return imageData;
+		} finally {
+			this.metrics.stop(stage, outcome, "format", format.getSuffix());
+		}
+	}
+	
+	
+	/**
+	 * Writes the specified binary image to the response with its content type, Content-Length and caching headers,
+	 * varying on the Accept header the format was negotiated from.
+	 * Base64 formats are encoded on the fly through a streaming encoder, so that no second copy of the image is made.
+	 *
+	 * @param response The HTTP response to write to.
+	 * @param format The output format.
+	 * @param imageData The binary image.
+	 * @throws IOException if the response could not be written
+	 */
+	
+	private static void write(HttpServletResponse response, GridImageFormat format, byte[] imageData) throws IOException {
+		response.setContentType(format.getMediaType().toString());
+		response.setHeader(HttpHeaders.CACHE_CONTROL, RENDER_CACHE_CONTROL.getHeaderValue());
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+		
+		if (format.isBase64()) {
+			// 4 characters for every group of 3 bytes, the last group being padded
+			response.setContentLengthLong(4L * ((imageData.length + 2) / 3));
+			try (OutputStream out = Base64.getEncoder().wrap(response.getOutputStream())) {
+				out.write(imageData);
+			}
+		} else {
+			response.setContentLength(imageData.length);
+			response.getOutputStream().write(imageData);
+		}
+	}
 
-        // Write the image data to the ByteArrayOutputStream as a PNG image
-        ImageIO.write(image, "png", baos);
 
-        // Convert the ByteArrayOutputStream to a byte array containing the image data
-        byte[] imageData = baos.toByteArray();
+	/**
+	 * Answers the requests the grid workload class has no room for with a 503 Service Unavailable, to be retried
+	 * after the number of seconds in the Retry-After header.
+	 *
+	 * @param e The rejection.
+	 * @return the response, without a body
+	 */
+	
+	@ExceptionHandler(ConcurrencyLimitExceededException.class)
+	public ResponseEntity<Void> rejected(ConcurrencyLimitExceededException e) {
+		Log.fine("Rejecting grid request: " + e.getMessage());
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+	}
 
-        // Return the byte array containing the image data
-        return imageData;
-    }
-    
 }
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Enumerates the output formats of the grid image endpoints and selects one of them
+ * from the Accept header of the request.
+ *
+ * PNG remains the default format: it is returned when the Accept header is missing,
+ * invalid, or does not prefer any other supported format over PNG. Clients that
+ * cannot handle binary responses may request `text/plain` to receive the PNG image
+ * as base64 text instead.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.List;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+
+public enum GridImageFormat {
+
+    PNG("png", MediaType.IMAGE_PNG, null),
+    SVG("svg", MediaType.parseMediaType(GridSvgWriter.IMAGE_SVG_VALUE), null),
+    PNG_BASE64("png-base64", MediaType.TEXT_PLAIN, PNG);
+
+
+    /**
+     * The short name of the format, used as the suffix of the ETags and cache keys.
+     */
+
+    private final String suffix;
+
+
+    /**
+     * The media type of the format.
+     */
+
+    private final MediaType mediaType;
+
+
+    /**
+     * The format of the image carried as base64 text by this format, or null for the binary formats.
+     */
+
+    private final GridImageFormat base64Of;
+
+
+    GridImageFormat(String suffix, MediaType mediaType, GridImageFormat base64Of) {
+        this.suffix = suffix;
+        this.mediaType = mediaType;
+        this.base64Of = base64Of;
+    }
+
+
+    /**
+     * Returns the short name of the format.
+     *
+     * @return the short name of the format
+     */
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+
+    /**
+     * Returns the media type of the format.
+     *
+     * @return the media type of the format
+     */
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+
+    /**
+     * Returns whether the image is sent as base64 text rather than as binary data.
+     *
+     * @return true if the image is base64-encoded
+     */
+
+    public boolean isBase64() {
+        return base64Of != null;
+    }
+
+
+    /**
+     * Returns the binary format of the image: the format itself, or the format encoded in base64 by this format.
+     *
+     * @return the binary format of the image
+     */
+
+    public GridImageFormat getImageFormat() {
+        return base64Of != null ? base64Of : this;
+    }
+
+
+    /**
+     * Selects the output format from the specified Accept header.
+     *
+     * Each format gets the quality of the most specific media type of the header that includes it, so that e.g.
+     * `image/*` applies to PNG. Another format is selected only if its quality is strictly higher than the quality of
+     * PNG: browsers list `image/svg+xml` next to `image/*` in their image requests, and still get PNG.
+     *
+     * @param accept the Accept header of the request, or null
+     * @return the selected format
+     */
+
+    public static GridImageFormat negotiate(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return PNG;
+        }
+
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return PNG;
+        }
+
+        GridImageFormat selected = PNG;
+        double selectedQuality = PNG.quality(mediaTypes);
+        for (GridImageFormat format : values()) {
+            double quality = format.quality(mediaTypes);
+            if (quality > selectedQuality) {
+                selected = format;
+                selectedQuality = quality;
+            }
+        }
+        return selected;
+    }
+
+
+    /**
+     * Returns the quality of the most specific of the specified media types that includes the format, or 0 if none
+     * includes it.
+     */
+
+    private double quality(List<MediaType> mediaTypes) {
+        MediaType match = null;
+        for (MediaType requested : mediaTypes) {
+            if (requested.includes(this.mediaType) && (match == null || specificity(requested) > specificity(match))) {
+                match = requested;
+            }
+        }
+        return match != null ? match.getQualityValue() : 0;
+    }
+
+
+    /**
+     * Returns how specific the media type is: 0 for `*&#47;*`, 1 for `image/*` and the like, 2 for a concrete type.
+     */
+
+    private static int specificity(MediaType mediaType) {
+        if (mediaType.isWildcardType()) {
+            return 0;
+        }
+        return mediaType.isWildcardSubtype() ? 1 : 2;
+    }
+
+}
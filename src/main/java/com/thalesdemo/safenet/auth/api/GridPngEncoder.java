@@ -0,0 +1,341 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * PNG encoder dedicated to the GrIDsure grid images.
+ *
+ * CRYPTOCardAPI.getGridSureGrid() returns truecolor images that only use a couple of
+ * colors, which the default ImageIO writer stores as 24 bits per pixel. This encoder
+ * converts the image to an indexed-color palette with the smallest bit depth that fits
+ * (1 bit per pixel for a black and white grid), stores the rows unfiltered as advised
+ * by the PNG specification for palette images, and compresses them at the highest
+ * deflate level, which costs little on images of this size.
+ *
+ * The encoder streams the chunks straight to the output stream: the compressed data is
+ * emitted as a sequence of IDAT chunks from a fixed size buffer, so no copy of the whole
+ * image is ever held in memory. The deflater, checksum and row buffers are reused per
+ * thread. Images with more than 256 colors fall back to the default ImageIO writer.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+
+public final class GridPngEncoder {
+
+    /**
+     * The PNG file signature.
+     */
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+
+    /**
+     * The PNG chunk types written by this encoder.
+     */
+
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PLTE = "PLTE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRNS = "tRNS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+
+
+    /**
+     * The PNG color type of indexed-color images.
+     */
+
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+
+    /**
+     * The maximum number of colors of a PNG palette.
+     */
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+
+    /**
+     * The size of the IDAT chunks emitted by the encoder.
+     */
+
+    private static final int IDAT_CHUNK_SIZE = 8192;
+
+
+    /**
+     * The per-thread encoder state, reused across images.
+     */
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+
+    private GridPngEncoder() {
+    }
+
+
+    /**
+     * Encodes the specified image as a PNG image and writes it to the specified output stream.
+     *
+     * @param image the image to encode
+     * @param out the output stream to write to; it is not closed by this method
+     * @throws IOException if an I/O error occurs
+     */
+
+    public static void encode(BufferedImage image, OutputStream out) throws IOException {
+        State state = STATE.get();
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        // First pass: build the palette and the index of every pixel
+        if (!state.index(image, width, height)) {
+            ImageIO.write(image, "png", out);
+            return;
+        }
+
+        int bitDepth = state.paletteSize <= 2 ? 1 : state.paletteSize <= 4 ? 2 : state.paletteSize <= 16 ? 4 : 8;
+
+        out.write(SIGNATURE);
+
+        // IHDR: width, height, bit depth, color type, compression, filter and interlace methods
+        byte[] header = state.scratch;
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_INDEXED;
+        header[10] = 0;
+        header[11] = 0;
+        header[12] = 0;
+        writeChunk(state, out, IHDR, header, 13);
+
+        // PLTE, and tRNS when some colors are not fully opaque
+        byte[] palette = state.scratch;
+        boolean transparent = false;
+        for (int i = 0; i < state.paletteSize; i++) {
+            int argb = state.palette[i];
+            palette[i * 3] = (byte) (argb >> 16);
+            palette[i * 3 + 1] = (byte) (argb >> 8);
+            palette[i * 3 + 2] = (byte) argb;
+            transparent |= (argb >>> 24) != 0xFF;
+        }
+        writeChunk(state, out, PLTE, palette, state.paletteSize * 3);
+        if (transparent) {
+            byte[] alpha = state.scratch;
+            for (int i = 0; i < state.paletteSize; i++) {
+                alpha[i] = (byte) (state.palette[i] >>> 24);
+            }
+            writeChunk(state, out, TRNS, alpha, state.paletteSize);
+        }
+
+        // Second pass: pack, compress and stream the rows as IDAT chunks
+        writeImageData(state, out, width, height, bitDepth);
+
+        writeChunk(state, out, IEND, state.scratch, 0);
+    }
+
+
+    /**
+     * Encodes the specified image as a PNG image and returns the encoded bytes.
+     * The image is encoded into a per-thread buffer and copied once into an array of the exact size.
+     *
+     * @param image the image to encode
+     * @return the PNG image
+     * @throws IOException if an I/O error occurs
+     */
+
+    public static byte[] encode(BufferedImage image) throws IOException {
+        State state = STATE.get();
+        state.buffer.reset();
+        encode(image, state.buffer);
+        return state.buffer.toByteArray();
+    }
+
+
+    /**
+     * Packs the pixel indexes row by row, compresses them and writes them as IDAT chunks.
+     */
+
+    private static void writeImageData(State state, OutputStream out, int width, int height, int bitDepth) throws IOException {
+        Deflater deflater = state.deflater;
+        deflater.reset();
+        // Drop what an encoding aborted by a failed write may have left in the chunk buffer
+        state.chunkLength = 0;
+
+        int rowLength = 1 + (width * bitDepth + 7) / 8;
+        byte[] row = state.row(rowLength);
+        int pixelsPerByte = 8 / bitDepth;
+
+        for (int y = 0; y < height; y++) {
+            // Filter type 0 (none), as advised for indexed-color images
+            Arrays.fill(row, 0, rowLength, (byte) 0);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                row[1 + x / pixelsPerByte] |= (byte) (state.indexes[offset + x] << shift);
+            }
+            deflater.setInput(row, 0, rowLength);
+            while (!deflater.needsInput()) {
+                drain(state, out);
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain(state, out);
+        }
+        if (state.chunkLength > 0) {
+            writeChunk(state, out, IDAT, state.chunk, state.chunkLength);
+            state.chunkLength = 0;
+        }
+    }
+
+
+    /**
+     * Moves compressed data from the deflater to the chunk buffer, emitting an IDAT chunk when the buffer is full.
+     */
+
+    private static void drain(State state, OutputStream out) throws IOException {
+        state.chunkLength += state.deflater.deflate(state.chunk, state.chunkLength, IDAT_CHUNK_SIZE - state.chunkLength);
+        if (state.chunkLength == IDAT_CHUNK_SIZE) {
+            writeChunk(state, out, IDAT, state.chunk, state.chunkLength);
+            state.chunkLength = 0;
+        }
+    }
+
+
+    /**
+     * Writes a PNG chunk: length, type, data and CRC of the type and data.
+     */
+
+    private static void writeChunk(State state, OutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        byte[] word = state.word;
+        putInt(word, 0, length);
+        out.write(word, 0, 4);
+        out.write(type);
+        out.write(data, 0, length);
+
+        CRC32 crc = state.crc;
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word, 0, 4);
+    }
+
+
+    /**
+     * Writes the specified integer in big-endian order into the specified array.
+     */
+
+    private static void putInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+
+    /**
+     * The encoder state of a thread: deflater, checksum, palette and buffers.
+     */
+
+    private static final class State {
+
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        final CRC32 crc = new CRC32();
+        final int[] palette = new int[MAX_PALETTE_SIZE];
+        final byte[] scratch = new byte[MAX_PALETTE_SIZE * 3];
+        final byte[] word = new byte[4];
+        final byte[] chunk = new byte[IDAT_CHUNK_SIZE];
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        int paletteSize;
+        int chunkLength;
+        int[] pixels = new int[0];
+        byte[] indexes = new byte[0];
+        byte[] row = new byte[0];
+
+        byte[] row(int length) {
+            if (row.length < length) {
+                row = new byte[length];
+            }
+            return row;
+        }
+
+        /**
+         * Builds the palette of the image and the palette index of every pixel.
+         *
+         * @return false if the image has more colors than a PNG palette can hold
+         */
+
+        boolean index(BufferedImage image, int width, int height) {
+            int size = width * height;
+            if (pixels.length < width) {
+                pixels = new int[width];
+            }
+            if (indexes.length < size) {
+                indexes = new byte[size];
+            }
+
+            paletteSize = 0;
+            int lastColor = 0;
+            int lastIndex = -1;
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, pixels, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int argb = pixels[x];
+                    if (lastIndex < 0 || argb != lastColor) {
+                        lastIndex = lookup(argb);
+                        if (lastIndex < 0) {
+                            return false;
+                        }
+                        lastColor = argb;
+                    }
+                    indexes[y * width + x] = (byte) lastIndex;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the palette index of the specified color, adding it to the palette if needed.
+         *
+         * @return the palette index, or -1 if the palette is full
+         */
+
+        private int lookup(int argb) {
+            for (int i = 0; i < paletteSize; i++) {
+                if (palette[i] == argb) {
+                    return i;
+                }
+            }
+            if (paletteSize == MAX_PALETTE_SIZE) {
+                return -1;
+            }
+            palette[paletteSize] = argb;
+            return paletteSize++;
+        }
+    }
+
+}
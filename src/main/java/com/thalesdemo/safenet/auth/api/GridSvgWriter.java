@@ -0,0 +1,170 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Writes GrIDsure grids as SVG documents, directly from the challenge string.
+ *
+ * The layout mirrors the raster grid produced by CRYPTOCardAPI.getGridSureGrid():
+ * the challenge string is laid out row by row in a square grid of 41 pixel cells
+ * separated by 1 pixel black lines, with one bold character centered in each cell.
+ * A 25 character challenge therefore gives a 5 x 5 grid of 206 x 206 pixels.
+ *
+ * The document is produced by a plain string template, without any AWT involvement,
+ * and each row is emitted as a single text element with one x coordinate per
+ * character to keep the payload small.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.nio.charset.StandardCharsets;
+
+
+public final class GridSvgWriter {
+
+    /**
+     * The media type of the SVG documents written by this class.
+     */
+
+    public static final String IMAGE_SVG_VALUE = "image/svg+xml";
+
+
+    /**
+     * The size of a grid cell in pixels, including its leading border line.
+     */
+
+    private static final int CELL = 41;
+
+
+    /**
+     * The offset of the character baseline from the top of the cell, in pixels.
+     */
+
+    private static final int BASELINE = 30;
+
+
+    private GridSvgWriter() {
+    }
+
+
+    /**
+     * Returns the number of rows (and columns) of the square grid holding the specified challenge string.
+     *
+     * @param challenge the grid challenge string
+     * @return the dimension of the grid
+     */
+
+    static int dimension(String challenge) {
+        int dimension = (int) Math.ceil(Math.sqrt(challenge.length()));
+        return Math.max(dimension, 1);
+    }
+
+
+    /**
+     * Writes the SVG document of the grid rendered from the specified challenge string.
+     *
+     * @param challenge the grid challenge string
+     * @return the SVG document
+     */
+
+    public static String write(String challenge) {
+        int dimension = dimension(challenge);
+        int size = dimension * CELL + 1;
+
+        StringBuilder svg = new StringBuilder(320 + challenge.length() * 8);
+        svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(size)
+           .append("\" height=\"").append(size)
+           .append("\" viewBox=\"0 0 ").append(size).append(' ').append(size)
+           .append("\" shape-rendering=\"crispEdges\">");
+
+        // White background
+        svg.append("<rect width=\"").append(size).append("\" height=\"").append(size).append("\" fill=\"#fff\"/>");
+
+        // Grid lines, drawn on the half pixel so that they are exactly 1 pixel wide
+        svg.append("<path stroke=\"#000\" d=\"");
+        for (int line = 0; line <= dimension; line++) {
+            int offset = line * CELL;
+            svg.append('M').append(offset).append(".5 0V").append(size)
+               .append('M').append("0 ").append(offset).append(".5H").append(size);
+        }
+        svg.append("\"/>");
+
+        // One text element per row, with one x coordinate per character
+        StringBuilder columns = new StringBuilder();
+        for (int column = 0; column < dimension; column++) {
+            if (column > 0) {
+                columns.append(' ');
+            }
+            columns.append(column * CELL + (CELL + 1) / 2);
+        }
+        svg.append("<g font-family=\"Arial,Helvetica,sans-serif\" font-size=\"18\" font-weight=\"bold\" text-anchor=\"middle\" xml:space=\"preserve\">");
+        for (int row = 0; row * dimension < challenge.length(); row++) {
+            int start = row * dimension;
+            int end = Math.min(start + dimension, challenge.length());
+            svg.append("<text x=\"").append(columns).append("\" y=\"").append(row * CELL + BASELINE).append("\">");
+            appendEscaped(svg, challenge, start, end);
+            svg.append("</text>");
+        }
+        svg.append("</g></svg>");
+
+        return svg.toString();
+    }
+
+
+    /**
+     * Writes the SVG document of the grid rendered from the specified challenge string as UTF-8 bytes.
+     *
+     * @param challenge the grid challenge string
+     * @return the UTF-8 encoded SVG document
+     */
+
+    public static byte[] writeBytes(String challenge) {
+        return write(challenge).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Appends the specified range of characters to the SVG document, escaping the XML special characters.
+     *
+     * @param svg the SVG document being written
+     * @param text the text to append
+     * @param start the index of the first character to append
+     * @param end the index after the last character to append
+     */
+
+    private static void appendEscaped(StringBuilder svg, String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    svg.append("&lt;");
+                    break;
+                case '>':
+                    svg.append("&gt;");
+                    break;
+                case '&':
+                    svg.append("&amp;");
+                    break;
+                case '"':
+                    svg.append("&quot;");
+                    break;
+                default:
+                    // Control characters are not allowed in XML documents
+                    svg.append(c < 0x20 ? ' ' : c);
+            }
+        }
+    }
+
+}
@@ -18,7 +18,14 @@
  *
  * This controller contains endpoints for checking the overall health 
  * status of the gateway and the status of the SafeNet token validator 
- * service.
+ * service, as well as the reachability and latency of each dependency.
+ * The unauthenticated liveness and readiness probes are served by the
+ * {@link ProbeController}.
+ *
+ * The checks calling SafeNet or probing the dependencies run in the `health`
+ * {@link WorkloadClass}, so that repeated checks against a slow dependency cannot hold
+ * the threads of the other requests; the checks it has no room for are answered with a
+ * 503 Service Unavailable.
  *
  * All endpoints in this controller require authentication using the 
  * `X-API-Key`  header. If the request is not authenticated, the controller 
@@ -34,18 +41,22 @@
  */
 package com.thalesdemo.safenet.auth.api;
 
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.swagger.v3.oas.annotations.Operation;
@@ -69,15 +80,39 @@ public class HealthController {
 
 	
 	/**
-	 * A reference to the Authenticate bean, which provides methods for authenticating API requests and checking the status
+	 * A reference to the Authenticator bean, which provides methods for authenticating API requests and checking the status
 	 * of the SafeNet authentication service.
 	 * 
-	 * This field is autowired by Spring for use in this controller. The Authenticate bean is used by the endpoints in this
+	 * This field is autowired by Spring for use in this controller. The Authenticator bean is used by the endpoints in this
 	 * controller to retrieve the status of the service
 	 */
 	
 	@Autowired
-	private Authenticate api;
+	private Authenticator api;
+	
+	
+	/**
+	 * The probe used to check the reachability and latency of the dependencies of the gateway.
+	 */
+	
+	@Autowired
+	private DependencyProbe probe;
+	
+	
+	/**
+	 * The content-addressed cache of encoded grid images, whose statistics are reported by this controller.
+	 */
+	
+	@Autowired
+	private GridImageCache gridImageCache;
+
+
+	/**
+	 * The workload classes, bounding the threads the health checks may hold.
+	 */
+
+	@Autowired
+	private WorkloadClasses workloads;
 	
 	
 	/**
@@ -127,7 +162,14 @@ public class HealthController {
 	})
 	
 	public ResponseEntity<String> getHealthStatus() {
-		boolean tokenValidatorStatus = this.api.getServerStatus();
+		boolean tokenValidatorStatus;
+		WorkloadClass workload = this.workloads.getHealth();
+		workload.acquire();
+		try {
+			tokenValidatorStatus = this.api.getServerStatus();
+		} finally {
+			workload.release();
+		}
 		
 		String healthStatus = tokenValidatorStatus ? "ok" : "error";
 		
@@ -147,4 +189,104 @@ public class HealthController {
 
 	}
 	
+	
+	/**
+	 * Check the reachability and latency of each dependency of the gateway.
+	 *
+	 * This method probes the JNI backend, the primary and secondary TokenValidator URLs and the SPS parking host in
+	 * parallel, and returns one entry per dependency with the `reachable` flag and the `latency_ms` it took to answer.
+	 * The overall `health` property is `ok` only when every dependency is reachable, and `degraded` otherwise.
+	 *
+	 * @return A ResponseEntity object containing the HTTP response and response body.
+	 */
+	
+	@GetMapping("/health/dependencies")
+	@Operation(
+		    summary = "Check the reachability and latency of each dependency of this gateway",
+		    description = "This API endpoint probes the JNI backend, the primary and secondary TokenValidator URLs and the SPS parking host, and returns for each of them whether it is reachable and the latency in milliseconds. "
+		            + "The network dependencies are probed with a TCP connect, so calling this endpoint does not generate authentication events on the SafeNet servers.\n\n"
+		            + "Whether the dependencies are up or down, the endpoint returns a 200 OK response. The `health` property is `ok` when every dependency is reachable, and `degraded` otherwise."
+		)
+	@ApiResponses(value = {
+	    @ApiResponse(responseCode = "200", description = "The request is successful and the status of each dependency is returned in JSON format.", 
+	                 content = @Content(mediaType = "application/json", 
+	                 examples = @ExampleObject(name="Dependencies", description="Example of the dependency status report", value = ResponseExamples.Health.DEPENDENCIES))),
+	    @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content),
+	    @ApiResponse(responseCode = "500", description = "An unexpected error occurred while probing the dependencies.", content = @Content)
+	})
+	
+	public ResponseEntity<String> getDependencyStatus() {
+		List<DependencyProbe.DependencyStatus> statuses;
+		WorkloadClass workload = this.workloads.getHealth();
+		workload.acquire();
+		try {
+			statuses = this.probe.probeAll();
+		} finally {
+			workload.release();
+		}
+		
+		boolean allReachable = statuses.stream().allMatch(DependencyProbe.DependencyStatus::isReachable);
+		
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode json = mapper.createObjectNode();
+		json.put("health", allReachable ? "ok" : "degraded");
+		ArrayNode dependencies = json.putArray("dependencies");
+		statuses.forEach(status -> dependencies.add(mapper.valueToTree(status)));
+
+		String jsonString = "";
+		try {
+			jsonString = mapper.writeValueAsString(json);
+		} catch (JsonProcessingException e) {
+			Log.log(Level.SEVERE, "An exception occurred while rendering the dependency status response", e);
+		}
+		
+		return new ResponseEntity<>(jsonString, HttpStatus.OK);
+	}
+	
+	
+	/**
+	 * Report the statistics of the grid image render cache.
+	 *
+	 * @return A ResponseEntity object containing the hit and miss counts, the hit rate, the number of evictions,
+	 *         the number of cached entries and the memory used by the cache, in bytes.
+	 */
+	
+	@GetMapping("/health/render-cache")
+	@Operation(
+		    summary = "Report the statistics of the grid image render cache",
+		    description = "This API endpoint returns the hit and miss counts, the `hit_rate`, the number of evictions, the number of cached entries, the memory used by the cache (`size_bytes`) and its budget (`max_bytes`)."
+		)
+	@ApiResponses(value = {
+	    @ApiResponse(responseCode = "200", description = "The request is successful and the cache statistics are returned in JSON format.", 
+	                 content = @Content(mediaType = "application/json", 
+	                 examples = @ExampleObject(name="Render cache", description="Example of the render cache statistics", value = ResponseExamples.Health.RENDER_CACHE))),
+	    @ApiResponse(responseCode = "401", description = "You have not authenticated to the API using the header X-API-Key.", content = @Content)
+	})
+	
+	public ResponseEntity<String> getRenderCacheStats() {
+		String jsonString = "";
+		try {
+			jsonString = new ObjectMapper().writeValueAsString(this.gridImageCache.getStats());
+		} catch (JsonProcessingException e) {
+			Log.log(Level.SEVERE, "An exception occurred while rendering the render cache statistics", e);
+		}
+		
+		return new ResponseEntity<>(jsonString, HttpStatus.OK);
+	}
+	
+	
+	/**
+	 * Answers the checks the health workload class has no room for with a 503 Service Unavailable, to be retried
+	 * after the number of seconds in the Retry-After header.
+	 *
+	 * @param e The rejection.
+	 * @return the response, without a body
+	 */
+	
+	@ExceptionHandler(ConcurrencyLimitExceededException.class)
+	public ResponseEntity<String> rejected(ConcurrencyLimitExceededException e) {
+		Log.fine("Rejecting health check: " + e.getMessage());
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+	}
+	
 }
\ No newline at end of file
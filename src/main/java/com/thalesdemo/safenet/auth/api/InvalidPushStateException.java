@@ -0,0 +1,63 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Thrown when the state sent back with the second request of a challenge-response push
+ * cannot be trusted: it is malformed, it was issued to another user, its signature does
+ * not match, it has expired, or it names an SPS region this gateway does not know. The push is then failed without
+ * reaching the SPS parking server.
+ *
+ * @see PushState
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+
+public class InvalidPushStateException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * The reason the state was rejected: malformed, user, signature, expired or region.
+     */
+
+    private final String reason;
+
+
+    /**
+     * Constructs a new InvalidPushStateException.
+     *
+     * @param reason the reason the state was rejected, used as a metric tag
+     */
+
+    public InvalidPushStateException(String reason) {
+        super("Invalid push state: " + reason);
+        this.reason = reason;
+    }
+
+
+    /**
+     * Returns the reason the state was rejected.
+     *
+     * @return the reason
+     */
+
+    public String getReason() {
+        return this.reason;
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The JDK Flight Recorder event of a single HTTP request sent to the SPS parking server,
+ * including each followed redirect, so that the redirects and the retried attempts of a
+ * push authentication can be told apart in a flight recording.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+@Name(ParkingAttemptEvent.NAME)
+@Label("SPS Parking Attempt")
+@Category({ "SafeNet Auth API" })
+@Description("An HTTP request sent to the SafeNet Cloud parking server")
+@StackTrace(false)
+public class ParkingAttemptEvent extends Event {
+
+    /**
+     * The name of the event type.
+     */
+
+    public static final String NAME = "com.thalesdemo.safenet.ParkingAttempt";
+
+
+    /**
+     * The host of the parking server.
+     */
+
+    @Label("Host")
+    String host;
+
+
+    /**
+     * The HTTP status of the response, or 0 if no response was received.
+     */
+
+    @Label("HTTP Status")
+    int status;
+
+
+    /**
+     * Whether the response is a redirect to another parking server.
+     */
+
+    @Label("Redirect")
+    boolean redirect;
+
+}
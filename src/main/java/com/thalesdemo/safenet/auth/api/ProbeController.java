@@ -0,0 +1,95 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Controller class exposing the liveness and readiness probes used by container
+ * orchestrators.
+ *
+ * The probes are served outside of the `/api/**` space, so they do not require the
+ * `X-API-Key` header and do not run the BCrypt API key check. They never call the
+ * SafeNet servers: the liveness probe only tells that the JVM is able to serve HTTP
+ * requests, while the readiness probe reports the state tracked by {@link GatewayReadiness}.
+ * The reachability of the remote dependencies is reported by the authenticated
+ * `/api/v1/health/dependencies` endpoint of the {@link HealthController} instead.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+
+@RestController
+public class ProbeController {
+
+    /**
+     * The static response body returned by the liveness probe.
+     */
+
+    private static final String LIVE = "{\"status\":\"live\"}";
+
+
+    /**
+     * The readiness state of this gateway instance.
+     */
+
+    private final GatewayReadiness readiness;
+
+
+    /**
+     * Constructs a new ProbeController.
+     *
+     * @param readiness the readiness state of this gateway instance
+     */
+
+    public ProbeController(GatewayReadiness readiness) {
+        this.readiness = readiness;
+    }
+
+
+    /**
+     * Liveness probe. Always returns 200 OK as long as the JVM is able to serve requests.
+     *
+     * @return a static JSON body
+     */
+
+    @GetMapping(value = "/health/live", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> live() {
+        return ResponseEntity.ok(LIVE);
+    }
+
+
+    /**
+     * Readiness probe. Returns 200 OK when the JNI library is loaded and the connection warm-up
+     * has completed, or 503 Service Unavailable otherwise, and once the gateway is draining.
+     *
+     * @return a JSON body describing the readiness conditions
+     */
+
+    @GetMapping(value = "/health/ready", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> ready() {
+        boolean ready = this.readiness.isReady();
+        String body = "{\"status\":\"" + (ready ? "ready" : "not_ready") + "\""
+                + ",\"jni_library\":" + this.readiness.isLibraryLoaded()
+                + ",\"warmed_up\":" + this.readiness.isWarmedUp()
+                + ",\"draining\":" + this.readiness.isDraining() + "}";
+        return new ResponseEntity<>(body, ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Encodes the URL of a push on the SPS parking server as the compact, signed state of a
+ * challenge-response push, and decodes it back when the second request comes in.
+ *
+ * The state is the base64url encoding of:
+ *  - a version byte;
+ *  - the region of the SPS origin of the push, the first 2 bytes of the SHA-256 of the
+ *    origin, so that it names the same server whatever the order of the allowlist;
+ *  - the expiry, in seconds since the epoch, on 4 bytes;
+ *  - the user tag, the first 8 bytes of the HMAC-SHA256 of the user the push was issued
+ *    to, its lowercase username and organization;
+ *  - the path of the push on the SPS origin, ending with its authentication id;
+ *  - the first 16 bytes of the HMAC-SHA256 of the above.
+ *
+ * A state is only accepted back for the user it was issued to: the user tag of the
+ * request must match the signed one, and cannot be computed without the key.
+ *
+ * The caller can therefore neither point the gateway at another host, since only the
+ * region of the server is carried, nor replay a state past its expiry or for another
+ * user, nor alter it without knowing the key, which must be at least 32 bytes long.
+ * Verifying a state takes two HMACs over some 70 bytes. A region missing from the
+ * allowlist, e.g. removed by a configuration reload, is rejected.
+ *
+ * The allowlist holds the origins, scheme, host and port, of the SPS parking servers.
+ * It is configured, or derived from the TokenValidator URLs following the SafeNet Cloud
+ * naming scheme, e.g. cloud.us.safenetid.com -> sps.us.safenetid.com. The gateway
+ * instances decoding each other's states must share the key and the allowlist.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+public final class PushState {
+
+    /**
+     * The default time a challenge-response push state stays valid, in seconds.
+     */
+
+    public static final long DEFAULT_TTL_SECONDS = 300;
+
+
+    /**
+     * The version of the state layout.
+     */
+
+    private static final byte VERSION = 2;
+
+
+    /**
+     * The length of the version, region, expiry and user tag fields, of the user tag, and of the truncated HMAC.
+     */
+
+    private static final int HEADER_LENGTH = 15;
+    private static final int USER_TAG_LENGTH = 8;
+    private static final int TAG_LENGTH = 16;
+
+
+    /**
+     * The shortest key accepted, as long as the output of the HMAC.
+     */
+
+    public static final int MIN_KEY_LENGTH = 32;
+
+
+    /**
+     * The longest state decoded, so that a forged state cannot make the gateway hash megabytes.
+     */
+
+    private static final int MAX_STATE_LENGTH = 1024;
+
+
+    /**
+     * The MAC algorithm signing the states.
+     */
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+
+    /**
+     * The key signing the states.
+     */
+
+    private final SecretKeySpec key;
+
+
+    /**
+     * The MAC of each thread, since a Mac instance is not thread-safe and costs more to create than to use.
+     */
+
+    private final ThreadLocal<Mac> macs;
+
+
+    /**
+     * The allowlisted origins of the SPS parking servers, in order.
+     */
+
+    private final List<String> origins;
+
+
+    /**
+     * The allowlisted origins of the SPS parking servers, by region.
+     */
+
+    private final Map<Integer, String> regions = new HashMap<>();
+
+
+    /**
+     * The time a state stays valid, in seconds.
+     */
+
+    private final long ttlSeconds;
+
+
+    /**
+     * The clock giving the issue time of the states and checking their expiry.
+     */
+
+    private final Clock clock;
+
+
+    /**
+     * Constructs a new PushState.
+     *
+     * @param key the key signing the states, at least {@link #MIN_KEY_LENGTH} bytes long
+     * @param origins the allowlisted origins of the SPS parking servers, e.g. from {@link #parseOrigins(String)}
+     * @param ttlSeconds the time a state stays valid, in seconds
+     */
+
+    public PushState(byte[] key, List<String> origins, long ttlSeconds) {
+        this(key, origins, ttlSeconds, Clock.systemUTC());
+    }
+
+
+    /**
+     * Constructs a new PushState with the specified clock.
+     *
+     * @param key the key signing the states, at least {@link #MIN_KEY_LENGTH} bytes long
+     * @param origins the allowlisted origins of the SPS parking servers
+     * @param ttlSeconds the time a state stays valid, in seconds
+     * @param clock the clock giving the issue time of the states
+     * @throws IllegalArgumentException if the key is too short, or two origins share a region
+     */
+
+    PushState(byte[] key, List<String> origins, long ttlSeconds, Clock clock) {
+        if (key.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("The push state key must be at least " + MIN_KEY_LENGTH + " bytes long");
+        }
+        for (String origin : origins) {
+            String previous = this.regions.putIfAbsent(region(origin), origin);
+            if (previous != null && !previous.equals(origin)) {
+                throw new IllegalArgumentException("The SPS origins " + previous + " and " + origin + " share a region");
+            }
+        }
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.origins = Collections.unmodifiableList(new ArrayList<>(origins));
+        this.ttlSeconds = ttlSeconds;
+        this.clock = clock;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        // Fail at startup rather than on the first push if the key is unusable
+        newMac();
+    }
+
+
+    /**
+     * Draws a random key, for a single gateway instance that no other instance shares its states with.
+     *
+     * @return the key
+     */
+
+    public static byte[] randomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+
+    /**
+     * Parses a comma-separated list of SPS parking servers, each a host reached over HTTPS, e.g.
+     * sps.us.safenetid.com, or an origin, e.g. http://127.0.0.1:8081.
+     *
+     * @param servers the list of servers
+     * @return their origins, in order, without duplicates or invalid entries
+     */
+
+    public static List<String> parseOrigins(String servers) {
+        List<String> origins = new ArrayList<>();
+        if (servers == null) {
+            return origins;
+        }
+        for (String server : servers.split(",")) {
+            String trimmed = server.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            String origin = originOf(trimmed.contains("://") ? trimmed : "https://" + trimmed);
+            if (origin != null && !origins.contains(origin)) {
+                origins.add(origin);
+            }
+        }
+        return origins;
+    }
+
+
+    /**
+     * Derives the origins of the SPS parking servers from the TokenValidator URLs, following the SafeNet Cloud
+     * naming scheme, e.g. https://cloud.us.safenetid.com/TokenValidator -> https://sps.us.safenetid.com. The
+     * other hosts, e.g. a stand-in, are taken as they are.
+     *
+     * @param tokenValidatorUrls the TokenValidator URLs
+     * @return the origins, in order, without duplicates
+     */
+
+    public static List<String> deriveOrigins(List<String> tokenValidatorUrls) {
+        List<String> origins = new ArrayList<>();
+        for (String url : tokenValidatorUrls) {
+            String origin = originOf(url);
+            if (origin == null) {
+                continue;
+            }
+            int hostStart = origin.indexOf("://") + 3;
+            if (origin.startsWith("cloud.", hostStart)) {
+                origin = origin.substring(0, hostStart) + "sps." + origin.substring(hostStart + "cloud.".length());
+            }
+            if (!origins.contains(origin)) {
+                origins.add(origin);
+            }
+        }
+        return origins;
+    }
+
+
+    /**
+     * Returns the origin of the specified URL: its scheme, host and port, lower-cased and without the default port.
+     *
+     * @param url the URL
+     * @return the origin, or null if the URL is not an absolute HTTP or HTTPS URL
+     */
+
+    static String originOf(String url) {
+        if (url == null) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = new URI(url.trim());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (uri.getHost() == null || !("https".equals(scheme) || "http".equals(scheme))) {
+            return null;
+        }
+        int port = uri.getPort();
+        boolean defaultPort = port == -1 || ("https".equals(scheme) && port == 443) || ("http".equals(scheme) && port == 80);
+        return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + (defaultPort ? "" : ":" + port);
+    }
+
+
+    /**
+     * Returns the region of the specified origin: the first 2 bytes of its SHA-256, the same on every instance.
+     *
+     * @param origin the origin
+     * @return the region, from 0 to 65535
+     */
+
+    static int region(String origin) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(origin.getBytes(StandardCharsets.UTF_8));
+            return (digest[0] & 0xff) << 8 | (digest[1] & 0xff);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+
+    /**
+     * Returns the allowlisted origins of the SPS parking servers.
+     *
+     * @return the origins
+     */
+
+    public List<String> getOrigins() {
+        return this.origins;
+    }
+
+
+    /**
+     * Returns whether the specified URL is on an allowlisted SPS parking server.
+     *
+     * @param url the URL
+     * @return true if its origin is allowlisted
+     */
+
+    public boolean isAllowed(String url) {
+        String origin = originOf(url);
+        return origin != null && this.origins.contains(origin);
+    }
+
+
+    /**
+     * Returns the user a state is bound to: the lowercase username and organization.
+     *
+     * @param username the username of the request
+     * @param organization the organization of the request, or null
+     * @return the user
+     */
+
+    public static String user(String username, String organization) {
+        return (username == null ? "" : username.trim().toLowerCase(Locale.ROOT)) + "\n"
+                + (organization == null ? "" : organization.trim().toLowerCase(Locale.ROOT));
+    }
+
+
+    /**
+     * Encodes the URL of a push on an allowlisted SPS parking server as a signed state, expiring after the TTL, only
+     * accepted back for the specified user.
+     *
+     * @param authIdUrl the URL of the push, or null or empty if no push was created
+     * @param user the user the push was issued to, from {@link #user(String, String)}
+     * @return the state, or an empty string if no push was created
+     * @throws IllegalArgumentException if the URL is not on an allowlisted SPS parking server
+     */
+
+    public String encode(String authIdUrl, String user) {
+        if (authIdUrl == null || authIdUrl.isEmpty()) {
+            return "";
+        }
+        String origin = originOf(authIdUrl);
+        if (origin == null || !this.origins.contains(origin)) {
+            throw new IllegalArgumentException("Not an allowlisted SPS parking server: " + origin);
+        }
+        URI uri = URI.create(authIdUrl.trim());
+        String path = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        long expiry = this.clock.millis() / 1000 + this.ttlSeconds;
+
+        ByteBuffer state = ByteBuffer.allocate(HEADER_LENGTH + pathBytes.length + TAG_LENGTH);
+        state.put(VERSION).putShort((short) region(origin)).putInt((int) expiry).put(userTag(user.getBytes(StandardCharsets.UTF_8)))
+                .put(pathBytes);
+        Mac mac = this.macs.get();
+        mac.update(state.array(), 0, state.position());
+        state.put(mac.doFinal(), 0, TAG_LENGTH);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(state.array());
+    }
+
+
+    /**
+     * Verifies a state sent back by the specified user and decodes the URL of the push on the SPS parking server it
+     * was issued for.
+     *
+     * @param state the state
+     * @param user the user sending the state back, from {@link #user(String, String)}
+     * @return the URL of the push, on an allowlisted SPS parking server
+     * @throws InvalidPushStateException if the state is malformed, issued to another user, forged, expired or of an
+     *         unknown region
+     */
+
+    public String decode(String state, String user) {
+        if (state.length() > MAX_STATE_LENGTH) {
+            throw new InvalidPushStateException("malformed");
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(state.trim());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidPushStateException("malformed");
+        }
+        int signedLength = bytes.length - TAG_LENGTH;
+        if (signedLength <= HEADER_LENGTH || bytes[0] != VERSION) {
+            throw new InvalidPushStateException("malformed");
+        }
+
+        Mac mac = this.macs.get();
+        mac.update(bytes, 0, signedLength);
+        byte[] expected = Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(bytes, signedLength, bytes.length))) {
+            throw new InvalidPushStateException("signature");
+        }
+        byte[] userTag = userTag(user.getBytes(StandardCharsets.UTF_8));
+        if (!MessageDigest.isEqual(userTag, Arrays.copyOfRange(bytes, HEADER_LENGTH - USER_TAG_LENGTH, HEADER_LENGTH))) {
+            throw new InvalidPushStateException("user");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, signedLength - 1);
+        int region = Short.toUnsignedInt(buffer.getShort());
+        long expiry = Integer.toUnsignedLong(buffer.getInt());
+        if (this.clock.millis() / 1000 >= expiry) {
+            throw new InvalidPushStateException("expired");
+        }
+        String origin = this.regions.get(region);
+        if (origin == null) {
+            throw new InvalidPushStateException("region");
+        }
+        String path = new String(bytes, HEADER_LENGTH, signedLength - HEADER_LENGTH, StandardCharsets.UTF_8);
+        if (!path.startsWith("/")) {
+            throw new InvalidPushStateException("malformed");
+        }
+        return origin + path;
+    }
+
+
+    /**
+     * Returns the tag of the specified user, the first bytes of its HMAC, prefixed with a zero byte so that it never
+     * matches the HMAC of a state, which starts with the version.
+     */
+
+    private byte[] userTag(byte[] userBytes) {
+        Mac mac = this.macs.get();
+        mac.update((byte) 0);
+        mac.update(userBytes);
+        return Arrays.copyOf(mac.doFinal(), USER_TAG_LENGTH);
+    }
+
+
+    /**
+     * Creates a MAC initialized with the key.
+     *
+     * @return the MAC
+     */
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign the push states with " + ALGORITHM, e);
+        }
+    }
+
+}
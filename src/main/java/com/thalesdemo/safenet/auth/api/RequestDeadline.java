@@ -0,0 +1,347 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The deadline of the request being processed by the current thread, after which its
+ * caller has given up, so that the gateway stops working on it too.
+ *
+ * The deadline is bound to the request thread by the {@link RequestDeadlineFilter}. The
+ * calls to the backends check it before they start, throwing a
+ * {@link DeadlineExceededException} once it has passed, and bound their waits by the
+ * time remaining: the read timeouts of the HTTP calls are shortened, and the blocking
+ * calls that cannot be given a timeout, the JNI calls and the TokenValidator adapter,
+ * are waited for from the request thread for the time remaining only. Such a call keeps
+ * running on its own thread until it returns, but its caller is answered right away.
+ *
+ * The abandoned calls still hold the permits, the workload slots and the user stripes
+ * of their request: these are released through {@link #release(Runnable)}, which defers
+ * the release until the abandoned call returns, so that the protections keep counting
+ * the work still running on the backends. At most DEADLINE_MAX_BLOCKING_CALLS blocking
+ * calls run at once: beyond it, the calls are rejected with a
+ * {@link ConcurrencyLimitExceededException} rather than piling up threads behind a
+ * backend that does not return.
+ *
+ * Without a deadline, the calls run on the request thread, unchanged.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.opentelemetry.context.Context;
+
+
+public final class RequestDeadline {
+
+    /**
+     * The request header carrying the time the caller waits for the response, in milliseconds.
+     */
+
+    public static final String HEADER = "X-Request-Timeout";
+
+
+    /**
+     * The deadline of the request being processed by the current thread, if any.
+     */
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+
+    /**
+     * The name of the limit of the blocking calls, in the rejections.
+     */
+
+    static final String BLOCKING_CALLS_LIMIT = "deadline-call";
+
+
+    /**
+     * The default maximum number of blocking calls running at once, as many as the Tomcat request threads.
+     */
+
+    static final int DEFAULT_MAX_BLOCKING_CALLS = 200;
+
+
+    /**
+     * The threads running the blocking calls waited for within a deadline, handed over without a queue and rejected
+     * once all are busy.
+     */
+
+    private static final ThreadPoolExecutor BLOCKING_CALLS = new ThreadPoolExecutor(0, DEFAULT_MAX_BLOCKING_CALLS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, BLOCKING_CALLS_LIMIT);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+
+    /**
+     * The blocking call the request being processed by the current thread has abandoned at its deadline, if any.
+     */
+
+    private static final ThreadLocal<AbandonedCall> ABANDONED = new ThreadLocal<>();
+
+
+    /**
+     * A blocking call that may throw a checked exception.
+     *
+     * @param <T> the type of the result
+     * @param <E> the type of the exception
+     */
+
+    @FunctionalInterface
+    public interface BlockingCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+
+    /**
+     * A blocking call, with the releases deferred until it returns.
+     */
+
+    private static final class AbandonedCall {
+
+        /**
+         * The deferred releases, in their order of registration, or null once the call has returned.
+         */
+
+        private List<Runnable> releases = new ArrayList<>();
+
+
+        /**
+         * Defers the specified release until the call returns.
+         *
+         * @return false if the call has returned already
+         */
+
+        synchronized boolean defer(Runnable release) {
+            if (this.releases == null) {
+                return false;
+            }
+            this.releases.add(release);
+            return true;
+        }
+
+
+        /**
+         * Runs the deferred releases, once the call has returned.
+         */
+
+        void complete() {
+            List<Runnable> deferred;
+            synchronized (this) {
+                deferred = this.releases;
+                this.releases = null;
+            }
+            for (Runnable release : deferred) {
+                release.run();
+            }
+        }
+    }
+
+
+    /**
+     * The deadline, on the monotonic clock, in nanoseconds.
+     */
+
+    private final long deadlineNanos;
+
+
+    private RequestDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+
+    /**
+     * Binds a deadline expiring after the specified timeout to the current thread.
+     *
+     * @param timeoutMillis the timeout, in milliseconds
+     */
+
+    static void begin(long timeoutMillis) {
+        CURRENT.set(new RequestDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+    }
+
+
+    /**
+     * Unbinds the deadline, and the blocking call it abandoned, from the current thread.
+     */
+
+    static void end() {
+        CURRENT.remove();
+        ABANDONED.remove();
+    }
+
+
+    /**
+     * Sets the maximum number of blocking calls running at once, beyond which they are rejected.
+     *
+     * @param maxBlockingCalls the maximum number of blocking calls, at least 1
+     */
+
+    static void setMaxBlockingCalls(int maxBlockingCalls) {
+        BLOCKING_CALLS.setMaximumPoolSize(Math.max(maxBlockingCalls, 1));
+    }
+
+
+    /**
+     * Returns the number of blocking calls running, including the abandoned ones.
+     *
+     * @return the number of blocking calls running
+     */
+
+    public static int getBlockingCalls() {
+        return BLOCKING_CALLS.getActiveCount();
+    }
+
+
+    /**
+     * Runs the specified release of a resource held by the current request, e.g. a permit or a workload slot, or
+     * defers it until the blocking call the request abandoned at its deadline returns, from the thread of that call.
+     *
+     * @param release the release, which must not depend on the calling thread
+     */
+
+    public static void release(Runnable release) {
+        AbandonedCall abandoned = ABANDONED.get();
+        if (abandoned == null || !abandoned.defer(release)) {
+            release.run();
+        }
+    }
+
+
+    /**
+     * Returns the time remaining before the deadline of the current request.
+     *
+     * @return the time remaining, in nanoseconds, negative once passed, or Long.MAX_VALUE without a deadline
+     */
+
+    public static long remainingNanos() {
+        RequestDeadline deadline = CURRENT.get();
+        return deadline == null ? Long.MAX_VALUE : deadline.deadlineNanos - System.nanoTime();
+    }
+
+
+    /**
+     * Returns whether the deadline of the current request has passed.
+     *
+     * @return true if the deadline has passed, false if it has not or if the request has none
+     */
+
+    public static boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+
+    /**
+     * Rejects the specified stage if the deadline of the current request has passed.
+     *
+     * @param stage the stage about to start, e.g. a {@link GatewayMetrics} timer name
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+
+    public static void check(String stage) {
+        if (isExpired()) {
+            throw new DeadlineExceededException(stage);
+        }
+    }
+
+
+    /**
+     * Returns the specified timeout, shortened to the time remaining before the deadline of the current request.
+     *
+     * @param timeoutMillis the timeout, in milliseconds
+     * @return the shortened timeout, in milliseconds, at least 1 so as not to be taken as an infinite timeout
+     */
+
+    public static int boundTimeout(int timeoutMillis) {
+        long remaining = remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutMillis;
+        }
+        return (int) Math.max(Math.min(timeoutMillis, TimeUnit.NANOSECONDS.toMillis(remaining)), 1);
+    }
+
+
+    /**
+     * Runs the specified blocking call, waiting for it until the deadline of the current request at most.
+     *
+     * @param <T> the type of the result
+     * @param <E> the type of the exception thrown by the call
+     * @param stage the stage of the call, e.g. a {@link GatewayMetrics} timer name
+     * @param call the blocking call
+     * @return the result of the call
+     * @throws E if the call failed
+     * @throws DeadlineExceededException if the deadline passed before or during the call
+     * @throws ConcurrencyLimitExceededException if the maximum number of blocking calls are running
+     */
+
+    @SuppressWarnings("unchecked")
+    public static <T, E extends Exception> T call(String stage, BlockingCall<T, E> call) throws E {
+        long remaining = remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return call.call();
+        }
+        if (remaining <= 0) {
+            throw new DeadlineExceededException(stage);
+        }
+
+        // Carry the trace context over, so that the spans of the call keep their parent
+        AbandonedCall pending = new AbandonedCall();
+        Callable<T> traced = Context.current().wrap(call::call);
+        Future<T> future;
+        try {
+            future = BLOCKING_CALLS.submit(() -> {
+                try {
+                    return traced.call();
+                } finally {
+                    pending.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new ConcurrencyLimitExceededException(BLOCKING_CALLS_LIMIT);
+        }
+        try {
+            return future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Not cancelled: the backends ignore the interrupts, and the call keeps its resources until it returns
+            ABANDONED.set(pending);
+            throw new DeadlineExceededException(stage);
+        } catch (InterruptedException e) {
+            ABANDONED.set(pending);
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException(stage);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Binds a {@link RequestDeadline} to each authentication and grid image request, and
+ * answers with a 504 Gateway Timeout the requests whose deadline passed before they
+ * completed, rather than keeping on working for a caller that has given up.
+ *
+ * The caller sets its timeout in milliseconds in the `X-Request-Timeout` header. The
+ * REQUEST_TIMEOUT_MS environment variable sets the timeout of the requests without
+ * one, and caps the ones that have one, since the gateway has a single API key. The
+ * deadline starts when the request arrives, so the API key check is counted in. The
+ * requests answered after their deadline, or abandoned by a client that disconnected,
+ * are counted in the `safenet.deadline.exceeded` counter, tagged with the stage that was
+ * rejected. The blocking calls still running, including those abandoned at the deadline
+ * of their request, are reported by the `safenet.deadline.blocking.calls` gauge, and
+ * DEADLINE_MAX_BLOCKING_CALLS bounds them.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+public class RequestDeadlineFilter extends OncePerRequestFilter {
+
+    /**
+     * The timeout of the requests without one, and the cap of the others, in milliseconds, or 0 for none.
+     */
+
+    private final long defaultTimeoutMillis;
+
+
+    /**
+     * The registry of the counter of the exceeded deadlines.
+     */
+
+    private final MeterRegistry registry;
+
+
+    /**
+     * Constructs a new RequestDeadlineFilter.
+     *
+     * @param defaultTimeoutMillis the timeout of the requests without one, and the cap of the others, or 0 for none
+     * @param registry the registry of the counter of the exceeded deadlines
+     */
+
+    public RequestDeadlineFilter(long defaultTimeoutMillis, MeterRegistry registry) {
+        this.defaultTimeoutMillis = Math.max(defaultTimeoutMillis, 0);
+        this.registry = registry;
+    }
+
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long timeoutMillis = timeout(request.getHeader(RequestDeadline.HEADER));
+        if (timeoutMillis > 0) {
+            RequestDeadline.begin(timeoutMillis);
+        }
+        // A request without a deadline may still be abandoned by a client that disconnects
+        try {
+            chain.doFilter(request, response);
+        } catch (ServletException | RuntimeException e) {
+            DeadlineExceededException exceeded = exceeded(e);
+            if (exceeded == null || response.isCommitted()) {
+                throw e;
+            }
+            Counter.builder("safenet.deadline.exceeded")
+                    .description("Requests abandoned because the caller had given up")
+                    .tag("stage", exceeded.getStage())
+                    .register(this.registry)
+                    .increment();
+            response.reset();
+            response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        } finally {
+            RequestDeadline.end();
+        }
+    }
+
+
+    /**
+     * Returns the timeout of a request with the specified header, in milliseconds, or 0 for none.
+     */
+
+    long timeout(String header) {
+        long timeoutMillis = 0;
+        if (header != null) {
+            try {
+                timeoutMillis = Math.max(Long.parseLong(header.trim()), 0);
+            } catch (NumberFormatException e) {
+                // Malformed: fall back to the default timeout
+            }
+        }
+        if (timeoutMillis == 0 || (this.defaultTimeoutMillis > 0 && this.defaultTimeoutMillis < timeoutMillis)) {
+            return this.defaultTimeoutMillis;
+        }
+        return timeoutMillis;
+    }
+
+
+    /**
+     * Returns the DeadlineExceededException causing the specified exception, or null.
+     */
+
+    private static DeadlineExceededException exceeded(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlineExceededException) {
+                return (DeadlineExceededException) cause;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Registers the filter ahead of the Spring Security filter chain.
+     */
+
+    @Configuration
+    static class Registration {
+
+        /**
+         * Returns the registration of the filter.
+         *
+         * @param defaultTimeoutMillis the timeout of the requests without one, and the cap of the others, or 0
+         * @param maxBlockingCalls the maximum number of blocking calls running at once, including the abandoned ones
+         * @param registry the registry of the counter of the exceeded deadlines
+         * @return the filter registration
+         */
+
+        @Bean
+        FilterRegistrationBean<RequestDeadlineFilter> requestDeadlineFilter(
+                @Value("${REQUEST_TIMEOUT_MS:0}") long defaultTimeoutMillis,
+                @Value("${DEADLINE_MAX_BLOCKING_CALLS:" + RequestDeadline.DEFAULT_MAX_BLOCKING_CALLS + "}") int maxBlockingCalls,
+                MeterRegistry registry) {
+            RequestDeadline.setMaxBlockingCalls(maxBlockingCalls);
+            Gauge.builder("safenet.deadline.blocking.calls", RequestDeadline::getBlockingCalls)
+                    .description("Blocking backend calls running, including those abandoned at the deadline of their request")
+                    .register(registry);
+            FilterRegistrationBean<RequestDeadlineFilter> registration =
+                    new FilterRegistrationBean<>(new RequestDeadlineFilter(defaultTimeoutMillis, registry));
+            registration.addUrlPatterns(ServerTimingFilter.URL_PATTERNS);
+            registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 1);
+            return registration;
+        }
+    }
+
+}
@@ -162,5 +162,25 @@ public class ResponseExamples {
 				+ "  \"health\": \"error\",\r\n"
 				+ "  \"token_validator\": false\r\n"
 				+ "}";
+		
+		public static final String DEPENDENCIES = "{\r\n"
+				+ "  \"health\": \"degraded\",\r\n"
+				+ "  \"dependencies\": [\r\n"
+				+ "    { \"name\": \"jni_backend\", \"target\": \"CRYPTOCardAPI\", \"reachable\": true, \"latency_ms\": 84, \"error\": null },\r\n"
+				+ "    { \"name\": \"token_validator_primary\", \"target\": \"cloud.us.safenetid.com:443\", \"reachable\": true, \"latency_ms\": 21, \"error\": null },\r\n"
+				+ "    { \"name\": \"token_validator_secondary\", \"target\": \"cloud.us.safenetid.com:443\", \"reachable\": true, \"latency_ms\": 19, \"error\": null },\r\n"
+				+ "    { \"name\": \"sps_parking\", \"target\": \"sps.us.safenetid.com:443\", \"reachable\": false, \"latency_ms\": 2001, \"error\": \"SocketTimeoutException\" }\r\n"
+				+ "  ]\r\n"
+				+ "}";
+		
+		public static final String RENDER_CACHE = "{\r\n"
+				+ "  \"hits\": 1520,\r\n"
+				+ "  \"misses\": 310,\r\n"
+				+ "  \"evictions\": 0,\r\n"
+				+ "  \"entries\": 310,\r\n"
+				+ "  \"size_bytes\": 585280,\r\n"
+				+ "  \"max_bytes\": 8388608,\r\n"
+				+ "  \"hit_rate\": 0.8306\r\n"
+				+ "}";
 	}
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The {@link TokenValidatorClient} of the SafeNet Cloud, sending the requests through
+ * the {@link CustomTokenValidatorWrapperImpl} of the TokenValidator adapter, which
+ * encrypts them with the agent key.
+ *
+ * @see TokenValidatorRequestBuilder
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestCredentialType;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TVRequestType;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorRequestDTO.TokenValidatorRequestBuilder;
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorResponseDTO;
+
+
+public class SafeNetTokenValidatorClient implements TokenValidatorClient {
+
+    /**
+     * The logger for the SafeNetTokenValidatorClient class.
+     */
+
+    private static final Logger Log = Logger.getLogger(SafeNetTokenValidatorClient.class.getName());
+
+
+    /**
+     * The TokenValidator wrapper sending the requests.
+     */
+
+    private final CustomTokenValidatorWrapperImpl wrapper;
+
+
+    /**
+     * The resource name sent with the requests carrying the IP address of the user, or null.
+     */
+
+    private final String resourceName;
+
+
+    /**
+     * The primary and failover TokenValidator URLs.
+     */
+
+    private final List<String> urls;
+
+
+    /**
+     * Constructs a new SafeNetTokenValidatorClient.
+     *
+     * @param primaryAuthUrl the primary TokenValidator URL
+     * @param failoverAuthUrl the failover TokenValidator URL
+     * @param agentKey the agent key, in base64
+     * @param resourceName the resource name of the requests, or null
+     */
+
+    public SafeNetTokenValidatorClient(String primaryAuthUrl, String failoverAuthUrl, String agentKey,
+            String resourceName) {
+        this.wrapper = new CustomTokenValidatorWrapperImpl(primaryAuthUrl, failoverAuthUrl, agentKey);
+        this.resourceName = resourceName;
+        this.urls = failoverAuthUrl == null ? Collections.singletonList(primaryAuthUrl)
+                : Arrays.asList(primaryAuthUrl, failoverAuthUrl);
+    }
+
+
+    @Override
+    public List<String> getUrls() {
+        return this.urls;
+    }
+
+
+    @Override
+    public Result verifyCredentials(Request request) {
+        // Build Token Validator request with the provided parameters
+        TokenValidatorRequestBuilder builder = new TokenValidatorRequestBuilder();
+        if (request.getUserIpAddress() != null) {
+            builder.resourceName(this.resourceName);
+            builder.userIpAddress(request.getUserIpAddress());
+        }
+        builder.username(request.getUsername());
+        builder.password(request.getPassword());
+        if (request.getPushOtpAuthId() != null) {
+            builder.pushOtpAuthId(request.getPushOtpAuthId());
+        }
+        if (request.getPushOtpSpsStatus() != null) {
+            builder.pushOtpSpsStatus(request.getPushOtpSpsStatus());
+        }
+        builder.tvRequestType(TVRequestType.verifycredentials);
+        builder.tvRequestCredentialType(TVRequestCredentialType.TokenValidation);
+        TokenValidatorRequestDTO requestDTO = builder.build();
+
+        // Log details of the request
+        if (Log.isLoggable(Level.FINE)) {
+            Log.fine("verifyCredentials - requestDTO:\n" + requestDTO);
+        }
+
+        // Send the Token Validator request and log details of the response
+        TokenValidatorResponseDTO responseDTO = this.wrapper.authenticate(requestDTO);
+        if (Log.isLoggable(Level.FINE)) {
+            Log.fine("verifyCredentials - responseDTO:\n" + responseDTO);
+        }
+
+        return responseDTO == null ? null : new Result(responseDTO.getReturnValue(), responseDTO.getPushOtpAuthId());
+    }
+
+}
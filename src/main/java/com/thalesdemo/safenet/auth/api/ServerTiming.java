@@ -0,0 +1,164 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A request-scoped stopwatch collecting the duration of each stage of a request, such
+ * as the API key check, the JNI call or the SPS parking calls, rendered as the value of
+ * a `Server-Timing` response header.
+ *
+ * The stopwatch of the current request is bound to the request thread by the
+ * {@link ServerTimingFilter}. Outside of such a request, e.g. when the header is
+ * disabled, {@link #record(String, long)} does nothing but a thread-local lookup.
+ * Durations recorded several times under the same name, e.g. the retried SPS parking
+ * call, are summed.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.Arrays;
+
+
+public final class ServerTiming {
+
+    /**
+     * The name of the response header.
+     */
+
+    public static final String HEADER = "Server-Timing";
+
+
+    /**
+     * The prefix of the timer names, dropped from the metric names of the header.
+     */
+
+    private static final String TIMER_PREFIX = "safenet.";
+
+
+    /**
+     * The stopwatch of the request being processed by the current thread, if any.
+     */
+
+    private static final ThreadLocal<ServerTiming> CURRENT = new ThreadLocal<>();
+
+
+    /**
+     * The start of the request, in nanoseconds.
+     */
+
+    private final long startNanos;
+
+
+    /**
+     * The names of the stages recorded so far and their accumulated durations, in nanoseconds.
+     */
+
+    private String[] names = new String[8];
+    private long[] durations = new long[8];
+    private int size;
+
+
+    private ServerTiming(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+
+    /**
+     * Starts a new stopwatch and binds it to the current thread.
+     *
+     * @return the new stopwatch
+     */
+
+    static ServerTiming begin() {
+        ServerTiming timing = new ServerTiming(System.nanoTime());
+        CURRENT.set(timing);
+        return timing;
+    }
+
+
+    /**
+     * Unbinds the stopwatch from the current thread.
+     */
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+
+    /**
+     * Records the duration of a stage in the stopwatch of the current request, if any.
+     *
+     * @param name the name of the stage, e.g. a {@link GatewayMetrics} timer name
+     * @param nanos the duration of the stage, in nanoseconds
+     */
+
+    public static void record(String name, long nanos) {
+        ServerTiming timing = CURRENT.get();
+        if (timing != null) {
+            timing.add(name, nanos);
+        }
+    }
+
+
+    /**
+     * Adds the specified duration to the stage with the specified name.
+     */
+
+    private void add(String name, long nanos) {
+        for (int i = 0; i < this.size; i++) {
+            if (this.names[i].equals(name)) {
+                this.durations[i] += nanos;
+                return;
+            }
+        }
+        if (this.size == this.names.length) {
+            this.names = Arrays.copyOf(this.names, this.size * 2);
+            this.durations = Arrays.copyOf(this.durations, this.size * 2);
+        }
+        this.names[this.size] = name;
+        this.durations[this.size] = nanos;
+        this.size++;
+    }
+
+
+    /**
+     * Returns the value of the Server-Timing header: one metric per stage, in the order they were first recorded,
+     * followed by the total time elapsed since the start of the request, with durations in milliseconds.
+     *
+     * @return the header value, e.g. `apikey.check;dur=61.2, jni.authenticate;dur=143.0, total;dur=205.7`
+     */
+
+    public String toHeaderValue() {
+        StringBuilder value = new StringBuilder(32 * (this.size + 1));
+        for (int i = 0; i < this.size; i++) {
+            String name = this.names[i];
+            value.append(name.startsWith(TIMER_PREFIX) ? name.substring(TIMER_PREFIX.length()) : name);
+            appendDuration(value, this.durations[i]).append(", ");
+        }
+        value.append("total");
+        return appendDuration(value, System.nanoTime() - this.startNanos).toString();
+    }
+
+
+    /**
+     * Appends the `dur` parameter with the specified duration in milliseconds, rounded to a tenth of a millisecond.
+     */
+
+    private static StringBuilder appendDuration(StringBuilder value, long nanos) {
+        long tenths = (Math.max(nanos, 0) + 50_000) / 100_000;
+        return value.append(";dur=").append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+}
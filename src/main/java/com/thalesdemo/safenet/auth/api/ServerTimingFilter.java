@@ -0,0 +1,129 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Adds a `Server-Timing` header to the responses of the authentication and grid image
+ * endpoints, with the duration of each stage of the request recorded in a
+ * {@link ServerTiming} stopwatch.
+ *
+ * The filter runs ahead of the Spring Security filter chain, so that the API key check
+ * is part of the breakdown. The header is added right before the response is committed,
+ * which lets it report every stage completed before the first byte of the body is sent.
+ *
+ * The header is opt-in, with SERVER_TIMING_ENABLED=true, since it discloses timing
+ * details of the backend to the callers.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.web.util.OnCommittedResponseWrapper;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+
+public class ServerTimingFilter extends OncePerRequestFilter {
+
+    /**
+     * The URL patterns of the endpoints the header is added to.
+     */
+
+    static final String[] URL_PATTERNS = { "/api/v1/authenticate/*" };
+
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        ServerTiming timing = ServerTiming.begin();
+        ServerTimingResponse timedResponse = new ServerTimingResponse(response, timing);
+        try {
+            chain.doFilter(request, timedResponse);
+
+            // The response is committed by the container after the filters when the body fits in its buffer
+            if (!response.isCommitted()) {
+                timedResponse.addServerTimingHeader();
+            }
+        } finally {
+            ServerTiming.end();
+        }
+    }
+
+
+    /**
+     * A response adding the Server-Timing header once, right before it is committed.
+     */
+
+    private static final class ServerTimingResponse extends OnCommittedResponseWrapper {
+
+        private final ServerTiming timing;
+
+        private boolean headerAdded;
+
+        ServerTimingResponse(HttpServletResponse response, ServerTiming timing) {
+            super(response);
+            this.timing = timing;
+        }
+
+        @Override
+        protected void onResponseCommitted() {
+            addServerTimingHeader();
+        }
+
+        void addServerTimingHeader() {
+            if (!this.headerAdded) {
+                this.headerAdded = true;
+                ((HttpServletResponse) getResponse()).setHeader(ServerTiming.HEADER, this.timing.toHeaderValue());
+            }
+        }
+    }
+
+
+    /**
+     * Registers the filter ahead of the Spring Security filter chain when the header is enabled.
+     */
+
+    @Configuration
+    static class Registration {
+
+        /**
+         * Returns the registration of the filter, disabled unless SERVER_TIMING_ENABLED is true.
+         *
+         * @param enabled whether the Server-Timing header is enabled
+         * @return the filter registration
+         */
+
+        @Bean
+        FilterRegistrationBean<ServerTimingFilter> serverTimingFilter(
+                @Value("${SERVER_TIMING_ENABLED:false}") boolean enabled) {
+            FilterRegistrationBean<ServerTimingFilter> registration = new FilterRegistrationBean<>(new ServerTimingFilter());
+            registration.addUrlPatterns(URL_PATTERNS);
+            registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 1);
+            registration.setEnabled(enabled);
+            return registration;
+        }
+    }
+
+}
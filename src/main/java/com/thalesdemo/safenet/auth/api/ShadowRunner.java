@@ -0,0 +1,413 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Runs a sampled fraction of the OTP authentication requests a second time against a
+ * secondary backend, off the request thread, and compares the response codes and the
+ * latencies of both backends, to qualify a backend before switching an organization
+ * to it.
+ *
+ * The secondary backend is selected by SHADOW_BACKEND: `tokenvalidator` for the
+ * {@link TokenValidatorAuthenticator} path, or `simulator`. The `tokenvalidator`
+ * backend sends the passcodes of live users to the separate tenant of
+ * SHADOW_TOKEN_VALIDATOR_URL and SHADOW_AGENT_KEY_PATH, which must mirror their tokens:
+ * the gateway refuses to start unless SHADOW_TENANT_MIRRORS_TOKENS acknowledges it, or
+ * when the tenant is missing or is that of the configuration files. An empty value, the
+ * default, disables the shadow runs. SHADOW_SAMPLE_RATE is the fraction of requests
+ * shadowed. At most SHADOW_MAX_CONCURRENCY shadow runs are in flight at once: the
+ * requests sampled beyond that budget are skipped rather than queued, so the shadow
+ * runs never hold back the callers nor pile up when the secondary backend slows down.
+ *
+ * Challenge answers are not shadowed, since their state is only known to the primary
+ * backend, and neither are the challenge requests, with an empty passcode, nor the
+ * fake challenges of the anonymous user. The passcodes
+ * are one-time: a secondary backend sharing the users of the primary tenant would see
+ * replayed passcodes, rejected and counted toward the lockout of the users.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+
+@Component
+public class ShadowRunner {
+
+    /**
+     * The logger for the ShadowRunner class.
+     */
+
+    private static final Logger Log = Logger.getLogger(ShadowRunner.class.getName());
+
+
+    /**
+     * The name of the latency timers of both backends, tagged with the `backend`.
+     */
+
+    static final String LATENCY = "safenet.shadow.latency";
+
+
+    /**
+     * The name of the counter of the comparisons, tagged with the `result` and the response codes of both backends.
+     */
+
+    static final String COMPARISONS = "safenet.shadow.comparisons";
+
+
+    /**
+     * The secondary backend, or null if the shadow runs are disabled.
+     */
+
+    private final Authenticator secondary;
+
+
+    /**
+     * The fraction of the requests shadowed.
+     */
+
+    private final double sampleRate;
+
+
+    /**
+     * The permits of the shadow runs in flight.
+     */
+
+    private final Semaphore budget;
+
+
+    /**
+     * The threads running the shadow runs, as many as the permits.
+     */
+
+    private final ExecutorService executor;
+
+
+    /**
+     * The registry of the metrics.
+     */
+
+    private final MeterRegistry registry;
+
+
+    /**
+     * The counters of the sampled requests skipped because the budget was exhausted, and of the failed shadow runs.
+     */
+
+    private final Counter skipped;
+    private final Counter errors;
+
+
+    /**
+     * Constructs a new ShadowRunner with the secondary backend of the configuration.
+     *
+     * @param backend `tokenvalidator`, `simulator`, or an empty string to disable the shadow runs
+     * @param sampleRate the fraction of the requests shadowed, from 0 to 1
+     * @param maxConcurrency the maximum number of shadow runs in flight
+     * @param latency the latency distribution of the simulator
+     * @param resultMix the weights of the outcomes of the simulator
+     * @param tokenValidatorUrl the TokenValidator URL of the shadow tenant
+     * @param agentKeyPath the path of the agent key file of the shadow tenant
+     * @param mirrorsTokens whether the operator acknowledged that the shadow tenant mirrors the tokens of the users
+     * @param primary the primary backend, serving the requests the secondary backend does not support
+     * @param settingsWatcher the holder of the configuration of the primary tenant
+     * @param tracing the gateway tracing
+     * @param registry the registry of the metrics
+     */
+
+    @Autowired
+    public ShadowRunner(@Value("${SHADOW_BACKEND:}") String backend,
+                        @Value("${SHADOW_SAMPLE_RATE:0.01}") double sampleRate,
+                        @Value("${SHADOW_MAX_CONCURRENCY:4}") int maxConcurrency,
+                        @Value("${SIMULATOR_LATENCY:0}") String latency,
+                        @Value("${SIMULATOR_RESULT_MIX:success=80,challenge=10,grid=5,failure=5}") String resultMix,
+                        @Value("${SHADOW_TOKEN_VALIDATOR_URL:}") String tokenValidatorUrl,
+                        @Value("${SHADOW_AGENT_KEY_PATH:}") String agentKeyPath,
+                        @Value("${SHADOW_TENANT_MIRRORS_TOKENS:false}") boolean mirrorsTokens,
+                        Authenticator primary, GatewaySettingsWatcher settingsWatcher, GatewayTracing tracing,
+                        MeterRegistry registry) {
+        this(secondary(backend, latency, resultMix, tokenValidatorUrl, agentKeyPath, mirrorsTokens, primary,
+                settingsWatcher, tracing), sampleRate, maxConcurrency, registry);
+    }
+
+
+    /**
+     * Constructs a new ShadowRunner.
+     *
+     * @param secondary the secondary backend, or null to disable the shadow runs
+     * @param sampleRate the fraction of the requests shadowed, from 0 to 1
+     * @param maxConcurrency the maximum number of shadow runs in flight
+     * @param registry the registry of the metrics
+     */
+
+    ShadowRunner(Authenticator secondary, double sampleRate, int maxConcurrency, MeterRegistry registry) {
+        int permits = Math.max(maxConcurrency, 1);
+        this.secondary = secondary;
+        this.sampleRate = sampleRate;
+        this.budget = new Semaphore(permits);
+        this.registry = registry;
+        this.skipped = Counter.builder("safenet.shadow.skipped")
+                .description("Sampled requests not shadowed because the concurrency budget was exhausted")
+                .register(registry);
+        this.errors = Counter.builder("safenet.shadow.errors").register(registry);
+        this.executor = secondary == null ? null : Executors.newFixedThreadPool(permits, runnable -> {
+            Thread thread = new Thread(runnable, "shadow-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (secondary != null) {
+            Log.info("Shadowing " + sampleRate * 100 + "% of the OTP authentications against "
+                    + secondary.getClass().getSimpleName() + ", at most " + permits + " at once");
+        }
+    }
+
+
+    /**
+     * Creates the secondary backend of the configuration.
+     */
+
+    private static Authenticator secondary(String backend, String latency, String resultMix, String tokenValidatorUrl,
+            String agentKeyPath, boolean mirrorsTokens, Authenticator primary, GatewaySettingsWatcher settingsWatcher,
+            GatewayTracing tracing) {
+        switch (backend == null ? "" : backend.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+                return null;
+            case "tokenvalidator":
+                CustomAuthenticate tenant = shadowTenant(tokenValidatorUrl, readAgentKey(agentKeyPath), mirrorsTokens,
+                        settingsWatcher.current(), tracing);
+                return new TokenValidatorAuthenticator(primary, tenant, TokenValidatorAuthenticator.ALL_ORGANIZATIONS,
+                        null).setTracing(tracing);
+            case "simulator":
+                return new SimulatedAuthenticator(latency, resultMix, 0, 0, 0, 0);
+            default:
+                throw new IllegalArgumentException("Invalid SHADOW_BACKEND: " + backend);
+        }
+    }
+
+
+    /**
+     * Reads the agent key file of the shadow tenant.
+     *
+     * @param agentKeyPath the path of the agent key file, or an empty string
+     * @return the agent key, or null if the path is not set
+     */
+
+    private static String readAgentKey(String agentKeyPath) {
+        if (agentKeyPath == null || agentKeyPath.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Files.readString(Paths.get(agentKeyPath.trim()));
+        } catch (IOException | RuntimeException ex) {
+            throw new IllegalArgumentException("Could not read SHADOW_AGENT_KEY_PATH: " + agentKeyPath, ex);
+        }
+    }
+
+
+    /**
+     * Creates the TokenValidator client of the shadow tenant. The shadow runs replay the passcodes of live users, so
+     * the shadow tenant must have its own TokenValidator URL and agent key, and mirror the tokens of the users: it is
+     * never used unless the operator acknowledged it.
+     *
+     * @param tokenValidatorUrl the TokenValidator URL of the shadow tenant
+     * @param agentKey the agent key of the shadow tenant
+     * @param mirrorsTokens whether the operator acknowledged that the shadow tenant mirrors the tokens of the users
+     * @param primary the configuration of the primary tenant
+     * @param tracing the gateway tracing
+     * @return the TokenValidator client of the shadow tenant
+     * @throws IllegalArgumentException if not acknowledged, or if the URL or the agent key is missing, or is that of
+     *         the primary tenant
+     */
+
+    static CustomAuthenticate shadowTenant(String tokenValidatorUrl, String agentKey, boolean mirrorsTokens,
+            GatewaySettings primary, GatewayTracing tracing) {
+        if (!mirrorsTokens) {
+            throw new IllegalArgumentException("SHADOW_BACKEND=tokenvalidator sends the passcodes of live users to"
+                    + " another tenant: set SHADOW_TENANT_MIRRORS_TOKENS=true once that tenant mirrors their tokens");
+        }
+        String url = tokenValidatorUrl == null ? "" : tokenValidatorUrl.trim();
+        if (!AuthenticateConfig.isValidUrl(url)) {
+            throw new IllegalArgumentException("SHADOW_BACKEND=tokenvalidator requires SHADOW_TOKEN_VALIDATOR_URL, the"
+                    + " TokenValidator URL of a separate tenant");
+        }
+        if (agentKey == null || agentKey.trim().isEmpty()) {
+            throw new IllegalArgumentException("SHADOW_BACKEND=tokenvalidator requires SHADOW_AGENT_KEY_PATH, the"
+                    + " agent key file of a separate tenant");
+        }
+        if (sameUrl(url, primary.getPrimaryAuthUrl()) || sameUrl(url, primary.getSecondaryAuthUrl())) {
+            throw new IllegalArgumentException("SHADOW_TOKEN_VALIDATOR_URL is the TokenValidator of the primary tenant: "
+                    + url);
+        }
+        if (primary.getAgentKey() != null && agentKey.trim().equals(primary.getAgentKey().trim())) {
+            throw new IllegalArgumentException("SHADOW_AGENT_KEY_PATH holds the agent key of the primary tenant");
+        }
+        url = CustomAuthenticateConfig.addQueryStringIfMissing(url);
+        return new CustomAuthenticate()
+                .setPrimaryAuthUrl(url)
+                .setFailoverAuthUrl(url)
+                .setAgentKey(agentKey)
+                .setResourceName(primary.getResourceName())
+                .setTracing(tracing)
+                .build();
+    }
+
+
+    /**
+     * Returns whether the specified TokenValidator URLs are the same, ignoring the case and a trailing question mark.
+     */
+
+    private static boolean sameUrl(String url, String other) {
+        if (other == null) {
+            return false;
+        }
+        return stripQuery(url).equalsIgnoreCase(stripQuery(other.trim()));
+    }
+
+
+    /**
+     * Strips the trailing question mark of the specified URL.
+     */
+
+    private static String stripQuery(String url) {
+        return url.endsWith("?") ? url.substring(0, url.length() - 1) : url;
+    }
+
+
+    /**
+     * Shadows the specified request if it is sampled and the budget allows it. Returns immediately.
+     *
+     * @param request the authentication request served by the primary backend
+     * @param primary the response of the primary backend
+     * @param primaryNanos the latency of the primary backend, in nanoseconds
+     * @return true if a shadow run was started
+     */
+
+    public boolean shadow(AuthenticationRequest request, AuthenticationResponse primary, long primaryNanos) {
+        if (this.secondary == null || primary == null || !sampled()) {
+            return false;
+        }
+        if ((request.getState() != null && !request.getState().isEmpty())
+                || request.getCode() == null || request.getCode().isEmpty()
+                || "anonymousUser".equals(request.getUsername())) {
+            return false;
+        }
+        if (!this.budget.tryAcquire()) {
+            this.skipped.increment();
+            return false;
+        }
+
+        // The request object belongs to the caller, so the shadow run works on a copy
+        AuthenticationRequest copy = new AuthenticationRequest(request.getUsername(), request.getCode())
+                .setOrganization(request.getOrganization());
+        try {
+            this.executor.execute(() -> {
+                try {
+                    run(copy, primary, primaryNanos);
+                } finally {
+                    this.budget.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            // Rejected after the executor was shut down
+            this.budget.release();
+            return false;
+        }
+    }
+
+
+    /**
+     * Runs the request against the secondary backend and records the comparison.
+     */
+
+    private void run(AuthenticationRequest request, AuthenticationResponse primary, long primaryNanos) {
+        AuthenticationResponse secondary;
+        long start = System.nanoTime();
+        try {
+            secondary = this.secondary.validateCode(request);
+        } catch (RuntimeException e) {
+            this.errors.increment();
+            Log.log(Level.FINE, "Shadow run failed", e);
+            return;
+        }
+        long secondaryNanos = System.nanoTime() - start;
+
+        latencyTimer("primary").record(primaryNanos, TimeUnit.NANOSECONDS);
+        latencyTimer("secondary").record(secondaryNanos, TimeUnit.NANOSECONDS);
+
+        String primaryCode = primary.getResponse().getName();
+        String secondaryCode = secondary == null ? GatewayMetrics.NONE : secondary.getResponse().getName();
+        boolean match = primaryCode.equals(secondaryCode);
+        Counter.builder(COMPARISONS)
+                .tag("result", match ? "match" : "mismatch")
+                .tag("primary_code", primaryCode)
+                .tag("secondary_code", secondaryCode)
+                .register(this.registry)
+                .increment();
+        if (!match) {
+            Log.fine("Shadow mismatch: primary " + primaryCode + ", secondary " + secondaryCode);
+        }
+    }
+
+
+    /**
+     * Returns the latency timer of the specified backend.
+     */
+
+    private Timer latencyTimer(String backend) {
+        return Timer.builder(LATENCY)
+                .tag("backend", backend)
+                .publishPercentileHistogram()
+                .register(this.registry);
+    }
+
+
+    private boolean sampled() {
+        return this.sampleRate >= 1 || (this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate);
+    }
+
+
+    /**
+     * Stops the shadow runs.
+     */
+
+    @PreDestroy
+    public void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An {@link Authenticator} that simulates the authentication backend, to measure the
+ * throughput and the overhead of the gateway without the CRYPTOCard JNI library or the
+ * SafeNet servers.
+ *
+ * Each backend call waits for a latency drawn from a configurable distribution, then
+ * returns an outcome drawn from a weighted mix of successes, challenges, GrIDsure
+ * challenges and failures, whatever the passcode. Failures can be injected: a share of
+ * the calls fail as if the backend threw, a share stall for a long time as if the
+ * servers did not answer, and a share of the server status checks report the servers
+ * down. The calls are timed and traced like the JNI calls, so the backend time can be
+ * told apart from the gateway time.
+ *
+ * The latency distributions are written `fixed:<ms>`, `uniform:<min ms>-<max ms>`,
+ * `exponential:<mean ms>` or `lognormal:<median ms>,<p99 ms>`, and `0` disables the
+ * latency. The result mix is written `success=80,challenge=10,grid=5,failure=5`, the
+ * weights being relative.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import CRYPTOCard.API.CRYPTOCardAPI;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+
+
+public class SimulatedAuthenticator implements Authenticator {
+
+    /**
+     * The logger for the SimulatedAuthenticator class.
+     */
+
+    private static final Logger Log = Logger.getLogger(SimulatedAuthenticator.class.getName());
+
+
+    /**
+     * The outcomes of a simulated authentication.
+     */
+
+    public enum Outcome {
+        SUCCESS, CHALLENGE, GRID, FAILURE
+    }
+
+
+    /**
+     * The number of cells of the simulated GrIDsure grids, 5 x 5 as issued by the SafeNet servers.
+     */
+
+    private static final int GRID_CELLS = 25;
+
+
+    /**
+     * The supplier of the latency of each backend call, in nanoseconds.
+     */
+
+    private final LongSupplier latency;
+
+
+    /**
+     * The cumulative weights of the outcomes, indexed by {@link Outcome#ordinal()}.
+     */
+
+    private final double[] cumulativeWeights;
+
+
+    /**
+     * The share of the calls failing as if the backend threw, and the share of the calls stalling.
+     */
+
+    private final double errorRate;
+    private final double stallRate;
+
+
+    /**
+     * How long a stalled call waits, in milliseconds.
+     */
+
+    private final long stallMillis;
+
+
+    /**
+     * The share of the server status checks reporting the servers down.
+     */
+
+    private final double downRate;
+
+
+    /**
+     * The metrics recording the latency of the simulated calls.
+     */
+
+    private GatewayMetrics metrics = GatewayMetrics.NOOP;
+
+
+    /**
+     * The tracing creating the span of each validation.
+     */
+
+    private GatewayTracing tracing = GatewayTracing.NOOP;
+
+
+    /**
+     * Constructs a new SimulatedAuthenticator.
+     *
+     * @param latency the latency distribution of the backend calls, e.g. `lognormal:5,50`
+     * @param resultMix the weights of the outcomes, e.g. `success=80,challenge=10,grid=5,failure=5`
+     * @param errorRate the share of the calls failing as if the backend threw, from 0 to 1
+     * @param stallRate the share of the calls stalling, from 0 to 1
+     * @param stallMillis how long a stalled call waits, in milliseconds
+     * @param downRate the share of the server status checks reporting the servers down, from 0 to 1
+     * @throws IllegalArgumentException if the latency distribution or the result mix is malformed
+     */
+
+    public SimulatedAuthenticator(String latency, String resultMix, double errorRate, double stallRate,
+            long stallMillis, double downRate) {
+        this.latency = parseLatency(latency);
+        this.cumulativeWeights = parseResultMix(resultMix);
+        this.errorRate = errorRate;
+        this.stallRate = stallRate;
+        this.stallMillis = Math.max(stallMillis, 0);
+        this.downRate = downRate;
+    }
+
+
+    /**
+     * Sets the metrics recording the latency of the simulated calls.
+     *
+     * @param metrics the metrics of the application
+     * @return this SimulatedAuthenticator object
+     */
+
+    public SimulatedAuthenticator setMetrics(GatewayMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+
+    /**
+     * Sets the tracing creating the span of each validation.
+     *
+     * @param tracing the tracing of the application
+     * @return this SimulatedAuthenticator object
+     */
+
+    public SimulatedAuthenticator setTracing(GatewayTracing tracing) {
+        this.tracing = tracing;
+        return this;
+    }
+
+
+    @Override
+    public AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest) {
+        Span span = this.tracing.startSpan("safenet.validate");
+        try (Scope scope = span.makeCurrent()) {
+            return this.simulate(authenticationRequest.getUsername(), nextOutcome());
+        } finally {
+            span.end();
+        }
+    }
+
+
+    @Override
+    public String getGridChallengeData(String username, String state, Optional<String> organization) {
+        AuthenticationResponse response = this.simulate(username, Outcome.GRID);
+        return response.getChallenge().getChallengeData();
+    }
+
+
+    /**
+     * Renders the grid with the CRYPTOCard API, whose rendering is plain Java and does not need the JNI library.
+     */
+
+    @Override
+    public BufferedImage convertGridDataToImage(String challenge) {
+        try {
+            return CRYPTOCardAPI.getInstance().getGridSureGrid(challenge);
+        } catch (Exception e) {
+            Log.log(Level.SEVERE, "An error occurred while converting grid string to image: ", e);
+            return new BufferedImage(0, 0, 0);
+        }
+    }
+
+
+    @Override
+    public boolean getServerStatus() {
+        this.pause();
+        return !chance(this.downRate);
+    }
+
+
+    /**
+     * Returns true: the simulator has no library to load.
+     */
+
+    @Override
+    public boolean isLibraryLoaded() {
+        return true;
+    }
+
+
+    /**
+     * Simulates a backend call with the specified outcome, unless an error is injected.
+     *
+     * @param username the username of the request
+     * @param outcome the outcome of the call
+     * @return the simulated response
+     */
+
+    private AuthenticationResponse simulate(String username, Outcome outcome) {
+        AuthenticationResponse response = new AuthenticationResponse(username);
+        GatewayMetrics.Stage stage = this.metrics.start(GatewayMetrics.JNI_AUTHENTICATE);
+        AuthenticationResponse recorded = null;
+        try {
+            // Waited for like the JNI calls, until the deadline of the request at most
+            RequestDeadline.call(GatewayMetrics.JNI_AUTHENTICATE, () -> {
+                this.pause();
+                return null;
+            });
+            if (chance(this.errorRate)) {
+                throw new IllegalStateException("Simulated backend error");
+            }
+            switch (outcome) {
+                case SUCCESS:
+                    response.setStatus(ResponseCode.AUTH_SUCCESS);
+                    break;
+                case CHALLENGE:
+                    response.setStatus(ResponseCode.AUTH_CHALLENGE).setChallenge(new AuthenticationChallenge()
+                            .setChallengeName("")
+                            .setChallengeData("Enter your passcode")
+                            .setState(UUID.randomUUID().toString()));
+                    break;
+                case GRID:
+                    response.setStatus(ResponseCode.AUTH_CHALLENGE).setChallenge(new AuthenticationChallenge()
+                            .setChallengeName("GrIDsure")
+                            .setChallengeData(randomGrid())
+                            .setState(UUID.randomUUID().toString()));
+                    break;
+                default:
+                    response.setStatus(ResponseCode.AUTH_FAILURE);
+            }
+            recorded = response;
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // As the JNI backend, a failed call leaves the default denial
+            Log.log(Level.FINE, "Injected error for user: " + username, e);
+        } finally {
+            this.metrics.stop(stage, recorded);
+        }
+        return response;
+    }
+
+
+    /**
+     * Waits for the simulated latency of a backend call, or for the stall time if a stall is injected.
+     */
+
+    private void pause() {
+        long nanos = chance(this.stallRate) ? TimeUnit.MILLISECONDS.toNanos(this.stallMillis) : this.latency.getAsLong();
+        long deadline = System.nanoTime() + nanos;
+        // parkNanos may return early, e.g. on spurious wake-ups
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Draws an outcome from the result mix.
+     */
+
+    private Outcome nextOutcome() {
+        double draw = ThreadLocalRandom.current().nextDouble();
+        Outcome[] outcomes = Outcome.values();
+        for (int i = 0; i < outcomes.length - 1; i++) {
+            if (draw < this.cumulativeWeights[i]) {
+                return outcomes[i];
+            }
+        }
+        return outcomes[outcomes.length - 1];
+    }
+
+
+    /**
+     * Returns a random grid challenge string of digits.
+     */
+
+    private static String randomGrid() {
+        char[] cells = new char[GRID_CELLS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (char) ('0' + random.nextInt(10));
+        }
+        return new String(cells);
+    }
+
+
+    private static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+
+    /**
+     * Parses a latency distribution into a supplier of latencies in nanoseconds.
+     *
+     * @param spec the distribution, e.g. `lognormal:5,50`
+     * @return the supplier of latencies
+     * @throws IllegalArgumentException if the distribution is malformed
+     */
+
+    static LongSupplier parseLatency(String spec) {
+        String trimmed = spec == null ? "" : spec.trim().toLowerCase(Locale.ROOT);
+        if (trimmed.isEmpty() || trimmed.equals("0")) {
+            return () -> 0;
+        }
+        int colon = trimmed.indexOf(':');
+        String kind = colon < 0 ? "" : trimmed.substring(0, colon);
+        String[] args = trimmed.substring(colon + 1).split("[-,]");
+        try {
+            switch (kind) {
+                case "fixed": {
+                    long nanos = toNanos(Double.parseDouble(args[0]));
+                    return () -> nanos;
+                }
+                case "uniform": {
+                    long min = toNanos(Double.parseDouble(args[0]));
+                    long max = toNanos(Double.parseDouble(args[1]));
+                    if (max < min) {
+                        break;
+                    }
+                    return () -> min + (long) (ThreadLocalRandom.current().nextDouble() * (max - min));
+                }
+                case "exponential": {
+                    double mean = Double.parseDouble(args[0]);
+                    return () -> toNanos(-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+                }
+                case "lognormal": {
+                    double median = Double.parseDouble(args[0]);
+                    double p99 = Double.parseDouble(args[1]);
+                    if (median <= 0 || p99 < median) {
+                        break;
+                    }
+                    // 2.326 is the 99th percentile of the standard normal distribution
+                    double sigma = Math.log(p99 / median) / 2.326;
+                    return () -> toNanos(median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+                }
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+    }
+
+
+    /**
+     * Parses a result mix into the cumulative weights of the outcomes, normalized to 1.
+     *
+     * @param spec the result mix, e.g. `success=80,challenge=10,grid=5,failure=5`
+     * @return the cumulative weights, indexed by {@link Outcome#ordinal()}
+     * @throws IllegalArgumentException if the result mix is malformed
+     */
+
+    static double[] parseResultMix(String spec) {
+        double[] weights = new double[Outcome.values().length];
+        double total = 0;
+        try {
+            for (String entry : spec.split(",")) {
+                String[] pair = entry.split("=");
+                double weight = Double.parseDouble(pair[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight in result mix: " + spec);
+                }
+                weights[Outcome.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)).ordinal()] += weight;
+                total += weight;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid result mix: " + spec, e);
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Empty result mix: " + spec);
+        }
+        double cumulative = 0;
+        for (int i = 0; i < weights.length; i++) {
+            cumulative += weights[i] / total;
+            weights[i] = cumulative;
+        }
+        return weights;
+    }
+
+
+    private static long toNanos(double millis) {
+        return (long) (millis * 1_000_000);
+    }
+
+}
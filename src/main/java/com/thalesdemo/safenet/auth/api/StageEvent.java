@@ -0,0 +1,83 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The JDK Flight Recorder event of a stage of the authentication and grid image paths,
+ * emitted by {@link GatewayMetrics} for every timed stage: the API key check, the JNI
+ * `Authenticate` call, the TokenValidator SOAP calls, the SPS parking calls and the grid
+ * rendering and encoding.
+ *
+ * The events are recorded on the thread that ran the stage, so a flight recording shows
+ * them next to the GC pauses, lock contention and socket reads that delayed them.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+@Name(StageEvent.NAME)
+@Label("Authentication Stage")
+@Category({ "SafeNet Auth API" })
+@Description("A timed stage of an authentication or grid image request")
+@StackTrace(false)
+public class StageEvent extends Event {
+
+    /**
+     * The name of the event type.
+     */
+
+    public static final String NAME = "com.thalesdemo.safenet.Stage";
+
+
+    /**
+     * The name of the stage, e.g. `safenet.jni.authenticate`.
+     */
+
+    @Label("Stage")
+    String stage;
+
+
+    /**
+     * The outcome of the stage, e.g. `success` or `error`.
+     */
+
+    @Label("Outcome")
+    String outcome;
+
+
+    /**
+     * The code returned by the backend: the response code name of the JNI call or the return value of a
+     * TokenValidator call, if any.
+     */
+
+    @Label("Code")
+    String code;
+
+
+    /**
+     * The other tags of the stage, e.g. `format=png`.
+     */
+
+    @Label("Tags")
+    String tags;
+
+}
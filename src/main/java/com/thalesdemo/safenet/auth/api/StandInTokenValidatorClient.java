@@ -0,0 +1,172 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A {@link TokenValidatorClient} talking to a local stand-in of the TokenValidator,
+ * selected with the TOKEN_VALIDATOR_STANDIN_URL environment variable to load-test the
+ * push and TokenValidator OTP paths without reaching the SafeNet Cloud.
+ *
+ * The messages of the SafeNet TokenValidator are encrypted with the agent key by the
+ * closed TokenValidator adapter, so the stand-in speaks an unencrypted SOAP rendition
+ * of the same verify-credentials call instead:
+ *
+ *   <soap:Envelope><soap:Body><VerifyCredentials>
+ *     <username/><userip/><password/><pushotpauthid/><pushotpspsstatus/>
+ *   </VerifyCredentials></soap:Body></soap:Envelope>
+ *
+ * answered with a `VerifyCredentialsResponse` element holding the `returnvalue` and
+ * the `pushotpauthid` URL of the push on the SPS parking server, as the SafeNet Cloud
+ * does. The stand-in server of the tests, `StandInSafeNetServer`, also serves that
+ * SPS parking endpoint.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+
+public class StandInTokenValidatorClient implements TokenValidatorClient {
+
+    /**
+     * The SOAP envelope wrapping the requests and responses.
+     */
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>";
+    private static final String ENVELOPE_END = "</soap:Body></soap:Envelope>";
+
+
+    /**
+     * The connect and read timeouts, as used with the SPS parking server.
+     */
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+
+    /**
+     * The URL of the stand-in TokenValidator.
+     */
+
+    private final String url;
+
+
+    /**
+     * The RestTemplate sending the requests.
+     */
+
+    private final RestTemplate restTemplate;
+
+
+    /**
+     * Constructs a new StandInTokenValidatorClient.
+     *
+     * @param url the URL of the stand-in TokenValidator
+     * @param tracing the tracing propagating the trace context to the stand-in
+     */
+
+    public StandInTokenValidatorClient(String url, GatewayTracing tracing) {
+        this.url = url;
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+        requestFactory.setReadTimeout(READ_TIMEOUT);
+        this.restTemplate = new RestTemplate(requestFactory);
+        this.restTemplate.getInterceptors().add(tracing.clientInterceptor());
+    }
+
+
+    @Override
+    public List<String> getUrls() {
+        return Collections.singletonList(this.url);
+    }
+
+
+    @Override
+    public Result verifyCredentials(Request request) {
+        StringBuilder body = new StringBuilder(ENVELOPE_START).append("<VerifyCredentials>");
+        appendElement(body, "username", request.getUsername());
+        appendElement(body, "userip", request.getUserIpAddress());
+        appendElement(body, "password", request.getPassword());
+        appendElement(body, "pushotpauthid", request.getPushOtpAuthId());
+        appendElement(body, "pushotpspsstatus", request.getPushOtpSpsStatus());
+        body.append("</VerifyCredentials>").append(ENVELOPE_END);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_XML);
+        String response = this.restTemplate.postForObject(this.url, new HttpEntity<>(body.toString(), headers), String.class);
+        if (response == null || !response.contains("<VerifyCredentialsResponse>")) {
+            return null;
+        }
+        return new Result(readElement(response, "returnvalue"), readElement(response, "pushotpauthid"));
+    }
+
+
+    /**
+     * Renders a response of the stand-in TokenValidator.
+     *
+     * @param returnValue the return value
+     * @param pushOtpAuthId the URL of the push on the SPS parking server, or null
+     * @return the SOAP response
+     */
+
+    public static String renderResponse(String returnValue, String pushOtpAuthId) {
+        StringBuilder body = new StringBuilder(ENVELOPE_START).append("<VerifyCredentialsResponse>");
+        appendElement(body, "returnvalue", returnValue);
+        appendElement(body, "pushotpauthid", pushOtpAuthId);
+        return body.append("</VerifyCredentialsResponse>").append(ENVELOPE_END).toString();
+    }
+
+
+    /**
+     * Returns the text of the first element with the specified name, or null if there is none.
+     *
+     * @param xml the SOAP message
+     * @param name the element name
+     * @return the unescaped text of the element, or null
+     */
+
+    public static String readElement(String xml, String name) {
+        int start = xml.indexOf("<" + name + ">");
+        int end = xml.indexOf("</" + name + ">");
+        if (start < 0 || end < start) {
+            return null;
+        }
+        return xml.substring(start + name.length() + 2, end)
+                .replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+    }
+
+
+    /**
+     * Appends an element with the specified text, unless the text is null.
+     */
+
+    private static void appendElement(StringBuilder xml, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        xml.append('<').append(name).append('>')
+                .append(value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;"))
+                .append("</").append(name).append('>');
+    }
+
+}
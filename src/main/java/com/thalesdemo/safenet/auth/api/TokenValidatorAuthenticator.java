@@ -0,0 +1,214 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An {@link Authenticator} validating the OTP passcodes of selected organizations over
+ * the TokenValidator protocol, through {@link CustomAuthenticate#verifyOTP}, instead of
+ * the CRYPTOCard JNI library. These validations go over HTTP, so unlike the JNI calls
+ * they share the connection pool, the timeouts, the metrics and the tracing of the
+ * push authentications.
+ *
+ * The other organizations, the challenges and grids and the server status are served
+ * by the wrapped backend, since the TokenValidator adapter does not expose the
+ * challenge name nor the grid challenge data. The answers to those challenges go back
+ * to the backend that issued their state: the states issued by the TokenValidator,
+ * when it challenges a passcode, carry the {@link #STATE_PREFIX}, and any other state
+ * was issued by the backend. The organizations are listed in the
+ * TOKEN_VALIDATOR_OTP_ORGANIZATIONS environment variable, `*` selecting all of them.
+ * The requests without an organization belong to the default organization.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+
+
+public class TokenValidatorAuthenticator implements Authenticator {
+
+    /**
+     * The value of TOKEN_VALIDATOR_OTP_ORGANIZATIONS selecting all organizations.
+     */
+
+    public static final String ALL_ORGANIZATIONS = "*";
+
+
+    /**
+     * The prefix of the challenge states issued by the TokenValidator, telling them apart from those of the backend.
+     */
+
+    static final String STATE_PREFIX = "tokenvalidator:";
+
+
+    /**
+     * The backend serving the other organizations, the grids and the server status.
+     */
+
+    private final Authenticator backend;
+
+
+    /**
+     * The TokenValidator client of the gateway, reconfigured with the configuration files.
+     */
+
+    private final CustomAuthenticate tokenValidator;
+
+
+    /**
+     * The lowercase names of the organizations validated over the TokenValidator protocol.
+     */
+
+    private final Set<String> organizations;
+
+
+    /**
+     * Whether all organizations are validated over the TokenValidator protocol.
+     */
+
+    private final boolean allOrganizations;
+
+
+    /**
+     * The organization of the requests without one, or null.
+     */
+
+    private final String defaultOrganization;
+
+
+    /**
+     * The tracing creating the span of each validation.
+     */
+
+    private GatewayTracing tracing = GatewayTracing.NOOP;
+
+
+    /**
+     * Constructs a new TokenValidatorAuthenticator.
+     *
+     * @param backend the backend serving the other organizations, the grids and the server status
+     * @param tokenValidator the TokenValidator client of the gateway
+     * @param organizations the comma-separated organizations validated over the TokenValidator protocol, or `*`
+     * @param defaultOrganization the organization of the requests without one, or null
+     */
+
+    public TokenValidatorAuthenticator(Authenticator backend, CustomAuthenticate tokenValidator, String organizations,
+            String defaultOrganization) {
+        this.backend = backend;
+        this.tokenValidator = tokenValidator;
+        this.organizations = Arrays.stream(organizations.split(","))
+                .map(organization -> organization.trim().toLowerCase(Locale.ROOT))
+                .filter(organization -> !organization.isEmpty())
+                .collect(Collectors.toSet());
+        this.allOrganizations = this.organizations.contains(ALL_ORGANIZATIONS);
+        this.defaultOrganization = defaultOrganization;
+    }
+
+
+    /**
+     * Sets the tracing creating the span of each validation.
+     *
+     * @param tracing the tracing of the application
+     * @return this TokenValidatorAuthenticator object
+     */
+
+    public TokenValidatorAuthenticator setTracing(GatewayTracing tracing) {
+        this.tracing = tracing;
+        return this;
+    }
+
+
+    /**
+     * Returns whether the OTP passcodes of the specified organization are validated over the TokenValidator protocol.
+     *
+     * @param organization the organization of the request, or null for the default organization
+     * @return true if the organization is routed to the TokenValidator
+     */
+
+    public boolean isRouted(String organization) {
+        if (this.allOrganizations) {
+            return true;
+        }
+        String name = organization != null ? organization : this.defaultOrganization;
+        return name != null && this.organizations.contains(name.trim().toLowerCase(Locale.ROOT));
+    }
+
+
+    /**
+     * Validates the passcodes of the routed organizations over the TokenValidator protocol, and the answers to the
+     * challenges it issued. The challenge requests and the answers to the challenges of the backend, such as the
+     * GrIDsure grids, are served by the backend.
+     */
+
+    @Override
+    public AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest) {
+        String code = authenticationRequest.getCode();
+        String state = authenticationRequest.getState();
+        boolean tokenValidatorState = state != null && state.startsWith(STATE_PREFIX);
+        // The fake challenges of the anonymous user never reach a server, so they stay with the backend
+        if ("anonymousUser".equals(authenticationRequest.getUsername())
+                || !isRouted(authenticationRequest.getOrganization())
+                || (state != null && !state.isEmpty() && !tokenValidatorState)
+                || ((code == null || code.isEmpty()) && !tokenValidatorState)) {
+            return this.backend.validateCode(authenticationRequest);
+        }
+
+        Span span = this.tracing.startSpan("safenet.validate");
+        span.setAttribute("safenet.engine", "tokenvalidator");
+        try (Scope scope = span.makeCurrent()) {
+            AuthenticationResponse response = this.tokenValidator.verifyOTP(authenticationRequest.getUsername(), code,
+                    tokenValidatorState ? state.substring(STATE_PREFIX.length()) : null, null);
+            if (response.isChallenged() && response.getChallenge() != null
+                    && response.getChallenge().getState() != null) {
+                response.getChallenge().setState(STATE_PREFIX + response.getChallenge().getState());
+            }
+            return response;
+        } finally {
+            span.end();
+        }
+    }
+
+
+    @Override
+    public String getGridChallengeData(String username, String state, Optional<String> organization) {
+        return this.backend.getGridChallengeData(username, state, organization);
+    }
+
+
+    @Override
+    public BufferedImage convertGridDataToImage(String challenge) {
+        return this.backend.convertGridDataToImage(challenge);
+    }
+
+
+    @Override
+    public boolean getServerStatus() {
+        return this.backend.getServerStatus();
+    }
+
+
+    @Override
+    public boolean isLibraryLoaded() {
+        return this.backend.isLibraryLoaded();
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A client of the TokenValidator verify-credentials call, used by
+ * {@link CustomAuthenticate} for the two legs of a push authentication.
+ *
+ * The client of the SafeNet Cloud is {@link SafeNetTokenValidatorClient}, which goes
+ * through the TokenValidator adapter of the SafeNet agents. The
+ * {@link StandInTokenValidatorClient} talks to a local stand-in server instead, for
+ * load tests that must not reach the SafeNet Cloud.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.List;
+
+
+public interface TokenValidatorClient {
+
+    /**
+     * Sends a verify-credentials request to the TokenValidator.
+     *
+     * @param request the request
+     * @return the result, or null if the TokenValidator returned no response
+     */
+
+    Result verifyCredentials(Request request);
+
+
+    /**
+     * Returns the TokenValidator URLs the requests are sent to, from which the SPS parking servers the pushes may be
+     * parked on are derived.
+     *
+     * @return the URLs, primary first
+     */
+
+    List<String> getUrls();
+
+
+    /**
+     * A verify-credentials request.
+     */
+
+    final class Request {
+
+        private final String username;
+        private final String userIpAddress;
+        private final String password;
+        private final String pushOtpAuthId;
+        private final String pushOtpSpsStatus;
+
+        /**
+         * Constructs a new Request.
+         *
+         * @param username the username
+         * @param userIpAddress the IP address of the user, or null
+         * @param password the password, `p` for the push requests
+         * @param pushOtpAuthId the push authentication id returned by the SPS parking server, or null
+         * @param pushOtpSpsStatus the push status returned by the SPS parking server, or null
+         */
+
+        public Request(String username, String userIpAddress, String password, String pushOtpAuthId,
+                String pushOtpSpsStatus) {
+            this.username = username;
+            this.userIpAddress = userIpAddress;
+            this.password = password;
+            this.pushOtpAuthId = pushOtpAuthId;
+            this.pushOtpSpsStatus = pushOtpSpsStatus;
+        }
+
+        public String getUsername() {
+            return this.username;
+        }
+
+        public String getUserIpAddress() {
+            return this.userIpAddress;
+        }
+
+        public String getPassword() {
+            return this.password;
+        }
+
+        public String getPushOtpAuthId() {
+            return this.pushOtpAuthId;
+        }
+
+        public String getPushOtpSpsStatus() {
+            return this.pushOtpSpsStatus;
+        }
+
+        @Override
+        public String toString() {
+            // The password is a credential of the user, except for the push trigger
+            return "Request [username=" + this.username + ", userIpAddress=" + this.userIpAddress
+                    + ", password=" + ("p".equals(this.password) ? this.password : AuditLog.redact(this.password))
+                    + ", pushOtpAuthId=" + this.pushOtpAuthId + ", pushOtpSpsStatus=" + this.pushOtpSpsStatus + "]";
+        }
+    }
+
+
+    /**
+     * The result of a verify-credentials request.
+     */
+
+    final class Result {
+
+        private final String returnValue;
+        private final String pushOtpAuthId;
+
+        /**
+         * Constructs a new Result.
+         *
+         * @param returnValue the return value of the TokenValidator, e.g. `1` for a success
+         * @param pushOtpAuthId the URL of the push authentication on the SPS parking server, or null
+         */
+
+        public Result(String returnValue, String pushOtpAuthId) {
+            this.returnValue = returnValue;
+            this.pushOtpAuthId = pushOtpAuthId;
+        }
+
+        public String getReturnValue() {
+            return this.returnValue;
+        }
+
+        public String getPushOtpAuthId() {
+            return this.pushOtpAuthId;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [returnValue=" + this.returnValue + ", pushOtpAuthId=" + this.pushOtpAuthId + "]";
+        }
+    }
+
+}
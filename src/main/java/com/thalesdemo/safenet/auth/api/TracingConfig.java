@@ -0,0 +1,155 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Configures the OpenTelemetry SDK used by {@link GatewayTracing}.
+ *
+ * The spans are exported by the {@link SpanExporter} bean of the application context
+ * when there is one, e.g. an OTLP exporter declared by a deployment or the in-memory
+ * exporter of the tests. Otherwise the TRACING_EXPORTER environment variable selects a
+ * built-in exporter: `logging` writes each span to the application log, and `none`,
+ * the default, records nothing while still propagating the trace context of the
+ * callers to the outbound calls.
+ *
+ * The W3C `traceparent`, `tracestate` and `baggage` headers are propagated, and the
+ * root spans are sampled with the TRACING_SAMPLE_RATIO ratio (1.0 by default). Spans
+ * whose parent was sampled by the caller are always sampled.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.baggage.propagation.W3CBaggagePropagator;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.exporter.logging.LoggingSpanExporter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SdkTracerProviderBuilder;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+
+
+@Configuration
+public class TracingConfig {
+
+    /**
+     * The logger for the TracingConfig class.
+     */
+
+    private static final Logger Log = Logger.getLogger(TracingConfig.class.getName());
+
+
+    /**
+     * The service name reported with every span.
+     */
+
+    private static final String SERVICE_NAME = "safenet-auth-api";
+
+
+    /**
+     * Returns the tracer provider, exporting the sampled spans in batches.
+     *
+     * @param exporters the span exporter of the application context, if any
+     * @param exporterName the built-in exporter used when the context has none: `logging` or `none`
+     * @param sampleRatio the ratio of the root spans that are sampled
+     * @return the tracer provider, shut down with the application context to flush the pending spans
+     */
+
+    @Bean(destroyMethod = "close")
+    SdkTracerProvider sdkTracerProvider(ObjectProvider<SpanExporter> exporters,
+            @Value("${TRACING_EXPORTER:none}") String exporterName,
+            @Value("${TRACING_SAMPLE_RATIO:1.0}") double sampleRatio) {
+        SpanExporter exporter = exporters.getIfAvailable(() -> builtInExporter(exporterName));
+
+        SdkTracerProviderBuilder builder = SdkTracerProvider.builder()
+                .setResource(Resource.getDefault().merge(
+                        Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), SERVICE_NAME))));
+        if (exporter == null) {
+            // The spans are not recorded, but their ids are still generated and propagated
+            builder.setSampler(Sampler.alwaysOff());
+        } else {
+            builder.setSampler(Sampler.parentBased(Sampler.traceIdRatioBased(sampleRatio)))
+                    .addSpanProcessor(BatchSpanProcessor.builder(exporter).build());
+            Log.info("Exporting traces with " + exporter + ", sampling " + sampleRatio + " of the root spans");
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * Returns the OpenTelemetry instance, propagating the W3C trace context and baggage.
+     *
+     * @param tracerProvider the tracer provider
+     * @return the OpenTelemetry instance
+     */
+
+    @Bean
+    OpenTelemetry openTelemetry(SdkTracerProvider tracerProvider) {
+        return OpenTelemetrySdk.builder()
+                .setTracerProvider(tracerProvider)
+                .setPropagators(ContextPropagators.create(TextMapPropagator.composite(
+                        W3CTraceContextPropagator.getInstance(), W3CBaggagePropagator.getInstance())))
+                .build();
+    }
+
+
+    /**
+     * Registers the filter starting the server span of each API request, ahead of the Spring Security filter chain
+     * so that the API key check is part of the trace.
+     *
+     * @param tracing the gateway tracing
+     * @return the filter registration
+     */
+
+    @Bean
+    FilterRegistrationBean<TracingFilter> tracingFilter(GatewayTracing tracing) {
+        FilterRegistrationBean<TracingFilter> registration = new FilterRegistrationBean<>(new TracingFilter(tracing));
+        registration.addUrlPatterns("/api/*");
+        registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 2);
+        return registration;
+    }
+
+
+    /**
+     * Returns the built-in exporter with the specified name, or null to record no spans.
+     */
+
+    private static SpanExporter builtInExporter(String name) {
+        if ("logging".equalsIgnoreCase(name.trim())) {
+            return LoggingSpanExporter.create();
+        }
+        if (!"none".equalsIgnoreCase(name.trim())) {
+            Log.warning("Unknown TRACING_EXPORTER " + name + "; traces are not exported");
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Hands each completed authentication and grid image request to the
+ * {@link TrafficRecorder}, with its kind, its shape and its timing.
+ *
+ * The kind of a request is told by the route template of its handler, so the requests
+ * rejected before reaching a handler, e.g. by the API key check, are not captured. The
+ * shape of an authentication request, whether it carried a passcode, a state, and so
+ * on, is left in a request attribute by the {@link AuthenticateController}.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+
+public class TrafficCaptureFilter extends OncePerRequestFilter {
+
+    /**
+     * The recorder of the captured requests.
+     */
+
+    private final TrafficRecorder recorder;
+
+
+    /**
+     * Constructs a new TrafficCaptureFilter.
+     *
+     * @param recorder the recorder of the captured requests
+     */
+
+    public TrafficCaptureFilter(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long arrivalNanos = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            TrafficRecord.Kind kind = kind(request);
+            if (kind != null) {
+                int flags = 0;
+                int format = TrafficRecord.NO_FORMAT;
+                if (kind == TrafficRecord.Kind.OTP) {
+                    Object shape = request.getAttribute(TrafficRecord.SHAPE_ATTRIBUTE);
+                    if (shape instanceof Integer) {
+                        kind = TrafficRecord.Kind.values()[(Integer) shape >>> 8];
+                        flags = (Integer) shape & 0xFF;
+                    }
+                } else {
+                    format = GridImageFormat.negotiate(request.getHeader(HttpHeaders.ACCEPT)).ordinal();
+                }
+                this.recorder.record(kind, flags, format, username(request), response.getStatus(), arrivalNanos,
+                        System.nanoTime() - arrivalNanos);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the kind of the specified request, OTP for all authentication requests, or null if it did not reach a
+     * handler.
+     */
+
+    static TrafficRecord.Kind kind(HttpServletRequest request) {
+        Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (route == null) {
+            return null;
+        }
+        switch (route.toString()) {
+            case "/api/v1/authenticate/{username}":
+                return TrafficRecord.Kind.OTP;
+            case "/api/v1/authenticate/challenge/grid/{username}":
+                return TrafficRecord.Kind.GRID_CHALLENGE;
+            case "/api/v1/authenticate/render/grid":
+                return TrafficRecord.Kind.GRID_RENDER;
+            case "/api/v1/authenticate/render/grid/{string}":
+                return TrafficRecord.Kind.GRID_RENDER_GET;
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Returns the username of the specified request, or the challenge string of a grid rendered from its URL, so that
+     * the replays of the renders hit the image cache as often, or null if its route has neither.
+     */
+
+    private static String username(HttpServletRequest request) {
+        Object variables = request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (variables instanceof Map) {
+            Object username = ((Map<?, ?>) variables).get("username");
+            if (username == null) {
+                username = ((Map<?, ?>) variables).get("string");
+            }
+            return username == null ? null : username.toString();
+        }
+        return null;
+    }
+
+
+    /**
+     * Registers the filter ahead of the Spring Security filter chain and the {@link RequestDeadlineFilter} when the
+     * capture is enabled.
+     */
+
+    @Configuration
+    static class Registration {
+
+        /**
+         * Returns the registration of the filter, disabled unless TRAFFIC_CAPTURE_FILE is set.
+         *
+         * @param recorder the recorder of the captured requests
+         * @return the filter registration
+         */
+
+        @Bean
+        FilterRegistrationBean<TrafficCaptureFilter> trafficCaptureFilter(TrafficRecorder recorder) {
+            FilterRegistrationBean<TrafficCaptureFilter> registration =
+                    new FilterRegistrationBean<>(new TrafficCaptureFilter(recorder));
+            registration.addUrlPatterns(ServerTimingFilter.URL_PATTERNS);
+            // Outside of the deadline filter, so that the requests answered after their deadline are seen as 504s
+            registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 2);
+            registration.setEnabled(recorder.isEnabled());
+            return registration;
+        }
+    }
+
+}
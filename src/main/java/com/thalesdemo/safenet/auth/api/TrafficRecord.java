@@ -0,0 +1,270 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The anonymized shape and timing of an API request, captured by the
+ * {@link TrafficRecorder} to be replayed later for performance regression tests.
+ *
+ * A record only holds the kind of the request, whether it carried a passcode, a
+ * challenge state, an organization and a push mode, the negotiated image format, a
+ * keyed hash of the username, the HTTP status and the timings. Passcodes, states,
+ * organization names and grid challenge strings are never captured.
+ *
+ * The capture file is a header, the magic number `SNCP`, a version and the wall-clock
+ * start time of the capture, followed by the records. Each record is the offset of
+ * its arrival from the arrival of the previous record, in microseconds, as a
+ * zigzag-encoded variable-length integer, then the kind, flags and format bytes, the
+ * 8-byte username hash, and the status and duration, in microseconds, as
+ * variable-length integers: around 16 bytes per request.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+public final class TrafficRecord {
+
+    /**
+     * The kinds of the captured requests.
+     */
+
+    public enum Kind {
+        OTP, PUSH, GRID_CHALLENGE, GRID_RENDER, GRID_RENDER_GET
+    }
+
+
+    /**
+     * The magic number and the version of the capture files.
+     */
+
+    public static final int MAGIC = 0x534E4350;
+    public static final int VERSION = 1;
+
+
+    /**
+     * The request attribute holding the flags of an authentication request, set by the {@link AuthenticateController}.
+     */
+
+    public static final String SHAPE_ATTRIBUTE = TrafficRecord.class.getName() + ".shape";
+
+
+    /**
+     * The flags of the records.
+     */
+
+    public static final int CODE = 1;
+    public static final int STATE = 2;
+    public static final int ORGANIZATION = 4;
+    public static final int PUSH_MODE = 8;
+
+
+    /**
+     * The format byte of the records without an image format.
+     */
+
+    public static final int NO_FORMAT = 0xFF;
+
+
+    private final long arrivalMicros;
+    private final Kind kind;
+    private final int flags;
+    private final int format;
+    private final long userHash;
+    private final int status;
+    private final long durationMicros;
+
+
+    /**
+     * Constructs a new TrafficRecord.
+     *
+     * @param arrivalMicros the arrival of the request, in microseconds since the start of the capture
+     * @param kind the kind of the request
+     * @param flags the flags of the request
+     * @param format the ordinal of the {@link GridImageFormat} of the response, or {@link #NO_FORMAT}
+     * @param userHash the keyed hash of the username, or of the challenge string of a grid rendered from its URL, or 0
+     * @param status the HTTP status of the response
+     * @param durationMicros the duration of the request, in microseconds
+     */
+
+    public TrafficRecord(long arrivalMicros, Kind kind, int flags, int format, long userHash, int status,
+            long durationMicros) {
+        this.arrivalMicros = arrivalMicros;
+        this.kind = kind;
+        this.flags = flags;
+        this.format = format;
+        this.userHash = userHash;
+        this.status = status;
+        this.durationMicros = durationMicros;
+    }
+
+
+    /**
+     * Returns the flags describing an authentication request.
+     *
+     * @param push whether the request is a push authentication
+     * @param code whether the request carries a passcode
+     * @param state whether the request carries a challenge state
+     * @param organization whether the request names an organization
+     * @param pushMode whether the request sets a push mode
+     * @return the flags, with the kind of the request in the upper bits
+     */
+
+    public static int shape(boolean push, boolean code, boolean state, boolean organization, boolean pushMode) {
+        return (push ? Kind.PUSH : Kind.OTP).ordinal() << 8 | (code ? CODE : 0) | (state ? STATE : 0)
+                | (organization ? ORGANIZATION : 0) | (pushMode ? PUSH_MODE : 0);
+    }
+
+
+    public long getArrivalMicros() {
+        return this.arrivalMicros;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public int getFormat() {
+        return this.format;
+    }
+
+    public long getUserHash() {
+        return this.userHash;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public long getDurationMicros() {
+        return this.durationMicros;
+    }
+
+
+    /**
+     * Writes the header of a capture file.
+     *
+     * @param out the output of the capture file
+     * @param startMillis the wall-clock start time of the capture, in milliseconds since the epoch
+     * @throws IOException if the header could not be written
+     */
+
+    public static void writeHeader(DataOutput out, long startMillis) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(startMillis);
+    }
+
+
+    /**
+     * Reads the header of a capture file.
+     *
+     * @param in the input of the capture file
+     * @return the wall-clock start time of the capture, in milliseconds since the epoch
+     * @throws IOException if the file is not a capture file of a supported version
+     */
+
+    public static long readHeader(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a traffic capture file");
+        }
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported traffic capture version: " + version);
+        }
+        return in.readLong();
+    }
+
+
+    /**
+     * Writes this record.
+     *
+     * @param out the output of the capture file
+     * @param previousArrivalMicros the arrival of the previous record written, or 0 for the first one
+     * @throws IOException if the record could not be written
+     */
+
+    public void writeTo(DataOutput out, long previousArrivalMicros) throws IOException {
+        long delta = this.arrivalMicros - previousArrivalMicros;
+        // The records are written once completed, so a record may have arrived before the previous one
+        writeVarLong(out, (delta << 1) ^ (delta >> 63));
+        out.writeByte(this.kind.ordinal());
+        out.writeByte(this.flags);
+        out.writeByte(this.format);
+        out.writeLong(this.userHash);
+        writeVarLong(out, this.status);
+        writeVarLong(out, this.durationMicros);
+    }
+
+
+    /**
+     * Reads a record.
+     *
+     * @param in the input of the capture file
+     * @param previousArrivalMicros the arrival of the previous record read, or 0 for the first one
+     * @return the record
+     * @throws IOException if the record could not be read, e.g. at the end of the file
+     */
+
+    public static TrafficRecord readFrom(DataInput in, long previousArrivalMicros) throws IOException {
+        long zigzag = readVarLong(in);
+        long arrivalMicros = previousArrivalMicros + ((zigzag >>> 1) ^ -(zigzag & 1));
+        Kind[] kinds = Kind.values();
+        int kind = in.readUnsignedByte();
+        if (kind >= kinds.length) {
+            throw new IOException("Invalid request kind: " + kind);
+        }
+        int flags = in.readUnsignedByte();
+        int format = in.readUnsignedByte();
+        long userHash = in.readLong();
+        int status = (int) readVarLong(in);
+        long durationMicros = readVarLong(in);
+        return new TrafficRecord(arrivalMicros, kinds[kind], flags, format, userHash, status, durationMicros);
+    }
+
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Captures the shape and timing of the API requests to a file, as {@link TrafficRecord}s,
+ * so that a production traffic pattern can be replayed against a test gateway.
+ *
+ * The capture is off by default and enabled by setting TRAFFIC_CAPTURE_FILE to the path
+ * of the capture file. The requests are put in a bounded buffer and written by a
+ * background thread, as the {@link AuditLog} does, so a capture never performs I/O on
+ * the request threads and drops the records rather than slowing them down. The capture
+ * stops once the file reaches TRAFFIC_CAPTURE_MAX_BYTES.
+ *
+ * The usernames are replaced by the first 8 bytes of their HMAC-SHA256 under a random
+ * key drawn for each capture and never written, so a capture tells the requests of a
+ * user apart without disclosing who the user is, even to a dictionary attack.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+@Component
+public class TrafficRecorder {
+
+    /**
+     * The logger for the TrafficRecorder class.
+     */
+
+    private static final Logger Log = Logger.getLogger(TrafficRecorder.class.getName());
+
+
+    /**
+     * The capacity of the buffer, and the maximum number of records written between two flushes.
+     */
+
+    private static final int CAPACITY = 16384;
+    private static final int BATCH_SIZE = 512;
+
+
+    /**
+     * How often an idle writer thread checks whether the capture is stopping, in milliseconds.
+     */
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+
+    /**
+     * The capture file, or null if the capture is disabled.
+     */
+
+    private final Path file;
+
+
+    /**
+     * The size at which the capture stops.
+     */
+
+    private final long maxBytes;
+
+
+    /**
+     * The buffer of the requests waiting to be written.
+     */
+
+    private final ArrayBlockingQueue<Captured> buffer = new ArrayBlockingQueue<>(CAPACITY);
+
+
+    /**
+     * The start of the capture, on the monotonic clock, from which the arrivals are measured.
+     */
+
+    private final long startNanos = System.nanoTime();
+
+
+    /**
+     * The number of requests written, and dropped because the buffer was full or the file could not be written.
+     */
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+
+    /**
+     * Whether the capture file is full.
+     */
+
+    private volatile boolean full;
+
+
+    /**
+     * The writer thread, or null if it has not been started.
+     */
+
+    private Thread writerThread;
+
+
+    /**
+     * Whether the writer thread must exit once the buffer is drained.
+     */
+
+    private volatile boolean stopping;
+
+
+    /**
+     * Constructs a new TrafficRecorder and registers its metrics.
+     *
+     * @param file the path of the capture file, or an empty string to disable the capture
+     * @param maxBytes the size at which the capture stops
+     * @param registry the registry the metrics are registered with
+     */
+
+    @Autowired
+    public TrafficRecorder(@Value("${TRAFFIC_CAPTURE_FILE:}") String file,
+                           @Value("${TRAFFIC_CAPTURE_MAX_BYTES:268435456}") long maxBytes,
+                           MeterRegistry registry) {
+        this(file == null || file.trim().isEmpty() ? null : Paths.get(file.trim()), maxBytes);
+
+        FunctionCounter.builder("safenet.capture.recorded", this.recorded, AtomicLong::get)
+                .description("Requests written to the traffic capture")
+                .register(registry);
+        FunctionCounter.builder("safenet.capture.dropped", this.dropped, AtomicLong::get)
+                .description("Requests left out of the traffic capture because the buffer was full or the file could not be written")
+                .register(registry);
+    }
+
+
+    /**
+     * Constructs a new TrafficRecorder without metrics.
+     */
+
+    TrafficRecorder(Path file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = Math.max(maxBytes, 1024);
+    }
+
+
+    /**
+     * Returns whether the capture is enabled.
+     *
+     * @return true if the requests are captured
+     */
+
+    public boolean isEnabled() {
+        return this.file != null;
+    }
+
+
+    /**
+     * Records a completed request. This never performs I/O: the request is only put in the buffer.
+     *
+     * @param kind the kind of the request
+     * @param flags the flags of the request
+     * @param format the ordinal of the image format of the response, or {@link TrafficRecord#NO_FORMAT}
+     * @param username the username of the request, the challenge string of a grid rendered from its URL, or null
+     * @param status the HTTP status of the response
+     * @param arrivalNanos the arrival of the request, from {@link System#nanoTime()}
+     * @param durationNanos the duration of the request, in nanoseconds
+     */
+
+    public void record(TrafficRecord.Kind kind, int flags, int format, String username, int status, long arrivalNanos,
+            long durationNanos) {
+        if (this.file == null || this.full) {
+            return;
+        }
+        Captured captured = new Captured(TimeUnit.NANOSECONDS.toMicros(arrivalNanos - this.startNanos), kind, flags,
+                format, username, status, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        if (!this.buffer.offer(captured)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Returns the number of requests written so far.
+     *
+     * @return the number of recorded requests
+     */
+
+    public long getRecorded() {
+        return this.recorded.get();
+    }
+
+
+    /**
+     * Returns the number of requests left out of the capture so far.
+     *
+     * @return the number of dropped requests
+     */
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+
+    /**
+     * Starts the writer thread once the application is ready.
+     */
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (this.file == null || this.writerThread != null) {
+            return;
+        }
+        this.stopping = false;
+        this.writerThread = new Thread(this::drain, "traffic-capture");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Log.info("Capturing the API traffic to " + this.file);
+    }
+
+
+    /**
+     * Stops the writer thread after the buffered requests have been written. As with the {@link AuditLog}, the thread
+     * is not interrupted, which would close the capture file.
+     */
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (this.writerThread == null) {
+            return;
+        }
+        this.stopping = true;
+        try {
+            this.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.writerThread = null;
+    }
+
+
+    /**
+     * Writes the buffered requests in batches until the capture is stopped and the buffer is empty.
+     */
+
+    private void drain() {
+        Mac mac;
+        DataOutputStream out;
+        try {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+
+            Path parent = this.file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.file), 64 * 1024));
+            TrafficRecord.writeHeader(out, System.currentTimeMillis()
+                    - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.log(Level.WARNING, "Could not start the traffic capture to " + this.file, e);
+            this.full = true;
+            this.dropped.addAndGet(this.buffer.size());
+            this.buffer.clear();
+            return;
+        }
+
+        List<Captured> batch = new ArrayList<>(BATCH_SIZE);
+        long previousArrival = 0;
+        while (!this.stopping || !this.buffer.isEmpty()) {
+            try {
+                if (this.buffer.isEmpty() && !this.stopping) {
+                    Captured captured = this.buffer.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (captured != null) {
+                        batch.add(captured);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Not restored: the interrupt would close the capture file. The thread exits once stopped and drained
+            }
+            this.buffer.drainTo(batch, BATCH_SIZE - batch.size());
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            int pending = batch.size();
+            try {
+                for (Captured captured : batch) {
+                    if (out.size() >= this.maxBytes) {
+                        if (!this.full) {
+                            this.full = true;
+                            Log.info("The traffic capture reached " + this.maxBytes + " bytes and stopped");
+                        }
+                        break;
+                    }
+                    TrafficRecord record = captured.toRecord(mac);
+                    record.writeTo(out, previousArrival);
+                    previousArrival = record.getArrivalMicros();
+                    pending--;
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.log(Level.WARNING, "Could not write " + pending + " captured requests", e);
+            }
+            this.recorded.addAndGet(batch.size() - pending);
+            this.dropped.addAndGet(pending);
+            batch.clear();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.fine("Error while closing the traffic capture: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * A completed request waiting to be written, with its username in clear until then.
+     */
+
+    private static final class Captured {
+
+        private final long arrivalMicros;
+        private final TrafficRecord.Kind kind;
+        private final int flags;
+        private final int format;
+        private final String username;
+        private final int status;
+        private final long durationMicros;
+
+        Captured(long arrivalMicros, TrafficRecord.Kind kind, int flags, int format, String username, int status,
+                long durationMicros) {
+            this.arrivalMicros = arrivalMicros;
+            this.kind = kind;
+            this.flags = flags;
+            this.format = format;
+            this.username = username;
+            this.status = status;
+            this.durationMicros = durationMicros;
+        }
+
+        TrafficRecord toRecord(Mac mac) {
+            long userHash = 0;
+            if (this.username != null) {
+                userHash = ByteBuffer.wrap(mac.doFinal(this.username.getBytes(StandardCharsets.UTF_8))).getLong();
+            }
+            return new TrafficRecord(this.arrivalMicros, this.kind, this.flags, this.format, userHash, this.status,
+                    this.durationMicros);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * An {@link Authenticator} running the stateful calls of a same user one at a time, in
+ * their order of arrival, through {@link UserStripes}: the OTP validations and challenges
+ * and the GrIDsure challenges. Otherwise, a grid image fetch racing an authentication, or
+ * two tabs of the same user, interleave their challenge states in the CRYPTOCard API and
+ * the clients retry.
+ *
+ * The grid rendering and the server status carry no user state and are not ordered. The
+ * push authentications do not go through the authentication backend.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+
+
+public class UserOrderedAuthenticator implements Authenticator {
+
+    /**
+     * The wrapped backend.
+     */
+
+    private final Authenticator backend;
+
+
+    /**
+     * The stripes ordering the calls of each user.
+     */
+
+    private final UserStripes stripes;
+
+
+    /**
+     * Constructs a new UserOrderedAuthenticator.
+     *
+     * @param backend the wrapped backend
+     * @param stripes the stripes ordering the calls of each user
+     */
+
+    public UserOrderedAuthenticator(Authenticator backend, UserStripes stripes) {
+        this.backend = backend;
+        this.stripes = stripes;
+    }
+
+
+    @Override
+    public AuthenticationResponse validateCode(AuthenticationRequest authenticationRequest) {
+        return this.stripes.call(authenticationRequest.getOrganization(), authenticationRequest.getUsername(),
+                () -> this.backend.validateCode(authenticationRequest));
+    }
+
+
+    @Override
+    public String getGridChallengeData(String username, String state, Optional<String> organization) {
+        return this.stripes.call(organization.orElse(null), username,
+                () -> this.backend.getGridChallengeData(username, state, organization));
+    }
+
+
+    @Override
+    public BufferedImage convertGridDataToImage(String challenge) {
+        return this.backend.convertGridDataToImage(challenge);
+    }
+
+
+    @Override
+    public boolean getServerStatus() {
+        return this.backend.getServerStatus();
+    }
+
+
+    @Override
+    public boolean isLibraryLoaded() {
+        return this.backend.isLibraryLoaded();
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Runs the requests of a same user one at a time, in their order of arrival, while the
+ * requests of different users still run in parallel.
+ *
+ * The users are spread over a fixed number of stripes, each guarded by a fair semaphore
+ * of a single permit, so the memory used does not grow with the number of users, at the
+ * cost of serializing the users who happen to share a stripe. The stripe is released
+ * through {@link RequestDeadline#release(Runnable)}: a call abandoned at its deadline
+ * keeps the stripe of its user until it returns, so that the next request of the user
+ * does not overlap it. A request waits for its stripe for a bounded
+ * time only: past it, the request runs anyway, as it would without the ordering, rather
+ * than failing behind a stalled request of the same user. A request whose
+ * {@link RequestDeadline} passes while it waits is rejected instead.
+ *
+ * The contended acquisitions are counted for each stripe, the counter of a stripe being
+ * registered the first time it is contended, so that a hot user stands out without one
+ * series per stripe. The time waited and the timeouts are recorded too.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+
+public class UserStripes {
+
+    /**
+     * The name of the counter of the contended acquisitions, tagged with the stripe.
+     */
+
+    static final String CONTENDED = "safenet.user.stripe.contended";
+
+
+    /**
+     * The name of the stage of the wait, in the Server-Timing header and the exceeded deadlines.
+     */
+
+    static final String STAGE = "user.wait";
+
+
+    /**
+     * The locks of the stripes, semaphores so that the thread of an abandoned call may release them.
+     */
+
+    private final Semaphore[] locks;
+
+
+    /**
+     * The counters of the contended acquisitions of each stripe, registered on the first contention.
+     */
+
+    private final AtomicReferenceArray<Counter> contended;
+
+
+    /**
+     * How long a request waits for its stripe before running anyway, in nanoseconds.
+     */
+
+    private final long timeoutNanos;
+
+
+    /**
+     * The registry of the metrics.
+     */
+
+    private final MeterRegistry registry;
+
+
+    /**
+     * The time waited for the contended stripes, and the number of requests that ran after a timeout.
+     */
+
+    private final Timer wait;
+    private final Counter timeouts;
+
+
+    /**
+     * Constructs a new UserStripes and registers its metrics.
+     *
+     * @param stripes the number of stripes, rounded up to a power of two
+     * @param timeoutMillis how long a request waits for its stripe before running anyway, in milliseconds
+     * @param registry the registry of the metrics
+     */
+
+    public UserStripes(int stripes, long timeoutMillis, MeterRegistry registry) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        this.locks = new Semaphore[size];
+        for (int i = 0; i < size; i++) {
+            // Fair, so that the requests of a user run in their order of arrival
+            this.locks[i] = new Semaphore(1, true);
+        }
+        this.contended = new AtomicReferenceArray<>(size);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+        this.registry = registry;
+        this.wait = Timer.builder("safenet.user.stripe.wait")
+                .description("Time waited for the requests of the same user, or of a user sharing the stripe")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.timeouts = Counter.builder("safenet.user.stripe.timeouts")
+                .description("Requests run without waiting any longer for the requests of the same user")
+                .register(registry);
+        Gauge.builder("safenet.user.stripe.queued", this, UserStripes::getQueued)
+                .description("Requests waiting for the requests of the same user")
+                .register(registry);
+    }
+
+
+    /**
+     * Returns the stripe of the specified user.
+     *
+     * @param organization the organization of the user, or null
+     * @param username the username
+     * @return the index of the stripe
+     */
+
+    int stripe(String organization, String username) {
+        int hash = username.toLowerCase(Locale.ROOT).hashCode();
+        if (organization != null && !organization.isEmpty()) {
+            hash = 31 * hash + organization.toLowerCase(Locale.ROOT).hashCode();
+        }
+        return (hash ^ (hash >>> 16)) & (this.locks.length - 1);
+    }
+
+
+    /**
+     * Runs the specified action once the previous requests of the user have completed, or the timeout has elapsed.
+     *
+     * @param <T> the type of the result
+     * @param organization the organization of the user, or null
+     * @param username the username, case-insensitive
+     * @param action the action to run
+     * @return the result of the action
+     * @throws DeadlineExceededException if the deadline of the request passed while waiting
+     */
+
+    public <T> T call(String organization, String username, Supplier<T> action) {
+        if (username == null) {
+            return action.get();
+        }
+        int stripe = stripe(organization, username);
+        Semaphore lock = this.locks[stripe];
+        boolean locked = tryAcquire(lock);
+        if (!locked) {
+            locked = await(stripe, lock);
+        }
+        try {
+            return action.get();
+        } finally {
+            if (locked) {
+                RequestDeadline.release(lock::release);
+            }
+        }
+    }
+
+
+    /**
+     * Acquires the lock if it is free and no request of the stripe is waiting for it: unlike {@link Semaphore#tryAcquire()},
+     * a request arriving as the lock is released does not overtake the requests queued before it.
+     */
+
+    private static boolean tryAcquire(Semaphore lock) {
+        try {
+            return lock.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /**
+     * Waits for the contended lock of the specified stripe, and returns whether it was acquired.
+     */
+
+    private boolean await(int stripe, Semaphore lock) {
+        contendedCounter(stripe).increment();
+        long start = System.nanoTime();
+        boolean locked = false;
+        try {
+            locked = lock.tryAcquire(Math.min(this.timeoutNanos, RequestDeadline.remainingNanos()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long waited = System.nanoTime() - start;
+        this.wait.record(waited, TimeUnit.NANOSECONDS);
+        ServerTiming.record(STAGE, waited);
+        if (!locked) {
+            this.timeouts.increment();
+            // The caller has given up while waiting: do not start its call
+            RequestDeadline.check(STAGE);
+        }
+        return locked;
+    }
+
+
+    private Counter contendedCounter(int stripe) {
+        Counter counter = this.contended.get(stripe);
+        if (counter == null) {
+            counter = Counter.builder(CONTENDED)
+                    .description("Requests that waited for the requests of the same user, or of a user sharing the stripe")
+                    .tag("stripe", Integer.toString(stripe))
+                    .register(this.registry);
+            this.contended.set(stripe, counter);
+        }
+        return counter;
+    }
+
+
+    /**
+     * Returns the number of requests waiting for their stripe.
+     *
+     * @return the number of waiting requests
+     */
+
+    public int getQueued() {
+        int queued = 0;
+        for (Semaphore lock : this.locks) {
+            queued += lock.getQueueLength();
+        }
+        return queued;
+    }
+
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return the number of stripes
+     */
+
+    public int getStripes() {
+        return this.locks.length;
+    }
+
+}
@@ -70,13 +70,14 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 	 * Returns an instance of the {@link ApiKeyAuthService} class that uses a {@link BCryptPasswordEncoder}
 	 * and an API key hash as input. This bean is used to authenticate requests that require an API key for
 	 * access to protected endpoints.
+	 * @param metrics The metrics recording the latency of the API key checks.
 	 * @return An instance of the {@link ApiKeyAuthService} class.
 	 */
     
 	@Bean
-    ApiKeyAuthService apiKeyAuthService() {
+    ApiKeyAuthService apiKeyAuthService(GatewayMetrics metrics) {
     	Log.fine("Entered Config apiKeyAuthService @Bean");
-        return new ApiKeyAuthService(passwordEncoder(), API_KEY_HASH);
+        return new ApiKeyAuthService(passwordEncoder(), API_KEY_HASH, metrics);
     }
     
 	
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A class of requests sharing a bulkhead: at most a fixed number of its requests run
+ * at once, a bounded number more wait for their turn, and the others are rejected at
+ * once with a {@link ConcurrencyLimitExceededException}, so that a surge of one class
+ * of requests cannot hold all the threads of the servlet container and starve the
+ * other classes.
+ *
+ * The requests run on the thread of the servlet container that received them, which
+ * holds their deadline, client connection, trace context and Server-Timing header: the
+ * bulkhead bounds how many of those threads each class may hold, waiting included,
+ * rather than handing the requests over to threads of its own. A request waits for its
+ * turn for a bounded time only, and not past its {@link RequestDeadline}.
+ *
+ * The requests running and waiting, the time waited and the rejections are recorded,
+ * tagged with the name of the class.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+
+public class WorkloadClass {
+
+    /**
+     * The name of the stage of the wait, in the Server-Timing header and the exceeded deadlines.
+     */
+
+    static final String STAGE = "workload.wait";
+
+
+    /**
+     * The name of the class, e.g. `otp` or `grid`.
+     */
+
+    private final String name;
+
+
+    /**
+     * The number of requests that may run at once, or 0 for no bound.
+     */
+
+    private final int maxRunning;
+
+
+    /**
+     * The number of requests that may wait for their turn.
+     */
+
+    private final int maxQueued;
+
+
+    /**
+     * How long a request waits for its turn before it is rejected, in nanoseconds.
+     */
+
+    private final long timeoutNanos;
+
+
+    /**
+     * The permits of the running requests, fair so that the waiting requests run in their order of arrival.
+     */
+
+    private final Semaphore permits;
+
+
+    /**
+     * The number of requests running, tracked even without a bound.
+     */
+
+    private final AtomicInteger running = new AtomicInteger();
+
+
+    /**
+     * The number of requests waiting for their turn.
+     */
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+
+    /**
+     * The time waited for a turn, and the number of rejected requests.
+     */
+
+    private final Timer wait;
+    private final Counter rejected;
+
+
+    /**
+     * Constructs a new WorkloadClass and registers its metrics.
+     *
+     * @param name the name of the class
+     * @param maxRunning the number of requests that may run at once, or 0 for no bound
+     * @param maxQueued the number of requests that may wait for their turn
+     * @param timeoutMillis how long a request waits for its turn before it is rejected, in milliseconds
+     * @param registry the registry of the metrics
+     */
+
+    public WorkloadClass(String name, int maxRunning, int maxQueued, long timeoutMillis, MeterRegistry registry) {
+        this.name = name;
+        this.maxRunning = Math.max(maxRunning, 0);
+        this.maxQueued = Math.max(maxQueued, 0);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+        this.permits = new Semaphore(this.maxRunning, true);
+        this.wait = Timer.builder("safenet.workload.wait")
+                .description("Time waited for a turn to run")
+                .tag("workload", name)
+                .publishPercentileHistogram()
+                .register(registry);
+        this.rejected = Counter.builder("safenet.workload.rejected")
+                .description("Requests rejected because as many requests of their class were running and waiting as allowed")
+                .tag("workload", name)
+                .register(registry);
+        Gauge.builder("safenet.workload.running", this, WorkloadClass::getRunning)
+                .description("Requests running")
+                .tag("workload", name)
+                .register(registry);
+        Gauge.builder("safenet.workload.queued", this, WorkloadClass::getQueued)
+                .description("Requests waiting for a turn to run")
+                .tag("workload", name)
+                .register(registry);
+    }
+
+
+    /**
+     * Waits for the class to have room for a request, to be released once the request completes.
+     *
+     * @throws ConcurrencyLimitExceededException if the class had no room for the request
+     * @throws DeadlineExceededException if the deadline of the request passed while waiting
+     */
+
+    public void acquire() {
+        if (this.maxRunning > 0 && !tryAcquire()) {
+            await();
+        }
+        this.running.incrementAndGet();
+    }
+
+
+    /**
+     * Takes a permit if one is free and no request is waiting for it: unlike {@link Semaphore#tryAcquire()}, this
+     * honours the fairness of the permits, so that a new request does not overtake the queued ones.
+     */
+
+    private boolean tryAcquire() {
+        try {
+            return this.permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /**
+     * Releases the room of a request that has completed.
+     */
+
+    public void release() {
+        this.running.decrementAndGet();
+        if (this.maxRunning > 0) {
+            this.permits.release();
+        }
+    }
+
+
+    /**
+     * Waits for a permit, if the queue has room, until the timeout or the deadline of the request.
+     */
+
+    private void await() {
+        if (this.queued.incrementAndGet() > this.maxQueued) {
+            this.queued.decrementAndGet();
+            this.rejected.increment();
+            throw new ConcurrencyLimitExceededException(this.name);
+        }
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = this.permits.tryAcquire(Math.min(this.timeoutNanos, RequestDeadline.remainingNanos()),
+                    TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.queued.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        this.wait.record(waited, TimeUnit.NANOSECONDS);
+        ServerTiming.record(STAGE, waited);
+        if (!acquired) {
+            // The caller has given up while waiting: answer it as such rather than as rejected
+            RequestDeadline.check(STAGE);
+            this.rejected.increment();
+            throw new ConcurrencyLimitExceededException(this.name);
+        }
+    }
+
+
+    /**
+     * Returns the name of the class.
+     *
+     * @return the name
+     */
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    /**
+     * Returns the number of requests that may run at once.
+     *
+     * @return the number of requests, or 0 for no bound
+     */
+
+    public int getMaxRunning() {
+        return this.maxRunning;
+    }
+
+
+    /**
+     * Returns the number of requests that may wait for their turn.
+     *
+     * @return the number of requests
+     */
+
+    public int getMaxQueued() {
+        return this.maxQueued;
+    }
+
+
+    /**
+     * Returns the number of requests running.
+     *
+     * @return the number of running requests
+     */
+
+    public int getRunning() {
+        return this.running.get();
+    }
+
+
+    /**
+     * Returns the number of requests waiting for their turn.
+     *
+     * @return the number of waiting requests
+     */
+
+    public int getQueued() {
+        return this.queued.get();
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2023 safenet-auth-api
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The {@link WorkloadClass}es of the gateway, each bounding the threads of the servlet
+ * container its requests may hold, so that a surge in one cannot starve the others:
+ *
+ * - `otp`: the OTP validations and challenges, blocking on the JNI library or the
+ *   TokenValidator.
+ * - `push`: the push authentications, parked on the SPS for as long as the user takes
+ *   to answer.
+ * - `grid`: the grid challenges and the rendering of the grid images missing from the
+ *   cache, bound by the CPU.
+ * - `health`: the health endpoints of the API, probing the dependencies.
+ *
+ * WORKLOAD_<CLASS>_CONCURRENCY sets how many requests of a class run at once, 0 for no
+ * bound, and WORKLOAD_<CLASS>_QUEUE how many more wait for their turn, at most
+ * WORKLOAD_QUEUE_TIMEOUT_MS. The liveness and readiness probes belong to no class:
+ * they only read the state of the gateway, and run on the threads the classes leave
+ * free, so the running and waiting requests of all the classes together should stay
+ * below the size of the Tomcat thread pool, which is checked at startup.
+ *
+ * @author Cina Shaykhian
+ * @contact hello@onewelco.me
+ */
+package com.thalesdemo.safenet.auth.api;
+
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+@Component
+public class WorkloadClasses {
+
+    /**
+     * The logger for the WorkloadClasses class.
+     */
+
+    private static final Logger Log = Logger.getLogger(WorkloadClasses.class.getName());
+
+
+    /**
+     * The Tomcat threads the default bound of the push class leaves to the probes and the requests of no class.
+     */
+
+    private static final int RESERVED_THREADS = 8;
+
+
+    /**
+     * The classes of the OTP validations, the push authentications, the grid images and the health endpoints.
+     */
+
+    private final WorkloadClass otp;
+    private final WorkloadClass push;
+    private final WorkloadClass grid;
+    private final WorkloadClass health;
+
+
+    /**
+     * Constructs the classes and registers their metrics.
+     *
+     * @param otpConcurrency the OTP validations running at once, or 0 for no bound
+     * @param otpQueue the OTP validations waiting for their turn
+     * @param pushConcurrency the push authentications running at once, 0 for no bound, or -1 for the Tomcat threads
+     *        the other classes leave free
+     * @param pushQueue the push authentications waiting for their turn
+     * @param gridConcurrency the grid requests running at once, 0 for no bound, or -1 for twice the number of processors
+     * @param gridQueue the grid requests waiting for their turn
+     * @param healthConcurrency the health requests running at once, or 0 for no bound
+     * @param healthQueue the health requests waiting for their turn
+     * @param queueTimeoutMillis how long a request waits for its turn before it is rejected, in milliseconds
+     * @param containerThreads the size of the Tomcat thread pool
+     * @param registry the registry the metrics are registered with
+     */
+
+    @Autowired
+    public WorkloadClasses(@Value("${WORKLOAD_OTP_CONCURRENCY:48}") int otpConcurrency,
+                           @Value("${WORKLOAD_OTP_QUEUE:32}") int otpQueue,
+                           @Value("${WORKLOAD_PUSH_CONCURRENCY:-1}") int pushConcurrency,
+                           @Value("${WORKLOAD_PUSH_QUEUE:0}") int pushQueue,
+                           @Value("${WORKLOAD_GRID_CONCURRENCY:-1}") int gridConcurrency,
+                           @Value("${WORKLOAD_GRID_QUEUE:32}") int gridQueue,
+                           @Value("${WORKLOAD_HEALTH_CONCURRENCY:4}") int healthConcurrency,
+                           @Value("${WORKLOAD_HEALTH_QUEUE:4}") int healthQueue,
+                           @Value("${WORKLOAD_QUEUE_TIMEOUT_MS:5000}") long queueTimeoutMillis,
+                           @Value("${server.tomcat.threads.max:200}") int containerThreads,
+                           MeterRegistry registry) {
+        if (gridConcurrency < 0) {
+            // Twice the processors, as the grid challenges also wait on the backend
+            gridConcurrency = 2 * Runtime.getRuntime().availableProcessors();
+        }
+        if (pushConcurrency < 0) {
+            // The parked pushes hold their threads for as long as the users take to answer: give them what the
+            // other classes leave, or no bound if one of them is unbounded or leaves nothing
+            boolean unbounded = otpConcurrency == 0 || gridConcurrency == 0 || healthConcurrency == 0;
+            int others = otpConcurrency + otpQueue + gridConcurrency + gridQueue + healthConcurrency + healthQueue;
+            pushConcurrency = unbounded ? 0 : Math.max(containerThreads - others - pushQueue - RESERVED_THREADS, 0);
+        }
+        this.otp = new WorkloadClass("otp", otpConcurrency, otpQueue, queueTimeoutMillis, registry);
+        this.push = new WorkloadClass("push", pushConcurrency, pushQueue, queueTimeoutMillis, registry);
+        this.grid = new WorkloadClass("grid", gridConcurrency, gridQueue, queueTimeoutMillis, registry);
+        this.health = new WorkloadClass("health", healthConcurrency, healthQueue, queueTimeoutMillis, registry);
+
+        int threads = 0;
+        for (WorkloadClass workload : new WorkloadClass[] { this.otp, this.push, this.grid, this.health }) {
+            if (workload.getMaxRunning() == 0) {
+                threads = Integer.MAX_VALUE;
+                break;
+            }
+            threads += workload.getMaxRunning() + workload.getMaxQueued();
+        }
+        if (threads >= containerThreads) {
+            Log.warning("The workload classes may hold " + (threads == Integer.MAX_VALUE ? "all" : threads)
+                    + " of the " + containerThreads + " Tomcat threads: a surge in one class may starve the probes");
+        }
+    }
+
+
+    /**
+     * Returns the class of the OTP validations.
+     *
+     * @return the class
+     */
+
+    public WorkloadClass getOtp() {
+        return this.otp;
+    }
+
+
+    /**
+     * Returns the class of the push authentications.
+     *
+     * @return the class
+     */
+
+    public WorkloadClass getPush() {
+        return this.push;
+    }
+
+
+    /**
+     * Returns the class of the grid challenges and renderings.
+     *
+     * @return the class
+     */
+
+    public WorkloadClass getGrid() {
+        return this.grid;
+    }
+
+
+    /**
+     * Returns the class of the health endpoints.
+     *
+     * @return the class
+     */
+
+    public WorkloadClass getHealth() {
+        return this.health;
+    }
+
+}
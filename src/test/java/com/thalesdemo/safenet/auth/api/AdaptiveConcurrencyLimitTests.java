@@ -0,0 +1,163 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveConcurrencyLimitTests {
+
+	@Test
+	void rejectsCallsBeyondLimit() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 2, 1, 10);
+		AdaptiveConcurrencyLimit.Permit first = limit.acquire();
+		limit.acquire();
+		ConcurrencyLimitExceededException e = assertThrows(ConcurrencyLimitExceededException.class, limit::acquire);
+		assertEquals("test", e.getLimit());
+		assertEquals(1, limit.getRejected());
+		assertEquals(2, limit.getInFlight());
+
+		// Released once, whichever completion comes first
+		first.ignore();
+		first.dropped();
+		assertEquals(1, limit.getInFlight());
+		assertEquals(2, limit.getLimit());
+		limit.acquire();
+	}
+
+	@Test
+	void shrinksOnFailures() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 100, 4, 200);
+		for (int i = 0; i < 100; i++) {
+			limit.acquire().dropped();
+		}
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	void keepsLatencyBoundedWhenBackendSaturates() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 20, 4, 1_000);
+		Backend backend = new Backend(limit, 400);
+
+		// Healthy: the backend takes 500 calls at once, the limit grows to let the 400 clients in
+		backend.run(500, 1, 5_000);
+		assertEquals(400, limit.getInFlight());
+		assertEquals(1.0, backend.latency(), 0.01);
+
+		// Degraded: the backend takes 20 calls at once and queues the others. The limit sheds the excess and keeps
+		// the latency close to the one of the backend, however long the degradation lasts
+		long rejected = limit.getRejected();
+		for (int i = 0; i < 10; i++) {
+			backend.run(20, 1, 5_000);
+			assertTrue(backend.latency() < 2.5, "latency " + backend.latency() + " at limit " + limit.getLimit());
+		}
+		assertTrue(limit.getRejected() > rejected);
+
+		// Recovered
+		backend.run(500, 1, 5_000);
+		assertEquals(400, limit.getInFlight());
+		assertEquals(1.0, backend.latency(), 0.01);
+	}
+
+	@Test
+	void followsBackendThatSlowsDownForGood() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", 20, 4, 1_000);
+		Backend backend = new Backend(limit, 400);
+		backend.run(100, 1, 5_000);
+
+		// Ten times slower whatever the load: not congestion, so the limit comes back once the latency is learnt
+		backend.run(100, 10, 60_000);
+		assertTrue(limit.getLimit() >= 100, "limit " + limit.getLimit());
+		assertTrue(backend.latency() < 25, "latency " + backend.latency());
+	}
+
+	@Test
+	void leavesParkedPushesOutOfLimit() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(500);
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("push", 1, 1, 1);
+			CustomAuthenticate api = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.setConcurrencyLimit(limit)
+					.build();
+
+			// A push parked on the SPS, waiting for its user, leaves the only place of the limit to the next push
+			CompletableFuture<AuthenticationResponse> parked = CompletableFuture
+					.supplyAsync(() -> api.pushOTP("alice", null, "203.0.113.7", null, null));
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); server.parkingCalls.get() == 0
+					&& System.nanoTime() < deadline;) {
+				TimeUnit.MILLISECONDS.sleep(5);
+			}
+			assertEquals(0, limit.getInFlight());
+			// Challenge-response, so that bob is not parked and does not race alice for the limit when both are approved
+			assertTrue(api.pushOTP("bob", null, "203.0.113.8", null, "challenge-response").isChallenged());
+			assertTrue(parked.get(5, TimeUnit.SECONDS).isAuthenticated());
+			assertEquals(0, limit.getRejected());
+		}
+	}
+
+	/**
+	 * A simulated backend answering a number of calls at once in the base latency, times a slowdown, and queueing
+	 * the others, called by clients in a closed loop, each sending its next call as soon as the previous one
+	 * completed or was rejected.
+	 */
+	private static final class Backend {
+
+		private static final long BASE_LATENCY_MILLIS = 10;
+
+		private final AdaptiveConcurrencyLimit limit;
+		private final int clients;
+		private final PriorityQueue<long[]> calls = new PriorityQueue<>(Comparator.comparingLong(call -> call[0]));
+		private final List<AdaptiveConcurrencyLimit.Permit> permits = new ArrayList<>();
+		private long now;
+		private long latencyMillis;
+
+		Backend(AdaptiveConcurrencyLimit limit, int clients) {
+			this.limit = limit;
+			this.clients = clients;
+		}
+
+		/**
+		 * Runs the clients for the specified time, in milliseconds.
+		 */
+		void run(int capacity, int slowdown, long millis) {
+			for (long end = this.now + millis; this.now < end; this.now++) {
+				while (!this.calls.isEmpty() && this.calls.peek()[0] <= this.now) {
+					long[] call = this.calls.poll();
+					this.latencyMillis = call[1];
+					this.permits.get((int) call[2]).success(TimeUnit.MILLISECONDS.toNanos(call[1]));
+				}
+				while (this.calls.size() < this.clients) {
+					AdaptiveConcurrencyLimit.Permit permit;
+					try {
+						permit = this.limit.acquire();
+					} catch (ConcurrencyLimitExceededException e) {
+						break;
+					}
+					int inFlight = this.calls.size() + 1;
+					long latency = slowdown * BASE_LATENCY_MILLIS * Math.max(capacity, inFlight) / capacity;
+					this.permits.add(permit);
+					this.calls.add(new long[] { this.now + latency, latency, this.permits.size() - 1 });
+				}
+			}
+		}
+
+		/**
+		 * Returns the latency of the last completed call, relative to the base latency.
+		 */
+		double latency() {
+			return (double) this.latencyMillis / BASE_LATENCY_MILLIS;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AuditLogTests {
+
+	@TempDir
+	Path directory;
+
+	private static AuditEvent event(String username) {
+		return new AuditEvent(0L, "authenticate", username, "10.0.0.1", "otp", "SUCCESS", "success", 1200, null);
+	}
+
+	@Test
+	void dropsEventsWhenTheBufferIsFull() {
+		AuditLog auditLog = new AuditLog(directory, 2, false, 0, 1024, 1);
+
+		assertTrue(auditLog.record(event("alice")));
+		assertTrue(auditLog.record(event("bob")));
+		assertFalse(auditLog.record(event("carol")));
+		assertEquals(1, auditLog.getDropped());
+		assertEquals(0, auditLog.getDelayed());
+	}
+
+	@Test
+	void waitsForRoomWithTheBlockPolicy() {
+		AuditLog auditLog = new AuditLog(directory, 1, true, 1, 1024, 1);
+
+		assertTrue(auditLog.record(event("alice")));
+		assertFalse(auditLog.record(event("bob")));
+		assertEquals(1, auditLog.getDelayed());
+		assertEquals(1, auditLog.getDropped());
+	}
+
+	@Test
+	void writesEscapedJsonLinesAndRotates() throws Exception {
+		AuditLog auditLog = new AuditLog(directory, 64, false, 0, 1024, 3);
+		for (int i = 0; i < 20; i++) {
+			auditLog.record(event("user\"" + i + "\n"));
+		}
+		auditLog.start();
+		auditLog.stop();
+
+		List<String> lines = Files.readAllLines(directory.resolve(AuditLog.FILE_NAME), StandardCharsets.UTF_8);
+		lines.addAll(0, Files.readAllLines(directory.resolve("audit.1.jsonl"), StandardCharsets.UTF_8));
+		assertFalse(Files.exists(directory.resolve("audit.3.jsonl")));
+		assertEquals("{\"ts\":\"1970-01-01T00:00:00Z\",\"event\":\"authenticate\",\"username\":\"user\\\"19\\n\",\"client_ip\":\"10.0.0.1\","
+				+ "\"method\":\"otp\",\"response_code\":\"SUCCESS\",\"outcome\":\"success\",\"duration_us\":1200}", lines.get(lines.size() - 1));
+		assertEquals(0, auditLog.getDropped());
+	}
+
+	@Test
+	void writesEveryBufferedEventOnStop() throws Exception {
+		AuditLog auditLog = new AuditLog(directory, 20_000, false, 0, 64 * 1024 * 1024, 1);
+		for (int i = 0; i < 20_000; i++) {
+			assertTrue(auditLog.record(event("user" + i)));
+		}
+		// Stopped while the writer is still draining the burst
+		auditLog.start();
+		auditLog.stop();
+
+		List<String> lines = Files.readAllLines(directory.resolve(AuditLog.FILE_NAME), StandardCharsets.UTF_8);
+		assertEquals(20_000, lines.size());
+		assertTrue(lines.get(lines.size() - 1).contains("\"username\":\"user19999\""));
+		assertEquals(0, auditLog.getDropped());
+	}
+
+	@Test
+	void redactsSecrets() {
+		assertEquals("[REDACTED]", AuditLog.redact("123456"));
+		assertEquals("<empty>", AuditLog.redact(""));
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+class ClientConnectionTests {
+
+	@AfterEach
+	void end() {
+		ClientConnection.end();
+	}
+
+	@Test
+	void abortsWatchedCallOnceClientIsGone() {
+		AtomicBoolean gone = new AtomicBoolean();
+		ClientConnection.begin(gone::get, 10);
+		CountDownLatch aborted = new CountDownLatch(1);
+
+		long start = System.nanoTime();
+		ClientDisconnectedException e = assertThrows(ClientDisconnectedException.class,
+				() -> ClientConnection.watch(GatewayMetrics.PUSH_PARKING, () -> {
+					ClientConnection.onClose(aborted::countDown);
+					gone.set(true);
+					try {
+						return aborted.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException interrupted) {
+						throw new IllegalStateException(interrupted);
+					}
+				}));
+		assertEquals(GatewayMetrics.PUSH_PARKING, e.getStage());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+		// Once gone, the next stages do not start
+		assertTrue(ClientConnection.isClosed());
+		assertThrows(ClientDisconnectedException.class, () -> ClientConnection.check(GatewayMetrics.PUSH_CHALLENGE_RESPONSE));
+	}
+
+	@Test
+	void runsCallsUnwatchedWithoutConnection() {
+		assertEquals("ok", ClientConnection.watch("test", () -> "ok"));
+		ClientConnection.onClose(() -> {
+			throw new IllegalStateException("not watched");
+		});
+		assertFalse(ClientConnection.isClosed());
+	}
+
+	@Test
+	void abandonsParkedPushWhenClientDisconnects() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(5_000);
+		String apiKey = UUID.randomUUID().toString();
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0);
+				ConfigurableApplicationContext gateway = TrafficReplay.startGateway(server, apiKey,
+						"CLIENT_PROBE_INTERVAL_MS=50", "SIMULATOR_RESULT_MIX=success=1")) {
+			URI base = TrafficReplay.baseUri(gateway);
+			// Warm up the gateway, so that the push is parked well before the client leaves
+			HttpResponse<String> otp = HttpClient.newHttpClient().send(HttpRequest.newBuilder(base.resolve("/api/v1/authenticate/alice"))
+					.header("X-API-Key", apiKey).header("Content-Type", "application/json")
+					.POST(HttpRequest.BodyPublishers.ofString("{\"code\":\"" + TrafficReplay.PASSCODE + "\"}")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, otp.statusCode());
+
+			String body = "{\"code\":\"p\"}";
+			try (Socket client = new Socket(base.getHost(), base.getPort())) {
+				OutputStream out = client.getOutputStream();
+				out.write(("POST /api/v1/authenticate/alice HTTP/1.1\r\nHost: localhost\r\nX-API-Key: " + apiKey
+						+ "\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+						.getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+				for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3); server.parkingCalls.get() == 0
+						&& System.nanoTime() < deadline;) {
+					TimeUnit.MILLISECONDS.sleep(10);
+				}
+				assertEquals(1, server.parkingCalls.get());
+			}
+
+			long closed = System.nanoTime();
+			MeterRegistry registry = gateway.getBean(MeterRegistry.class);
+			Counter abandoned = null;
+			while (abandoned == null && System.nanoTime() - closed < TimeUnit.SECONDS.toNanos(3)) {
+				TimeUnit.MILLISECONDS.sleep(10);
+				abandoned = registry.find(GatewayMetrics.PUSH_ABANDONED).tag("stage", GatewayMetrics.PUSH_PARKING).counter();
+			}
+			// Given up well before the long poll would have returned
+			assertTrue(abandoned != null && abandoned.count() == 1.0, "the push was not abandoned");
+
+			// Neither polled again nor answered: the TokenValidator only saw the push challenge request
+			TimeUnit.MILLISECONDS.sleep(settings.parkingHoldMillis);
+			assertEquals(1, server.parkingCalls.get());
+			assertEquals(1, server.tokenValidatorCalls.get());
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+class ClientIpResolverTests {
+
+	private final ClientIpResolver resolver = new ClientIpResolver("10.0.0.0/8, 2001:db8::/32, 127.0.0.1", "", 900);
+
+	@Test
+	void trieMatchesPrefixes() {
+		CidrTrie trie = CidrTrie.compile("10.0.0.0/8, 192.168.1.0/24, 2001:db8::/32, 0.0.0.0/0");
+		assertTrue(trie.contains("8.8.8.8"));
+
+		trie = CidrTrie.compile("10.0.0.0/8, 192.168.1.0/24, 2001:db8::/32");
+		assertTrue(trie.contains("10.255.0.1"));
+		assertTrue(trie.contains("192.168.1.77"));
+		assertFalse(trie.contains("192.168.2.1"));
+		assertTrue(trie.contains("2001:db8:0:1::5"));
+		assertTrue(trie.contains("::ffff:10.1.2.3"));
+		assertFalse(trie.contains("2001:db9::1"));
+		assertFalse(trie.contains("not-an-ip.example.com"));
+		assertNull(CidrTrie.parseAddress("1.2.3.256"));
+		assertThrows(IllegalArgumentException.class, () -> CidrTrie.compile("10.0.0.0/33"));
+	}
+
+	@Test
+	void ignoresForwardingHeadersFromUntrustedPeers() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("203.0.113.7");
+		request.addHeader("X-Forwarded-For", "198.51.100.1");
+		request.addHeader("Proxy-Client-IP", "198.51.100.2");
+		assertEquals("203.0.113.7", resolver.resolve(request));
+	}
+
+	@Test
+	void walksForwardedForFromTheRight() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.5");
+		// the client forged the first entry; the trusted proxies appended the real client and themselves
+		request.addHeader("X-Forwarded-For", "1.1.1.1, 198.51.100.9:51000");
+		request.addHeader("X-Forwarded-For", "10.1.1.1");
+		assertEquals("198.51.100.9", resolver.resolve(request));
+	}
+
+	@Test
+	void stopsAtInvalidEntriesAndFallsBackToLegacyHeaders() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.5");
+		request.addHeader("X-Forwarded-For", "unknown, 10.2.2.2");
+		assertEquals("10.2.2.2", resolver.resolve(request));
+
+		request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.5");
+		request.addHeader("Proxy-Client-IP", "198.51.100.3");
+		assertEquals("198.51.100.3", resolver.resolve(request));
+	}
+
+	@Test
+	void keepsIPv6ClientsAndUnwrapsMappedAddresses() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("2001:db9::1");
+		assertEquals("2001:db9::1", resolver.resolve(request));
+
+		request = new MockHttpServletRequest();
+		request.setRemoteAddr("::ffff:203.0.113.7");
+		assertEquals("203.0.113.7", resolver.resolve(request));
+
+		request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.5");
+		request.addHeader("X-Forwarded-For", "[2001:db9::7]:443");
+		assertEquals("2001:db9::7", resolver.resolve(request));
+	}
+
+	@Test
+	void reportsLoopbackClientsAsLocalhostUntilDiscovered() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("0:0:0:0:0:0:0:1");
+		assertEquals("127.0.0.1", resolver.resolve(request));
+		assertNull(resolver.getPublicIpAddress());
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class FlightRecordingTests {
+
+	@Test
+	void dumpsTheStageEvents() throws Exception {
+		FlightRecording recording = new FlightRecording(true, "default", 1, 10);
+		GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry());
+		recording.start();
+		Path file = null;
+		try {
+			assertTrue(recording.isRunning());
+			metrics.stop(metrics.start(GatewayMetrics.JNI_AUTHENTICATE),
+					new AuthenticationResponse("alice", ResponseCode.AUTH_SUCCESS));
+			metrics.stop(metrics.start(GatewayMetrics.GRID_ENCODE), "ok", "format", "png");
+
+			file = recording.dump();
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+					.filter(event -> event.getEventType().getName().equals(StageEvent.NAME))
+					.collect(Collectors.toList());
+
+			RecordedEvent jni = events.stream().filter(event -> GatewayMetrics.JNI_AUTHENTICATE.equals(event.getString("stage"))).findFirst().get();
+			assertEquals("success", jni.getString("outcome"));
+			assertEquals(ResponseCode.AUTH_SUCCESS.getName(), jni.getString("code"));
+			RecordedEvent encode = events.stream().filter(event -> GatewayMetrics.GRID_ENCODE.equals(event.getString("stage"))).findFirst().get();
+			assertEquals("format=png", encode.getString("tags"));
+		} finally {
+			recording.stop();
+			if (file != null) {
+				Files.delete(file);
+			}
+		}
+		assertFalse(recording.isRunning());
+	}
+
+	@Test
+	void refusesToDumpWhenDisabled() {
+		FlightRecording recording = new FlightRecording(false, "default", 1, 10);
+		recording.start();
+		assertFalse(recording.isRunning());
+		assertThrows(IllegalStateException.class, recording::dump);
+	}
+
+}
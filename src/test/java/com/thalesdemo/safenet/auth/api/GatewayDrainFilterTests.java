@@ -0,0 +1,129 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class GatewayDrainFilterTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void turnsAwayNewRequestsAndGivesUpAtTimeout() throws Exception {
+		GatewayReadiness readiness = new GatewayReadiness(null, null);
+		WorkloadClasses workloads = new WorkloadClasses(0, 0, 0, 0, 0, 0, 0, 0, 0, 200, this.registry);
+		GatewayDrainFilter filter = new GatewayDrainFilter(readiness, workloads, 100, this.registry);
+
+		// A request stuck in flight
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Void> stuck = CompletableFuture.runAsync(() -> {
+			try {
+				filter.doFilter(new MockHttpServletRequest("POST", "/api/v1/authenticate/alice"),
+						new MockHttpServletResponse(), new MockFilterChain(new HttpServlet() {
+							@Override
+							protected void service(HttpServletRequest req, HttpServletResponse res) {
+								started.countDown();
+								await(release);
+							}
+						}));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertEquals(1, filter.getInFlight());
+
+		assertFalse(filter.drain());
+		assertTrue(readiness.isDraining());
+		assertEquals(1.0, this.registry.get("safenet.drain.abandoned").counter().count());
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("POST", "/api/v1/authenticate/bob"), response, new MockFilterChain());
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+		assertEquals("close", response.getHeader("Connection"));
+		assertEquals(1.0, this.registry.get("safenet.drain.rejected").counter().count());
+
+		release.countDown();
+		stuck.get(5, TimeUnit.SECONDS);
+		assertEquals(0, filter.getInFlight());
+	}
+
+	@Test
+	void drainsParkedPushBeforeShuttingDown() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(1_000);
+		String apiKey = UUID.randomUUID().toString();
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			ConfigurableApplicationContext gateway = TrafficReplay.startGateway(server, apiKey, "DRAIN_TIMEOUT_MS=10000");
+			URI base = TrafficReplay.baseUri(gateway);
+			HttpClient client = HttpClient.newHttpClient();
+
+			CompletableFuture<HttpResponse<String>> parked = client.sendAsync(authenticate(base, apiKey, "alice", "p"),
+					HttpResponse.BodyHandlers.ofString());
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); server.parkingCalls.get() == 0
+					&& System.nanoTime() < deadline;) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			assertEquals(1, server.parkingCalls.get());
+
+			CompletableFuture<Void> closed = CompletableFuture.runAsync(gateway::close);
+			GatewayReadiness readiness = gateway.getBean(GatewayReadiness.class);
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); !readiness.isDraining()
+					&& System.nanoTime() < deadline;) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+
+			// Out of rotation and turning new work away, while the parked push completes
+			HttpResponse<String> ready = client.send(HttpRequest.newBuilder(base.resolve("/health/ready")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(503, ready.statusCode());
+			assertTrue(ready.body().contains("\"draining\":true"));
+			HttpResponse<String> turnedAway = client.send(authenticate(base, apiKey, "bob", TrafficReplay.PASSCODE),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(503, turnedAway.statusCode());
+			assertFalse(closed.isDone());
+
+			assertEquals(200, parked.get(10, TimeUnit.SECONDS).statusCode());
+			closed.get(10, TimeUnit.SECONDS);
+			assertEquals(2, server.tokenValidatorCalls.get());
+		}
+	}
+
+	private static HttpRequest authenticate(URI base, String apiKey, String username, String code) {
+		return HttpRequest.newBuilder(base.resolve("/api/v1/authenticate/" + username))
+				.header("X-API-Key", apiKey).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString("{\"code\":\"" + code + "\"}")).build();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
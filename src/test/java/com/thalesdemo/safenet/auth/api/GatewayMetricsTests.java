@@ -0,0 +1,51 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class GatewayMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private final GatewayMetrics metrics = new GatewayMetrics(registry);
+
+	@Test
+	void tagsAuthenticationsWithOutcomeAndResponseCode() {
+		metrics.stop(metrics.start(GatewayMetrics.AUTHENTICATE), new AuthenticationResponse("alice", ResponseCode.AUTH_SUCCESS), "method", "otp");
+		metrics.stop(metrics.start(GatewayMetrics.AUTHENTICATE), (AuthenticationResponse) null, "method", "push");
+
+		Timer success = registry.find(GatewayMetrics.AUTHENTICATE)
+				.tags("outcome", "success", "response_code", ResponseCode.AUTH_SUCCESS.getName(), "method", "otp")
+				.timer();
+		assertNotNull(success);
+		assertEquals(1, success.count());
+
+		Timer error = registry.find(GatewayMetrics.AUTHENTICATE)
+				.tags("outcome", GatewayMetrics.ERROR, "response_code", GatewayMetrics.NONE, "method", "push")
+				.timer();
+		assertNotNull(error);
+		assertEquals(1, error.count());
+	}
+
+	@Test
+	void tagsCallsWithOutcomeAndExtraTags() {
+		metrics.stop(metrics.start(GatewayMetrics.GRID_ENCODE), "ok", "format", "png");
+		metrics.stop(metrics.start(GatewayMetrics.GRID_ENCODE), "ok", "format", "png");
+
+		assertEquals(2, registry.get(GatewayMetrics.GRID_ENCODE).tags("outcome", "ok", "format", "png").timer().count());
+		assertNull(registry.find(GatewayMetrics.GRID_ENCODE).tags("format", "svg").timer());
+	}
+
+	@Test
+	void noopRecordsNothing() {
+		GatewayMetrics.NOOP.stop(GatewayMetrics.NOOP.start(GatewayMetrics.PUSH_PARKING), "ok");
+		assertNull(registry.find(GatewayMetrics.PUSH_PARKING).timer());
+	}
+
+}
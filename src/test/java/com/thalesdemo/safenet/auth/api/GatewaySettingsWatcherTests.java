@@ -0,0 +1,65 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GatewaySettingsWatcherTests {
+
+	@TempDir
+	Path dir;
+
+	private Path writeIni(String primaryServer) throws Exception {
+		Path key = dir.resolve("agent.key");
+		Path ini = dir.resolve("JCryptoWrapper.ini");
+		Files.writeString(ini, "PrimaryProtocol=https\nPrimaryServer=" + primaryServer + "\nPrimaryServerPort=443\n"
+				+ "PrimaryWebServiceRelativePath=/TokenValidator/TokenValidator.asmx\n"
+				+ "EncryptionKeyFile=" + key.toString().replace("\\", "/") + "\n");
+		return ini;
+	}
+
+	@Test
+	void loadsSnapshotOnce() throws Exception {
+		Files.writeString(dir.resolve("agent.key"), "secret");
+		GatewaySettings settings = GatewaySettings.load(writeIni("cloud.us.safenetid.com").toString(), "Demo");
+
+		assertEquals("https://cloud.us.safenetid.com:443/TokenValidator/TokenValidator.asmx", settings.getPrimaryAuthUrl());
+		assertEquals(settings.getPrimaryAuthUrl(), settings.getSecondaryAuthUrl());
+		assertEquals("secret", settings.getAgentKey());
+		assertEquals("Demo", settings.getResourceName());
+		assertTrue(settings.isUsable());
+	}
+
+	@Test
+	void reloadSwapsOnlyChangedUsableSnapshots() throws Exception {
+		Files.writeString(dir.resolve("agent.key"), "secret");
+		Path ini = writeIni("cloud.us.safenetid.com");
+		GatewaySettingsWatcher watcher = new GatewaySettingsWatcher(GatewaySettings.load(ini.toString(), ""), false);
+		List<GatewaySettings> notified = new ArrayList<>();
+		watcher.addListener(notified::add);
+
+		assertFalse(watcher.reload());
+
+		Files.writeString(dir.resolve("agent.key"), "rotated");
+		assertTrue(watcher.reload());
+		assertEquals("rotated", watcher.current().getAgentKey());
+
+		writeIni("cloud.eu.safenetid.com");
+		assertTrue(watcher.reload());
+		assertEquals(2, notified.size());
+		assertTrue(watcher.current().getPrimaryAuthUrl().contains("cloud.eu.safenetid.com"));
+
+		Files.writeString(ini, "garbage");
+		assertFalse(watcher.reload());
+		assertTrue(watcher.current().getPrimaryAuthUrl().contains("cloud.eu.safenetid.com"));
+	}
+
+}
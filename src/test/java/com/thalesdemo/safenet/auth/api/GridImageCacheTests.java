@@ -0,0 +1,87 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+class GridImageCacheTests {
+
+	@Test
+	void etagIsStrongAndContentAddressed() {
+		String etag = GridImageCache.etag("1111122222333334444455555", "png");
+		assertEquals('"', etag.charAt(0));
+		assertEquals(etag, GridImageCache.etag("1111122222333334444455555", "png"));
+		assertNotEquals(etag, GridImageCache.etag("1111122222333334444455556", "png"));
+		assertNotEquals(etag, GridImageCache.etag("1111122222333334444455555", "svg"));
+	}
+
+	@Test
+	void rendersOnlyOnMiss() throws Exception {
+		GridImageCache cache = new GridImageCache(1024);
+		AtomicInteger renders = new AtomicInteger();
+
+		byte[] first = cache.computeIfAbsent("a", () -> { renders.incrementAndGet(); return new byte[] {1, 2, 3}; });
+		byte[] second = cache.computeIfAbsent("a", () -> { renders.incrementAndGet(); return new byte[] {4}; });
+
+		assertArrayEquals(first, second);
+		assertEquals(1, renders.get());
+		assertEquals(1, cache.getStats().getHits());
+		assertEquals(1, cache.getStats().getMisses());
+		assertEquals(0.5, cache.getStats().getHitRate());
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedWithinByteBudget() throws Exception {
+		GridImageCache cache = new GridImageCache(10);
+		cache.computeIfAbsent("a", () -> new byte[4]);
+		cache.computeIfAbsent("b", () -> new byte[4]);
+		// touch "a" so that "b" becomes the eldest entry
+		cache.computeIfAbsent("a", () -> new byte[4]);
+		cache.computeIfAbsent("c", () -> new byte[4]);
+
+		assertEquals(2, cache.getStats().getEntries());
+		assertEquals(8, cache.getStats().getSizeBytes());
+
+		AtomicInteger renders = new AtomicInteger();
+		cache.computeIfAbsent("a", () -> { renders.incrementAndGet(); return new byte[4]; });
+		cache.computeIfAbsent("b", () -> { renders.incrementAndGet(); return new byte[4]; });
+		assertEquals(1, renders.get());
+	}
+
+	@Test
+	void variesCachedImagesOnAccept() throws Exception {
+		String apiKey = UUID.randomUUID().toString();
+		try (StandInSafeNetServer standIn = new StandInSafeNetServer(new StandInSafeNetServer.Settings(), 0);
+				ConfigurableApplicationContext gateway = TrafficReplay.startGateway(standIn, apiKey)) {
+			URI image = TrafficReplay.baseUri(gateway).resolve("/api/v1/authenticate/render/grid/1111122222333334444455555");
+			HttpClient client = HttpClient.newHttpClient();
+
+			HttpResponse<byte[]> png = client.send(HttpRequest.newBuilder(image).header("X-API-Key", apiKey)
+					.header("Accept", "image/png").build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, png.statusCode());
+			assertEquals("Accept", png.headers().firstValue("Vary").orElse(null));
+
+			HttpResponse<byte[]> notModified = client.send(HttpRequest.newBuilder(image).header("X-API-Key", apiKey)
+					.header("Accept", "image/png").header("If-None-Match", png.headers().firstValue("ETag").get()).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(304, notModified.statusCode());
+			assertEquals("Accept", notModified.headers().firstValue("Vary").orElse(null));
+
+			HttpResponse<String> svg = client.send(HttpRequest.newBuilder(image).header("X-API-Key", apiKey)
+					.header("Accept", "image/svg+xml").build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals("Accept", svg.headers().firstValue("Vary").orElse(null));
+			assertNotEquals(png.headers().firstValue("ETag"), svg.headers().firstValue("ETag"));
+		}
+	}
+
+}
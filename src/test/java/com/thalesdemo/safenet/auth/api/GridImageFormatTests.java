@@ -0,0 +1,28 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class GridImageFormatTests {
+
+	@Test
+	void keepsPngForBrowsers() {
+		// The Accept header of the image requests of Chrome
+		assertEquals(GridImageFormat.PNG,
+				GridImageFormat.negotiate("image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8"));
+		assertEquals(GridImageFormat.PNG, GridImageFormat.negotiate("image/svg+xml, image/png"));
+		assertEquals(GridImageFormat.PNG, GridImageFormat.negotiate("*/*"));
+		assertEquals(GridImageFormat.PNG, GridImageFormat.negotiate(null));
+		assertEquals(GridImageFormat.PNG, GridImageFormat.negotiate("not a media type"));
+	}
+
+	@Test
+	void selectsFormatPreferredOverPng() {
+		assertEquals(GridImageFormat.SVG, GridImageFormat.negotiate("image/svg+xml"));
+		assertEquals(GridImageFormat.SVG, GridImageFormat.negotiate("image/svg+xml, image/*;q=0.5"));
+		assertEquals(GridImageFormat.SVG, GridImageFormat.negotiate("image/*, image/png;q=0"));
+		assertEquals(GridImageFormat.PNG_BASE64, GridImageFormat.negotiate("text/plain, */*;q=0.1"));
+	}
+
+}
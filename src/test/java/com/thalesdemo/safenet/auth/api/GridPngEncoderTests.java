@@ -0,0 +1,80 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import CRYPTOCard.API.CRYPTOCardAPI;
+
+class GridPngEncoderTests {
+
+	private static final String CHALLENGE = "1111122222333334444455555";
+
+	@Test
+	void encodesGridPixelExact() throws Exception {
+		BufferedImage grid = CRYPTOCardAPI.getInstance().getGridSureGrid(CHALLENGE);
+		assertPixelsEqual(grid, ImageIO.read(new ByteArrayInputStream(GridPngEncoder.encode(grid))));
+	}
+
+	@Test
+	void encodesPaletteAndTruecolorImagesPixelExact() throws Exception {
+		BufferedImage palette = new BufferedImage(37, 11, BufferedImage.TYPE_INT_ARGB);
+		BufferedImage truecolor = new BufferedImage(29, 23, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 11; y++) {
+			for (int x = 0; x < 37; x++) {
+				palette.setRGB(x, y, ((x * 7 + y) % 5) * 0x3F102030);
+			}
+		}
+		for (int y = 0; y < 23; y++) {
+			for (int x = 0; x < 29; x++) {
+				truecolor.setRGB(x, y, x * 0x10101 + y * 0x100);
+			}
+		}
+		assertPixelsEqual(palette, ImageIO.read(new ByteArrayInputStream(GridPngEncoder.encode(palette))));
+		assertPixelsEqual(truecolor, ImageIO.read(new ByteArrayInputStream(GridPngEncoder.encode(truecolor))));
+	}
+
+	@Test
+	void recoversFromAbortedStream() throws Exception {
+		BufferedImage grid = CRYPTOCardAPI.getInstance().getGridSureGrid(CHALLENGE);
+
+		// A client disconnecting while the image data is streamed
+		OutputStream aborted = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (len == 4 && "IDAT".equals(new String(b, off, len, StandardCharsets.US_ASCII))) {
+					throw new IOException("Broken pipe");
+				}
+			}
+		};
+		assertThrows(IOException.class, () -> GridPngEncoder.encode(grid, aborted));
+
+		// The next image encoded on the thread carries none of the data of the aborted one
+		BufferedImage next = CRYPTOCardAPI.getInstance().getGridSureGrid("5555544444333332222211111");
+		assertPixelsEqual(next, ImageIO.read(new ByteArrayInputStream(GridPngEncoder.encode(next))));
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "pixel " + x + "," + y);
+			}
+		}
+	}
+
+}
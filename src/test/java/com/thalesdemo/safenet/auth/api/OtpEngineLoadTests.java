@@ -0,0 +1,113 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the latency and the concurrency of the OTP validations over the TokenValidator protocol, against the
+ * {@link StandInSafeNetServer}, and over the CRYPTOCard JNI library, with one thread per concurrent user.
+ *
+ * The JNI run needs the native library and a configured INI file, e.g.
+ * `-Dload.jniIniPath=/app/config/config.ini -Dload.jniOrganization=acme -Dload.jniCode=000000`; it is skipped
+ * otherwise. The OTP codes are not valid on the real servers, so the JNI run measures denials.
+ */
+class OtpEngineLoadTests {
+
+	private static final String OTP = "123456";
+
+	private final int users = Integer.getInteger("load.users", 200);
+	private final int rounds = Integer.getInteger("load.rounds", 2);
+
+	@Test
+	void tokenValidatorEngine() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(Long.getLong("load.tokenValidatorLatencyMillis", 2))
+				.otp(OTP);
+
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			CustomAuthenticate api = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.build();
+			Authenticator engine = new TokenValidatorAuthenticator(new SimulatedAuthenticator("0", "failure=1", 0, 0, 0, 0),
+					api, "*", null);
+
+			// Two passcodes, since the challenge requests are served by the backend
+			measure("tokenvalidator", username -> engine.validateCode(new AuthenticationRequest(username, OTP)).isAuthenticated()
+					&& engine.validateCode(new AuthenticationRequest(username, OTP)).isAuthenticated());
+			assertEquals(this.users * this.rounds * 2, server.tokenValidatorCalls.get());
+		}
+	}
+
+	@Test
+	void jniEngine() throws Exception {
+		String iniPath = System.getProperty("load.jniIniPath");
+		assumeTrue(iniPath != null, "load.jniIniPath is not set");
+		Authenticate engine = new Authenticate(System.getProperty("load.jniOrganization"), iniPath);
+		assumeTrue(engine.isLibraryLoaded(), "the JNI library could not be loaded");
+
+		String code = System.getProperty("load.jniCode", "000000");
+		measure("jni", username -> {
+			engine.validateCode(new AuthenticationRequest(username, code));
+			return true;
+		});
+	}
+
+	private void measure(String engine, Predicate<String> validation) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baselineThreads = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		ExecutorService pool = Executors.newFixedThreadPool(this.users);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<long[]>> results = new ArrayList<>();
+		for (int user = 0; user < this.users; user++) {
+			String username = "user" + user;
+			results.add(pool.submit(() -> {
+				start.await();
+				long[] latencies = new long[this.rounds];
+				for (int round = 0; round < this.rounds; round++) {
+					long begin = System.nanoTime();
+					latencies[round] = validation.test(username) ? System.nanoTime() - begin : -1;
+				}
+				return latencies;
+			}));
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		long[] latencies = new long[this.users * this.rounds];
+		int index = 0;
+		for (Future<long[]> result : results) {
+			for (long latency : result.get(5, TimeUnit.MINUTES)) {
+				latencies[index++] = latency;
+			}
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		pool.shutdown();
+
+		Arrays.sort(latencies);
+		assertTrue(latencies[0] >= 0, "some validations failed");
+
+		System.out.printf("%-16s %8s %8s %12s %10s %10s %12s%n", "engine", "users", "logins", "logins/s", "p50 ms",
+				"p99 ms", "peak threads");
+		System.out.printf("%-16s %8d %8d %12.1f %10.1f %10.1f %12d%n", engine, this.users, latencies.length,
+				latencies.length / seconds, latencies[latencies.length / 2] / 1e6,
+				latencies[(int) (latencies.length * 0.99)] / 1e6, threads.getPeakThreadCount() - baselineThreads);
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Load-tests the push path against the {@link StandInSafeNetServer}, with one thread per concurrent user as the
+ * servlet container would use, and reports the throughput, the latency and the threads used.
+ *
+ * The defaults keep the test short; raise the load with e.g. `-Dload.users=5000 -Dload.holdMillis=2000`.
+ */
+class PushLoadTests {
+
+	@Test
+	void pushThroughputAgainstStandIn() throws Exception {
+		int users = Integer.getInteger("load.users", 200);
+		int rounds = Integer.getInteger("load.rounds", 2);
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(Long.getLong("load.tokenValidatorLatencyMillis", 2))
+				.parkingHoldMillis(Long.getLong("load.holdMillis", 100))
+				.redirectRate(0.2)
+				.partialRate(0.1);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baselineThreads = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			CustomAuthenticate api = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.build();
+
+			ExecutorService pool = Executors.newFixedThreadPool(users);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<long[]>> results = new ArrayList<>();
+			for (int user = 0; user < users; user++) {
+				String username = "user" + user;
+				results.add(pool.submit(() -> {
+					start.await();
+					long[] latencies = new long[rounds];
+					for (int round = 0; round < rounds; round++) {
+						long begin = System.nanoTime();
+						AuthenticationResponse response = api.pushOTP(username, null, "203.0.113.7", null, null);
+						latencies[round] = response.isAuthenticated() ? System.nanoTime() - begin : -1;
+					}
+					return latencies;
+				}));
+			}
+
+			long begin = System.nanoTime();
+			start.countDown();
+			long[] latencies = new long[users * rounds];
+			int index = 0;
+			for (Future<long[]> result : results) {
+				for (long latency : result.get(5, TimeUnit.MINUTES)) {
+					latencies[index++] = latency;
+				}
+			}
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			pool.shutdown();
+
+			Arrays.sort(latencies);
+			assertTrue(latencies[0] >= 0, "some push authentications failed");
+			assertEquals(users * rounds * 2, server.tokenValidatorCalls.get());
+			assertTrue(server.redirects.get() > 0 && server.partials.get() > 0);
+
+			System.out.printf("%-8s %8s %12s %10s %10s %12s %12s%n", "users", "pushes", "pushes/s", "p50 ms", "p99 ms",
+					"peak threads", "stand-in");
+			System.out.printf("%-8d %8d %12.1f %10.1f %10.1f %12d %12d%n", users, latencies.length,
+					latencies.length / seconds, latencies[latencies.length / 2] / 1e6,
+					latencies[(int) (latencies.length * 0.99)] / 1e6, threads.getPeakThreadCount() - baselineThreads,
+					server.getLargestPoolSize());
+		}
+	}
+
+}
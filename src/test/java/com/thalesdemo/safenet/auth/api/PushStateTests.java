@@ -0,0 +1,157 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class PushStateTests {
+
+	private static final byte[] KEY = "a key shared by the gateway instances".getBytes(StandardCharsets.UTF_8);
+
+	private static final String ALICE = PushState.user("alice", null);
+
+	private static final String PUSH_URL = "https://sps.eu.safenetid.com/api/parking/6f1c2a3e-8d4b-4f7a-9c0e-2b5d7e8f9a1b";
+
+	private final Clock clock = Clock.fixed(Instant.parse("2026-10-19T08:00:00Z"), ZoneOffset.UTC);
+
+	private final List<String> origins = PushState.deriveOrigins(Arrays.asList(
+			"https://cloud.us.safenetid.com/TokenValidator/TokenValidator.asmx?",
+			"https://cloud.eu.safenetid.com:443/TokenValidator/TokenValidator.asmx?"));
+
+	@Test
+	void derivesAllowlistFromTokenValidatorUrls() {
+		assertEquals(Arrays.asList("https://sps.us.safenetid.com", "https://sps.eu.safenetid.com"), this.origins);
+		assertEquals(Arrays.asList("https://sps.us.safenetid.com", "http://127.0.0.1:8081"),
+				PushState.parseOrigins(" sps.US.safenetid.com, http://127.0.0.1:8081,,https://sps.us.safenetid.com:443"));
+
+		PushState state = new PushState(KEY, this.origins, 300, this.clock);
+		assertTrue(state.isAllowed(PUSH_URL));
+		assertFalse(state.isAllowed("https://sps.eu.safenetid.com.attacker.example/api/parking/1"));
+		assertFalse(state.isAllowed("http://sps.eu.safenetid.com/api/parking/1"));
+	}
+
+	@Test
+	void decodesSignedStateIssuedByAnotherInstance() {
+		String encoded = new PushState(KEY, this.origins, 300, this.clock).encode(PUSH_URL, ALICE);
+		assertEquals(PUSH_URL, new PushState(KEY, this.origins, 300, this.clock).decode(encoded, ALICE));
+
+		// About as long as the URL in base64, the origin being carried as a region and the user as a tag
+		assertTrue(encoded.length() <= Base64.getEncoder().encodeToString(PUSH_URL.getBytes(StandardCharsets.UTF_8)).length() + 4);
+		assertEquals("", new PushState(KEY, this.origins, 300, this.clock).encode(null, ALICE));
+		assertThrows(IllegalArgumentException.class,
+				() -> new PushState(KEY, this.origins, 300, this.clock).encode("https://attacker.example/api/parking/1", ALICE));
+	}
+
+	@Test
+	void decodesToSameServerWhateverOrderOfAllowlist() {
+		String encoded = new PushState(KEY, this.origins, 300, this.clock).encode(PUSH_URL, ALICE);
+		List<String> reordered = Arrays.asList("https://sps.ca.safenetid.com", this.origins.get(1), this.origins.get(0));
+		assertEquals(PUSH_URL, new PushState(KEY, reordered, 300, this.clock).decode(encoded, ALICE));
+	}
+
+	@Test
+	void rejectsStatesThatCannotBeTrusted() {
+		PushState state = new PushState(KEY, this.origins, 300, this.clock);
+		String encoded = state.encode(PUSH_URL, ALICE);
+
+		// The base64 of a URL, as sent by the previous versions, pointing at any host
+		assertReason("malformed", state, Base64.getEncoder().encodeToString(PUSH_URL.getBytes(StandardCharsets.UTF_8)));
+		assertReason("malformed", state, "not base64!");
+		assertReason("malformed", state, String.join("", Collections.nCopies(200, encoded)));
+
+		// Another region, or another key
+		byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+		bytes[1] ^= 1;
+		assertReason("signature", state, Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+		assertReason("signature", new PushState("another key, as long as the first one".getBytes(StandardCharsets.UTF_8), this.origins, 300, this.clock),
+				encoded);
+
+		// Expired
+		PushState later = new PushState(KEY, this.origins, 300, Clock.offset(this.clock, Duration.ofSeconds(300)));
+		assertReason("expired", later, encoded);
+
+		// Issued for a region this instance does not allowlist
+		assertReason("region", new PushState(KEY, this.origins.subList(0, 1), 300, this.clock), encoded);
+	}
+
+	@Test
+	void bindsStateToUserItWasIssuedTo() {
+		PushState state = new PushState(KEY, this.origins, 300, this.clock);
+		String encoded = state.encode(PUSH_URL, PushState.user("alice", "acme"));
+
+		assertEquals(PUSH_URL, state.decode(encoded, PushState.user(" Alice ", "ACME")));
+		assertEquals("user", assertThrows(InvalidPushStateException.class,
+				() -> state.decode(encoded, PushState.user("bob", "acme"))).getReason());
+		assertEquals("user", assertThrows(InvalidPushStateException.class,
+				() -> state.decode(encoded, PushState.user("alice", "globex"))).getReason());
+	}
+
+	@Test
+	void refusesShortKeys() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new PushState("too short".getBytes(StandardCharsets.UTF_8), this.origins, 300, this.clock));
+	}
+
+	@Test
+	void parksChallengeResponsePushOnAllowlistedServerOnly() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(0);
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			CustomAuthenticate api = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.setMetrics(new GatewayMetrics(registry))
+					.setPushStateKey(KEY)
+					.build();
+			assertEquals(Collections.singletonList(server.getBaseUrl()), api.getPushState().getOrigins());
+
+			AuthenticationResponse challenge = api.pushOTP("alice", null, "203.0.113.7", null, "challenge-response");
+			assertTrue(challenge.isChallenged());
+			String state = challenge.getChallenge().getState();
+			// Replayed by another user, the state is refused without any call
+			assertFalse(api.pushOTP("bob", null, "203.0.113.8", state, "challenge-response").isAuthenticated());
+			assertEquals(0, server.parkingCalls.get());
+			assertEquals(1.0, registry.get(GatewayMetrics.PUSH_STATE_REJECTED).tag("reason", "user").counter().count());
+
+			assertTrue(api.pushOTP("alice", null, "203.0.113.7", state, "challenge-response").isAuthenticated());
+			assertEquals(1, server.parkingCalls.get());
+
+			// A state pointing the gateway at another host is refused without any call
+			String forged = Base64.getEncoder().encodeToString("http://203.0.113.9/sps/push/1".getBytes(StandardCharsets.UTF_8));
+			assertFalse(api.pushOTP("alice", null, "203.0.113.7", forged, "challenge-response").isAuthenticated());
+			assertEquals(1, server.parkingCalls.get());
+			assertEquals(1.0, registry.get(GatewayMetrics.PUSH_STATE_REJECTED).tag("reason", "malformed").counter().count());
+
+			// A push created on a server that is not allowlisted is not parked
+			CustomAuthenticate elsewhere = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.setMetrics(new GatewayMetrics(registry))
+					.setSpsOrigins(PushState.parseOrigins("sps.us.safenetid.com"))
+					.build();
+			assertFalse(elsewhere.pushOTP("alice", null, "203.0.113.7", null, null).isAuthenticated());
+			assertEquals(1, server.parkingCalls.get());
+			assertEquals(1.0, registry.get(GatewayMetrics.PUSH_STATE_REJECTED).tag("reason", "host").counter().count());
+		}
+	}
+
+	private static void assertReason(String reason, PushState state, String encoded) {
+		assertEquals(reason, assertThrows(InvalidPushStateException.class, () -> state.decode(encoded, ALICE)).getReason());
+	}
+
+}
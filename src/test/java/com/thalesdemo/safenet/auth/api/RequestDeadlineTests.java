@@ -0,0 +1,229 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.util.NestedServletException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RequestDeadlineTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@AfterEach
+	void end() {
+		RequestDeadline.end();
+	}
+
+	@Test
+	void capsCallerTimeoutWithDefault() {
+		RequestDeadlineFilter filter = new RequestDeadlineFilter(5_000, this.registry);
+		assertEquals(5_000, filter.timeout(null));
+		assertEquals(5_000, filter.timeout("not a number"));
+		assertEquals(1_500, filter.timeout(" 1500 "));
+		assertEquals(5_000, filter.timeout("60000"));
+		assertEquals(250, new RequestDeadlineFilter(0, this.registry).timeout("250"));
+		assertEquals(0, new RequestDeadlineFilter(0, this.registry).timeout(null));
+	}
+
+	@Test
+	void stopsWaitingForBlockingCallAtDeadline() {
+		RequestDeadline.begin(50);
+		long start = System.nanoTime();
+		DeadlineExceededException e = assertThrows(DeadlineExceededException.class,
+				() -> RequestDeadline.call(GatewayMetrics.JNI_AUTHENTICATE, () -> {
+					TimeUnit.SECONDS.sleep(5);
+					return null;
+				}));
+		assertEquals(GatewayMetrics.JNI_AUTHENTICATE, e.getStage());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+		// Past the deadline, the call does not even start
+		AtomicBoolean started = new AtomicBoolean();
+		assertThrows(DeadlineExceededException.class, () -> RequestDeadline.call("test", () -> started.getAndSet(true)));
+		assertFalse(started.get());
+	}
+
+	@Test
+	void runsCallsInlineWithoutDeadline() throws Exception {
+		Thread caller = Thread.currentThread();
+		assertTrue(RequestDeadline.call("test", () -> Thread.currentThread() == caller));
+		assertEquals(60_000, RequestDeadline.boundTimeout(60_000));
+		assertFalse(RequestDeadline.isExpired());
+	}
+
+	@Test
+	void holdsPermitAndStripeUntilAbandonedCallReturns() throws Exception {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("otp", 1, 1, 1);
+		UserStripes stripes = new UserStripes(1, 50, this.registry);
+		CountDownLatch backendReturns = new CountDownLatch(1);
+		Authenticator engine = new ConcurrencyLimitedAuthenticator(
+				new UserOrderedAuthenticator(new BlockingBackend(backendReturns), stripes), limit);
+		AtomicBoolean released = new AtomicBoolean();
+		try {
+			RequestDeadline.begin(50);
+			assertThrows(DeadlineExceededException.class, () -> engine.validateCode(new AuthenticationRequest("alice", "123456")));
+			RequestDeadline.release(() -> released.set(true));
+			RequestDeadline.end();
+
+			// The backend is still busy with the abandoned call: the limit and the stripe of the user still count it
+			assertFalse(released.get());
+			assertEquals(1, limit.getInFlight());
+			assertThrows(ConcurrencyLimitExceededException.class, () -> engine.validateCode(new AuthenticationRequest("bob", "123456")));
+			stripes.call(null, "alice", () -> null);
+			assertEquals(1, this.registry.get("safenet.user.stripe.timeouts").counter().count());
+		} finally {
+			backendReturns.countDown();
+		}
+
+		assertTrue(await(released::get));
+		assertTrue(await(() -> limit.getInFlight() == 0));
+		stripes.call(null, "alice", () -> null);
+		assertEquals(1, this.registry.get("safenet.user.stripe.timeouts").counter().count());
+	}
+
+	@Test
+	void rejectsBlockingCallsBeyondMaximum() throws Exception {
+		CountDownLatch callReturns = new CountDownLatch(1);
+		RequestDeadline.setMaxBlockingCalls(1);
+		try {
+			RequestDeadline.begin(50);
+			assertThrows(DeadlineExceededException.class, () -> RequestDeadline.call("test", () -> {
+				callReturns.await();
+				return null;
+			}));
+			RequestDeadline.end();
+
+			// The abandoned call still holds the only thread
+			RequestDeadline.begin(1_000);
+			ConcurrencyLimitExceededException e = assertThrows(ConcurrencyLimitExceededException.class,
+					() -> RequestDeadline.call("test", () -> null));
+			assertEquals(RequestDeadline.BLOCKING_CALLS_LIMIT, e.getLimit());
+		} finally {
+			callReturns.countDown();
+			RequestDeadline.setMaxBlockingCalls(RequestDeadline.DEFAULT_MAX_BLOCKING_CALLS);
+		}
+		assertTrue(await(() -> RequestDeadline.getBlockingCalls() == 0));
+	}
+
+	@Test
+	void answersExceededDeadlineWithGatewayTimeout() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/authenticate/alice");
+		request.addHeader(RequestDeadline.HEADER, "100");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+			@Override
+			protected void service(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+				res.setStatus(HttpServletResponse.SC_OK);
+				// As the DispatcherServlet wraps the exceptions of the handlers
+				throw new NestedServletException("Request processing failed",
+						new DeadlineExceededException(GatewayMetrics.PUSH_PARKING));
+			}
+		});
+
+		new RequestDeadlineFilter(0, this.registry).doFilter(request, response, chain);
+
+		assertEquals(HttpServletResponse.SC_GATEWAY_TIMEOUT, response.getStatus());
+		assertEquals(1.0, this.registry.get("safenet.deadline.exceeded").tag("stage", GatewayMetrics.PUSH_PARKING)
+				.counter().count());
+		assertEquals(Long.MAX_VALUE, RequestDeadline.remainingNanos());
+	}
+
+	@Test
+	void abandonsParkedPushAtDeadline() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(5_000);
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0)) {
+			CustomAuthenticate api = new CustomAuthenticate()
+					.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+					.build();
+			// Warm up the HTTP client, so that the deadline is not spent loading classes
+			assertTrue(api.verifyOTP("alice", "123456", null, null).isAuthenticated());
+
+			RequestDeadline.begin(500);
+			long start = System.nanoTime();
+			DeadlineExceededException e = assertThrows(DeadlineExceededException.class,
+					() -> api.pushOTP("alice", null, "203.0.113.7", null, null));
+			assertEquals(GatewayMetrics.PUSH_PARKING, e.getStage());
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+			// The push was parked once, and not polled again past the deadline
+			assertEquals(1, server.parkingCalls.get());
+			assertEquals(2, server.tokenValidatorCalls.get());
+		}
+	}
+
+	private static boolean await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		return condition.getAsBoolean();
+	}
+
+	/**
+	 * A backend whose validations block in a deadline call until the latch is released.
+	 */
+	private static class BlockingBackend implements Authenticator {
+
+		private final CountDownLatch returns;
+
+		BlockingBackend(CountDownLatch returns) {
+			this.returns = returns;
+		}
+
+		@Override
+		public AuthenticationResponse validateCode(AuthenticationRequest request) {
+			return RequestDeadline.call(GatewayMetrics.JNI_AUTHENTICATE, () -> {
+				try {
+					this.returns.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new AuthenticationResponse(request.getUsername(), ResponseCode.AUTH_SUCCESS);
+			});
+		}
+
+		@Override
+		public String getGridChallengeData(String username, String state, Optional<String> organization) {
+			return null;
+		}
+
+		@Override
+		public BufferedImage convertGridDataToImage(String challenge) {
+			return null;
+		}
+
+		@Override
+		public boolean getServerStatus() {
+			return true;
+		}
+
+		@Override
+		public boolean isLibraryLoaded() {
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ServerTimingTests {
+
+	private final GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry());
+
+	@Test
+	void reportsStagesRecordedBeforeCommit() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+			@Override
+			protected void service(HttpServletRequest req, HttpServletResponse res) throws IOException {
+				metrics.stop(metrics.start(GatewayMetrics.API_KEY_CHECK), "valid");
+				ServerTiming.record(GatewayMetrics.PUSH_PARKING, 2_000_000);
+				ServerTiming.record(GatewayMetrics.PUSH_PARKING, 1_500_000);
+				byte[] body = "ok".getBytes(StandardCharsets.US_ASCII);
+				res.setContentLength(body.length);
+				res.getOutputStream().write(body);
+				// Recorded after the commit, so not reported
+				ServerTiming.record(GatewayMetrics.GRID_ENCODE, 1_000_000);
+			}
+		});
+
+		new ServerTimingFilter().doFilter(new MockHttpServletRequest("POST", "/api/v1/authenticate/alice"), response, chain);
+
+		String header = response.getHeader(ServerTiming.HEADER);
+		assertTrue(header.startsWith("apikey.check;dur="), header);
+		assertTrue(header.contains(", push.parking;dur=3.5, total;dur="), header);
+		assertFalse(header.contains("grid.encode"), header);
+	}
+
+	@Test
+	void ignoresStagesOutsideOfRequests() throws Exception {
+		// No stopwatch is bound to the thread, so this is dropped
+		ServerTiming.record(GatewayMetrics.PUSH_PARKING, 1_000_000);
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		new ServerTimingFilter().doFilter(new MockHttpServletRequest(), response, new MockFilterChain());
+		assertTrue(response.getHeader(ServerTiming.HEADER).startsWith("total;dur="));
+		assertEquals(1, response.getHeaders(ServerTiming.HEADER).size());
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ShadowRunnerTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void recordsMatchesAndMismatches() throws Exception {
+		ShadowRunner runner = new ShadowRunner(new SimulatedAuthenticator("0", "success=1", 0, 0, 0, 0), 1, 4, this.registry);
+		AuthenticationRequest request = new AuthenticationRequest("alice", "123456");
+		assertTrue(runner.shadow(request, new AuthenticationResponse("alice", ResponseCode.AUTH_SUCCESS), 5_000_000));
+		assertTrue(runner.shadow(request, new AuthenticationResponse("alice", ResponseCode.AUTH_FAILURE), 5_000_000));
+
+		assertEquals(1, count("match"));
+		assertEquals(1, count("mismatch"));
+		assertEquals(2, this.registry.get(ShadowRunner.LATENCY).tag("backend", "primary").timer().count());
+		assertEquals(5.0, this.registry.get(ShadowRunner.LATENCY).tag("backend", "primary").timer().mean(TimeUnit.MILLISECONDS), 0.01);
+		runner.stop();
+	}
+
+	@Test
+	void skipsBeyondTheConcurrencyBudget() {
+		// Every secondary call stalls, so the single permit stays taken
+		ShadowRunner runner = new ShadowRunner(new SimulatedAuthenticator("0", "success=1", 0, 1, 10_000, 0), 1, 1, this.registry);
+		AuthenticationResponse primary = new AuthenticationResponse("alice", ResponseCode.AUTH_SUCCESS);
+		assertTrue(runner.shadow(new AuthenticationRequest("alice", "123456"), primary, 1));
+		assertFalse(runner.shadow(new AuthenticationRequest("bob", "123456"), primary, 1));
+		assertEquals(1, this.registry.get("safenet.shadow.skipped").counter().count());
+		runner.stop();
+	}
+
+	@Test
+	void doesNotShadowChallengeAnswers() {
+		ShadowRunner runner = new ShadowRunner(new SimulatedAuthenticator("0", "success=1", 0, 0, 0, 0), 1, 1, this.registry);
+		AuthenticationRequest answer = new AuthenticationRequest("alice", "123456").setState("state");
+		assertFalse(runner.shadow(answer, new AuthenticationResponse("alice", ResponseCode.AUTH_SUCCESS), 1));
+		runner.stop();
+	}
+
+	@Test
+	void requiresSeparateTokenValidatorTenant(@TempDir Path dir) throws Exception {
+		Path key = dir.resolve("agent.key");
+		Path ini = dir.resolve("JCryptoWrapper.ini");
+		Files.writeString(key, "primary-key");
+		Files.writeString(ini, "PrimaryProtocol=https\nPrimaryServer=cloud.us.safenetid.com\nPrimaryServerPort=443\n"
+				+ "PrimaryWebServiceRelativePath=/TokenValidator/TokenValidator.asmx\n"
+				+ "EncryptionKeyFile=" + key.toString().replace("\\", "/") + "\n");
+		GatewaySettings primary = GatewaySettings.load(ini.toString(), "Demo");
+		String shadowUrl = "https://cloud.eu.safenetid.com:443/TokenValidator/TokenValidator.asmx";
+
+		// Never a drop-in option: the tenant must be acknowledged to mirror the tokens of the users
+		assertThrows(IllegalArgumentException.class,
+				() -> ShadowRunner.shadowTenant(shadowUrl, "shadow-key", false, primary, GatewayTracing.NOOP));
+		assertThrows(IllegalArgumentException.class, () -> ShadowRunner.shadowTenant("", "shadow-key", true, primary, GatewayTracing.NOOP));
+		assertThrows(IllegalArgumentException.class, () -> ShadowRunner.shadowTenant(shadowUrl, null, true, primary, GatewayTracing.NOOP));
+		assertThrows(IllegalArgumentException.class,
+				() -> ShadowRunner.shadowTenant(primary.getPrimaryAuthUrl() + "?", "shadow-key", true, primary, GatewayTracing.NOOP));
+		assertThrows(IllegalArgumentException.class, () -> ShadowRunner.shadowTenant(shadowUrl, "primary-key\n", true, primary, GatewayTracing.NOOP));
+		assertNotNull(ShadowRunner.shadowTenant(shadowUrl, "shadow-key", true, primary, GatewayTracing.NOOP));
+	}
+
+	private double count(String result) throws InterruptedException {
+		// The comparisons are recorded by the shadow threads
+		for (int i = 0; i < 100 && this.registry.find(ShadowRunner.COMPARISONS).tag("result", result).counter() == null; i++) {
+			Thread.sleep(20);
+		}
+		return this.registry.get(ShadowRunner.COMPARISONS).tag("result", result).counter().count();
+	}
+
+}
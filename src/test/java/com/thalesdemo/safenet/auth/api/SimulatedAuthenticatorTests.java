@@ -0,0 +1,84 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class SimulatedAuthenticatorTests {
+
+	@Test
+	void drawsOutcomesFromTheResultMix() {
+		SimulatedAuthenticator simulator = new SimulatedAuthenticator("0", "success=60,challenge=20,grid=20", 0, 0, 0, 0);
+		int success = 0, challenge = 0, grid = 0;
+		for (int i = 0; i < 10_000; i++) {
+			AuthenticationResponse response = simulator.validateCode(new AuthenticationRequest("alice"));
+			if (response.isAuthenticated()) {
+				success++;
+			} else if ("GrIDsure".equals(response.getChallenge().getChallengeName())) {
+				assertTrue(response.isChallenged());
+				assertEquals(25, response.getChallenge().getChallengeData().length());
+				grid++;
+			} else {
+				assertTrue(response.isChallenged());
+				challenge++;
+			}
+		}
+		assertEquals(6_000, success, 300);
+		assertEquals(2_000, challenge, 300);
+		assertEquals(2_000, grid, 300);
+	}
+
+	@Test
+	void injectsErrorsAsDenials() {
+		SimulatedAuthenticator simulator = new SimulatedAuthenticator("0", "success=1", 1, 0, 0, 1);
+		assertTrue(simulator.validateCode(new AuthenticationRequest("alice")).isDenied());
+		assertFalse(simulator.getServerStatus());
+		assertTrue(simulator.isLibraryLoaded());
+	}
+
+	@Test
+	void rendersGridsWithoutTheJniLibrary() {
+		SimulatedAuthenticator simulator = new SimulatedAuthenticator("0", "grid=1", 0, 0, 0, 0);
+		String grid = simulator.getGridChallengeData("alice", "", Optional.empty());
+		assertTrue(grid.matches("[0-9]{25}"));
+		assertEquals(206, simulator.convertGridDataToImage(grid).getWidth());
+	}
+
+	@Test
+	void parsesLatencyDistributions() {
+		assertEquals(0, SimulatedAuthenticator.parseLatency("0").getAsLong());
+		assertEquals(2_500_000, SimulatedAuthenticator.parseLatency("fixed:2.5").getAsLong());
+
+		LongSupplier uniform = SimulatedAuthenticator.parseLatency("uniform:1-3");
+		LongSupplier lognormal = SimulatedAuthenticator.parseLatency("lognormal:5,50");
+		long[] samples = new long[10_000];
+		for (int i = 0; i < samples.length; i++) {
+			long latency = uniform.getAsLong();
+			assertTrue(latency >= 1_000_000 && latency <= 3_000_000);
+			samples[i] = lognormal.getAsLong();
+		}
+		Arrays.sort(samples);
+		assertEquals(5.0, samples[samples.length / 2] / 1e6, 0.5);
+		assertEquals(50.0, samples[(int) (samples.length * 0.99)] / 1e6, 10);
+
+		assertThrows(IllegalArgumentException.class, () -> SimulatedAuthenticator.parseLatency("gamma:5"));
+		assertThrows(IllegalArgumentException.class, () -> SimulatedAuthenticator.parseLatency("uniform:5"));
+	}
+
+	@Test
+	void parsesResultMixes() {
+		assertArrayEquals(new double[] { 0.5, 0.5, 0.75, 1 },
+				SimulatedAuthenticator.parseResultMix("success=2, grid=1, failure=1"), 1e-9);
+		assertThrows(IllegalArgumentException.class, () -> SimulatedAuthenticator.parseResultMix("pass=1"));
+		assertThrows(IllegalArgumentException.class, () -> SimulatedAuthenticator.parseResultMix("success=0"));
+	}
+
+}
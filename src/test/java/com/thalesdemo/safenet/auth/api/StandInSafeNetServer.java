@@ -0,0 +1,287 @@
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenet.keycloak.agent.tokenvalidatoradapter.dto.tv.TokenValidatorReturn;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the SafeNet TokenValidator and SPS parking server, to load-test the push path without
+ * reaching the SafeNet Cloud.
+ *
+ * The TokenValidator endpoint speaks the protocol of {@link StandInTokenValidatorClient}: a push challenge request
+ * returns the URL of a new push on the parking endpoint, and a push challenge response succeeds when the parking
+ * status is `approved`. An OTP request succeeds with the configured passcode, and an empty passcode returns a
+ * challenge whose state must be sent back with the passcode. The parking endpoint holds each poll for the configured time, as the SPS long poll does
+ * until the user answers, and can answer with a relative 307 redirect, a 206 partial response or a 500 error.
+ *
+ * Run it standalone with
+ * `mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.thalesdemo.safenet.auth.api.StandInSafeNetServer`
+ * and point the gateway at it with TOKEN_VALIDATOR_STANDIN_URL.
+ */
+class StandInSafeNetServer implements AutoCloseable {
+
+	/**
+	 * The path of the TokenValidator endpoint.
+	 */
+	static final String TOKEN_VALIDATOR_PATH = "/TokenValidator/TokenValidator.asmx";
+
+	/**
+	 * The paths of the parking endpoint, before and after a redirect.
+	 */
+	static final String PARKING_PATH = "/sps/push/";
+	static final String REDIRECTED_PARKING_PATH = "/sps/redirected/push/";
+
+	/**
+	 * The latency, hold time and error rates of the stand-in.
+	 */
+	static final class Settings {
+		long tokenValidatorLatencyMillis = 5;
+		long parkingHoldMillis = 200;
+		double redirectRate;
+		double partialRate;
+		double errorRate;
+		double denyRate;
+		String otp = "123456";
+
+		Settings tokenValidatorLatencyMillis(long millis) {
+			this.tokenValidatorLatencyMillis = millis;
+			return this;
+		}
+
+		Settings parkingHoldMillis(long millis) {
+			this.parkingHoldMillis = millis;
+			return this;
+		}
+
+		Settings redirectRate(double rate) {
+			this.redirectRate = rate;
+			return this;
+		}
+
+		Settings partialRate(double rate) {
+			this.partialRate = rate;
+			return this;
+		}
+
+		Settings errorRate(double rate) {
+			this.errorRate = rate;
+			return this;
+		}
+
+		Settings denyRate(double rate) {
+			this.denyRate = rate;
+			return this;
+		}
+
+		Settings otp(String otp) {
+			this.otp = otp;
+			return this;
+		}
+	}
+
+	static {
+		// Without it, the headers and the body of the responses wait for the delayed ACK of the client
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final Settings settings;
+	private final HttpServer server;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The pushes created by the push challenge requests, with whether they have been polled already.
+	 */
+	private final Map<String, Boolean> polled = new ConcurrentHashMap<>();
+
+	/**
+	 * The states of the OTP challenges waiting for a passcode.
+	 */
+	private final Map<String, Boolean> challenges = new ConcurrentHashMap<>();
+
+	final AtomicLong tokenValidatorCalls = new AtomicLong();
+	final AtomicLong parkingCalls = new AtomicLong();
+	final AtomicLong redirects = new AtomicLong();
+	final AtomicLong partials = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Starts a stand-in on the specified port of the loopback interface, 0 for an ephemeral port.
+	 */
+	StandInSafeNetServer(Settings settings, int port) throws IOException {
+		this.settings = settings;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 8192);
+		this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "standin-safenet");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext(TOKEN_VALIDATOR_PATH, this::tokenValidator);
+		this.server.createContext("/sps/", this::parking);
+		this.server.start();
+	}
+
+	String getTokenValidatorUrl() {
+		return getBaseUrl() + TOKEN_VALIDATOR_PATH;
+	}
+
+	String getBaseUrl() {
+		return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the largest number of threads the stand-in has used at once.
+	 */
+	int getLargestPoolSize() {
+		return this.executor.getLargestPoolSize();
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	private void tokenValidator(HttpExchange exchange) throws IOException {
+		this.tokenValidatorCalls.incrementAndGet();
+		String request = read(exchange.getRequestBody());
+		sleep(this.settings.tokenValidatorLatencyMillis);
+		if (chance(this.settings.errorRate)) {
+			this.errors.incrementAndGet();
+			respond(exchange, 500, null, null);
+			return;
+		}
+
+		String authId = StandInTokenValidatorClient.readElement(request, "pushotpauthid");
+		String password = StandInTokenValidatorClient.readElement(request, "password");
+		String response;
+		if (!"p".equalsIgnoreCase(password)) {
+			response = otp(password, authId);
+		} else if (authId == null) {
+			// A push challenge request: create the push on the parking server
+			String id = UUID.randomUUID().toString();
+			this.polled.put(id, Boolean.FALSE);
+			response = StandInTokenValidatorClient.renderResponse(
+					Integer.toString(TokenValidatorReturn.CHALLENGE.getValue()), getBaseUrl() + PARKING_PATH + id);
+		} else {
+			boolean approved = this.polled.remove(authId) != null
+					&& "approved".equals(StandInTokenValidatorClient.readElement(request, "pushotpspsstatus"));
+			TokenValidatorReturn result = approved ? TokenValidatorReturn.AUTH_SUCCESS : TokenValidatorReturn.AUTH_FAILURE;
+			response = StandInTokenValidatorClient.renderResponse(Integer.toString(result.getValue()), null);
+		}
+		respond(exchange, 200, "text/xml; charset=utf-8", response);
+	}
+
+	private String otp(String password, String state) {
+		if (password == null || password.isEmpty()) {
+			// A challenge request: the state comes back in the push authentication id element
+			String id = UUID.randomUUID().toString();
+			this.challenges.put(id, Boolean.TRUE);
+			return StandInTokenValidatorClient.renderResponse(Integer.toString(TokenValidatorReturn.CHALLENGE.getValue()), id);
+		}
+		boolean valid = (state == null || this.challenges.remove(state) != null) && password.equals(this.settings.otp);
+		TokenValidatorReturn result = valid ? TokenValidatorReturn.AUTH_SUCCESS : TokenValidatorReturn.AUTH_FAILURE;
+		return StandInTokenValidatorClient.renderResponse(Integer.toString(result.getValue()), null);
+	}
+
+	private void parking(HttpExchange exchange) throws IOException {
+		this.parkingCalls.incrementAndGet();
+		read(exchange.getRequestBody());
+		String path = exchange.getRequestURI().getPath();
+		String id = path.substring(path.lastIndexOf('/') + 1);
+
+		if (chance(this.settings.errorRate)) {
+			this.errors.incrementAndGet();
+			respond(exchange, 500, null, null);
+			return;
+		}
+		if (path.startsWith(PARKING_PATH) && chance(this.settings.redirectRate)) {
+			// A relative location, as sent by the SPS parking servers
+			this.redirects.incrementAndGet();
+			exchange.getResponseHeaders().set("Location", REDIRECTED_PARKING_PATH + id);
+			respond(exchange, 307, null, null);
+			return;
+		}
+
+		// Long poll until the user answers
+		sleep(this.settings.parkingHoldMillis);
+		Boolean previous = this.polled.replace(id, Boolean.TRUE);
+		if (previous == null) {
+			respond(exchange, 404, null, null);
+		} else if (!previous && chance(this.settings.partialRate)) {
+			// The long poll timed out before the answer: the gateway polls once more
+			this.partials.incrementAndGet();
+			respond(exchange, 206, null, null);
+		} else {
+			String status = chance(this.settings.denyRate) ? "denied" : "approved";
+			respond(exchange, 200, "application/json", "{\"status\":\"" + status + "\",\"authId\":\"" + id + "\"}");
+		}
+	}
+
+	private static boolean chance(double rate) {
+		return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try (InputStream body = in) {
+			return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+		if (contentType != null) {
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+		}
+		// The server drops the idle connections beyond its small pool, which the client would reuse and see reset
+		exchange.getResponseHeaders().set("Connection", "close");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Runs the stand-in until the process is stopped. The port is the first argument (8089 by default), and the
+	 * settings are read from the standin.* system properties.
+	 */
+	public static void main(String[] args) throws Exception {
+		Settings settings = new Settings()
+				.tokenValidatorLatencyMillis(Long.getLong("standin.tokenValidatorLatencyMillis", 5))
+				.parkingHoldMillis(Long.getLong("standin.parkingHoldMillis", 2000))
+				.redirectRate(Double.parseDouble(System.getProperty("standin.redirectRate", "0.1")))
+				.partialRate(Double.parseDouble(System.getProperty("standin.partialRate", "0.1")))
+				.errorRate(Double.parseDouble(System.getProperty("standin.errorRate", "0")))
+				.denyRate(Double.parseDouble(System.getProperty("standin.denyRate", "0")));
+		StandInSafeNetServer server = new StandInSafeNetServer(settings, args.length > 0 ? Integer.parseInt(args[0]) : 8089);
+		System.out.println("Stand-in TokenValidator listening on " + server.getTokenValidatorUrl());
+		Thread.currentThread().join();
+	}
+
+}
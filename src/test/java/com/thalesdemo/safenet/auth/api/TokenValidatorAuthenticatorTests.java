@@ -0,0 +1,108 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class TokenValidatorAuthenticatorTests {
+
+	private static final String OTP = "123456";
+
+	private static final String GRID = "0123456789012345678901234";
+
+	@Test
+	void answersGridChallengesWithTheBackendOnRoutedOrganizations() throws Exception {
+		try (StandInSafeNetServer server = new StandInSafeNetServer(new StandInSafeNetServer.Settings().otp(OTP), 0)) {
+			GridBackend backend = new GridBackend();
+			Authenticator engine = new TokenValidatorAuthenticator(backend, tokenValidator(server), "acme", null);
+
+			// The challenge carries the grid and the state of the backend
+			AuthenticationResponse challenge = engine.validateCode(new AuthenticationRequest("alice", "").setOrganization("acme"));
+			assertTrue(challenge.isChallenged());
+			assertEquals("GrIDsure", challenge.getChallenge().getChallengeName());
+			assertEquals(GRID, challenge.getChallenge().getChallengeData());
+
+			assertEquals(GRID, engine.getGridChallengeData("alice", "", Optional.of("acme")));
+
+			AuthenticationRequest answer = new AuthenticationRequest("alice", "2468").setOrganization("acme");
+			answer.setState(challenge.getChallenge().getState());
+			assertTrue(engine.validateCode(answer).isAuthenticated());
+			assertEquals(3, backend.calls.get());
+			assertEquals(0, server.tokenValidatorCalls.get());
+
+			// The plain passcodes of the routed organization go to the TokenValidator
+			assertTrue(engine.validateCode(new AuthenticationRequest("alice", OTP).setOrganization("acme")).isAuthenticated());
+			assertEquals(3, backend.calls.get());
+			assertEquals(1, server.tokenValidatorCalls.get());
+		}
+	}
+
+	@Test
+	void answersTokenValidatorChallengesWithTheTokenValidator() throws Exception {
+		try (StandInSafeNetServer server = new StandInSafeNetServer(new StandInSafeNetServer.Settings().otp(OTP), 0)) {
+			GridBackend backend = new GridBackend();
+			Authenticator engine = new TokenValidatorAuthenticator(backend, tokenValidator(server), "*", null);
+
+			// The stand-in never issued this state, so it denies the answer
+			AuthenticationRequest answer = new AuthenticationRequest("alice", OTP);
+			answer.setState(TokenValidatorAuthenticator.STATE_PREFIX + "unknown");
+			assertFalse(engine.validateCode(answer).isAuthenticated());
+			assertEquals(0, backend.calls.get());
+			assertEquals(1, server.tokenValidatorCalls.get());
+		}
+	}
+
+	private static CustomAuthenticate tokenValidator(StandInSafeNetServer server) {
+		return new CustomAuthenticate()
+				.setTokenValidatorClient(new StandInTokenValidatorClient(server.getTokenValidatorUrl(), GatewayTracing.NOOP))
+				.build();
+	}
+
+	/**
+	 * A backend issuing GrIDsure challenges, and accepting the answers carrying their state.
+	 */
+	private static class GridBackend implements Authenticator {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public AuthenticationResponse validateCode(AuthenticationRequest request) {
+			this.calls.incrementAndGet();
+			if (request.getState() == null || request.getState().isEmpty()) {
+				return new AuthenticationResponse(request.getUsername(), ResponseCode.AUTH_CHALLENGE)
+						.setChallenge(new AuthenticationChallenge().setChallengeName("GrIDsure").setChallengeData(GRID).setState("jni-state"));
+			}
+			return new AuthenticationResponse(request.getUsername(),
+					"jni-state".equals(request.getState()) ? ResponseCode.AUTH_SUCCESS : ResponseCode.AUTH_FAILURE);
+		}
+
+		@Override
+		public String getGridChallengeData(String username, String state, Optional<String> organization) {
+			this.calls.incrementAndGet();
+			return GRID;
+		}
+
+		@Override
+		public BufferedImage convertGridDataToImage(String challenge) {
+			return new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		}
+
+		@Override
+		public boolean getServerStatus() {
+			return true;
+		}
+
+		@Override
+		public boolean isLibraryLoaded() {
+			return true;
+		}
+
+	}
+
+}
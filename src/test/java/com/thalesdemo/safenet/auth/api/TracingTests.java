@@ -0,0 +1,98 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.HandlerMapping;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+class TracingTests {
+
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+	private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+
+	private final GatewayTracing tracing = new GatewayTracing(OpenTelemetrySdk.builder()
+			.setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(exporter)).build())
+			.setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+			.build());
+
+	private final GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry(), tracing);
+
+	@Test
+	void tracesStagesAndOutboundCallsUnderTheCallerTrace() throws Exception {
+		RestTemplate restTemplate = new RestTemplate();
+		restTemplate.getInterceptors().add(tracing.clientInterceptor());
+		MockRestServiceServer sps = MockRestServiceServer.bindTo(restTemplate).build();
+		sps.expect(requestTo("https://sps.example.com/park"))
+				.andExpect(header("traceparent", Matchers.startsWith("00-" + TRACE_ID + "-")))
+				.andRespond(withSuccess());
+
+		MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+			@Override
+			protected void service(HttpServletRequest req, HttpServletResponse res) throws IOException {
+				req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/v1/authenticate/{username}");
+				GatewayMetrics.Stage authenticate = metrics.start(GatewayMetrics.AUTHENTICATE);
+				GatewayMetrics.Stage parking = metrics.start(GatewayMetrics.PUSH_PARKING);
+				restTemplate.postForEntity("https://sps.example.com/park", null, String.class);
+				metrics.stop(parking, "ok");
+				metrics.stop(authenticate, (AuthenticationResponse) null, "method", "push");
+			}
+		});
+
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/authenticate/alice");
+		request.addHeader("traceparent", "00-" + TRACE_ID + "-00f067aa0ba902b7-01");
+		new TracingFilter(tracing).doFilter(request, new MockHttpServletResponse(), chain);
+		sps.verify();
+
+		Map<String, SpanData> spans = exporter.getFinishedSpanItems().stream()
+				.collect(Collectors.toMap(SpanData::getName, Function.identity()));
+		SpanData server = spans.get("POST /api/v1/authenticate/{username}");
+		SpanData authenticate = spans.get(GatewayMetrics.AUTHENTICATE);
+		SpanData parking = spans.get(GatewayMetrics.PUSH_PARKING);
+		SpanData client = spans.get("HTTP POST");
+
+		assertEquals(SpanKind.SERVER, server.getKind());
+		assertEquals("00f067aa0ba902b7", server.getParentSpanId());
+		assertEquals(server.getSpanId(), authenticate.getParentSpanId());
+		assertEquals(authenticate.getSpanId(), parking.getParentSpanId());
+		assertEquals(parking.getSpanId(), client.getParentSpanId());
+		assertEquals(SpanKind.CLIENT, client.getKind());
+		assertTrue(spans.values().stream().allMatch(span -> TRACE_ID.equals(span.getTraceId())));
+
+		assertEquals(StatusCode.ERROR, authenticate.getStatus().getStatusCode());
+		assertEquals("push", authenticate.getAttributes().get(AttributeKey.stringKey("method")));
+		assertEquals("ok", parking.getAttributes().get(AttributeKey.stringKey("outcome")));
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.thalesdemo.safenet.auth.api;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Replays a traffic capture of the {@link TrafficRecorder} against a gateway, open loop: each request is sent at the
+ * offset it arrived at in the capture, divided by the speed-up, whether or not the previous ones have completed, so
+ * that a slower gateway builds up a backlog as it would in production. It then reports, for each kind of request,
+ * the throughput and the latency percentiles of the replay next to the ones of the capture.
+ *
+ * Each hashed username of the capture is replayed as the same made-up username. The passcodes are made up too, and
+ * the challenge-response pushes are replayed as one-step pushes, since the state of their first step is not captured.
+ *
+ * Without a target, the capture is replayed against an embedded gateway backed by the {@link SimulatedAuthenticator}
+ * and the {@link StandInSafeNetServer}, so a regression can be looked for without a SafeNet account:
+ * `mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.thalesdemo.safenet.auth.api.TrafficReplay
+ * -Dreplay.file=capture.bin -Dreplay.speed=2`. Set replay.target and replay.apiKey to replay against a running
+ * gateway instead, and the SIMULATOR_* and standin.* system properties to shape the embedded backends.
+ */
+class TrafficReplay {
+
+	/**
+	 * The passcode sent with the replayed OTP authentications, accepted by the stand-in.
+	 */
+	static final String PASSCODE = "123456";
+
+	/**
+	 * The latencies of the replayed and captured requests of a kind, in microseconds.
+	 */
+	static final class Stats {
+		final List<Long> replayed = new ArrayList<>();
+		final List<Long> captured = new ArrayList<>();
+		int errors;
+		int serverErrors;
+
+		synchronized void add(long replayedMicros, long capturedMicros, int status) {
+			this.replayed.add(replayedMicros);
+			this.captured.add(capturedMicros);
+			if (status < 0) {
+				this.errors++;
+			} else if (status >= 500) {
+				this.serverErrors++;
+			}
+		}
+
+		static double percentile(List<Long> values, double percentile) {
+			if (values.isEmpty()) {
+				return 0;
+			}
+			long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+			Arrays.sort(sorted);
+			return sorted[Math.min((int) (sorted.length * percentile), sorted.length - 1)] / 1e3;
+		}
+	}
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+	private final URI target;
+	private final String apiKey;
+
+	TrafficReplay(URI target, String apiKey) {
+		this.target = target;
+		this.apiKey = apiKey;
+	}
+
+	/**
+	 * Reads the records of the specified capture file, sorted by arrival.
+	 */
+	static List<TrafficRecord> read(Path file) throws IOException {
+		List<TrafficRecord> records = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			TrafficRecord.readHeader(in);
+			long previousArrival = 0;
+			while (true) {
+				TrafficRecord record;
+				try {
+					record = TrafficRecord.readFrom(in, previousArrival);
+				} catch (EOFException e) {
+					break;
+				}
+				records.add(record);
+				previousArrival = record.getArrivalMicros();
+			}
+		}
+		// The records are written once completed, not in the order of arrival
+		records.sort(Comparator.comparingLong(TrafficRecord::getArrivalMicros));
+		return records;
+	}
+
+	/**
+	 * Replays the specified records, the speed-up dividing their offsets, and returns the statistics of each kind.
+	 */
+	Map<TrafficRecord.Kind, Stats> replay(List<TrafficRecord> records, double speed) {
+		Map<TrafficRecord.Kind, Stats> stats = new EnumMap<>(TrafficRecord.Kind.class);
+		for (TrafficRecord.Kind kind : TrafficRecord.Kind.values()) {
+			stats.put(kind, new Stats());
+		}
+		if (records.isEmpty()) {
+			return stats;
+		}
+
+		long firstArrival = records.get(0).getArrivalMicros();
+		long begin = System.nanoTime();
+		List<CompletableFuture<?>> pending = new ArrayList<>(records.size());
+		for (TrafficRecord record : records) {
+			long due = begin + (long) (TimeUnit.MICROSECONDS.toNanos(record.getArrivalMicros() - firstArrival) / speed);
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+			long sent = System.nanoTime();
+			pending.add(this.client.sendAsync(request(record), HttpResponse.BodyHandlers.discarding())
+					.handle((response, error) -> {
+						stats.get(record.getKind()).add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent),
+								record.getDurationMicros(), error != null ? -1 : response.statusCode());
+						return null;
+					}));
+		}
+		CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+		return stats;
+	}
+
+	/**
+	 * Builds the request replaying the specified record.
+	 */
+	HttpRequest request(TrafficRecord record) {
+		String user = record.getUserHash() == 0 ? UUID.randomUUID().toString() : Long.toHexString(record.getUserHash());
+		HttpRequest.Builder builder = HttpRequest.newBuilder().header("X-API-Key", this.apiKey)
+				.timeout(Duration.ofMinutes(3));
+		if (record.getFormat() != TrafficRecord.NO_FORMAT && record.getFormat() < GridImageFormat.values().length) {
+			builder.header("Accept", GridImageFormat.values()[record.getFormat()].getMediaType().toString());
+		}
+
+		switch (record.getKind()) {
+			case PUSH:
+				return post(builder, "/api/v1/authenticate/" + user, "{\"code\":\"p\"}");
+			case GRID_CHALLENGE:
+				return builder.uri(this.target.resolve("/api/v1/authenticate/challenge/grid/" + user)).GET().build();
+			case GRID_RENDER:
+				return post(builder, "/api/v1/authenticate/render/grid", "{\"string\":\"" + grid(record.getUserHash()) + "\"}");
+			case GRID_RENDER_GET:
+				return builder.uri(this.target.resolve("/api/v1/authenticate/render/grid/" + grid(record.getUserHash()))).GET()
+						.build();
+			default:
+				StringBuilder body = new StringBuilder("{");
+				if (record.hasFlag(TrafficRecord.CODE)) {
+					body.append("\"code\":\"").append(PASSCODE).append('"');
+				}
+				if (record.hasFlag(TrafficRecord.STATE)) {
+					body.append(body.length() > 1 ? "," : "").append("\"state\":\"").append(UUID.randomUUID()).append('"');
+				}
+				if (record.hasFlag(TrafficRecord.ORGANIZATION)) {
+					body.append(body.length() > 1 ? "," : "").append("\"organization\":\"replay\"");
+				}
+				return post(builder, "/api/v1/authenticate/" + user, body.append('}').toString());
+		}
+	}
+
+	private HttpRequest post(HttpRequest.Builder builder, String path, String body) {
+		return builder.uri(this.target.resolve(path)).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body)).build();
+	}
+
+	/**
+	 * Returns a grid challenge string of 25 digits, the same for the same hash so that the image cache is hit as often
+	 * as in the capture.
+	 */
+	static String grid(long hash) {
+		long seed = hash == 0 ? ThreadLocalRandom.current().nextLong() : hash;
+		StringBuilder grid = new StringBuilder(25);
+		for (int i = 0; i < 25; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			grid.append((char) ('0' + (int) ((seed >>> 33) % 10)));
+		}
+		return grid.toString();
+	}
+
+	/**
+	 * Prints the statistics of each kind of request.
+	 */
+	static void report(Map<TrafficRecord.Kind, Stats> stats, double seconds) {
+		System.out.printf("%-16s %8s %10s %14s %14s %14s %14s %8s%n", "kind", "requests", "req/s", "p50 ms", "p50 ms (cap)",
+				"p99 ms", "p99 ms (cap)", "errors");
+		stats.forEach((kind, kindStats) -> {
+			if (!kindStats.replayed.isEmpty()) {
+				System.out.printf("%-16s %8d %10.1f %14.1f %14.1f %14.1f %14.1f %8d%n", kind, kindStats.replayed.size(),
+						kindStats.replayed.size() / seconds, Stats.percentile(kindStats.replayed, 0.5),
+						Stats.percentile(kindStats.captured, 0.5), Stats.percentile(kindStats.replayed, 0.99),
+						Stats.percentile(kindStats.captured, 0.99), kindStats.errors + kindStats.serverErrors);
+			}
+		});
+	}
+
+	/**
+	 * Starts a gateway on an ephemeral port, backed by the simulator and the specified stand-in, and accepting the
+	 * specified API key. The SIMULATOR_* system properties and the specified properties shape the simulator.
+	 */
+	static ConfigurableApplicationContext startGateway(StandInSafeNetServer standIn, String apiKey, String... properties) {
+		return new SpringApplicationBuilder(Application.class)
+				.properties(properties)
+				.properties("AUTHENTICATOR=simulator",
+						"TOKEN_VALIDATOR_STANDIN_URL=" + standIn.getTokenValidatorUrl(),
+						"API_KEY_HASH=" + new BCryptPasswordEncoder().encode(apiKey),
+						"API_SERVER_PORT=0",
+						"API_LOG_LEVEL=WARN",
+						"AUDIT_LOG_DIR=",
+						"JFR_ENABLED=false")
+				.run();
+	}
+
+	static URI baseUri(ConfigurableApplicationContext gateway) {
+		return URI.create("http://127.0.0.1:" + gateway.getEnvironment().getProperty("local.server.port"));
+	}
+
+	/**
+	 * Replays the capture named by replay.file, against replay.target with replay.apiKey, or against an embedded
+	 * gateway, at the replay.speed speed-up (1 by default).
+	 */
+	public static void main(String[] args) throws Exception {
+		List<TrafficRecord> records = read(Paths.get(System.getProperty("replay.file", "capture.bin")));
+		double speed = Double.parseDouble(System.getProperty("replay.speed", "1"));
+		String target = System.getProperty("replay.target");
+
+		StandInSafeNetServer standIn = null;
+		ConfigurableApplicationContext gateway = null;
+		TrafficReplay replay;
+		if (target != null) {
+			replay = new TrafficReplay(URI.create(target), System.getProperty("replay.apiKey", ""));
+		} else {
+			standIn = new StandInSafeNetServer(new StandInSafeNetServer.Settings()
+					.tokenValidatorLatencyMillis(Long.getLong("standin.tokenValidatorLatencyMillis", 5))
+					.parkingHoldMillis(Long.getLong("standin.parkingHoldMillis", 2000)), 0);
+			String apiKey = UUID.randomUUID().toString();
+			gateway = startGateway(standIn, apiKey);
+			replay = new TrafficReplay(baseUri(gateway), apiKey);
+		}
+
+		try {
+			long begin = System.nanoTime();
+			Map<TrafficRecord.Kind, Stats> stats = replay.replay(records, speed);
+			report(stats, (System.nanoTime() - begin) / 1e9);
+		} finally {
+			if (gateway != null) {
+				gateway.close();
+			}
+			if (standIn != null) {
+				standIn.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ConfigurableApplicationContext;
+
+class TrafficReplayTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void readsRecordsInOrderOfArrival() throws IOException {
+		List<TrafficRecord> written = Arrays.asList(
+				new TrafficRecord(1_000, TrafficRecord.Kind.OTP, TrafficRecord.CODE | TrafficRecord.ORGANIZATION,
+						TrafficRecord.NO_FORMAT, -42L, 200, 3_500),
+				// Completed before the previous one, so written after it but arrived before
+				new TrafficRecord(400, TrafficRecord.Kind.PUSH, TrafficRecord.PUSH_MODE, TrafficRecord.NO_FORMAT,
+						Long.MAX_VALUE, 403, 2_000_000_000L),
+				new TrafficRecord(90_000_000_000L, TrafficRecord.Kind.GRID_RENDER_GET, 0,
+						GridImageFormat.SVG.ordinal(), 7L, 304, 150));
+		Path file = this.directory.resolve("capture.bin");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+			TrafficRecord.writeHeader(out, 1_700_000_000_000L);
+			long previous = 0;
+			for (TrafficRecord record : written) {
+				record.writeTo(out, previous);
+				previous = record.getArrivalMicros();
+			}
+		}
+
+		List<TrafficRecord> read = TrafficReplay.read(file);
+		assertEquals(3, read.size());
+		TrafficRecord push = read.get(0);
+		assertEquals(400, push.getArrivalMicros());
+		assertEquals(TrafficRecord.Kind.PUSH, push.getKind());
+		assertTrue(push.hasFlag(TrafficRecord.PUSH_MODE));
+		assertEquals(Long.MAX_VALUE, push.getUserHash());
+		assertEquals(2_000_000_000L, push.getDurationMicros());
+		TrafficRecord otp = read.get(1);
+		assertEquals(TrafficRecord.CODE | TrafficRecord.ORGANIZATION, otp.getFlags());
+		assertEquals(-42L, otp.getUserHash());
+		assertEquals(GridImageFormat.SVG.ordinal(), read.get(2).getFormat());
+		assertEquals(304, read.get(2).getStatus());
+	}
+
+	@Test
+	void capturesAndReplaysAgainstEmbeddedGateway() throws Exception {
+		List<TrafficRecord> traffic = new ArrayList<>();
+		TrafficRecord.Kind[] kinds = TrafficRecord.Kind.values();
+		for (int i = 0; i < 50; i++) {
+			TrafficRecord.Kind kind = kinds[i % kinds.length];
+			int flags = kind == TrafficRecord.Kind.OTP ? TrafficRecord.CODE : 0;
+			int format = kind.compareTo(TrafficRecord.Kind.GRID_CHALLENGE) >= 0 ? i % 3 : TrafficRecord.NO_FORMAT;
+			traffic.add(new TrafficRecord(i * 2_000L, kind, flags, format, i % 10 + 1, 200, 1_000));
+		}
+
+		Path file = this.directory.resolve("capture.bin");
+		String apiKey = UUID.randomUUID().toString();
+		Map<TrafficRecord.Kind, TrafficReplay.Stats> stats;
+		try (StandInSafeNetServer standIn = new StandInSafeNetServer(
+				new StandInSafeNetServer.Settings().tokenValidatorLatencyMillis(0).parkingHoldMillis(10), 0);
+				ConfigurableApplicationContext gateway = TrafficReplay.startGateway(standIn, apiKey,
+						"SIMULATOR_RESULT_MIX=success=1", "TRAFFIC_CAPTURE_FILE=" + file)) {
+			stats = new TrafficReplay(TrafficReplay.baseUri(gateway), apiKey).replay(traffic, 1);
+		}
+
+		for (TrafficRecord.Kind kind : kinds) {
+			assertEquals(10, stats.get(kind).replayed.size());
+			assertEquals(0, stats.get(kind).errors + stats.get(kind).serverErrors, kind.toString());
+		}
+
+		// The gateway captured the replayed traffic, telling the users apart by their hashes only
+		List<TrafficRecord> captured = TrafficReplay.read(file);
+		assertEquals(50, captured.size());
+		Map<TrafficRecord.Kind, Long> counts = captured.stream()
+				.collect(Collectors.groupingBy(TrafficRecord::getKind, Collectors.counting()));
+		assertEquals(10, counts.get(TrafficRecord.Kind.PUSH));
+		assertEquals(10, counts.get(TrafficRecord.Kind.GRID_RENDER_GET));
+		assertTrue(captured.stream().filter(record -> record.getKind() == TrafficRecord.Kind.OTP)
+				.allMatch(record -> record.getFlags() == TrafficRecord.CODE && record.getStatus() == 200));
+		assertEquals(10, captured.stream().filter(record -> record.getKind() == TrafficRecord.Kind.GRID_CHALLENGE)
+				.filter(record -> record.getFormat() != TrafficRecord.NO_FORMAT).count());
+		List<TrafficRecord.Kind> withUsers = Arrays.asList(TrafficRecord.Kind.OTP, TrafficRecord.Kind.PUSH,
+				TrafficRecord.Kind.GRID_CHALLENGE);
+		assertEquals(traffic.stream().filter(record -> withUsers.contains(record.getKind())).map(TrafficRecord::getUserHash)
+				.distinct().count(),
+				captured.stream().filter(record -> withUsers.contains(record.getKind())).map(TrafficRecord::getUserHash)
+						.distinct().count());
+	}
+
+}
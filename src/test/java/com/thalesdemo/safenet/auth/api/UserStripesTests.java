@@ -0,0 +1,163 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class UserStripesTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void runsRequestsOfSameUserOneAtATime() throws Exception {
+		UserStripes stripes = new UserStripes(16, 10_000, this.registry);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				// The username is case-insensitive
+				String username = i % 2 == 0 ? "alice" : "ALICE";
+				results.add(pool.submit(() -> stripes.call("Org", username, () -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					sleep(2);
+					return running.decrementAndGet();
+				})));
+			}
+			for (Future<?> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals(1, maxRunning.get());
+		int stripe = stripes.stripe("org", "alice");
+		assertTrue(this.registry.get(UserStripes.CONTENDED).tag("stripe", Integer.toString(stripe)).counter().count() > 0);
+		assertEquals(1, this.registry.find(UserStripes.CONTENDED).counters().size());
+		assertEquals(0, stripes.getQueued());
+	}
+
+	@Test
+	void runsRequestsOfSameUserInOrderOfArrival() throws Exception {
+		UserStripes stripes = new UserStripes(1, 10_000, this.registry);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch holding = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			// The first request holds the stripe, and its thread sends another request as soon as it is done
+			Future<?> first = pool.submit(() -> {
+				stripes.call(null, "alice", () -> {
+					holding.countDown();
+					return await(release);
+				});
+				return stripes.call(null, "alice", () -> order.add("late"));
+			});
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+			List<Future<?>> queued = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				String name = "queued " + i;
+				queued.add(pool.submit(() -> stripes.call(null, "alice", () -> order.add(name))));
+				// Wait for the request to queue, so that the order of arrival is known
+				for (int n = 0; stripes.getQueued() <= i && n < 500; n++) {
+					sleep(10);
+				}
+			}
+			release.countDown();
+			first.get(10, TimeUnit.SECONDS);
+			for (Future<?> result : queued) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		// The late request does not overtake the requests queued before it
+		assertEquals(Arrays.asList("queued 0", "queued 1", "queued 2", "late"), order);
+	}
+
+	@Test
+	void runsDifferentUsersInParallel() throws Exception {
+		UserStripes stripes = new UserStripes(64, 10_000, this.registry);
+		String other = "bob";
+		for (int i = 0; stripes.stripe(null, other) == stripes.stripe(null, "alice"); i++) {
+			other = "bob" + i;
+		}
+
+		CountDownLatch both = new CountDownLatch(2);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (String username : new String[] { "alice", other }) {
+				results.add(pool.submit(() -> stripes.call(null, username, () -> {
+					// Completes only if the other user runs at the same time
+					both.countDown();
+					return await(both);
+				})));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(0, this.registry.find(UserStripes.CONTENDED).counters().size());
+	}
+
+	@Test
+	void runsAnywayAfterTimeout() throws Exception {
+		UserStripes stripes = new UserStripes(1, 20, this.registry);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch holding = new CountDownLatch(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> stalled = pool.submit(() -> stripes.call(null, "alice", () -> {
+				holding.countDown();
+				return await(release);
+			}));
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+			assertEquals("ran", stripes.call(null, "alice", () -> "ran"));
+			assertEquals(1.0, this.registry.get("safenet.user.stripe.timeouts").counter().count());
+			release.countDown();
+			assertTrue(stalled.get(5, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean await(CountDownLatch latch) {
+		try {
+			return latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package com.thalesdemo.safenet.auth.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class WorkloadClassTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@AfterEach
+	void end() {
+		RequestDeadline.end();
+	}
+
+	@Test
+	void boundsPushesByThreadsOtherClassesLeave() {
+		// 200 threads, less 80 for otp, 48 for grid, 8 for health and 8 reserved
+		assertEquals(56, new WorkloadClasses(48, 32, -1, 0, 16, 32, 4, 4, 5000, 200, new SimpleMeterRegistry())
+				.getPush().getMaxRunning());
+		assertEquals(0, new WorkloadClasses(0, 32, -1, 0, 16, 32, 4, 4, 5000, 200, new SimpleMeterRegistry())
+				.getPush().getMaxRunning());
+		assertEquals(0, new WorkloadClasses(48, 32, -1, 0, 16, 32, 4, 4, 5000, 100, new SimpleMeterRegistry())
+				.getPush().getMaxRunning());
+		assertEquals(10, new WorkloadClasses(48, 32, 10, 0, 16, 32, 4, 4, 5000, 100, new SimpleMeterRegistry())
+				.getPush().getMaxRunning());
+	}
+
+	@Test
+	void queuesThenRejectsRequestsBeyondBounds() throws Exception {
+		WorkloadClass workload = new WorkloadClass("test", 1, 1, 10_000, this.registry);
+		workload.acquire();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> queued = pool.submit(() -> {
+				workload.acquire();
+				try {
+					return workload.getRunning();
+				} finally {
+					workload.release();
+				}
+			});
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); workload.getQueued() == 0
+					&& System.nanoTime() < deadline;) {
+				TimeUnit.MILLISECONDS.sleep(1);
+			}
+			assertEquals(1, workload.getQueued());
+
+			// The queue is full: rejected at once
+			ConcurrencyLimitExceededException e = assertThrows(ConcurrencyLimitExceededException.class, workload::acquire);
+			assertEquals("test", e.getLimit());
+
+			workload.release();
+			assertEquals(1, queued.get(5, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(0, workload.getRunning());
+		assertEquals(0, workload.getQueued());
+		assertEquals(1.0, this.registry.get("safenet.workload.rejected").tag("workload", "test").counter().count());
+	}
+
+	@Test
+	void givesUpWaitingAtTimeoutOrDeadline() {
+		WorkloadClass workload = new WorkloadClass("test", 1, 8, 50, this.registry);
+		workload.acquire();
+		assertThrows(ConcurrencyLimitExceededException.class, workload::acquire);
+
+		RequestDeadline.begin(20);
+		DeadlineExceededException e = assertThrows(DeadlineExceededException.class, workload::acquire);
+		assertEquals(WorkloadClass.STAGE, e.getStage());
+		assertEquals(1, workload.getRunning());
+		assertEquals(1.0, this.registry.get("safenet.workload.rejected").tag("workload", "test").counter().count());
+	}
+
+	@Test
+	void runsWithoutBound() {
+		WorkloadClass workload = new WorkloadClass("test", 0, 0, 0, this.registry);
+		for (int i = 0; i < 1_000; i++) {
+			workload.acquire();
+		}
+		assertEquals(0, workload.getQueued());
+	}
+
+	@Test
+	void keepsServingOtherClassesWhilePushesAreParked() throws Exception {
+		StandInSafeNetServer.Settings settings = new StandInSafeNetServer.Settings()
+				.tokenValidatorLatencyMillis(0)
+				.parkingHoldMillis(2_000);
+		String apiKey = UUID.randomUUID().toString();
+		try (StandInSafeNetServer server = new StandInSafeNetServer(settings, 0);
+				ConfigurableApplicationContext gateway = TrafficReplay.startGateway(server, apiKey,
+						"WORKLOAD_PUSH_CONCURRENCY=1", "WORKLOAD_PUSH_QUEUE=0", "SIMULATOR_RESULT_MIX=success=1")) {
+			URI base = TrafficReplay.baseUri(gateway);
+			HttpClient client = HttpClient.newHttpClient();
+
+			CompletableFuture<HttpResponse<String>> parked = client.sendAsync(authenticate(base, apiKey, "alice", "p"),
+					HttpResponse.BodyHandlers.ofString());
+			for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5); server.parkingCalls.get() == 0
+					&& System.nanoTime() < deadline;) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			assertEquals(1, server.parkingCalls.get());
+
+			// The push class is full: the next push is shed, the OTP validations still run
+			HttpResponse<String> shed = client.send(authenticate(base, apiKey, "bob", "p"), HttpResponse.BodyHandlers.ofString());
+			assertEquals(503, shed.statusCode());
+			assertEquals("1", shed.headers().firstValue("Retry-After").orElse(null));
+			HttpResponse<String> otp = client.send(authenticate(base, apiKey, "carol", TrafficReplay.PASSCODE),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, otp.statusCode());
+			assertFalse(parked.isDone(), "the push was not parked while the others ran");
+
+			assertEquals(200, parked.get(10, TimeUnit.SECONDS).statusCode());
+		}
+	}
+
+	private static HttpRequest authenticate(URI base, String apiKey, String username, String code) {
+		return HttpRequest.newBuilder(base.resolve("/api/v1/authenticate/" + username))
+				.header("X-API-Key", apiKey).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString("{\"code\":\"" + code + "\"}")).build();
+	}
+
+}